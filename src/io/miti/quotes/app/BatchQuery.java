@@ -0,0 +1,789 @@
+package io.miti.quotes.app;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.search.QueryKey;
+import io.miti.quotes.app.search.SearchMode;
+
+/**
+ * Answers a file of queries without the user interface, for
+ * batch jobs.  The corpus is loaded once, the queries are run
+ * concurrently on the same search engine as the search page, and the
+ * matches are written to standard output in the order of the
+ * queries, as JSON Lines (one object per query) or CSV (one row
+ * per match).  The throughput is reported on standard error.
+ * Each thread answers a block of queries in one pass over the
+ * corpus.
+ *
+ * Each line of the query file has up to five fields, separated
+ * by tabs: the search mode (contains, wildcard, soundex or regex;
+ * contains if empty), the keyword, the author, "case" to match
+ * case, and the maximum number of matches.  Trailing fields may
+ * be left off.  Blank lines and lines starting with '#' are
+ * skipped.  Run it with:
+ *
+ *   java -jar quotes.jar -batch [-data file] [-format jsonl|csv]
+ *        [-threads n] [query file]
+ *
+ * If there's no query file, or it's "-", the queries are read from
+ * standard input.  If there's no data file, the data file of the
+ * application is used.  Saved edits are not included.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class BatchQuery
+{
+  /**
+   * The number of blocks of queries that may be waiting to be
+   * written, for each thread.
+   */
+  private static final int QUEUE_PER_THREAD = 4;
+
+  /**
+   * The number of queries answered together in one pass over
+   * the corpus.
+   */
+  private static final int BLOCK_SIZE = 64;
+
+  /**
+   * The search engine.
+   */
+  private final QuoteSearchEngine engine;
+
+  /**
+   * The snapshot being searched, so every query sees the same
+   * quotations.
+   */
+  private final CorpusSnapshot snapshot;
+
+  /**
+   * Whether to write CSV instead of JSON Lines.
+   */
+  private final boolean csv;
+
+  /**
+   * The number of threads.
+   */
+  private final int numThreads;
+
+  /**
+   * The number of queries answered.
+   */
+  private int numQueries = 0;
+
+  /**
+   * The number of queries that couldn't be answered.
+   */
+  private int numErrors = 0;
+
+  /**
+   * The number of matches written.
+   */
+  private long numMatches = 0L;
+
+
+  /**
+   * Create a batch.
+   *
+   * @param pEngine the search engine
+   * @param bCsv whether to write CSV instead of JSON Lines
+   * @param nThreads the number of threads
+   */
+  public BatchQuery(final QuoteSearchEngine pEngine,
+                    final boolean bCsv,
+                    final int nThreads)
+  {
+    super();
+    engine = pEngine;
+    snapshot = pEngine.getSnapshot();
+    csv = bCsv;
+    numThreads = Math.max(1, nThreads);
+  }
+
+
+  /**
+   * Load the corpus and answer the queries.
+   *
+   * @param args the options, followed by the query file
+   */
+  public static void main(final String[] args)
+  {
+    // Parse the options
+    String dataFile = null;
+    String queryFile = null;
+    boolean bCsv = false;
+    int nThreads = Runtime.getRuntime().availableProcessors();
+    for (int i = 0; i < args.length; ++i)
+    {
+      final String arg = args[i];
+      if (arg.equals("-data") && (i + 1 < args.length))
+      {
+        dataFile = args[++i];
+      }
+      else if (arg.equals("-format") && (i + 1 < args.length))
+      {
+        final String format = args[++i];
+        if (!format.equalsIgnoreCase("csv") && !format.equalsIgnoreCase("jsonl"))
+        {
+          printUsage();
+          return;
+        }
+
+        bCsv = format.equalsIgnoreCase("csv");
+      }
+      else if (arg.equals("-threads") && (i + 1 < args.length))
+      {
+        try
+        {
+          nThreads = Integer.parseInt(args[++i]);
+        }
+        catch (NumberFormatException nfe)
+        {
+          printUsage();
+          return;
+        }
+      }
+      else if ((queryFile == null) && (arg.equals("-") || !arg.startsWith("-")))
+      {
+        queryFile = arg;
+      }
+      else
+      {
+        printUsage();
+        return;
+      }
+    }
+
+    // Load the corpus
+    final long loadStart = System.nanoTime();
+    QuoteSearchEngine engine = null;
+    try
+    {
+      engine = QuoteSearchEngine.load(dataFile);
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("Unable to load the data: " + ioe.getMessage());
+      return;
+    }
+
+    System.err.println("Loaded " + engine.getSnapshot().getLiveCount() +
+                       " quotations in " +
+                       ((System.nanoTime() - loadStart) / 1000000L) + " ms");
+
+    // Answer the queries
+    BufferedReader in = null;
+    Writer out = null;
+    try
+    {
+      final InputStream is = (((queryFile == null) || queryFile.equals("-"))
+                              ? System.in : new FileInputStream(queryFile));
+      in = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+      out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"), 65536);
+      new BatchQuery(engine, bCsv, nThreads).run(in, out);
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("IOException: " + ioe.getMessage());
+    }
+    finally
+    {
+      try
+      {
+        if (out != null)
+        {
+          out.flush();
+        }
+
+        if ((in != null) && (queryFile != null) && !queryFile.equals("-"))
+        {
+          in.close();
+        }
+      }
+      catch (IOException ioe)
+      {
+        System.err.println("IOException: " + ioe.getMessage());
+      }
+
+      engine.shutdown();
+    }
+  }
+
+
+  /**
+   * Answer each query read from a reader, and write the matches.
+   * The queries are run on a pool of threads, but the answers
+   * are written in the order of the queries.
+   *
+   * @param in the queries
+   * @param out where to write the matches
+   * @throws IOException on error
+   */
+  public void run(final BufferedReader in, final Writer out)
+    throws IOException
+  {
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads,
+      new ThreadFactory()
+      {
+        public Thread newThread(final Runnable r)
+        {
+          Thread t = new Thread(r, "quotes-batch");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+    if (csv)
+    {
+      out.write("query,id,author,topic,quotation\n");
+    }
+
+    final long start = System.nanoTime();
+    final LinkedList<Future<List<Answer>>> pending =
+      new LinkedList<Future<List<Answer>>>();
+    final int maxPending = numThreads * QUEUE_PER_THREAD;
+    try
+    {
+      String line = null;
+      int nLine = 0;
+      int nQuery = 0;
+      List<Answer> block = new ArrayList<Answer>(BLOCK_SIZE);
+      while ((line = in.readLine()) != null)
+      {
+        // Skip blank lines and comments
+        ++nLine;
+        if ((line.trim().length() == 0) || line.startsWith("#"))
+        {
+          continue;
+        }
+
+        block.add(new Answer(++nQuery, nLine, line));
+        if (block.size() < BLOCK_SIZE)
+        {
+          continue;
+        }
+
+        pending.add(submit(pool, block));
+        block = new ArrayList<Answer>(BLOCK_SIZE);
+
+        // Write the oldest answers, so only a few are held at once
+        while (pending.size() >= maxPending)
+        {
+          write(waitFor(pending.removeFirst()), out);
+        }
+      }
+
+      if (!block.isEmpty())
+      {
+        pending.add(submit(pool, block));
+      }
+
+      while (!pending.isEmpty())
+      {
+        write(waitFor(pending.removeFirst()), out);
+      }
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+
+    out.flush();
+
+    // Report the throughput
+    final long nanos = Math.max(1L, System.nanoTime() - start);
+    System.err.println("Answered " + numQueries + " queries (" + numErrors +
+                       " errors, " + numMatches + " matches) in " +
+                       (nanos / 1000000L) + " ms on " + numThreads +
+                       " threads: " + ((numQueries * 1000000000L) / nanos) +
+                       " queries/second");
+  }
+
+
+  /**
+   * Answer a block of queries on the pool.
+   *
+   * @param pool the threads
+   * @param block the queries
+   * @return the pending answers
+   */
+  private Future<List<Answer>> submit(final ExecutorService pool,
+                                      final List<Answer> block)
+  {
+    return pool.submit(new Callable<List<Answer>>()
+    {
+      public List<Answer> call()
+      {
+        answer(block);
+        return block;
+      }
+    });
+  }
+
+
+  /**
+   * Parse and run a block of queries, in one pass over the
+   * corpus.  This runs on a pool thread.
+   *
+   * @param block the queries, which get the answers
+   */
+  private void answer(final List<Answer> block)
+  {
+    final long start = System.nanoTime();
+
+    // Compile each query on its own, so a bad one only fails itself
+    List<SearchRun> runs = new ArrayList<SearchRun>(block.size());
+    List<Answer> valid = new ArrayList<Answer>(block.size());
+    for (Answer answer : block)
+    {
+      try
+      {
+        runs.add(engine.createRun(parse(answer.line, -1)));
+        valid.add(answer);
+      }
+      catch (RuntimeException re)
+      {
+        // Such as a bad regular expression
+        answer.error = ((re.getMessage() == null) ? re.toString()
+                                                  : re.getMessage());
+      }
+    }
+
+    engine.searchAll(runs.toArray(new SearchRun[runs.size()]), snapshot);
+    for (int i = 0; i < runs.size(); ++i)
+    {
+      valid.get(i).result = new SearchResult(runs.get(i), snapshot);
+    }
+
+    // Share the time between the queries
+    final long nanos = (System.nanoTime() - start) / block.size();
+    for (Answer answer : block)
+    {
+      answer.nanos = nanos;
+    }
+  }
+
+
+  /**
+   * Parse a line of the query file.
+   *
+   * @param line the line
+   * @param nDefaultLimit the limit if the line has none, or -1
+   * @return the query
+   * @throws IllegalArgumentException if the line isn't valid
+   */
+  static QueryKey parse(final String line, final int nDefaultLimit)
+  {
+    final String[] fields = line.split("\t", -1);
+    final String mode = getField(fields, 0);
+    final String keyword = getField(fields, 1);
+    final String author = getField(fields, 2);
+    final String matchCase = getField(fields, 3);
+    final String limit = getField(fields, 4);
+
+    if ((keyword == null) && (author == null))
+    {
+      throw new IllegalArgumentException("No keyword or author");
+    }
+
+    return new QueryKey(parseMode(mode), keyword, author,
+                        ((matchCase != null) && matchCase.equalsIgnoreCase("case")),
+                        parseLimit(limit, nDefaultLimit));
+  }
+
+
+  /**
+   * Parse the name of a search mode, ignoring case.
+   *
+   * @param mode the name, or null
+   * @return the mode, or Contains if the name is null
+   * @throws IllegalArgumentException if the name isn't a mode
+   */
+  static SearchMode parseMode(final String mode)
+  {
+    if (mode == null)
+    {
+      return SearchMode.CONTAINS;
+    }
+
+    try
+    {
+      return SearchMode.valueOf(mode.toUpperCase());
+    }
+    catch (IllegalArgumentException iae)
+    {
+      throw new IllegalArgumentException("Unknown search mode: " + mode);
+    }
+  }
+
+
+  /**
+   * Parse a match limit.
+   *
+   * @param limit the limit, or null
+   * @param nDefault the limit to use if it's null
+   * @return the limit, or -1 for no limit
+   * @throws IllegalArgumentException if the limit isn't a number
+   */
+  static int parseLimit(final String limit, final int nDefault)
+  {
+    if (limit == null)
+    {
+      return nDefault;
+    }
+
+    try
+    {
+      return Integer.parseInt(limit);
+    }
+    catch (NumberFormatException nfe)
+    {
+      throw new IllegalArgumentException("Invalid limit: " + limit);
+    }
+  }
+
+
+  /**
+   * Get a field of a query, trimmed.
+   *
+   * @param fields the fields
+   * @param nIndex the index of the field
+   * @return the field, or null if it's missing or empty
+   */
+  private static String getField(final String[] fields, final int nIndex)
+  {
+    if (nIndex >= fields.length)
+    {
+      return null;
+    }
+
+    final String field = fields[nIndex].trim();
+    return ((field.length() == 0) ? null : field);
+  }
+
+
+  /**
+   * Wait for a block of queries to be answered.
+   *
+   * @param future the pending answers
+   * @return the answers
+   * @throws IOException if the wait was interrupted
+   */
+  private static List<Answer> waitFor(final Future<List<Answer>> future)
+    throws IOException
+  {
+    try
+    {
+      return future.get();
+    }
+    catch (InterruptedException ie)
+    {
+      throw new IOException("Interrupted: " + ie.getMessage());
+    }
+    catch (ExecutionException ee)
+    {
+      throw new IOException("Query failed: " + ee.getCause());
+    }
+  }
+
+
+  /**
+   * Write a block of answers.  This runs on the calling thread.
+   *
+   * @param block the answers
+   * @param out where to write them
+   * @throws IOException on error
+   */
+  private void write(final List<Answer> block, final Writer out)
+    throws IOException
+  {
+    for (Answer answer : block)
+    {
+      write(answer, out);
+    }
+  }
+
+
+  /**
+   * Write an answer.  This runs on the calling thread.
+   *
+   * @param answer the answer
+   * @param out where to write it
+   * @throws IOException on error
+   */
+  private void write(final Answer answer, final Writer out)
+    throws IOException
+  {
+    ++numQueries;
+    if (answer.error != null)
+    {
+      ++numErrors;
+      if (csv)
+      {
+        // CSV has nowhere to put errors
+        System.err.println("Line " + answer.lineNumber + ": " + answer.error);
+      }
+      else
+      {
+        StringBuilder sb = new StringBuilder(100);
+        sb.append("{\"query\":").append(answer.number)
+          .append(",\"line\":").append(answer.lineNumber)
+          .append(",\"error\":");
+        appendJson(sb, answer.error);
+        sb.append("}\n");
+        out.write(sb.toString());
+      }
+
+      return;
+    }
+
+    final SearchResult result = answer.result;
+    final int nCount = result.size();
+    numMatches += nCount;
+
+    if (csv)
+    {
+      for (int i = 0; i < nCount; ++i)
+      {
+        final QuotationNode quote = result.getQuote(i);
+        StringBuilder sb = new StringBuilder(200);
+        sb.append(answer.number).append(',').append(result.getId(i)).append(',');
+        appendCsv(sb, quote.getName());
+        sb.append(',');
+        appendCsv(sb, quote.getTopic());
+        sb.append(',');
+        appendCsv(sb, quote.getQuotation());
+        sb.append('\n');
+        out.write(sb.toString());
+      }
+
+      return;
+    }
+
+    final QueryKey key = result.getQuery();
+    StringBuilder sb = new StringBuilder(200 + (nCount * 200));
+    sb.append("{\"query\":").append(answer.number)
+      .append(",\"mode\":\"").append(key.getMode().name().toLowerCase())
+      .append("\",\"keyword\":");
+    appendJson(sb, key.getKeyword());
+    sb.append(",\"author\":");
+    appendJson(sb, key.getAuthor());
+    sb.append(",\"matches\":").append(nCount)
+      .append(",\"full\":").append(result.isFull())
+      .append(",\"micros\":").append(answer.nanos / 1000L)
+      .append(",\"results\":[");
+    for (int i = 0; i < nCount; ++i)
+    {
+      if (i > 0)
+      {
+        sb.append(',');
+      }
+
+      appendQuote(sb, result.getId(i), result.getQuote(i), false);
+    }
+
+    sb.append("]}\n");
+    out.write(sb.toString());
+  }
+
+
+  /**
+   * Append a quotation as a JSON object.
+   *
+   * @param sb the buffer
+   * @param nId the ID of the quotation
+   * @param quote the quotation
+   * @param bDetails whether to include the bio and source
+   */
+  static void appendQuote(final StringBuilder sb, final int nId,
+                          final QuotationNode quote, final boolean bDetails)
+  {
+    sb.append("{\"id\":").append(nId).append(",\"author\":");
+    appendJson(sb, quote.getName());
+    sb.append(",\"topic\":");
+    appendJson(sb, quote.getTopic());
+    sb.append(",\"quotation\":");
+    appendJson(sb, quote.getQuotation());
+    if (bDetails)
+    {
+      sb.append(",\"bio\":");
+      appendJson(sb, quote.getBio());
+      sb.append(",\"source\":");
+      appendJson(sb, quote.getSource());
+    }
+
+    sb.append('}');
+  }
+
+
+  /**
+   * Append a string as a JSON string.
+   *
+   * @param sb the buffer
+   * @param str the string (may be null)
+   */
+  static void appendJson(final StringBuilder sb, final String str)
+  {
+    if (str == null)
+    {
+      sb.append("null");
+      return;
+    }
+
+    sb.append('"');
+    final int len = str.length();
+    for (int i = 0; i < len; ++i)
+    {
+      final char c = str.charAt(i);
+      switch (c)
+      {
+        case '"':
+          sb.append("\\\"");
+          break;
+
+        case '\\':
+          sb.append("\\\\");
+          break;
+
+        case '\n':
+          sb.append("\\n");
+          break;
+
+        case '\r':
+          sb.append("\\r");
+          break;
+
+        case '\t':
+          sb.append("\\t");
+          break;
+
+        default:
+          if (c < 0x20)
+          {
+            // Other control characters are written as escapes
+            final String hex = Integer.toHexString(c);
+            sb.append("\\u");
+            for (int j = hex.length(); j < 4; ++j)
+            {
+              sb.append('0');
+            }
+
+            sb.append(hex);
+          }
+          else
+          {
+            sb.append(c);
+          }
+          break;
+      }
+    }
+
+    sb.append('"');
+  }
+
+
+  /**
+   * Append a string as a CSV field, quoting it if needed.
+   *
+   * @param sb the buffer
+   * @param str the string (may be null)
+   */
+  static void appendCsv(final StringBuilder sb, final String str)
+  {
+    if (str == null)
+    {
+      return;
+    }
+
+    if ((str.indexOf(',') < 0) && (str.indexOf('"') < 0) &&
+        (str.indexOf('\n') < 0) && (str.indexOf('\r') < 0))
+    {
+      sb.append(str);
+      return;
+    }
+
+    sb.append('"').append(str.replace("\"", "\"\"")).append('"');
+  }
+
+
+  /**
+   * Print how to run the batch.
+   */
+  private static void printUsage()
+  {
+    System.err.println("Usage: quotes -batch [-data file] [-format jsonl|csv] " +
+                       "[-threads n] [query file]");
+  }
+
+
+  /**
+   * One query and its answer.
+   */
+  private static final class Answer
+  {
+    /**
+     * The number of the query, starting at 1.
+     */
+    final int number;
+
+    /**
+     * The line number of the query.
+     */
+    final int lineNumber;
+
+    /**
+     * The query.
+     */
+    final String line;
+
+    /**
+     * The matches, once the query is run.
+     */
+    SearchResult result = null;
+
+    /**
+     * Why the query couldn't be answered, or null.
+     */
+    String error = null;
+
+    /**
+     * The query's share of the time its block took, in
+     * nanoseconds.
+     */
+    long nanos = 0L;
+
+
+    /**
+     * Create a query.
+     *
+     * @param nNumber the number of the query
+     * @param nLine the line number
+     * @param sLine the query
+     */
+    Answer(final int nNumber, final int nLine, final String sLine)
+    {
+      super();
+      number = nNumber;
+      lineNumber = nLine;
+      line = sLine;
+    }
+  }
+}
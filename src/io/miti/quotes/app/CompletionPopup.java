@@ -0,0 +1,282 @@
+package io.miti.quotes.app;
+
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.List;
+
+import javax.swing.BorderFactory;
+import javax.swing.DefaultListModel;
+import javax.swing.JList;
+import javax.swing.JPopupMenu;
+import javax.swing.JTextField;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+/**
+ * Shows a list of completions under a text field as the user
+ * types.  The arrow keys move through the list, Enter or a click
+ * puts the selected completion in the field, and Escape closes
+ * the list.  The focus stays in the text field throughout.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class CompletionPopup
+{
+  /**
+   * Supplies the completions for the text in the field.
+   */
+  public interface Source
+  {
+    /**
+     * Get the completions for some text.
+     *
+     * @param text the text in the field
+     * @return the completions, best first, or null if there are none
+     */
+    List<String> getCompletions(String text);
+  }
+
+  /**
+   * The most completions shown without scrolling.
+   */
+  private static final int MAX_VISIBLE_ROWS = 8;
+
+  /**
+   * The text field.
+   */
+  private final JTextField field;
+
+  /**
+   * The source of the completions.
+   */
+  private final Source source;
+
+  /**
+   * The popup holding the list.
+   */
+  private final JPopupMenu popup;
+
+  /**
+   * The model of the list.
+   */
+  private final DefaultListModel<String> model;
+
+  /**
+   * The list of completions.
+   */
+  private final JList<String> list;
+
+  /**
+   * Whether the field is being set from a completion, so the
+   * change shouldn't open the list again.
+   */
+  private boolean bAccepting = false;
+
+
+  /**
+   * Attach a completion list to a text field.
+   *
+   * @param pField the text field
+   * @param pSource the source of the completions
+   */
+  public CompletionPopup(final JTextField pField, final Source pSource)
+  {
+    super();
+    field = pField;
+    source = pSource;
+
+    model = new DefaultListModel<String>();
+    list = new JList<String>(model);
+    list.setFocusable(false);
+    list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+    list.addMouseListener(new MouseAdapter()
+    {
+      @Override
+      public void mouseClicked(final MouseEvent e)
+      {
+        final int index = list.locationToIndex(e.getPoint());
+        if (index >= 0)
+        {
+          accept(index);
+        }
+      }
+    });
+
+    popup = new JPopupMenu();
+    popup.setFocusable(false);
+    popup.setBorder(BorderFactory.createLineBorder(java.awt.Color.GRAY, 1));
+    popup.add(list);
+
+    // Update the list as the text changes
+    field.getDocument().addDocumentListener(new DocumentListener()
+    {
+      public void insertUpdate(final DocumentEvent e)
+      {
+        textChanged();
+      }
+
+      public void removeUpdate(final DocumentEvent e)
+      {
+        textChanged();
+      }
+
+      public void changedUpdate(final DocumentEvent e)
+      {
+        // Plain text fields don't fire this
+      }
+    });
+
+    field.addKeyListener(new KeyAdapter()
+    {
+      @Override
+      public void keyPressed(final KeyEvent e)
+      {
+        handleKey(e);
+      }
+    });
+
+    field.addFocusListener(new FocusAdapter()
+    {
+      @Override
+      public void focusLost(final FocusEvent e)
+      {
+        popup.setVisible(false);
+      }
+    });
+  }
+
+
+  /**
+   * Called when the text in the field changes.  The list is
+   * updated after the event, since the field can't be read
+   * while its document is being changed.
+   */
+  private void textChanged()
+  {
+    if (bAccepting)
+    {
+      return;
+    }
+
+    SwingUtilities.invokeLater(new Runnable()
+    {
+      public void run()
+      {
+        updateList();
+      }
+    });
+  }
+
+
+  /**
+   * Fill the list with the completions for the current text,
+   * and show or hide it.
+   */
+  private void updateList()
+  {
+    final String text = field.getText().trim();
+    final List<String> completions = ((text.length() == 0) ? null :
+                                      source.getCompletions(text));
+
+    // Hide the list if there's nothing to add to the text
+    if ((completions == null) || completions.isEmpty() ||
+        ((completions.size() == 1) &&
+         completions.get(0).equalsIgnoreCase(text)))
+    {
+      popup.setVisible(false);
+      return;
+    }
+
+    model.clear();
+    for (String completion : completions)
+    {
+      model.addElement(completion);
+    }
+
+    list.setVisibleRowCount(Math.min(MAX_VISIBLE_ROWS, completions.size()));
+    list.clearSelection();
+
+    if (field.isShowing() && field.hasFocus())
+    {
+      popup.pack();
+      popup.show(field, 0, field.getHeight());
+    }
+  }
+
+
+  /**
+   * Move through the list, or accept or dismiss it.
+   *
+   * @param e the key event
+   */
+  private void handleKey(final KeyEvent e)
+  {
+    if (!popup.isVisible())
+    {
+      return;
+    }
+
+    final int size = model.getSize();
+    final int index = list.getSelectedIndex();
+    switch (e.getKeyCode())
+    {
+      case KeyEvent.VK_DOWN:
+        list.setSelectedIndex((index + 1) % size);
+        list.ensureIndexIsVisible(list.getSelectedIndex());
+        e.consume();
+        break;
+
+      case KeyEvent.VK_UP:
+        list.setSelectedIndex((index <= 0) ? (size - 1) : (index - 1));
+        list.ensureIndexIsVisible(list.getSelectedIndex());
+        e.consume();
+        break;
+
+      case KeyEvent.VK_ENTER:
+        if (index >= 0)
+        {
+          accept(index);
+          e.consume();
+        }
+        break;
+
+      case KeyEvent.VK_ESCAPE:
+        popup.setVisible(false);
+        e.consume();
+        break;
+
+      default:
+        break;
+    }
+  }
+
+
+  /**
+   * Put a completion in the text field and close the list.
+   *
+   * @param index the index of the completion
+   */
+  private void accept(final int index)
+  {
+    final String completion = model.getElementAt(index);
+    popup.setVisible(false);
+    bAccepting = true;
+    try
+    {
+      field.setText(completion);
+    }
+    finally
+    {
+      bAccepting = false;
+    }
+
+    field.requestFocusInWindow();
+  }
+}
@@ -0,0 +1,299 @@
+package io.miti.quotes.app;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.search.NearDuplicates;
+
+/**
+ * Finds the near-duplicate quotations in a data file, such as
+ * copies of a quotation that differ only in punctuation or
+ * attribution after merging collections, and reports how many
+ * there are.  It can also write a new data file that keeps only
+ * the first quotation of each cluster.  Run it with:
+ *
+ *   java -jar quotes.jar -dedup [-data file] [-threshold j]
+ *        [-examples n] [-output file]
+ *
+ * The threshold is the similarity, from 0 to 1, of the word pairs
+ * in two quotations at which they're duplicates (0.7 by default).
+ * The report lists the largest few clusters as examples (five by
+ * default).  If there's no data file, the data file of the
+ * application is used.  Saved edits are not included.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class DuplicateFinder
+{
+  /**
+   * The default number of clusters shown as examples.
+   */
+  private static final int DEFAULT_EXAMPLES = 5;
+
+  /**
+   * The upper bounds of the cluster sizes counted together in
+   * the report.
+   */
+  private static final int[] SIZE_BOUNDS = {2, 3, 5, 10, 100, Integer.MAX_VALUE};
+
+
+  /**
+   * Default constructor.
+   */
+  private DuplicateFinder()
+  {
+    super();
+  }
+
+
+  /**
+   * Find the near-duplicates in a data file.
+   *
+   * @param args the options
+   */
+  public static void main(final String[] args)
+  {
+    // Parse the options
+    String dataFile = null;
+    String outputFile = null;
+    double dThreshold = NearDuplicates.DEFAULT_THRESHOLD;
+    int nExamples = DEFAULT_EXAMPLES;
+    try
+    {
+      for (int i = 0; i < args.length; ++i)
+      {
+        if (args[i].equals("-data") && (i + 1 < args.length))
+        {
+          dataFile = args[++i];
+        }
+        else if (args[i].equals("-output") && (i + 1 < args.length))
+        {
+          outputFile = args[++i];
+        }
+        else if (args[i].equals("-threshold") && (i + 1 < args.length))
+        {
+          dThreshold = Double.parseDouble(args[++i]);
+          if (!(dThreshold > 0.0) || (dThreshold > 1.0))
+          {
+            printUsage();
+            return;
+          }
+        }
+        else if (args[i].equals("-examples") && (i + 1 < args.length))
+        {
+          nExamples = Integer.parseInt(args[++i]);
+        }
+        else
+        {
+          printUsage();
+          return;
+        }
+      }
+    }
+    catch (NumberFormatException nfe)
+    {
+      printUsage();
+      return;
+    }
+
+    // Load the corpus
+    QuoteSearchEngine engine = null;
+    try
+    {
+      engine = QuoteSearchEngine.load(dataFile);
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("Unable to load the data: " + ioe.getMessage());
+      return;
+    }
+
+    try
+    {
+      // Find the clusters, and report on them
+      final CorpusSnapshot snapshot = engine.getSnapshot();
+      final NearDuplicates duplicates = engine.updateDuplicates(dThreshold);
+      report(snapshot, duplicates, nExamples);
+
+      // Write the quotations that aren't duplicates
+      if (outputFile != null)
+      {
+        final int nKept = write(snapshot, duplicates, outputFile);
+        System.out.println("Wrote " + nKept + " quotations to " + outputFile);
+      }
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("Unable to write the data: " + ioe.getMessage());
+    }
+    finally
+    {
+      engine.shutdown();
+    }
+  }
+
+
+  /**
+   * Print the statistics of the clusters, and the largest ones.
+   *
+   * @param snapshot the snapshot the clusters are in
+   * @param duplicates the clusters
+   * @param nExamples the number of clusters to show
+   */
+  private static void report(final CorpusSnapshot snapshot,
+                             final NearDuplicates duplicates,
+                             final int nExamples)
+  {
+    final int nQuotes = duplicates.getQuoteCount();
+    final int nClusters = duplicates.getClusterCount();
+    final int nDuplicates = duplicates.getDuplicateCount();
+    System.out.println("Quotations:  " + nQuotes);
+    System.out.println("Threshold:   " + duplicates.getThreshold());
+    System.out.println("Clusters:    " + nClusters);
+    System.out.println("Duplicates:  " + nDuplicates + " (" +
+                       formatPercent(nDuplicates, nQuotes) + " of the quotations)");
+    System.out.println("Comparisons: " + duplicates.getComparisonCount());
+    System.out.println("Time:        " + duplicates.getBuildMillis() + " ms");
+
+    // Count the clusters by size, and find the largest
+    int[] counts = new int[SIZE_BOUNDS.length];
+    int[] largest = new int[Math.max(0, Math.min(nExamples, nClusters))];
+    int nLargest = 0;
+    for (int c = 0; c < nClusters; ++c)
+    {
+      final int size = duplicates.getClusterSize(c);
+      int b = 0;
+      while (size > SIZE_BOUNDS[b])
+      {
+        ++b;
+      }
+
+      ++counts[b];
+
+      // Keep the largest clusters, biggest first
+      final int last = largest.length - 1;
+      if (nLargest <= last)
+      {
+        largest[nLargest++] = c;
+      }
+      else if ((last >= 0) && (size > duplicates.getClusterSize(largest[last])))
+      {
+        largest[last] = c;
+      }
+      else
+      {
+        continue;
+      }
+
+      for (int i = nLargest - 1;
+           (i > 0) && (size > duplicates.getClusterSize(largest[i - 1])); --i)
+      {
+        largest[i] = largest[i - 1];
+        largest[i - 1] = c;
+      }
+    }
+
+    System.out.println();
+    System.out.println("Cluster sizes:");
+    int low = 2;
+    for (int b = 0; b < SIZE_BOUNDS.length; ++b)
+    {
+      final int high = SIZE_BOUNDS[b];
+      final String range = ((high == low) ? Integer.toString(low)
+                            : ((high == Integer.MAX_VALUE) ? (low + "+")
+                               : (low + "-" + high)));
+      System.out.println("  " + range + ": " + counts[b]);
+      low = high + 1;
+    }
+
+    // Show the largest clusters
+    for (int i = 0; i < nLargest; ++i)
+    {
+      final int[] ids = duplicates.getMembers(largest[i]);
+      System.out.println();
+      System.out.println("Cluster of " + ids.length + ":");
+      for (int id : ids)
+      {
+        final QuotationNode quote = snapshot.findById(id);
+        if (quote != null)
+        {
+          System.out.println("  [" + id + "] " + quote.getName() + ": " +
+                             quote.getQuotation());
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Write a data file of the quotations that aren't duplicates of
+   * an earlier one.
+   *
+   * @param snapshot the snapshot to write
+   * @param duplicates the clusters
+   * @param fileName the name of the file
+   * @return the number of quotations written
+   * @throws IOException if the file can't be written
+   */
+  private static int write(final CorpusSnapshot snapshot,
+                           final NearDuplicates duplicates,
+                           final String fileName) throws IOException
+  {
+    final int size = snapshot.size();
+    ArrayList<QuotationNode> list = new ArrayList<QuotationNode>(
+               snapshot.getLiveCount() - duplicates.getDuplicateCount());
+    for (int pos = 0; pos < size; ++pos)
+    {
+      if (snapshot.isLive(pos) && !duplicates.isDuplicate(snapshot.getId(pos)))
+      {
+        list.add(snapshot.getQuote(pos));
+      }
+    }
+
+    ObjectOutputStream out = null;
+    try
+    {
+      out = new ObjectOutputStream(new BufferedOutputStream(
+                 new FileOutputStream(fileName), 65536));
+      out.writeObject(list);
+    }
+    finally
+    {
+      if (out != null)
+      {
+        out.close();
+      }
+    }
+
+    return list.size();
+  }
+
+
+  /**
+   * Format a share as a percentage.
+   *
+   * @param nPart the part
+   * @param nWhole the whole
+   * @return the percentage, to one decimal place
+   */
+  private static String formatPercent(final int nPart, final int nWhole)
+  {
+    final long tenths = ((nWhole == 0) ? 0L : ((1000L * nPart) / nWhole));
+    return (tenths / 10) + "." + (tenths % 10) + "%";
+  }
+
+
+  /**
+   * Print how to run it.
+   */
+  private static void printUsage()
+  {
+    System.err.println("Usage: quotes -dedup [-data file] [-threshold j] " +
+                       "[-examples n] [-output file]");
+  }
+}
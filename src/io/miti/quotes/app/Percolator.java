@@ -0,0 +1,1053 @@
+package io.miti.quotes.app;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.corpus.CorpusStore;
+import io.miti.quotes.app.filter.FilterUtility;
+import io.miti.quotes.app.filter.TermFilter;
+import io.miti.quotes.app.search.FilterCache;
+import io.miti.quotes.app.search.QueryKey;
+import io.miti.quotes.app.search.SearchMode;
+
+/**
+ * Matches new quotations against stored queries, such as saved
+ * alerts ("new quotations about courage by Twain"), without
+ * running every query.  This is a search turned around: the
+ * queries are indexed, and each quotation looks up the queries it
+ * could match.
+ *
+ * Every Contains search, and every author, only matches text that
+ * holds each of its phrases, so it only matches text that holds
+ * every piece of up to four characters of those phrases.  Each
+ * query is filed under the one such piece, from its keyword or its
+ * author, that's rarest in the corpus.  A quotation then looks up
+ * every piece of its text, topic and author, and only the queries
+ * filed under them are checked, with the same filters a search
+ * uses.  Wildcard searches are filed under the text between their
+ * wildcards ('*' and '?').  Regular expression and Soundex
+ * searches with no author have no such piece, so they're checked
+ * against every quotation.
+ *
+ * Each query added gets a number, which is what a match returns.
+ * The numbers aren't reused.  All the methods are thread-safe;
+ * any number of matches run at once, and adding or removing a
+ * query waits for them.  A percolator can watch a CorpusStore, so
+ * every quotation added or changed there is matched as soon as
+ * it's saved.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class Percolator
+{
+  /**
+   * The longest piece of a phrase a query is filed under.
+   */
+  private static final int GRAM_LENGTH = 4;
+
+  /**
+   * The most quotations read to estimate how common each piece is.
+   */
+  private static final int SAMPLE_SIZE = 10000;
+
+  /**
+   * The bit set in the key of a piece of the author.
+   */
+  private static final int NAME_FIELD = 1 << 30;
+
+  /**
+   * The bit set in every key, so no key is 0.
+   */
+  private static final int KEY_BIT = 1 << 31;
+
+  /**
+   * The bit set in the lengths of the keys for the lengths of
+   * pieces of the author; the others are pieces of the text.
+   */
+  private static final int NAME_LENGTHS = 1 << 8;
+
+  /**
+   * The initial size of the table of queries checked in a match.
+   */
+  private static final int CHECKED_SIZE = 64;
+
+  /**
+   * The lock shared by matches, and held alone while queries are
+   * added or removed.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * The number of quotations each piece of the text or author is
+   * in, in the sample of the corpus.
+   */
+  private final GramTable gramCounts;
+
+  /**
+   * The bucket of the queries filed under each key.
+   */
+  private final GramTable buckets;
+
+  /**
+   * The queries filed under each bucket.
+   */
+  private int[][] bucketAlerts = new int[64][];
+
+  /**
+   * The number of queries filed under each bucket.
+   */
+  private int[] bucketSizes = new int[64];
+
+  /**
+   * The number of buckets.
+   */
+  private int numBuckets = 0;
+
+  /**
+   * The queries checked against every quotation.
+   */
+  private int[] unkeyed = new int[16];
+
+  /**
+   * The number of queries checked against every quotation.
+   */
+  private int numUnkeyed = 0;
+
+  /**
+   * The query of each number, or null if it's been removed.
+   */
+  private QueryKey[] queries = new QueryKey[64];
+
+  /**
+   * The filter for the keyword of each query, or null.
+   */
+  private TermFilter[] nameFilters = new TermFilter[64];
+
+  /**
+   * The filter for the author of each query, or null.
+   */
+  private TermFilter[] authorFilters = new TermFilter[64];
+
+  /**
+   * The key each query is filed under, or 0 if it's checked
+   * against every quotation.
+   */
+  private int[] alertKeys = new int[64];
+
+  /**
+   * The number the next query gets.
+   */
+  private int numAlerts = 0;
+
+  /**
+   * The number of queries that haven't been removed.
+   */
+  private int count = 0;
+
+  /**
+   * The lengths of the keys in use, as a bit for each length of
+   * the pieces of the text, and one shifted by NAME_LENGTHS for
+   * each length of the pieces of the author.
+   */
+  private int keyLengths = 0;
+
+
+  /**
+   * Create an empty percolator.  Queries are filed under the
+   * pieces of their phrases that are rarest in a sample of the
+   * corpus, so the fewest are checked for each quotation.
+   *
+   * @param snapshot the corpus to sample, or null to file
+   *                 queries without knowing how common the
+   *                 pieces are
+   */
+  public Percolator(final CorpusSnapshot snapshot)
+  {
+    super();
+    gramCounts = new GramTable(1024);
+    buckets = new GramTable(1024);
+    if (snapshot != null)
+    {
+      countGrams(snapshot);
+    }
+  }
+
+
+  /**
+   * Add a query.
+   *
+   * @param query the query
+   * @return the number of the query, which matches return
+   * @throws IllegalArgumentException if the query has no keyword
+   *         or author, or is a regular expression that isn't valid
+   */
+  public int add(final QueryKey query)
+  {
+    if ((query.getKeyword() == null) && (query.getAuthor() == null))
+    {
+      throw new IllegalArgumentException("No keyword or author");
+    }
+
+    // Compile the filters outside the lock; this throws if a
+    // regular expression isn't valid
+    final boolean bMatchCase = query.isMatchCase();
+    final TermFilter nameFilter = ((query.getKeyword() == null) ? null
+        : FilterCache.compile(query.getMode(), query.getKeyword(), bMatchCase));
+    final TermFilter authorFilter = ((query.getAuthor() == null) ? null
+        : FilterCache.compile(null, query.getAuthor(), bMatchCase));
+
+    // Find the pieces it could be filed under
+    List<String> textPhrases = getKeywordPhrases(query);
+    List<String> namePhrases = FilterUtility.parseIntoPhrases(query.getAuthor());
+
+    lock.writeLock().lock();
+    try
+    {
+      // Find the rarest piece
+      int best = chooseKey(textPhrases, 0, 0);
+      best = chooseKey(namePhrases, NAME_FIELD, best);
+
+      // Save the query
+      final int nAlert = numAlerts++;
+      if (nAlert == queries.length)
+      {
+        final int newLength = nAlert * 2;
+        queries = Arrays.copyOf(queries, newLength);
+        nameFilters = Arrays.copyOf(nameFilters, newLength);
+        authorFilters = Arrays.copyOf(authorFilters, newLength);
+        alertKeys = Arrays.copyOf(alertKeys, newLength);
+      }
+
+      queries[nAlert] = query;
+      nameFilters[nAlert] = nameFilter;
+      authorFilters[nAlert] = authorFilter;
+      alertKeys[nAlert] = best;
+      ++count;
+
+      // File it
+      if (best == 0)
+      {
+        unkeyed = addTo(unkeyed, numUnkeyed++, nAlert);
+      }
+      else
+      {
+        final int bucket = getBucket(best);
+        bucketAlerts[bucket] = addTo(bucketAlerts[bucket], bucketSizes[bucket]++,
+                                     nAlert);
+        keyLengths |= (((best & NAME_FIELD) != 0) ? NAME_LENGTHS : 1) <<
+                      getGramLength(best);
+      }
+
+      return nAlert;
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+
+  /**
+   * Add the queries in a file, in the format of the batch query
+   * file.  Blank lines and lines starting with '#' are skipped.
+   *
+   * @param fileName the name of the file of queries
+   * @return the number of queries added
+   * @throws IOException if the file can't be read or a query isn't valid
+   */
+  public int load(final String fileName) throws IOException
+  {
+    int nAdded = 0;
+    BufferedReader in = null;
+    try
+    {
+      in = new BufferedReader(new InputStreamReader(new FileInputStream(fileName),
+                                                    "UTF-8"));
+      String line = null;
+      int nLine = 0;
+      while ((line = in.readLine()) != null)
+      {
+        ++nLine;
+        if ((line.trim().length() == 0) || line.startsWith("#"))
+        {
+          continue;
+        }
+
+        try
+        {
+          add(BatchQuery.parse(line, -1));
+          ++nAdded;
+        }
+        catch (IllegalArgumentException iae)
+        {
+          throw new IOException("Invalid query on line " + nLine + " of " +
+                                fileName + ": " + iae.getMessage());
+        }
+      }
+    }
+    finally
+    {
+      if (in != null)
+      {
+        try
+        {
+          in.close();
+        }
+        catch (IOException ioe)
+        {
+          System.err.println("IOException: " + ioe.getMessage());
+        }
+      }
+    }
+
+    return nAdded;
+  }
+
+
+  /**
+   * Remove a query.
+   *
+   * @param nAlert the number of the query
+   * @return whether it was removed; false if there's no such query
+   */
+  public boolean remove(final int nAlert)
+  {
+    lock.writeLock().lock();
+    try
+    {
+      return removeAlert(nAlert);
+    }
+    finally
+    {
+      lock.writeLock().unlock();
+    }
+  }
+
+
+  /**
+   * Remove a query, with the lock held.
+   *
+   * @param nAlert the number of the query
+   * @return whether it was removed; false if there's no such query
+   */
+  private boolean removeAlert(final int nAlert)
+  {
+    if ((nAlert < 0) || (nAlert >= numAlerts) || (queries[nAlert] == null))
+    {
+      return false;
+    }
+
+    // Take it out of its bucket, or the unkeyed list
+    final int key = alertKeys[nAlert];
+    if (key == 0)
+    {
+      numUnkeyed = removeFrom(unkeyed, numUnkeyed, nAlert);
+    }
+    else
+    {
+      final int bucket = buckets.get(key);
+      bucketSizes[bucket] = removeFrom(bucketAlerts[bucket], bucketSizes[bucket],
+                                       nAlert);
+    }
+
+    queries[nAlert] = null;
+    nameFilters[nAlert] = null;
+    authorFilters[nAlert] = null;
+    --count;
+    return true;
+  }
+
+
+  /**
+   * Get a query.
+   *
+   * @param nAlert the number of the query
+   * @return the query, or null if there's no such query
+   */
+  public QueryKey getQuery(final int nAlert)
+  {
+    lock.readLock().lock();
+    try
+    {
+      return (((nAlert >= 0) && (nAlert < numAlerts)) ? queries[nAlert] : null);
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  /**
+   * Get the number of queries.
+   *
+   * @return the number of queries
+   */
+  public int size()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return count;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  /**
+   * Get the number of queries checked against every quotation,
+   * since they have no piece of a phrase to be filed under.
+   *
+   * @return the number of queries
+   */
+  public int getUnkeyedCount()
+  {
+    lock.readLock().lock();
+    try
+    {
+      return numUnkeyed;
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+  }
+
+
+  /**
+   * Find the queries a quotation matches.  Any number of matches
+   * can run at once.
+   *
+   * @param quote the quotation
+   * @return the numbers of the queries, in increasing order
+   */
+  public int[] match(final QuotationNode quote)
+  {
+    // The quotation is cleaned the same way as in a search
+    final Match match = new Match(quote, Utility.updateBytes(quote.getQuotation()));
+    lock.readLock().lock();
+    try
+    {
+      for (int i = 0; i < numUnkeyed; ++i)
+      {
+        check(unkeyed[i], match);
+      }
+
+      if (keyLengths != 0)
+      {
+        probe(match.cleaned, 0, match);
+        probe(quote.getTopic(), 0, match);
+        probe(quote.getName(), NAME_FIELD, match);
+      }
+    }
+    finally
+    {
+      lock.readLock().unlock();
+    }
+
+    final int[] result = Arrays.copyOf(match.hits, match.numHits);
+    Arrays.sort(result);
+    return result;
+  }
+
+
+  /**
+   * Match every quotation added to or changed in a store against
+   * the queries, once the edit is saved.  The matches run on the
+   * thread that made the edit, and the listener is only told
+   * about quotations that match at least one query.
+   *
+   * @param store the store to watch
+   * @param listener the listener to tell about matches
+   * @return the listener added to the store, for removing it
+   */
+  public CorpusStore.EditListener watch(final CorpusStore store,
+                                        final Listener listener)
+  {
+    final CorpusStore.EditListener watcher = new CorpusStore.EditListener()
+    {
+      public void quoteSaved(final int nId, final QuotationNode quote)
+      {
+        final int[] alerts = match(quote);
+        if (alerts.length > 0)
+        {
+          listener.alertsMatched(nId, quote, alerts);
+        }
+      }
+    };
+
+    store.addEditListener(watcher);
+    return watcher;
+  }
+
+
+  /**
+   * Check the queries filed under each piece of a field.
+   *
+   * @param text the field (may be null)
+   * @param nField NAME_FIELD for the author, or 0
+   * @param match the match in progress
+   */
+  private void probe(final String text,
+                     final int nField,
+                     final Match match)
+  {
+    if (text == null)
+    {
+      return;
+    }
+
+    final int lengths = ((nField == 0) ? keyLengths : (keyLengths / NAME_LENGTHS));
+    int packed = 0;
+    int run = 0;
+    final int len = text.length();
+    for (int i = 0; i < len; ++i)
+    {
+      // Add the character to the last few, or start again after
+      // one that can't be in a key
+      final char ch = Character.toLowerCase(text.charAt(i));
+      if (ch >= 128)
+      {
+        run = 0;
+        continue;
+      }
+
+      packed = (packed << 7) | ch;
+      run = Math.min(run + 1, GRAM_LENGTH);
+
+      // Look up each piece that ends here
+      for (int n = 1; n <= run; ++n)
+      {
+        if ((lengths & (1 << n)) == 0)
+        {
+          continue;
+        }
+
+        final int bucket = buckets.get(makeKey(packed, n, nField));
+        if (bucket >= 0)
+        {
+          final int[] alerts = bucketAlerts[bucket];
+          final int size = bucketSizes[bucket];
+          for (int a = 0; a < size; ++a)
+          {
+            check(alerts[a], match);
+          }
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Check whether a quotation matches a query, unless it's already
+   * been checked, and note it if so.
+   *
+   * @param nAlert the number of the query
+   * @param match the match in progress
+   */
+  private void check(final int nAlert, final Match match)
+  {
+    // Keys can't be 0, so the table holds the number plus one
+    if (match.checked.get(nAlert + 1) >= 0)
+    {
+      return;
+    }
+
+    match.checked.put(nAlert + 1, 0);
+    if (QuoteSearchEngine.matches(nameFilters[nAlert], authorFilters[nAlert],
+                                  match.quote, match.cleaned))
+    {
+      match.hits = addTo(match.hits, match.numHits++, nAlert);
+    }
+  }
+
+
+  /**
+   * Choose the piece of some phrases to file a query under, which
+   * is the one in the fewest quotations of the sample, and then
+   * the one with the fewest queries already filed under it.
+   *
+   * @param phrases the phrases, which must all match
+   * @param nField NAME_FIELD for the author, or 0
+   * @param nBest the best key so far, or 0
+   * @return the best key, or 0 if there are none
+   */
+  private int chooseKey(final List<String> phrases,
+                        final int nField,
+                        final int nBest)
+  {
+    int best = nBest;
+    for (String phrase : phrases)
+    {
+      int packed = 0;
+      int run = 0;
+      final int len = phrase.length();
+      for (int i = 0; i <= len; ++i)
+      {
+        final char ch = ((i < len) ? Character.toLowerCase(phrase.charAt(i)) : 128);
+        if (ch < 128)
+        {
+          packed = (packed << 7) | ch;
+          if (++run >= GRAM_LENGTH)
+          {
+            best = better(makeKey(packed, GRAM_LENGTH, nField), best);
+          }
+        }
+        else
+        {
+          // A run shorter than a full piece is a piece itself
+          if ((run > 0) && (run < GRAM_LENGTH))
+          {
+            best = better(makeKey(packed, run, nField), best);
+          }
+
+          run = 0;
+        }
+      }
+    }
+
+    return best;
+  }
+
+
+  /**
+   * Returns the better of two keys to file a query under.
+   *
+   * @param key the new key
+   * @param nBest the best key so far, or 0
+   * @return the better key
+   */
+  private int better(final int key, final int nBest)
+  {
+    if (nBest == 0)
+    {
+      return key;
+    }
+
+    final int count1 = Math.max(0, gramCounts.get(key));
+    final int count2 = Math.max(0, gramCounts.get(nBest));
+    if (count1 != count2)
+    {
+      return ((count1 < count2) ? key : nBest);
+    }
+
+    final int bucket1 = buckets.get(key);
+    final int bucket2 = buckets.get(nBest);
+    final int size1 = ((bucket1 < 0) ? 0 : bucketSizes[bucket1]);
+    final int size2 = ((bucket2 < 0) ? 0 : bucketSizes[bucket2]);
+    if (size1 != size2)
+    {
+      return ((size1 < size2) ? key : nBest);
+    }
+
+    return ((getGramLength(key) > getGramLength(nBest)) ? key : nBest);
+  }
+
+
+  /**
+   * Get the bucket of a key, adding it if it's new.
+   *
+   * @param key the key
+   * @return the bucket
+   */
+  private int getBucket(final int key)
+  {
+    final int bucket = buckets.get(key);
+    if (bucket >= 0)
+    {
+      return bucket;
+    }
+
+    if (numBuckets == bucketAlerts.length)
+    {
+      bucketAlerts = Arrays.copyOf(bucketAlerts, numBuckets * 2);
+      bucketSizes = Arrays.copyOf(bucketSizes, numBuckets * 2);
+    }
+
+    bucketAlerts[numBuckets] = new int[2];
+    buckets.put(key, numBuckets);
+    return numBuckets++;
+  }
+
+
+  /**
+   * Count the quotations of a sample of the corpus that each piece
+   * of the text and author is in.
+   *
+   * @param snapshot the corpus
+   */
+  private void countGrams(final CorpusSnapshot snapshot)
+  {
+    final int size = snapshot.size();
+    final int step = Math.max(1, size / SAMPLE_SIZE);
+    int[] keys = new int[256];
+    for (int pos = 0; pos < size; pos += step)
+    {
+      if (!snapshot.isLive(pos))
+      {
+        continue;
+      }
+
+      // Collect the pieces of the quotation, and count each once
+      final QuotationNode quote = snapshot.getQuote(pos);
+      keys = addGrams(Utility.updateBytes(quote.getQuotation()), 0, keys, 1);
+      keys = addGrams(quote.getTopic(), 0, keys, keys[0]);
+      keys = addGrams(quote.getName(), NAME_FIELD, keys, keys[0]);
+      final int numKeys = keys[0];
+      Arrays.sort(keys, 1, numKeys);
+      for (int k = 1; k < numKeys; ++k)
+      {
+        if (keys[k] != keys[k - 1])
+        {
+          gramCounts.put(keys[k], Math.max(0, gramCounts.get(keys[k])) + 1);
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Add the keys of every piece of a field to an array.
+   *
+   * @param text the field (may be null)
+   * @param nField NAME_FIELD for the author, or 0
+   * @param buffer the array, which is replaced if it's too small
+   * @param nCount the index to add them at
+   * @return the array, with the index after the last key at index 0
+   */
+  private static int[] addGrams(final String text,
+                                final int nField,
+                                final int[] buffer,
+                                final int nCount)
+  {
+    int[] result = buffer;
+    int next = nCount;
+    final int len = ((text == null) ? 0 : text.length());
+    if (next + (len * GRAM_LENGTH) > result.length)
+    {
+      result = Arrays.copyOf(result, Math.max(result.length * 2,
+                                              next + (len * GRAM_LENGTH)));
+    }
+
+    int packed = 0;
+    int run = 0;
+    for (int i = 0; i < len; ++i)
+    {
+      final char ch = Character.toLowerCase(text.charAt(i));
+      if (ch >= 128)
+      {
+        run = 0;
+        continue;
+      }
+
+      packed = (packed << 7) | ch;
+      run = Math.min(run + 1, GRAM_LENGTH);
+      for (int n = 1; n <= run; ++n)
+      {
+        result[next++] = makeKey(packed, n, nField);
+      }
+    }
+
+    result[0] = next;
+    return result;
+  }
+
+
+  /**
+   * Get the literal phrases a keyword must contain to match.
+   *
+   * @param query the query
+   * @return the phrases, or an empty list if there's no keyword or
+   *         it's a regular expression or Soundex search
+   */
+  private static List<String> getKeywordPhrases(final QueryKey query)
+  {
+    final String keyword = query.getKeyword();
+    if ((keyword == null) || (query.getMode() == SearchMode.REGEX) ||
+        (query.getMode() == SearchMode.SOUNDEX))
+    {
+      return new ArrayList<String>(0);
+    }
+    else if (query.getMode() == SearchMode.WILDCARD)
+    {
+      // The text between the wildcards; '?' matches any one
+      // character, so the text on either side is separate
+      List<String> list = new ArrayList<String>(4);
+      for (String part : keyword.split("[*?]+"))
+      {
+        if (part.length() > 0)
+        {
+          list.add(part);
+        }
+      }
+
+      return list;
+    }
+
+    return FilterUtility.parseIntoPhrases(keyword);
+  }
+
+
+  /**
+   * Build the key of a piece of a field.
+   *
+   * @param packed the last characters of the field, seven bits
+   *               each, the last in the lowest bits
+   * @param nLength the length of the piece
+   * @param nField NAME_FIELD for the author, or 0
+   * @return the key, which is never 0
+   */
+  private static int makeKey(final int packed, final int nLength, final int nField)
+  {
+    return (KEY_BIT | nField | ((nLength - 1) << 28) |
+            (packed & ((1 << (7 * nLength)) - 1)));
+  }
+
+
+  /**
+   * Get the length of the piece of a key.
+   *
+   * @param key the key
+   * @return the length
+   */
+  private static int getGramLength(final int key)
+  {
+    return (((key >>> 28) & 3) + 1);
+  }
+
+
+  /**
+   * Add a number to an array, growing it if needed.
+   *
+   * @param array the array
+   * @param nSize the number of entries in use
+   * @param nValue the number to add
+   * @return the array, which is new if it grew
+   */
+  private static int[] addTo(final int[] array, final int nSize, final int nValue)
+  {
+    int[] result = array;
+    if (nSize == result.length)
+    {
+      result = Arrays.copyOf(result, nSize * 2);
+    }
+
+    result[nSize] = nValue;
+    return result;
+  }
+
+
+  /**
+   * Remove a number from an array, moving the last entry into its
+   * place.
+   *
+   * @param array the array
+   * @param nSize the number of entries in use
+   * @param nValue the number to remove
+   * @return the new number of entries
+   */
+  private static int removeFrom(final int[] array, final int nSize, final int nValue)
+  {
+    for (int i = 0; i < nSize; ++i)
+    {
+      if (array[i] == nValue)
+      {
+        array[i] = array[nSize - 1];
+        return nSize - 1;
+      }
+    }
+
+    return nSize;
+  }
+
+
+  /**
+   * Told about quotations that match stored queries.
+   */
+  public interface Listener
+  {
+    /**
+     * Called when a saved quotation matches at least one query.
+     *
+     * @param nId the ID of the quotation
+     * @param quote the quotation
+     * @param alerts the numbers of the queries, in increasing order
+     */
+    void alertsMatched(int nId, QuotationNode quote, int[] alerts);
+  }
+
+
+  /**
+   * The state of one match: the queries checked so far, so a query
+   * filed under a piece that occurs twice is only checked once, and
+   * the queries the quotation matches.
+   */
+  private static final class Match
+  {
+    /**
+     * The quotation.
+     */
+    private final QuotationNode quote;
+
+    /**
+     * The cleaned quotation.
+     */
+    private final String cleaned;
+
+    /**
+     * The queries checked, by their numbers plus one.
+     */
+    private final GramTable checked = new GramTable(CHECKED_SIZE);
+
+    /**
+     * The numbers of the queries the quotation matches.
+     */
+    private int[] hits = new int[16];
+
+    /**
+     * The number of queries the quotation matches.
+     */
+    private int numHits = 0;
+
+
+    /**
+     * Start a match.
+     *
+     * @param pQuote the quotation
+     * @param sCleaned the cleaned quotation
+     */
+    Match(final QuotationNode pQuote, final String sCleaned)
+    {
+      super();
+      quote = pQuote;
+      cleaned = sCleaned;
+    }
+  }
+
+
+  /**
+   * A map of keys, which are never 0, to numbers, by open
+   * addressing.
+   */
+  private static final class GramTable
+  {
+    /**
+     * The key in each slot, or 0 if it's empty.
+     */
+    private int[] keys;
+
+    /**
+     * The number in each slot.
+     */
+    private int[] values;
+
+    /**
+     * The number of keys.
+     */
+    private int size = 0;
+
+
+    /**
+     * Create an empty table.
+     *
+     * @param nCapacity the initial number of slots, a power of two
+     */
+    GramTable(final int nCapacity)
+    {
+      super();
+      keys = new int[nCapacity];
+      values = new int[nCapacity];
+    }
+
+
+    /**
+     * Get the number of a key.
+     *
+     * @param key the key
+     * @return the number, or -1 if the key isn't in the table
+     */
+    int get(final int key)
+    {
+      final int mask = keys.length - 1;
+      int slot = mix(key) & mask;
+      while (keys[slot] != 0)
+      {
+        if (keys[slot] == key)
+        {
+          return values[slot];
+        }
+
+        slot = (slot + 1) & mask;
+      }
+
+      return -1;
+    }
+
+
+    /**
+     * Set the number of a key.
+     *
+     * @param key the key
+     * @param nValue the number
+     */
+    void put(final int key, final int nValue)
+    {
+      // Keep the table at most half full
+      if (2 * (size + 1) > keys.length)
+      {
+        final int[] oldKeys = keys;
+        final int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; ++i)
+        {
+          if (oldKeys[i] != 0)
+          {
+            put(oldKeys[i], oldValues[i]);
+          }
+        }
+      }
+
+      final int mask = keys.length - 1;
+      int slot = mix(key) & mask;
+      while ((keys[slot] != 0) && (keys[slot] != key))
+      {
+        slot = (slot + 1) & mask;
+      }
+
+      if (keys[slot] == 0)
+      {
+        keys[slot] = key;
+        ++size;
+      }
+
+      values[slot] = nValue;
+    }
+
+
+    /**
+     * Spread the bits of a key over the slots.
+     *
+     * @param key the key
+     * @return the hash
+     */
+    private static int mix(final int key)
+    {
+      final int h = key * 0x9E3779B9;
+      return (h ^ (h >>> 16));
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package io.miti.quotes.app;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
@@ -44,6 +46,34 @@ public final class QuotationNode implements Serializable
    */
   private String quotation;
   
+  /**
+   * The store holding the bio and source, if they've been moved
+   * out of this object.
+   */
+  private transient ColdStore coldStore = null;
+  
+  /**
+   * The offset of the bio and source in the cold store.
+   */
+  private transient long coldOffset = -1L;
+  
+  
+  /**
+   * Somewhere the bio and source of a quotation can be moved to,
+   * and read back from when they're asked for.
+   */
+  public interface ColdStore
+  {
+    /**
+     * Read back the bio and source of a quotation.
+     * 
+     * @param offset the offset the fields were stored at
+     * @param useCache whether to use (and fill) the store's cache
+     * @return the bio and the source, in that order
+     */
+    String[] fetch(long offset, boolean useCache);
+  }
+  
   
   /**
    * Default constructor.
@@ -153,6 +183,12 @@ public final class QuotationNode implements Serializable
    */
   public String getBio()
   {
+    final ColdStore store = coldStore;
+    if (store != null)
+    {
+      return store.fetch(coldOffset, true)[0];
+    }
+    
     return bio;
   }
   
@@ -164,6 +200,7 @@ public final class QuotationNode implements Serializable
    */
   public void setBio(final String pBio)
   {
+    detachColdFields();
     bio = pBio;
   }
   
@@ -175,6 +212,12 @@ public final class QuotationNode implements Serializable
    */
   public String getSource()
   {
+    final ColdStore store = coldStore;
+    if (store != null)
+    {
+      return store.fetch(coldOffset, true)[1];
+    }
+    
     return source;
   }
   
@@ -186,6 +229,7 @@ public final class QuotationNode implements Serializable
    */
   public void setSource(final String pSource)
   {
+    detachColdFields();
     source = pSource;
   }
   
@@ -234,6 +278,83 @@ public final class QuotationNode implements Serializable
   }
   
   
+  /**
+   * Return whether the bio and source have been moved to a
+   * cold store.
+   * 
+   * @return whether the bio and source are in a cold store
+   */
+  public boolean hasColdFields()
+  {
+    return (coldStore != null);
+  }
+  
+  
+  /**
+   * Move the bio and source to a cold store.  They're dropped
+   * from this object, and read back from the store on demand.
+   * 
+   * @param store the store now holding the bio and source
+   * @param offset the offset of the fields in the store
+   */
+  public void attachColdFields(final ColdStore store, final long offset)
+  {
+    coldOffset = offset;
+    coldStore = store;
+    bio = null;
+    source = null;
+  }
+  
+  
+  /**
+   * Read the bio and source back from the cold store, if
+   * they're in one.
+   */
+  private void detachColdFields()
+  {
+    if (coldStore != null)
+    {
+      final String[] fields = coldStore.fetch(coldOffset, false);
+      bio = fields[0];
+      source = fields[1];
+      coldStore = null;
+      coldOffset = -1L;
+    }
+  }
+  
+  
+  /**
+   * Serialize this object.  The bio and source are written even
+   * if they're in a cold store, so the serialized form doesn't
+   * change.
+   * 
+   * @param out the output stream
+   * @throws IOException on error
+   */
+  private void writeObject(final ObjectOutputStream out) throws IOException
+  {
+    String outBio = bio;
+    String outSource = source;
+    final ColdStore store = coldStore;
+    if (store != null)
+    {
+      // Bypass the cache, since this is usually a bulk write
+      final String[] fields = store.fetch(coldOffset, false);
+      outBio = fields[0];
+      outSource = fields[1];
+    }
+    
+    ObjectOutputStream.PutField fields = out.putFields();
+    fields.put("firstName", firstName);
+    fields.put("lastName", lastName);
+    fields.put("bio", outBio);
+    fields.put("source", outSource);
+    fields.put("topic", topic);
+    fields.put("quotation", quotation);
+    out.writeFields();
+  }
+  
+  
   /**
    * Return this object as a string.
    * 
@@ -245,9 +366,9 @@ public final class QuotationNode implements Serializable
     StringBuilder sb = new StringBuilder(200);
     sb.append("Name = " + getName());
     sb.append('\n');
-    sb.append("Bio = " + bio);
+    sb.append("Bio = " + getBio());
     sb.append('\n');
-    sb.append("Source = " + source);
+    sb.append("Source = " + getSource());
     sb.append('\n');
     sb.append("Topic = " + topic);
     sb.append('\n');
@@ -0,0 +1,810 @@
+package io.miti.quotes.app;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.search.QueryKey;
+import io.miti.quotes.app.search.SearchMode;
+
+/**
+ * Writes quotations to a channel as JSON Lines, CSV or XML, one
+ * quotation at a time.  Each character is escaped and encoded as
+ * UTF-8 straight into a fixed buffer, which is written to the
+ * channel whenever it fills, so exporting the whole corpus takes
+ * no more memory than exporting one quotation.  Run it with:
+ *
+ *   java -jar quotes.jar -export [-data file] [-format jsonl|csv|xml]
+ *        [-details] [-output file] [-mode m] [-keyword k] [-author a]
+ *        [-case]
+ *
+ * With no keyword or author, every quotation is exported;
+ * otherwise just the matches of that search.  The format defaults
+ * to JSON Lines, and the output to standard output.  With
+ * -details, the bio and source are included too.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class QuoteExporter
+{
+  /**
+   * The formats of the export.
+   */
+  public enum Format
+  {
+    /**
+     * One JSON object per line.
+     */
+    JSONL,
+
+    /**
+     * Comma-separated values, with a header row.
+     */
+    CSV,
+
+    /**
+     * An XML document with a quotation element for each.
+     */
+    XML
+  }
+
+  /**
+   * The size of the buffer, in bytes.
+   */
+  private static final int BUFFER_SIZE = 65536;
+
+  /**
+   * The most bytes one character takes in UTF-8, escaped; the
+   * longest are the JSON escape of a control character and the
+   * XML entity of a quote.
+   */
+  private static final int MAX_CHAR_BYTES = 6;
+
+  /**
+   * The hex digits.
+   */
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /**
+   * The channel to write to.
+   */
+  private final WritableByteChannel channel;
+
+  /**
+   * The format.
+   */
+  private final Format format;
+
+  /**
+   * Whether to include the bio and source.
+   */
+  private final boolean details;
+
+  /**
+   * The bytes not yet written to the channel.
+   */
+  private final ByteBuffer buffer;
+
+  /**
+   * Whether the header has been written.
+   */
+  private boolean started = false;
+
+  /**
+   * The number of quotations written.
+   */
+  private long count = 0L;
+
+
+  /**
+   * Create an exporter.  Nothing is written until the first
+   * quotation, or finish().
+   *
+   * @param pChannel the channel to write to, which is left open
+   * @param pFormat the format
+   * @param bDetails whether to include the bio and source
+   */
+  public QuoteExporter(final WritableByteChannel pChannel,
+                       final Format pFormat,
+                       final boolean bDetails)
+  {
+    super();
+    channel = pChannel;
+    format = pFormat;
+    details = bDetails;
+    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+
+  /**
+   * Parse the name of a format, ignoring case.
+   *
+   * @param name the name, or null
+   * @return the format, or JSON Lines if the name is null
+   * @throws IllegalArgumentException if the name isn't a format
+   */
+  public static Format parseFormat(final String name)
+  {
+    if (name == null)
+    {
+      return Format.JSONL;
+    }
+
+    for (Format f : Format.values())
+    {
+      if (f.name().equalsIgnoreCase(name.trim()))
+      {
+        return f;
+      }
+    }
+
+    throw new IllegalArgumentException("Unknown format: " + name);
+  }
+
+
+  /**
+   * Export the quotations, or the matches of a search, to a file
+   * or standard output.
+   *
+   * @param args the options
+   */
+  public static void main(final String[] args)
+  {
+    // Parse the options
+    String dataFile = null;
+    String outputFile = null;
+    String keyword = null;
+    String author = null;
+    SearchMode mode = null;
+    Format format = Format.JSONL;
+    boolean bDetails = false;
+    boolean bMatchCase = false;
+    try
+    {
+      for (int i = 0; i < args.length; ++i)
+      {
+        if (args[i].equals("-data") && (i + 1 < args.length))
+        {
+          dataFile = args[++i];
+        }
+        else if (args[i].equals("-output") && (i + 1 < args.length))
+        {
+          outputFile = args[++i];
+        }
+        else if (args[i].equals("-format") && (i + 1 < args.length))
+        {
+          format = parseFormat(args[++i]);
+        }
+        else if (args[i].equals("-mode") && (i + 1 < args.length))
+        {
+          mode = BatchQuery.parseMode(args[++i]);
+        }
+        else if (args[i].equals("-keyword") && (i + 1 < args.length))
+        {
+          keyword = args[++i];
+        }
+        else if (args[i].equals("-author") && (i + 1 < args.length))
+        {
+          author = args[++i];
+        }
+        else if (args[i].equals("-details"))
+        {
+          bDetails = true;
+        }
+        else if (args[i].equals("-case"))
+        {
+          bMatchCase = true;
+        }
+        else
+        {
+          printUsage();
+          return;
+        }
+      }
+    }
+    catch (IllegalArgumentException iae)
+    {
+      printUsage();
+      return;
+    }
+
+    // Load the corpus
+    QuoteSearchEngine engine = null;
+    try
+    {
+      engine = QuoteSearchEngine.load(dataFile);
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("Unable to load the data: " + ioe.getMessage());
+      return;
+    }
+
+    FileOutputStream out = null;
+    try
+    {
+      // Standard output goes through its own channel, which
+      // isn't closed
+      out = ((outputFile == null) ? new FileOutputStream(FileDescriptor.out)
+             : new FileOutputStream(outputFile));
+      final FileChannel fc = out.getChannel();
+      QuoteExporter exporter = new QuoteExporter(fc, format, bDetails);
+      final long start = System.currentTimeMillis();
+      if ((keyword == null) && (author == null))
+      {
+        exporter.writeAll(engine.getSnapshot());
+      }
+      else
+      {
+        exporter.writeAll(engine.search(new QueryKey(
+            ((mode == null) ? SearchMode.CONTAINS : mode), keyword, author,
+            bMatchCase, -1)));
+      }
+
+      exporter.finish();
+      System.err.println("Exported " + exporter.getCount() + " quotations in " +
+                         (System.currentTimeMillis() - start) + " ms");
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("Unable to write the export: " + ioe.getMessage());
+    }
+    finally
+    {
+      if ((out != null) && (outputFile != null))
+      {
+        try
+        {
+          out.close();
+        }
+        catch (IOException ioe)
+        {
+          System.err.println("IOException: " + ioe.getMessage());
+        }
+      }
+
+      engine.shutdown();
+    }
+  }
+
+
+  /**
+   * Write every quotation of a snapshot, in corpus order.
+   *
+   * @param snapshot the snapshot
+   * @throws IOException if the channel can't be written
+   */
+  public void writeAll(final CorpusSnapshot snapshot) throws IOException
+  {
+    final int size = snapshot.size();
+    for (int pos = 0; pos < size; ++pos)
+    {
+      if (snapshot.isLive(pos))
+      {
+        write(snapshot.getId(pos), snapshot.getQuote(pos));
+      }
+    }
+  }
+
+
+  /**
+   * Write the matches of a search.
+   *
+   * @param result the result of the search
+   * @throws IOException if the channel can't be written
+   */
+  public void writeAll(final SearchResult result) throws IOException
+  {
+    final int size = result.size();
+    for (int i = 0; i < size; ++i)
+    {
+      write(result.getId(i), result.getQuote(i));
+    }
+  }
+
+
+  /**
+   * Write one quotation.
+   *
+   * @param nId the ID of the quotation
+   * @param quote the quotation
+   * @throws IOException if the channel can't be written
+   */
+  public void write(final int nId, final QuotationNode quote) throws IOException
+  {
+    start();
+    switch (format)
+    {
+      case CSV:
+        putInt(nId);
+        putAscii(",");
+        putName(quote);
+        putAscii(",");
+        putField(quote.getTopic());
+        putAscii(",");
+        putField(quote.getQuotation());
+        if (details)
+        {
+          putAscii(",");
+          putField(quote.getBio());
+          putAscii(",");
+          putField(quote.getSource());
+        }
+
+        putAscii("\r\n");
+        break;
+
+      case XML:
+        putAscii("  <quotation id=\"");
+        putInt(nId);
+        putAscii("\">\n    <author>");
+        putName(quote);
+        putAscii("</author>\n");
+        putElement("topic", quote.getTopic());
+        putElement("text", quote.getQuotation());
+        if (details)
+        {
+          putElement("bio", quote.getBio());
+          putElement("source", quote.getSource());
+        }
+
+        putAscii("  </quotation>\n");
+        break;
+
+      default:
+        putAscii("{\"id\":");
+        putInt(nId);
+        putAscii(",\"author\":");
+        putName(quote);
+        putAscii(",\"topic\":");
+        putField(quote.getTopic());
+        putAscii(",\"quotation\":");
+        putField(quote.getQuotation());
+        if (details)
+        {
+          putAscii(",\"bio\":");
+          putField(quote.getBio());
+          putAscii(",\"source\":");
+          putField(quote.getSource());
+        }
+
+        putAscii("}\n");
+        break;
+    }
+
+    ++count;
+  }
+
+
+  /**
+   * Write the end of the export, and everything still in the
+   * buffer.  The channel is left open.
+   *
+   * @throws IOException if the channel can't be written
+   */
+  public void finish() throws IOException
+  {
+    start();
+    if (format == Format.XML)
+    {
+      putAscii("</quotations>\n");
+    }
+
+    flush();
+  }
+
+
+  /**
+   * Get the number of quotations written.
+   *
+   * @return the number of quotations
+   */
+  public long getCount()
+  {
+    return count;
+  }
+
+
+  /**
+   * Write the header, unless it's been written.
+   *
+   * @throws IOException if the channel can't be written
+   */
+  private void start() throws IOException
+  {
+    if (started)
+    {
+      return;
+    }
+
+    started = true;
+    if (format == Format.CSV)
+    {
+      putAscii(details ? "id,author,topic,quotation,bio,source\r\n"
+               : "id,author,topic,quotation\r\n");
+    }
+    else if (format == Format.XML)
+    {
+      putAscii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<quotations>\n");
+    }
+  }
+
+
+  /**
+   * Write the author's name, the same as QuotationNode.getName()
+   * but without building it.
+   *
+   * @param quote the quotation
+   * @throws IOException if the channel can't be written
+   */
+  private void putName(final QuotationNode quote) throws IOException
+  {
+    final String first = quote.getFirstName();
+    final String last = quote.getLastName();
+    final boolean bFirst = ((first != null) && (first.length() > 0));
+    final boolean bLast = ((last != null) && (last.length() > 0));
+    if (!bFirst && !bLast)
+    {
+      putField("Anonymous");
+      return;
+    }
+
+    // A name in two parts is written as one field
+    final boolean bQuote = ((format == Format.JSONL) ||
+                            ((format == Format.CSV) &&
+                             (needsCsvQuotes(first) || needsCsvQuotes(last))));
+    if (bQuote)
+    {
+      putAscii("\"");
+    }
+
+    if (bFirst)
+    {
+      putText(first);
+    }
+
+    if (bFirst && bLast)
+    {
+      putAscii(" ");
+    }
+
+    if (bLast)
+    {
+      putText(last);
+    }
+
+    if (bQuote)
+    {
+      putAscii("\"");
+    }
+  }
+
+
+  /**
+   * Write a field, quoted if the format needs it.  A null field
+   * is written as null in JSON and as an empty field in CSV.
+   *
+   * @param text the field (may be null)
+   * @throws IOException if the channel can't be written
+   */
+  private void putField(final String text) throws IOException
+  {
+    if (text == null)
+    {
+      if (format == Format.JSONL)
+      {
+        putAscii("null");
+      }
+
+      return;
+    }
+
+    final boolean bQuote = ((format == Format.JSONL) ||
+                            ((format == Format.CSV) && needsCsvQuotes(text)));
+    if (bQuote)
+    {
+      putAscii("\"");
+    }
+
+    putText(text);
+    if (bQuote)
+    {
+      putAscii("\"");
+    }
+  }
+
+
+  /**
+   * Write an XML element, unless its text is null.
+   *
+   * @param name the name of the element
+   * @param text the text (may be null)
+   * @throws IOException if the channel can't be written
+   */
+  private void putElement(final String name, final String text) throws IOException
+  {
+    if (text == null)
+    {
+      return;
+    }
+
+    putAscii("    <");
+    putAscii(name);
+    putAscii(">");
+    putText(text);
+    putAscii("</");
+    putAscii(name);
+    putAscii(">\n");
+  }
+
+
+  /**
+   * Returns whether a CSV field must be quoted.
+   *
+   * @param text the field (may be null)
+   * @return whether it holds a comma, quote or line break
+   */
+  private static boolean needsCsvQuotes(final String text)
+  {
+    if (text == null)
+    {
+      return false;
+    }
+
+    final int len = text.length();
+    for (int i = 0; i < len; ++i)
+    {
+      final char c = text.charAt(i);
+      if ((c == ',') || (c == '"') || (c == '\n') || (c == '\r'))
+      {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+  /**
+   * Write text that needs no escaping, and is all ASCII.
+   *
+   * @param text the text
+   * @throws IOException if the channel can't be written
+   */
+  private void putAscii(final String text) throws IOException
+  {
+    final int len = text.length();
+    if (buffer.remaining() < len)
+    {
+      flush();
+    }
+
+    for (int i = 0; i < len; ++i)
+    {
+      buffer.put((byte) text.charAt(i));
+    }
+  }
+
+
+  /**
+   * Write a number that isn't negative.
+   *
+   * @param nValue the number
+   * @throws IOException if the channel can't be written
+   */
+  private void putInt(final int nValue) throws IOException
+  {
+    if (buffer.remaining() < 10)
+    {
+      flush();
+    }
+
+    // Find the place of the first digit, then write each digit
+    int place = 1;
+    while (place <= nValue / 10)
+    {
+      place *= 10;
+    }
+
+    for (int n = nValue; place > 0; place /= 10)
+    {
+      buffer.put((byte) ('0' + (n / place)));
+      n %= place;
+    }
+  }
+
+
+  /**
+   * Write text, escaping it for the format and encoding it as
+   * UTF-8.
+   *
+   * @param text the text
+   * @throws IOException if the channel can't be written
+   */
+  private void putText(final String text) throws IOException
+  {
+    final int len = text.length();
+    for (int i = 0; i < len; ++i)
+    {
+      if (buffer.remaining() < MAX_CHAR_BYTES)
+      {
+        flush();
+      }
+
+      final char c = text.charAt(i);
+      if (c < 0x80)
+      {
+        putEscaped(c);
+      }
+      else if (c < 0x800)
+      {
+        buffer.put((byte) (0xC0 | (c >> 6)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+      else if (Character.isHighSurrogate(c) && (i + 1 < len) &&
+               Character.isLowSurrogate(text.charAt(i + 1)))
+      {
+        final int cp = Character.toCodePoint(c, text.charAt(++i));
+        buffer.put((byte) (0xF0 | (cp >> 18)));
+        buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+        buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (cp & 0x3F)));
+      }
+      else if (Character.isSurrogate(c) ||
+               ((format == Format.XML) && ((c == 0xFFFE) || (c == 0xFFFF))))
+      {
+        // A surrogate without its pair, or a character that can't
+        // be in an XML document
+        buffer.put((byte) '?');
+      }
+      else
+      {
+        buffer.put((byte) (0xE0 | (c >> 12)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+  }
+
+
+  /**
+   * Write an ASCII character, escaped for the format.  There must
+   * be room for the longest escape in the buffer.
+   *
+   * @param c the character
+   */
+  private void putEscaped(final char c)
+  {
+    switch (format)
+    {
+      case CSV:
+        // Quotes are doubled; the field is already quoted
+        if (c == '"')
+        {
+          buffer.put((byte) '"');
+        }
+
+        buffer.put((byte) c);
+        break;
+
+      case XML:
+        if (c == '<')
+        {
+          putBytes("&lt;");
+        }
+        else if (c == '>')
+        {
+          putBytes("&gt;");
+        }
+        else if (c == '&')
+        {
+          putBytes("&amp;");
+        }
+        else if (c == '"')
+        {
+          putBytes("&quot;");
+        }
+        else if (c == '\'')
+        {
+          putBytes("&apos;");
+        }
+        else if (c == '\r')
+        {
+          // A parser would turn a bare carriage return into a newline
+          putBytes("&#13;");
+        }
+        else if ((c >= 0x20) || (c == '\t') || (c == '\n'))
+        {
+          buffer.put((byte) c);
+        }
+        else
+        {
+          // Other control characters can't be in an XML document
+          buffer.put((byte) '?');
+        }
+        break;
+
+      default:
+        if (c == '"')
+        {
+          putBytes("\\\"");
+        }
+        else if (c == '\\')
+        {
+          putBytes("\\\\");
+        }
+        else if (c == '\n')
+        {
+          putBytes("\\n");
+        }
+        else if (c == '\r')
+        {
+          putBytes("\\r");
+        }
+        else if (c == '\t')
+        {
+          putBytes("\\t");
+        }
+        else if (c < 0x20)
+        {
+          // Other control characters are written as escapes
+          putBytes("\\u00");
+          buffer.put((byte) HEX_DIGITS[c >> 4]);
+          buffer.put((byte) HEX_DIGITS[c & 0xF]);
+        }
+        else
+        {
+          buffer.put((byte) c);
+        }
+        break;
+    }
+  }
+
+
+  /**
+   * Put a short ASCII escape in the buffer, which must have room.
+   *
+   * @param escape the escape
+   */
+  private void putBytes(final String escape)
+  {
+    final int len = escape.length();
+    for (int i = 0; i < len; ++i)
+    {
+      buffer.put((byte) escape.charAt(i));
+    }
+  }
+
+
+  /**
+   * Write the buffer to the channel.
+   *
+   * @throws IOException if the channel can't be written
+   */
+  private void flush() throws IOException
+  {
+    buffer.flip();
+    while (buffer.hasRemaining())
+    {
+      channel.write(buffer);
+    }
+
+    buffer.clear();
+  }
+
+
+  /**
+   * Print how to run the export.
+   */
+  private static void printUsage()
+  {
+    System.err.println("Usage: quotes -export [-data file] [-format jsonl|csv|xml] " +
+                       "[-details] [-output file] [-mode m] [-keyword k] " +
+                       "[-author a] [-case]");
+  }
+}
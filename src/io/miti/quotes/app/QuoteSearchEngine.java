@@ -0,0 +1,1523 @@
+package io.miti.quotes.app;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.miti.quotes.app.corpus.CorpusLoader;
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.corpus.FoldedText;
+import io.miti.quotes.app.corpus.OffHeapQuoteStore;
+import io.miti.quotes.app.corpus.QuoteFlyweight;
+import io.miti.quotes.app.corpus.Segment;
+import io.miti.quotes.app.corpus.SegmentedCorpus;
+import io.miti.quotes.app.filter.ContainsAllFilter;
+import io.miti.quotes.app.filter.FoldedFilter;
+import io.miti.quotes.app.filter.PhraseAutomaton;
+import io.miti.quotes.app.filter.SliceFilter;
+import io.miti.quotes.app.filter.TermFilter;
+import io.miti.quotes.app.search.Continuation;
+import io.miti.quotes.app.search.FilterCache;
+import io.miti.quotes.app.search.NearDuplicates;
+import io.miti.quotes.app.search.QueryCache;
+import io.miti.quotes.app.search.QueryKey;
+import io.miti.quotes.app.search.QuoteSampler;
+import io.miti.quotes.app.search.SimilarityIndex;
+import io.miti.quotes.app.search.SuggestionIndex;
+
+/**
+ * Searches a corpus of quotations.  This is the search core shared
+ * by the user interface, the batch runner and any other code that
+ * embeds the search: it compiles and caches the filters, caches
+ * the results of recent queries, keeps the index of authors and
+ * topics, and scans the folded text of each segment.
+ *
+ * The engine is thread-safe.  Each search runs against a single
+ * snapshot of the corpus, which is immutable, so searches can run
+ * on any number of threads while the corpus is being edited.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class QuoteSearchEngine
+{
+  /**
+   * The name of the application's data file.
+   */
+  public static final String DATA_FILE = "quotes.ser";
+
+  /**
+   * How many quotations a search checks between looking
+   * for cancellation, less one.
+   */
+  private static final int CANCEL_CHECK_MASK = 4095;
+
+  /**
+   * The largest share of the corpus an author search will look
+   * up through the index; beyond that, scanning is as fast.
+   */
+  private static final double AUTHOR_LOOKUP_SHARE = 0.25;
+
+  /**
+   * The corpus.
+   */
+  private final SegmentedCorpus corpus;
+
+  /**
+   * The cache of recent search results.
+   */
+  private final QueryCache queryCache = new QueryCache(128, 1000000);
+
+  /**
+   * The cache of compiled search filters.
+   */
+  private final FilterCache filterCache = new FilterCache(256);
+
+  /**
+   * The index of authors and topics, or null if it hasn't been
+   * built.  It may be for an older version of the corpus.
+   */
+  private volatile SuggestionIndex suggestions = null;
+
+  /**
+   * The random sampler of quotations, or null if it hasn't been
+   * built.  It may be for an older version of the corpus.
+   */
+  private volatile QuoteSampler sampler = null;
+
+  /**
+   * The popularity of each quotation, for weighted random picks,
+   * or null if there are no scores.
+   */
+  private volatile QuoteSampler.Popularity popularity = null;
+
+  /**
+   * The clusters of near-duplicate quotations, or null if they
+   * haven't been found.  They may be for an older version of the
+   * corpus.
+   */
+  private volatile NearDuplicates duplicates = null;
+
+  /**
+   * The index of the words in each quotation, for finding similar
+   * quotations, or null if it hasn't been built.  It may be for an
+   * older version of the corpus.
+   */
+  private volatile SimilarityIndex similarity = null;
+
+
+  /**
+   * Create an engine for a corpus.  The corpus may still be
+   * loading or be edited later; each search uses the snapshot
+   * current when it starts.
+   *
+   * @param pCorpus the corpus
+   */
+  public QuoteSearchEngine(final SegmentedCorpus pCorpus)
+  {
+    super();
+    corpus = pCorpus;
+  }
+
+
+  /**
+   * Create an engine for a data file.  The whole file is loaded
+   * before this returns.
+   *
+   * @param dataFile the data file, or null for the application's,
+   *                 read from the jar file or the data directory
+   * @return the engine
+   * @throws IOException if the file can't be read
+   */
+  public static QuoteSearchEngine load(final String dataFile)
+    throws IOException
+  {
+    final SegmentedCorpus corpus = new SegmentedCorpus(null);
+    InputStream is = null;
+    try
+    {
+      // Use the data file in the jar, if there is one
+      long nTotal = -1L;
+      final URL url = ((dataFile != null) ? null :
+                       QuoteSearchEngine.class.getResource("/" + DATA_FILE));
+      if (url != null)
+      {
+        nTotal = url.openConnection().getContentLength();
+        is = url.openStream();
+      }
+      else
+      {
+        final File inFile = new File((dataFile != null) ? dataFile
+                                     : ("data/" + DATA_FILE));
+        nTotal = inFile.length();
+        is = new FileInputStream(inFile);
+      }
+
+      CorpusLoader.load(CorpusLoader.open(is, nTotal), corpus, null);
+    }
+    catch (IOException ioe)
+    {
+      corpus.shutdown();
+      throw ioe;
+    }
+    finally
+    {
+      if (is != null)
+      {
+        try
+        {
+          is.close();
+        }
+        catch (IOException ioe)
+        {
+          System.err.println("IOException: " + ioe.getMessage());
+        }
+      }
+    }
+
+    return new QuoteSearchEngine(corpus);
+  }
+
+
+  /**
+   * Get the corpus.
+   *
+   * @return the corpus
+   */
+  public SegmentedCorpus getCorpus()
+  {
+    return corpus;
+  }
+
+
+  /**
+   * Get the current snapshot of the corpus.
+   *
+   * @return the snapshot
+   */
+  public CorpusSnapshot getSnapshot()
+  {
+    return corpus.getSnapshot();
+  }
+
+
+  /**
+   * Get the index of authors and topics.
+   *
+   * @return the index, or null if it hasn't been built; it may
+   *         be for an older version of the corpus
+   */
+  public SuggestionIndex getSuggestions()
+  {
+    return suggestions;
+  }
+
+
+  /**
+   * Build the index of authors and topics for the current
+   * snapshot, unless it's already up to date.  This can take a
+   * while on a large corpus, so it's best called off the event
+   * thread.
+   *
+   * @return the index
+   */
+  public SuggestionIndex updateSuggestions()
+  {
+    final CorpusSnapshot snapshot = corpus.getSnapshot();
+    final SuggestionIndex index = suggestions;
+    if ((index != null) && (index.getVersion() == snapshot.getVersion()))
+    {
+      return index;
+    }
+
+    final SuggestionIndex newIndex = new SuggestionIndex(snapshot);
+    suggestions = newIndex;
+    return newIndex;
+  }
+
+
+  /**
+   * Get the clusters of near-duplicate quotations, which searches
+   * that collapse near-duplicates use.
+   *
+   * @return the clusters, or null if they haven't been found; they
+   *         may be for an older version of the corpus
+   */
+  public NearDuplicates getDuplicates()
+  {
+    return duplicates;
+  }
+
+
+  /**
+   * Find the clusters of near-duplicate quotations in the current
+   * snapshot, unless they're already up to date.  This reads every
+   * quotation, so it's best called off the event thread.  Until
+   * it's called, searches don't collapse near-duplicates.
+   *
+   * @param dThreshold the similarity, from 0 to 1, at which two
+   *                   quotations are duplicates
+   * @return the clusters
+   */
+  public synchronized NearDuplicates updateDuplicates(final double dThreshold)
+  {
+    final CorpusSnapshot snapshot = corpus.getSnapshot();
+    final NearDuplicates current = duplicates;
+    if ((current != null) && (current.getVersion() == snapshot.getVersion()) &&
+        (current.getThreshold() == dThreshold))
+    {
+      return current;
+    }
+
+    final NearDuplicates newDuplicates = new NearDuplicates(snapshot, dThreshold);
+    duplicates = newDuplicates;
+    return newDuplicates;
+  }
+
+
+  /**
+   * Get the index for finding similar quotations.
+   *
+   * @return the index, or null if it hasn't been built; it may
+   *         be for an older version of the corpus
+   */
+  public SimilarityIndex getSimilarity()
+  {
+    return similarity;
+  }
+
+
+  /**
+   * Build the index for finding similar quotations in the current
+   * snapshot, unless it's already up to date.  This reads every
+   * quotation, so it's best called off the event thread.
+   *
+   * @return the index
+   */
+  public synchronized SimilarityIndex updateSimilarity()
+  {
+    final CorpusSnapshot snapshot = corpus.getSnapshot();
+    final SimilarityIndex index = similarity;
+    if ((index != null) && (index.getVersion() == snapshot.getVersion()))
+    {
+      return index;
+    }
+
+    final SimilarityIndex newIndex = new SimilarityIndex(snapshot);
+    similarity = newIndex;
+    return newIndex;
+  }
+
+
+  /**
+   * Set the popularity scores that weighted random picks use.
+   * The sampler is rebuilt the next time it's needed.
+   *
+   * @param pPopularity the popularity of each quotation, or null
+   *                    if picks are only uniform
+   */
+  public synchronized void setPopularity(final QuoteSampler.Popularity pPopularity)
+  {
+    popularity = pPopularity;
+    sampler = null;
+  }
+
+
+  /**
+   * Get the random sampler of quotations for the current snapshot,
+   * building it if the corpus has changed since it was last built.
+   * Building it reads every quotation, so it's best done once
+   * after loading; after that this is a version check.
+   *
+   * @return the sampler
+   */
+  public QuoteSampler getSampler()
+  {
+    final QuoteSampler current = sampler;
+    if ((current != null) &&
+        (current.getVersion() == corpus.getSnapshot().getVersion()))
+    {
+      return current;
+    }
+
+    return updateSampler();
+  }
+
+
+  /**
+   * Build the random sampler for the current snapshot, unless
+   * it's already up to date.  Only one thread builds it; the
+   * others wait for it.
+   *
+   * @return the sampler
+   */
+  private synchronized QuoteSampler updateSampler()
+  {
+    final CorpusSnapshot snapshot = corpus.getSnapshot();
+    final QuoteSampler current = sampler;
+    if ((current != null) && (current.getVersion() == snapshot.getVersion()))
+    {
+      return current;
+    }
+
+    final QuoteSampler newSampler = new QuoteSampler(snapshot, popularity);
+    sampler = newSampler;
+    return newSampler;
+  }
+
+
+  /**
+   * Remove the cached search results, such as after the whole
+   * corpus is replaced.  They'd miss anyway, but this frees the
+   * memory.
+   */
+  public void clearCache()
+  {
+    queryCache.clear();
+  }
+
+
+  /**
+   * Stop the corpus's background thread.
+   */
+  public void shutdown()
+  {
+    corpus.shutdown();
+  }
+
+
+  /**
+   * Search the current snapshot of the corpus.
+   *
+   * @param query the query
+   * @return the matches
+   * @throws java.util.regex.PatternSyntaxException if the query is
+   *         a regular expression that isn't valid
+   */
+  public SearchResult search(final QueryKey query)
+  {
+    return search(query, corpus.getSnapshot());
+  }
+
+
+  /**
+   * Search a snapshot of the corpus.
+   *
+   * @param query the query
+   * @param snapshot the snapshot
+   * @return the matches
+   * @throws java.util.regex.PatternSyntaxException if the query is
+   *         a regular expression that isn't valid
+   */
+  public SearchResult search(final QueryKey query,
+                             final CorpusSnapshot snapshot)
+  {
+    final SearchRun run = createRun(query);
+    search(run, snapshot, true);
+    return new SearchResult(run, snapshot);
+  }
+
+
+  /**
+   * Search the current snapshot of the corpus within a time
+   * budget, optionally carrying on from where an earlier search
+   * of the query stopped.  If the budget runs out, the scan stops
+   * and the result is partial: it has the matches found so far,
+   * how much of the corpus was scanned, and a continuation to
+   * carry on from.
+   *
+   * @param query the query
+   * @param continuation the continuation of an earlier result of
+   *                     the query, or null to start at the beginning
+   * @param nBudgetMillis the time the search may take, or 0 for
+   *                      no limit
+   * @return the matches
+   * @throws IllegalArgumentException if the continuation isn't
+   *         valid for the query and the current corpus
+   * @throws java.util.regex.PatternSyntaxException if the query is
+   *         a regular expression that isn't valid
+   */
+  public SearchResult search(final QueryKey query,
+                             final String continuation,
+                             final long nBudgetMillis)
+  {
+    final CorpusSnapshot snapshot = corpus.getSnapshot();
+    final SearchRun run = createRun(query, continuation, snapshot);
+    if (nBudgetMillis > 0L)
+    {
+      run.setDeadline(System.nanoTime() + (nBudgetMillis * 1000000L));
+    }
+
+    search(run, snapshot, true);
+    return new SearchResult(run, snapshot);
+  }
+
+
+  /**
+   * Create a run of a query that carries on from a continuation.
+   *
+   * @param query the query
+   * @param continuation the continuation token, or null to start
+   *                     at the beginning
+   * @param snapshot the snapshot that will be searched
+   * @return the run, not yet searched
+   * @throws IllegalArgumentException if the continuation isn't
+   *         valid for the query and the snapshot
+   */
+  SearchRun createRun(final QueryKey query,
+                      final String continuation,
+                      final CorpusSnapshot snapshot)
+  {
+    final SearchRun run = createRun(query);
+    if (continuation == null)
+    {
+      return run;
+    }
+
+    // Find where the search stopped, which may have moved if the
+    // corpus was compacted or loaded more since then
+    final Continuation from = Continuation.parse(continuation);
+    if (!from.isFor(query))
+    {
+      throw new IllegalArgumentException("The continuation is for another query");
+    }
+
+    final int nPosition = from.findPosition(snapshot);
+    if (nPosition < 0)
+    {
+      throw new IllegalArgumentException("The quotations have changed since " +
+                                         "the continuation was made; search again");
+    }
+
+    run.resumeFrom(nPosition);
+    return run;
+  }
+
+
+  /**
+   * Create a run of a query, with its filters.
+   *
+   * @param query the query
+   * @return the run, not yet searched
+   */
+  SearchRun createRun(final QueryKey query)
+  {
+    TermFilter nameFilter = null;
+    TermFilter authorFilter = null;
+
+    // Check the keyword
+    if (query.getKeyword() != null)
+    {
+      nameFilter = filterCache.getFilter(query.getMode(), query.getKeyword(),
+                                         query.isMatchCase());
+    }
+
+    // Check the author
+    if (query.getAuthor() != null)
+    {
+      // The author filter is always a Contains All filter
+      authorFilter = filterCache.getAuthorFilter(query.getAuthor(),
+                                                 query.isMatchCase());
+    }
+
+    SearchRun run = new SearchRun(query, nameFilter, authorFilter, query.getLimit());
+    if (query.isCollapse())
+    {
+      run.setDuplicates(duplicates);
+    }
+
+    return run;
+  }
+
+
+  /**
+   * Search a snapshot for the matches of a run.  This only uses
+   * the run and the snapshot it's given, so it can be called on
+   * any thread.
+   *
+   * @param run the search
+   * @param snapshot the snapshot to search
+   * @param bCacheable whether the results may be cached
+   */
+  void search(final SearchRun run,
+              final CorpusSnapshot snapshot,
+              final boolean bCacheable)
+  {
+    if (!bCacheable || !readCache(run, snapshot))
+    {
+      // Check the matches of the previous search first, or else
+      // the quotations of the matching authors
+      if (!run.hasCandidates(snapshot.getVersion()))
+      {
+        findAuthorCandidates(snapshot, run);
+      }
+
+      if (run.hasCandidates(snapshot.getVersion()))
+      {
+        narrowMatches(snapshot, run);
+      }
+
+      scanMatches(snapshot, run);
+
+      // Save the results
+      if (bCacheable)
+      {
+        writeCache(run, snapshot);
+      }
+    }
+
+    // Note where it stopped, for the next page
+    run.markStop(snapshot);
+  }
+
+
+  /**
+   * Search the current snapshot of the corpus for many queries
+   * at once.  Queries that aren't cached are answered in a
+   * single pass over the corpus, which is much faster than
+   * searching for each in turn.
+   *
+   * @param queries the queries
+   * @return the matches of each query, in the same order
+   * @throws java.util.regex.PatternSyntaxException if a query is
+   *         a regular expression that isn't valid
+   */
+  public SearchResult[] searchAll(final List<QueryKey> queries)
+  {
+    final CorpusSnapshot snapshot = corpus.getSnapshot();
+    final int numQueries = queries.size();
+    SearchRun[] runs = new SearchRun[numQueries];
+    for (int i = 0; i < numQueries; ++i)
+    {
+      runs[i] = createRun(queries.get(i));
+    }
+
+    searchAll(runs, snapshot);
+
+    SearchResult[] results = new SearchResult[numQueries];
+    for (int i = 0; i < numQueries; ++i)
+    {
+      results[i] = new SearchResult(runs[i], snapshot);
+    }
+
+    return results;
+  }
+
+
+  /**
+   * Search a snapshot for the matches of many runs at once,
+   * using the cache.  This can be called on any thread.
+   *
+   * @param runs the searches
+   * @param snapshot the snapshot to search
+   */
+  void searchAll(final SearchRun[] runs, final CorpusSnapshot snapshot)
+  {
+    // Answer what we can from the cache, and search for each
+    // distinct query once
+    List<SearchRun> pending = new ArrayList<SearchRun>(runs.length);
+    Map<QueryKey, SearchRun> distinct = new HashMap<QueryKey, SearchRun>(runs.length * 2);
+    List<SearchRun> repeats = new ArrayList<SearchRun>();
+    for (SearchRun run : runs)
+    {
+      if (readCache(run, snapshot))
+      {
+        continue;
+      }
+
+      // A run carrying on part way through is searched on its own
+      if (run.getStartPosition() > 0)
+      {
+        search(run, snapshot, false);
+        continue;
+      }
+
+      if (distinct.containsKey(run.getKey()))
+      {
+        repeats.add(run);
+      }
+      else
+      {
+        distinct.put(run.getKey(), run);
+        pending.add(run);
+      }
+    }
+
+    // A single query may be able to use the author index
+    if (pending.size() == 1)
+    {
+      search(pending.get(0), snapshot, true);
+    }
+    else if (!pending.isEmpty())
+    {
+      scanAll(snapshot, pending.toArray(new SearchRun[pending.size()]));
+      for (SearchRun run : pending)
+      {
+        writeCache(run, snapshot);
+      }
+    }
+
+    for (SearchRun run : repeats)
+    {
+      copyResults(distinct.get(run.getKey()), run);
+    }
+  }
+
+
+  /**
+   * Copy the matches of a finished run to another run of the
+   * same query.
+   *
+   * @param from the finished run
+   * @param to the run to fill
+   */
+  private static void copyResults(final SearchRun from, final SearchRun to)
+  {
+    final List<QuotationNode> quotes = from.getResults();
+    final List<Integer> ids = from.getResultIds();
+    final int nCount = quotes.size();
+    for (int i = 0; i < nCount; ++i)
+    {
+      to.addMatch(quotes.get(i), ids.get(i).intValue(), -1);
+    }
+
+    to.setScannedUpTo(from.getScannedUpTo());
+    to.setFull(from.isFull());
+    to.setVersion(from.getVersion());
+  }
+
+
+  /**
+   * Fill a run from the cache, if its query is cached for the
+   * snapshot's version.
+   *
+   * @param run the search
+   * @param snapshot the snapshot being searched
+   * @return whether the run was found in the cache
+   */
+  private boolean readCache(final SearchRun run,
+                            final CorpusSnapshot snapshot)
+  {
+    // The cache only has searches from the start of the corpus
+    if (run.getStartPosition() > 0)
+    {
+      return false;
+    }
+
+    final QueryCache.Entry entry = queryCache.get(run.getKey(),
+                                                  snapshot.getVersion());
+    if (entry == null)
+    {
+      return false;
+    }
+
+    // Rebuild the results from the cached IDs; their
+    // positions aren't known, so this can't be narrowed
+    final int nCount = entry.size();
+    for (int i = 0; i < nCount; ++i)
+    {
+      final int id = entry.getId(i);
+      run.addMatch(snapshot.findById(id), id, -1);
+    }
+
+    run.setScannedUpTo(entry.getScannedUpTo());
+    run.setFull(entry.isFull());
+    run.setVersion(snapshot.getVersion());
+    return true;
+  }
+
+
+  /**
+   * Save the matches of a finished run in the cache.
+   *
+   * @param run the search
+   * @param snapshot the snapshot that was searched
+   */
+  private void writeCache(final SearchRun run,
+                          final CorpusSnapshot snapshot)
+  {
+    // Skip partial results, searches that didn't start at the
+    // beginning, and searches that couldn't collapse near-duplicates
+    // because they hadn't been found yet
+    if (run.isCancelled() || (run.getStartPosition() > 0) ||
+        (run.getKey().isCollapse() && !run.hasDuplicates()))
+    {
+      return;
+    }
+
+    final List<Integer> listIds = run.getResultIds();
+    final int nCount = listIds.size();
+    int[] ids = new int[nCount];
+    for (int i = 0; i < nCount; ++i)
+    {
+      ids[i] = listIds.get(i).intValue();
+    }
+
+    queryCache.put(run.getKey(), snapshot.getVersion(), ids, run.isFull(),
+                   run.getScannedUpTo());
+  }
+
+
+
+  /**
+   * Use the suggestion index to find the quotations of the
+   * authors that match the author filter, so only those are
+   * checked, from where the run starts.  This is skipped if the
+   * index is out of date, or if the authors match too much of
+   * the corpus.
+   *
+   * @param snapshot the snapshot being searched
+   * @param run the search
+   */
+  private void findAuthorCandidates(final CorpusSnapshot snapshot,
+                                    final SearchRun run)
+  {
+    final SuggestionIndex index = suggestions;
+    if ((run.getAuthorFilter() == null) || (index == null) ||
+        (index.getVersion() != snapshot.getVersion()))
+    {
+      return;
+    }
+
+    final int[] positions = index.findAuthorPositions(run.getAuthorFilter(),
+                                                      AUTHOR_LOOKUP_SHARE);
+    if (positions == null)
+    {
+      return;
+    }
+
+    // A later page only needs the positions it hasn't scanned
+    final int nScannedUpTo = run.getScannedUpTo();
+    int nFirst = Arrays.binarySearch(positions, nScannedUpTo);
+    if (nFirst < 0)
+    {
+      nFirst = -(nFirst + 1);
+    }
+
+    if (nFirst == 0)
+    {
+      run.setCandidates(snapshot, positions);
+    }
+    else
+    {
+      int[] rest = new int[positions.length - nFirst];
+      System.arraycopy(positions, nFirst, rest, 0, rest.length);
+      run.setCandidates(snapshot, rest);
+    }
+  }
+
+
+  /**
+   * Check the candidates of a search, such as the matches of a
+   * previous search, instead of the part of the corpus they
+   * cover.  Any quotation there that matches must be one of them.
+   *
+   * @param snapshot the snapshot the candidates are positions in
+   * @param run the search, with its candidates
+   */
+  private static void narrowMatches(final CorpusSnapshot snapshot,
+                                    final SearchRun run)
+  {
+    final TermFilter nameFilter = run.getNameFilter();
+    final TermFilter authorFilter = run.getAuthorFilter();
+    final boolean bUseFolded = (canUseFolded(nameFilter) ||
+                                canUseFolded(authorFilter));
+
+    // The candidates are in corpus order, so the segments are
+    // visited in order
+    Segment segment = null;
+    int nSegStart = 0;
+    int nSegEnd = 0;
+    FoldedText folded = null;
+    QuoteFlyweight view = null;
+    final int nCount = run.getCandidateCount();
+    for (int i = 0; i < nCount; ++i)
+    {
+      // Stop if the search was cancelled; every quotation before
+      // this candidate has been checked
+      if (((i & CANCEL_CHECK_MASK) == 0) && run.isCancelled())
+      {
+        run.setScannedUpTo(run.getCandidatePosition(i));
+        run.clearCandidates();
+        return;
+      }
+
+      // Find the candidate's segment
+      final int nPosition = run.getCandidatePosition(i);
+      if ((segment == null) || (nPosition >= nSegEnd))
+      {
+        final int nSeg = snapshot.getSegmentIndex(nPosition);
+        segment = snapshot.getSegment(nSeg);
+        nSegStart = snapshot.getSegmentStart(nSeg);
+        nSegEnd = nSegStart + segment.size();
+        folded = (bUseFolded ? segment.getFoldedText() : null);
+        view = segment.getOffHeapStore().newFlyweight();
+      }
+
+      // Match on the record, and only make a QuotationNode for a match
+      final int nOffset = nPosition - nSegStart;
+      view.moveTo(nOffset);
+      if (matchOnSearch(nameFilter, authorFilter, null, null, folded, view,
+                        nOffset))
+      {
+        run.addMatch(segment.getQuote(nOffset), segment.getId(nOffset),
+                     nPosition);
+
+        // Check if we reached the limit
+        if (run.isLimitReached())
+        {
+          run.setScannedUpTo(nPosition + 1);
+          run.setFull(true);
+          run.clearCandidates();
+          return;
+        }
+      }
+    }
+
+    // Carry on from where the previous search stopped
+    run.setScannedUpTo(run.getCandidatesScannedUpTo());
+    run.clearCandidates();
+  }
+
+
+  /**
+   * Scan a snapshot for matches, starting from the position
+   * the search has scanned up to, and add them to the results.
+   * This only reads the snapshot and the run, so separate runs
+   * can be scanned on separate threads.
+   *
+   * @param snapshot the snapshot to scan
+   * @param run the search
+   */
+  static void scanMatches(final CorpusSnapshot snapshot,
+                          final SearchRun run)
+  {
+    // Check the return limit
+    run.setVersion(snapshot.getVersion());
+    if (run.isLimitReached())
+    {
+      // The limit was already reached (or is zero)
+      run.setFull(true);
+      return;
+    }
+
+    // Find where to start
+    final int nSize = snapshot.size();
+    final int nScannedUpTo = run.getScannedUpTo();
+    if (nScannedUpTo >= nSize)
+    {
+      return;
+    }
+
+    // Case-insensitive searches can scan the folded text, and
+    // the other slice filters the bytes of the records
+    final TermFilter nameFilter = run.getNameFilter();
+    final TermFilter authorFilter = run.getAuthorFilter();
+    final boolean bUseFolded = (canUseFolded(nameFilter) ||
+                                canUseFolded(authorFilter));
+
+    final int numSegments = snapshot.getSegmentCount();
+    int nStartSeg = snapshot.getSegmentIndex(nScannedUpTo);
+    int nOffset = nScannedUpTo - snapshot.getSegmentStart(nStartSeg);
+    for (int s = nStartSeg; s < numSegments; ++s)
+    {
+      // Iterate over the quotations in this segment
+      final Segment segment = snapshot.getSegment(s);
+      final FoldedText folded = (bUseFolded ? segment.getFoldedText() : null);
+      final QuoteFlyweight view = segment.getOffHeapStore().newFlyweight();
+      final int nSegStart = snapshot.getSegmentStart(s);
+      final int size = segment.size();
+      for (int i = nOffset; i < size; ++i)
+      {
+        // Stop if the search was cancelled, noting how far it got
+        if (((i & CANCEL_CHECK_MASK) == 0) && run.isCancelled())
+        {
+          run.setScannedUpTo(nSegStart + i);
+          return;
+        }
+
+        // Skip deleted quotations
+        if (segment.isDeleted(i))
+        {
+          continue;
+        }
+
+        // Check for a match on the record
+        view.moveTo(i);
+        if (matchOnSearch(nameFilter, authorFilter, null, null, folded, view, i))
+        {
+          // Add the match, which is the only time the quotation is made
+          run.addMatch(segment.getQuote(i), segment.getId(i), nSegStart + i);
+
+          // Check if we reached the limit
+          if (run.isLimitReached())
+          {
+            run.setScannedUpTo(nSegStart + i + 1);
+            run.setFull(true);
+            return;
+          }
+        }
+      }
+
+      nOffset = 0;
+    }
+
+    run.setScannedUpTo(nSize);
+  }
+
+
+  /**
+   * Scan a snapshot once for the matches of many runs.  Each
+   * quotation is read once for all of them, and its quotation is
+   * only cleaned once for the filters that can't use the folded
+   * text.  The runs whose keyword is a case-insensitive Contains
+   * search are answered together by one automaton of all their
+   * phrases, which reads each byte of the folded text once, so
+   * adding one of those runs costs little.
+   *
+   * @param snapshot the snapshot to scan
+   * @param runs the searches, which haven't been started
+   */
+  static void scanAll(final CorpusSnapshot snapshot, final SearchRun[] runs)
+  {
+    final int numRuns = runs.length;
+    boolean[] done = new boolean[numRuns];
+    int numActive = 0;
+
+    // Give each phrase of the Contains runs an ID
+    List<byte[]> phrases = new ArrayList<byte[]>(numRuns * 2);
+    Map<String, Integer> phraseIds = new HashMap<String, Integer>(numRuns * 4);
+    int[][] runPhrases = new int[numRuns][];
+    int[][] runOccurrences = new int[numRuns][];
+    List<List<Integer>> phraseRunList = new ArrayList<List<Integer>>(numRuns * 2);
+    int[] others = new int[numRuns];
+    int numOthers = 0;
+    boolean bUseFolded = false;
+    boolean bNeedCleaned = false;
+    for (int r = 0; r < numRuns; ++r)
+    {
+      final SearchRun run = runs[r];
+      run.setVersion(snapshot.getVersion());
+      if (run.isLimitReached())
+      {
+        run.setFull(true);
+        done[r] = true;
+        continue;
+      }
+
+      ++numActive;
+      final TermFilter nameFilter = run.getNameFilter();
+      bUseFolded = (bUseFolded || canUseFolded(nameFilter) ||
+                    canUseFolded(run.getAuthorFilter()));
+      if (!addPhrases(r, nameFilter, phrases, phraseIds, phraseRunList,
+                      runPhrases, runOccurrences))
+      {
+        others[numOthers++] = r;
+        bNeedCleaned = (bNeedCleaned ||
+                        ((nameFilter != null) && !canUseFolded(nameFilter) &&
+                         !canUseRaw(nameFilter)));
+      }
+    }
+
+    // Build the automaton
+    final int numPhrases = phrases.size();
+    final PhraseAutomaton automaton = ((numPhrases == 0) ? null :
+                                       new PhraseAutomaton(phrases));
+    int[][] phraseRuns = new int[numPhrases][];
+    for (int p = 0; p < numPhrases; ++p)
+    {
+      final List<Integer> list = phraseRunList.get(p);
+      phraseRuns[p] = new int[list.size()];
+      for (int i = 0; i < phraseRuns[p].length; ++i)
+      {
+        phraseRuns[p][i] = list.get(i).intValue();
+      }
+    }
+
+    int[] counts = new int[numPhrases];
+    int[] touched = new int[numPhrases];
+    int[] matched = new int[numRuns];
+    int[] stamps = new int[numRuns];
+    int nStamp = 0;
+
+    // Scan the corpus once
+    final int nSize = snapshot.size();
+    final int numSegments = snapshot.getSegmentCount();
+    int nChecked = 0;
+    for (int s = 0; (s < numSegments) && (numActive > 0); ++s)
+    {
+      final Segment segment = snapshot.getSegment(s);
+      final FoldedText folded = ((bUseFolded || (automaton != null))
+                                 ? segment.getFoldedText() : null);
+      final QuoteFlyweight view = segment.getOffHeapStore().newFlyweight();
+      final int nSegStart = snapshot.getSegmentStart(s);
+      final int size = segment.size();
+      for (int i = 0; (i < size) && (numActive > 0); ++i)
+      {
+        // Drop any runs that were cancelled
+        if ((++nChecked & CANCEL_CHECK_MASK) == 0)
+        {
+          numActive -= dropCancelled(runs, done, nSegStart + i);
+        }
+
+        if (segment.isDeleted(i))
+        {
+          continue;
+        }
+
+        // The quotation is only made once a run matches it
+        QuotationNode quote = null;
+        final int nPosition = nSegStart + i;
+        view.moveTo(i);
+
+        // Find the Contains runs whose phrases are all in a field
+        int numMatched = 0;
+        if (automaton != null)
+        {
+          ++nStamp;
+          for (int f = 0; f < 2; ++f)
+          {
+            final int nField = ((f == 0) ? FoldedText.FIELD_QUOTATION
+                                         : FoldedText.FIELD_TOPIC);
+            if (!folded.isPacked(i, nField))
+            {
+              // The field can't be folded, so check it directly
+              for (int r = 0; r < numRuns; ++r)
+              {
+                if ((runPhrases[r] != null) && !done[r] && (stamps[r] != nStamp) &&
+                    acceptField(runs[r].getNameFilter(), null, null, folded,
+                                view, i, nField))
+                {
+                  stamps[r] = nStamp;
+                  matched[numMatched++] = r;
+                }
+              }
+
+              continue;
+            }
+
+            final int numTouched = automaton.count(folded.getData(),
+                folded.getStart(i, nField), folded.getLength(i, nField),
+                counts, touched, 0);
+            for (int t = 0; t < numTouched; ++t)
+            {
+              final int[] candidates = phraseRuns[touched[t]];
+              for (int c = 0; c < candidates.length; ++c)
+              {
+                final int r = candidates[c];
+                if (!done[r] && (stamps[r] != nStamp) &&
+                    hasPhrases(runPhrases[r], runOccurrences[r], counts))
+                {
+                  stamps[r] = nStamp;
+                  matched[numMatched++] = r;
+                }
+              }
+            }
+
+            for (int t = 0; t < numTouched; ++t)
+            {
+              counts[touched[t]] = 0;
+            }
+          }
+        }
+
+        // Check the author of those, and every other run
+        for (int m = 0; m < numMatched; ++m)
+        {
+          final int r = matched[m];
+          final TermFilter authorFilter = runs[r].getAuthorFilter();
+          if ((authorFilter == null) ||
+              acceptField(authorFilter, null, null, folded, view, i,
+                          FoldedText.FIELD_NAME))
+          {
+            if (quote == null)
+            {
+              quote = segment.getQuote(i);
+            }
+
+            if (addMatch(runs[r], quote, segment.getId(i), nPosition))
+            {
+              done[r] = true;
+              --numActive;
+            }
+          }
+        }
+
+        final String cleaned = (bNeedCleaned ?
+                                Utility.updateBytes(view.getQuotation()) : null);
+        for (int o = 0; o < numOthers; ++o)
+        {
+          final int r = others[o];
+          if (!done[r] &&
+              matchOnSearch(runs[r].getNameFilter(), runs[r].getAuthorFilter(),
+                            null, cleaned, folded, view, i))
+          {
+            if (quote == null)
+            {
+              quote = segment.getQuote(i);
+            }
+
+            if (addMatch(runs[r], quote, segment.getId(i), nPosition))
+            {
+              done[r] = true;
+              --numActive;
+            }
+          }
+        }
+      }
+    }
+
+    for (int r = 0; r < numRuns; ++r)
+    {
+      if (!done[r])
+      {
+        runs[r].setScannedUpTo(nSize);
+      }
+    }
+  }
+
+
+  /**
+   * Give the phrases of a run an ID, if its keyword is a
+   * Contains search the automaton can answer.
+   *
+   * @param nRun the index of the run
+   * @param nameFilter the keyword filter of the run
+   * @param phrases the phrases, added to
+   * @param phraseIds the ID of each phrase, added to
+   * @param phraseRunList the runs with each phrase, added to
+   * @param runPhrases the phrase IDs of each run, set for this run
+   * @param runOccurrences how often each phrase must occur, set
+   *                       for this run
+   * @return whether the run's phrases were added
+   */
+  private static boolean addPhrases(final int nRun,
+                                    final TermFilter nameFilter,
+                                    final List<byte[]> phrases,
+                                    final Map<String, Integer> phraseIds,
+                                    final List<List<Integer>> phraseRunList,
+                                    final int[][] runPhrases,
+                                    final int[][] runOccurrences)
+  {
+    if (!(nameFilter instanceof ContainsAllFilter) || !canUseFolded(nameFilter))
+    {
+      return false;
+    }
+
+    // Every phrase must be Latin-1 and not empty
+    final ContainsAllFilter filter = (ContainsAllFilter) nameFilter;
+    final int numPhrases = filter.getPhraseCount();
+    if (numPhrases == 0)
+    {
+      return false;
+    }
+
+    for (int p = 0; p < numPhrases; ++p)
+    {
+      final byte[] bytes = filter.getPhraseBytes(p);
+      if ((bytes == null) || (bytes.length == 0))
+      {
+        return false;
+      }
+    }
+
+    runPhrases[nRun] = new int[numPhrases];
+    runOccurrences[nRun] = new int[numPhrases];
+    for (int p = 0; p < numPhrases; ++p)
+    {
+      final byte[] bytes = filter.getPhraseBytes(p);
+      final String key = phraseKey(bytes);
+      Integer id = phraseIds.get(key);
+      if (id == null)
+      {
+        id = Integer.valueOf(phrases.size());
+        phraseIds.put(key, id);
+        phrases.add(bytes);
+        phraseRunList.add(new ArrayList<Integer>(2));
+      }
+
+      runPhrases[nRun][p] = id.intValue();
+      runOccurrences[nRun][p] = filter.getPhraseOccurrences(p);
+      phraseRunList.get(id.intValue()).add(Integer.valueOf(nRun));
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Make a key for a phrase of bytes, one character per byte.
+   *
+   * @param bytes the phrase
+   * @return the key
+   */
+  private static String phraseKey(final byte[] bytes)
+  {
+    char[] chars = new char[bytes.length];
+    for (int i = 0; i < bytes.length; ++i)
+    {
+      chars[i] = (char) (bytes[i] & 0xFF);
+    }
+
+    return new String(chars);
+  }
+
+
+  /**
+   * Returns whether every phrase of a run occurred often enough.
+   *
+   * @param phraseIds the phrase IDs of the run
+   * @param occurrences how often each must occur
+   * @param counts how often each phrase occurred
+   * @return whether the run matches
+   */
+  private static boolean hasPhrases(final int[] phraseIds,
+                                    final int[] occurrences,
+                                    final int[] counts)
+  {
+    for (int p = 0; p < phraseIds.length; ++p)
+    {
+      if (counts[phraseIds[p]] < occurrences[p])
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Add a match to a run, stopping it if it reaches its limit.
+   *
+   * @param run the search
+   * @param quote the quotation
+   * @param nId the ID of the quotation
+   * @param nPosition the position of the quotation
+   * @return whether the run is now full
+   */
+  private static boolean addMatch(final SearchRun run,
+                                  final QuotationNode quote,
+                                  final int nId,
+                                  final int nPosition)
+  {
+    run.addMatch(quote, nId, nPosition);
+    if (!run.isLimitReached())
+    {
+      return false;
+    }
+
+    run.setScannedUpTo(nPosition + 1);
+    run.setFull(true);
+    return true;
+  }
+
+
+  /**
+   * Mark the runs that have been cancelled as done.
+   *
+   * @param runs the searches
+   * @param done whether each run is done, updated
+   * @param nPosition the corpus position the scan has reached
+   * @return the number of runs newly marked as done
+   */
+  private static int dropCancelled(final SearchRun[] runs,
+                                   final boolean[] done,
+                                   final int nPosition)
+  {
+    int num = 0;
+    for (int r = 0; r < runs.length; ++r)
+    {
+      if (!done[r] && runs[r].isCancelled())
+      {
+        runs[r].setScannedUpTo(nPosition);
+        done[r] = true;
+        ++num;
+      }
+    }
+
+    return num;
+  }
+
+
+  /**
+   * Returns whether the two terms match.
+   *
+   * @param nameFilter the filter for the search word
+   * @param authorFilter the filter for the author
+   * @param term the term from the data source, or null to read
+   *             it from the view
+   * @param cleaned the quotation with non-ASCII characters
+   *                stripped, or null to strip them if needed
+   * @param folded the folded text of the segment, or null
+   * @param view the record of the term, or null
+   * @param nPos the position of the term in the segment
+   * @return whether the term matches the user's search criteria
+   */
+  private static boolean matchOnSearch(final TermFilter nameFilter,
+                                       final TermFilter authorFilter,
+                                       final QuotationNode term,
+                                       final String cleaned,
+                                       final FoldedText folded,
+                                       final QuoteFlyweight view,
+                                       final int nPos)
+  {
+    // Check the name filter
+    boolean result = true;
+    if (nameFilter != null)
+    {
+      // Match on the quotation or the topic
+      result = ((acceptField(nameFilter, term, cleaned, folded, view, nPos,
+                             FoldedText.FIELD_QUOTATION)) ||
+                (acceptField(nameFilter, term, cleaned, folded, view, nPos,
+                             FoldedText.FIELD_TOPIC)));
+    }
+
+    // Check the author filter, if the current result is true
+    if ((result) && (authorFilter != null))
+    {
+      result = acceptField(authorFilter, term, cleaned, folded, view, nPos,
+                           FoldedText.FIELD_NAME);
+    }
+
+    // Return the result
+    return result;
+  }
+
+
+  /**
+   * Returns whether a quotation matches the filters of a search,
+   * for code that checks quotations one at a time.
+   *
+   * @param nameFilter the filter for the quotation or topic, or null
+   * @param authorFilter the filter for the author, or null
+   * @param quote the quotation
+   * @param cleaned the quotation with non-ASCII characters
+   *                stripped, or null to strip them if needed
+   * @return whether it matches
+   */
+  static boolean matches(final TermFilter nameFilter,
+                         final TermFilter authorFilter,
+                         final QuotationNode quote,
+                         final String cleaned)
+  {
+    return matchOnSearch(nameFilter, authorFilter, quote, cleaned, null, null, 0);
+  }
+
+
+  /**
+   * Returns whether a filter accepts one field of a quotation,
+   * using the folded text when the filter supports it.
+   *
+   * @param filter the filter
+   * @param term the quotation, or null to read it from the view
+   * @param cleaned the quotation with non-ASCII characters
+   *                stripped, or null to strip them if needed
+   * @param folded the folded text of the segment, or null
+   * @param view the record of the quotation, or null
+   * @param nPos the position of the quotation in the segment
+   * @param nField the field to check
+   * @return whether the field matches
+   */
+  private static boolean acceptField(final TermFilter filter,
+                                     final QuotationNode term,
+                                     final String cleaned,
+                                     final FoldedText folded,
+                                     final QuoteFlyweight view,
+                                     final int nPos,
+                                     final int nField)
+  {
+    // Use the folded text if we can
+    if ((folded != null) && canUseFolded(filter) &&
+        folded.isPacked(nPos, nField))
+    {
+      return ((FoldedFilter) filter).acceptFolded(folded.getData(),
+                  folded.getStart(nPos, nField), folded.getLength(nPos, nField));
+    }
+
+    // Otherwise match on the bytes of the record, if the field
+    // there is what the search would see
+    if ((view != null) && canUseRaw(filter))
+    {
+      final SliceFilter slice = (SliceFilter) filter;
+      switch (nField)
+      {
+        case FoldedText.FIELD_QUOTATION:
+          // Stripping non-ASCII characters leaves ASCII unchanged
+          if (view.isAscii(OffHeapQuoteStore.FIELD_QUOTATION))
+          {
+            return view.accept(slice, OffHeapQuoteStore.FIELD_QUOTATION);
+          }
+          break;
+
+        case FoldedText.FIELD_TOPIC:
+          if (view.isLatin1(OffHeapQuoteStore.FIELD_TOPIC))
+          {
+            return view.accept(slice, OffHeapQuoteStore.FIELD_TOPIC);
+          }
+          break;
+
+        default:
+          if (view.isLatin1(OffHeapQuoteStore.FIELD_NAME))
+          {
+            return view.accept(slice, OffHeapQuoteStore.FIELD_NAME);
+          }
+          break;
+      }
+    }
+
+    // Check the field itself
+    switch (nField)
+    {
+      case FoldedText.FIELD_QUOTATION:
+        // Strip out any non-ASCII characters
+        if (cleaned != null)
+        {
+          return filter.accept(cleaned);
+        }
+
+        return filter.accept(Utility.updateBytes((term != null) ? term.getQuotation()
+                                                 : view.getQuotation()));
+
+      case FoldedText.FIELD_TOPIC:
+        return filter.accept((term != null) ? term.getTopic() : view.getTopic());
+
+      default:
+        return filter.accept((term != null) ? term.getName() : view.getName());
+    }
+  }
+
+
+  /**
+   * Returns whether a filter can be run on the folded text.
+   *
+   * @param filter the filter (may be null)
+   * @return whether the filter can use the folded text
+   */
+  private static boolean canUseFolded(final TermFilter filter)
+  {
+    return ((filter instanceof FoldedFilter) &&
+            ((FoldedFilter) filter).canAcceptFolded());
+  }
+
+
+  /**
+   * Returns whether a filter should be run on the bytes of the
+   * records, which is the case for the slice filters that can't
+   * use the folded text.
+   *
+   * @param filter the filter (may be null)
+   * @return whether the filter can use the records
+   */
+  private static boolean canUseRaw(final TermFilter filter)
+  {
+    return ((filter instanceof SliceFilter) && !canUseFolded(filter));
+  }
+}
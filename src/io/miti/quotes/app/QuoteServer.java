@@ -0,0 +1,1639 @@
+package io.miti.quotes.app;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.search.CompletionTrie;
+import io.miti.quotes.app.search.NearDuplicates;
+import io.miti.quotes.app.search.QueryKey;
+import io.miti.quotes.app.search.QuoteSampler;
+import io.miti.quotes.app.search.SimilarityIndex;
+import io.miti.quotes.app.search.SuggestionIndex;
+
+/**
+ * Serves searches of one shared corpus over HTTP, so many users
+ * can search without each loading the corpus.  The endpoints
+ * take their parameters in the query string and return JSON:
+ *
+ *   /search?q=&amp;mode=&amp;author=&amp;case=&amp;limit=&amp;timeout=&amp;continuation=&amp;collapse=
+ *       the matching quotations (mode is contains, wildcard,
+ *       soundex or regex; case=true matches case; the limit
+ *       defaults to 100, and -1 means no limit; the timeout is
+ *       in milliseconds, up to the server's; collapse=true leaves
+ *       out near-duplicates of an earlier match).  A search that runs
+ *       out of time is partial; it and a search that reaches its
+ *       limit have a continuation to pass back, to carry on from
+ *       where they stopped
+ *   /quote?id=
+ *       one quotation, with its bio and source
+ *   /similar?id=&amp;size=
+ *       the quotations most like one, by the words they share,
+ *       with the cosine similarity of each (20 by default, up to
+ *       100); near-duplicates of the quotation are left out
+ *   /facets?q=&amp;mode=&amp;author=&amp;case=&amp;size=
+ *       the most common authors and topics of the matches, or
+ *       of the whole corpus if there's no keyword or author
+ *   /random?topic=&amp;author=&amp;weighted=
+ *       a quotation picked at random, from the whole corpus, a
+ *       topic or an author; if the server has popularity scores,
+ *       the pick is weighted by them unless weighted=false
+ *   /today?date=&amp;weighted=
+ *       the quotation of the day, for a date of the form
+ *       yyyy-mm-dd (today by default)
+ *   /batch (POST)
+ *       the matches of each query in the body, one per line in
+ *       the format of the batch query file; they're answered
+ *       together in one pass over the corpus
+ *   /alerts (POST)
+ *       adds the stored queries in the body, in the format of the
+ *       batch query file, and returns the number of each; with
+ *       remove=, removes the stored queries with those numbers
+ *   /percolate (POST)
+ *       the stored queries that each new quotation in the body
+ *       matches; each line holds the first name, last name, topic
+ *       and quotation, separated by tabs
+ *   /metrics
+ *       the running, waiting, rejected and timed out searches
+ *
+ * Each request runs on its own virtual thread when the JVM has
+ * them (Java 21 and later), since a request mostly waits on the
+ * network; otherwise on a fixed pool of threads.  The searches
+ * themselves run on a SearchExecutor, so expensive ones can't
+ * starve cheap ones; a search that can't be queued, or that
+ * can't start before its deadline, gets a 503 response.  Run it with:
+ *
+ *   java -jar quotes.jar -server [-data file] [-port n] [-threads n]
+ *        [-cheap n] [-expensive n] [-queue n] [-timeout ms]
+ *        [-popularity file] [-alerts file]
+ *
+ * The popularity file has a line for each scored quotation, with
+ * its ID and score separated by spaces, tabs or a comma; lines
+ * starting with # are skipped.  Quotations not in the file
+ * score 1.  The alerts file holds stored queries in the format of
+ * the batch query file; the first is number 0.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class QuoteServer
+{
+  /**
+   * The default port.
+   */
+  public static final int DEFAULT_PORT = 8080;
+
+  /**
+   * The default number of threads, if there are no virtual threads.
+   */
+  public static final int DEFAULT_THREADS = 64;
+
+  /**
+   * The default number of searches of each class that may wait.
+   */
+  public static final int DEFAULT_QUEUE = 256;
+
+  /**
+   * The default time a search may take, in milliseconds.
+   */
+  public static final long DEFAULT_TIMEOUT = 10000L;
+
+  /**
+   * The number of connections that may wait to be accepted.
+   */
+  private static final int BACKLOG = 4096;
+
+  /**
+   * The system property that turns off Nagle's algorithm in the
+   * JDK's HTTP server.
+   */
+  private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+  /**
+   * The default number of matches returned by a search.
+   */
+  private static final int DEFAULT_LIMIT = 100;
+
+  /**
+   * The default number of values in each facet.
+   */
+  private static final int DEFAULT_FACET_SIZE = 10;
+
+  /**
+   * The most similar quotations in one answer.
+   */
+  private static final int MAX_SIMILAR = 100;
+
+  /**
+   * The most queries in one batch request.
+   */
+  private static final int MAX_BATCH_QUERIES = 1000;
+
+  /**
+   * The largest request body, in bytes.
+   */
+  private static final int MAX_BODY_BYTES = 1 << 20;
+
+  /**
+   * The search engine.
+   */
+  private final QuoteSearchEngine engine;
+
+  /**
+   * The executor that runs the searches.
+   */
+  private final SearchExecutor searcher;
+
+  /**
+   * The longest time a search may take, in milliseconds.
+   */
+  private final long timeout;
+
+  /**
+   * The HTTP server.
+   */
+  private final HttpServer server;
+
+  /**
+   * The executor that runs the requests.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * Whether the requests run on virtual threads.
+   */
+  private final boolean virtualThreads;
+
+  /**
+   * The stored queries that new quotations are matched against.
+   */
+  private final Percolator percolator;
+
+
+  /**
+   * Create a server, with the default limits on searches.  It
+   * doesn't accept requests until it's started.
+   *
+   * @param pEngine the search engine
+   * @param nPort the port to listen on
+   * @param nThreads the number of threads, if there are no
+   *                 virtual threads
+   * @throws IOException if the port can't be opened
+   */
+  public QuoteServer(final QuoteSearchEngine pEngine,
+                     final int nPort,
+                     final int nThreads) throws IOException
+  {
+    this(pEngine, createSearcher(pEngine, 0, 0, DEFAULT_QUEUE), nPort, nThreads,
+         DEFAULT_TIMEOUT);
+  }
+
+
+  /**
+   * Create a server.  It doesn't accept requests until it's
+   * started.
+   *
+   * @param pEngine the search engine
+   * @param pSearcher the executor to run the searches on, which
+   *                  is shut down when the server stops
+   * @param nPort the port to listen on
+   * @param nThreads the number of threads, if there are no
+   *                 virtual threads
+   * @param nTimeoutMillis the longest time a search may take
+   * @throws IOException if the port can't be opened
+   */
+  public QuoteServer(final QuoteSearchEngine pEngine,
+                     final SearchExecutor pSearcher,
+                     final int nPort,
+                     final int nThreads,
+                     final long nTimeoutMillis) throws IOException
+  {
+    super();
+    engine = pEngine;
+    searcher = pSearcher;
+    timeout = Math.max(1L, nTimeoutMillis);
+    percolator = new Percolator(engine.getSnapshot());
+
+    ExecutorService virtual = createVirtualExecutor();
+    virtualThreads = (virtual != null);
+    executor = (virtualThreads ? virtual : createPool(nThreads));
+
+    server = HttpServer.create(new InetSocketAddress(nPort), BACKLOG);
+    server.setExecutor(executor);
+    server.createContext("/search", new JsonHandler()
+    {
+      String answer(final Map<String, String> params, final String body)
+        throws TimeoutException, InterruptedException
+      {
+        return search(params);
+      }
+    });
+    server.createContext("/quote", new JsonHandler()
+    {
+      String answer(final Map<String, String> params, final String body)
+      {
+        return lookup(params);
+      }
+    });
+    server.createContext("/similar", new JsonHandler()
+    {
+      String answer(final Map<String, String> params, final String body)
+      {
+        return findSimilar(params);
+      }
+    });
+    server.createContext("/facets", new JsonHandler()
+    {
+      String answer(final Map<String, String> params, final String body)
+        throws TimeoutException, InterruptedException
+      {
+        return facets(params);
+      }
+    });
+    server.createContext("/random", new JsonHandler()
+    {
+      String answer(final Map<String, String> params, final String body)
+      {
+        return pickRandom(params);
+      }
+    });
+    server.createContext("/today", new JsonHandler()
+    {
+      String answer(final Map<String, String> params, final String body)
+      {
+        return pickForDay(params);
+      }
+    });
+    server.createContext("/batch", new JsonHandler("POST")
+    {
+      String answer(final Map<String, String> params, final String body)
+        throws TimeoutException, InterruptedException
+      {
+        return batch(params, body);
+      }
+    });
+    server.createContext("/alerts", new JsonHandler("POST")
+    {
+      String answer(final Map<String, String> params, final String body)
+      {
+        return updateAlerts(params, body);
+      }
+    });
+    server.createContext("/percolate", new JsonHandler("POST")
+    {
+      String answer(final Map<String, String> params, final String body)
+      {
+        return percolate(body);
+      }
+    });
+    server.createContext("/metrics", new JsonHandler()
+    {
+      String answer(final Map<String, String> params, final String body)
+      {
+        return metrics();
+      }
+    });
+  }
+
+
+  /**
+   * Load the corpus and start the server.
+   *
+   * @param args the options
+   */
+  public static void main(final String[] args)
+  {
+    // Parse the options
+    String dataFile = null;
+    int nPort = DEFAULT_PORT;
+    int nThreads = DEFAULT_THREADS;
+    int nCheap = 0;
+    int nExpensive = 0;
+    int nQueue = DEFAULT_QUEUE;
+    long nTimeout = DEFAULT_TIMEOUT;
+    String popularityFile = null;
+    String alertsFile = null;
+    try
+    {
+      for (int i = 0; i < args.length; ++i)
+      {
+        if (args[i].equals("-data") && (i + 1 < args.length))
+        {
+          dataFile = args[++i];
+        }
+        else if (args[i].equals("-port") && (i + 1 < args.length))
+        {
+          nPort = Integer.parseInt(args[++i]);
+        }
+        else if (args[i].equals("-threads") && (i + 1 < args.length))
+        {
+          nThreads = Integer.parseInt(args[++i]);
+        }
+        else if (args[i].equals("-cheap") && (i + 1 < args.length))
+        {
+          nCheap = Integer.parseInt(args[++i]);
+        }
+        else if (args[i].equals("-expensive") && (i + 1 < args.length))
+        {
+          nExpensive = Integer.parseInt(args[++i]);
+        }
+        else if (args[i].equals("-queue") && (i + 1 < args.length))
+        {
+          nQueue = Integer.parseInt(args[++i]);
+        }
+        else if (args[i].equals("-timeout") && (i + 1 < args.length))
+        {
+          nTimeout = Long.parseLong(args[++i]);
+        }
+        else if (args[i].equals("-popularity") && (i + 1 < args.length))
+        {
+          popularityFile = args[++i];
+        }
+        else if (args[i].equals("-alerts") && (i + 1 < args.length))
+        {
+          alertsFile = args[++i];
+        }
+        else
+        {
+          printUsage();
+          return;
+        }
+      }
+    }
+    catch (NumberFormatException nfe)
+    {
+      printUsage();
+      return;
+    }
+
+    // Load the corpus, and index it for author searches, facets,
+    // random picks and collapsing near-duplicates
+    final QuoteSearchEngine engine;
+    try
+    {
+      engine = QuoteSearchEngine.load(dataFile);
+      if (popularityFile != null)
+      {
+        engine.setPopularity(loadPopularity(popularityFile));
+      }
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("Unable to load the data: " + ioe.getMessage());
+      return;
+    }
+
+    engine.updateSuggestions();
+    engine.getSampler();
+    engine.updateSimilarity();
+    final NearDuplicates duplicates = engine.updateDuplicates(NearDuplicates.DEFAULT_THRESHOLD);
+    System.err.println("Found " + duplicates.getDuplicateCount() +
+                       " near-duplicate quotations in " +
+                       duplicates.getClusterCount() + " clusters in " +
+                       duplicates.getBuildMillis() + " ms");
+
+    // Send small responses at once; otherwise Nagle's algorithm
+    // holds each one until the client's delayed ACK, about 40 ms.
+    // This applies to the whole JVM, so it's only set here, when
+    // running as the server, and never overrides the command line
+    if (System.getProperty(NODELAY_PROPERTY) == null)
+    {
+      System.setProperty(NODELAY_PROPERTY, "true");
+    }
+
+    // Start the server; its dispatcher thread keeps the JVM running
+    try
+    {
+      final SearchExecutor searcher = createSearcher(engine, nCheap, nExpensive, nQueue);
+      final QuoteServer quoteServer = new QuoteServer(engine, searcher, nPort,
+                                                      nThreads, nTimeout);
+      if (alertsFile != null)
+      {
+        quoteServer.percolator.load(alertsFile);
+        System.err.println("Loaded " + quoteServer.percolator.size() + " alerts");
+      }
+
+      quoteServer.start();
+      Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+      {
+        public void run()
+        {
+          quoteServer.stop();
+        }
+      }));
+
+      System.err.println("Serving " + engine.getSnapshot().getLiveCount() +
+                         " quotations on port " + nPort + ", using " +
+                         (quoteServer.isUsingVirtualThreads() ? "virtual threads"
+                          : (nThreads + " threads")) + ", with " +
+                         searcher.getThreadCount(SearchExecutor.Cost.CHEAP) +
+                         " cheap and " +
+                         searcher.getThreadCount(SearchExecutor.Cost.EXPENSIVE) +
+                         " expensive searches at once");
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("Unable to start the server: " + ioe.getMessage());
+      engine.shutdown();
+    }
+  }
+
+
+  /**
+   * Start accepting requests.
+   */
+  public void start()
+  {
+    server.start();
+  }
+
+
+  /**
+   * Stop accepting requests, wait a moment for the ones in
+   * progress, and stop the threads.
+   */
+  public void stop()
+  {
+    server.stop(1);
+    executor.shutdown();
+    searcher.shutdown();
+    engine.shutdown();
+  }
+
+
+  /**
+   * Returns whether the requests run on virtual threads.
+   *
+   * @return whether virtual threads are used
+   */
+  public boolean isUsingVirtualThreads()
+  {
+    return virtualThreads;
+  }
+
+
+  /**
+   * Get the port the server is listening on.
+   *
+   * @return the port
+   */
+  public int getPort()
+  {
+    return server.getAddress().getPort();
+  }
+
+
+  /**
+   * Answer a search request.
+   *
+   * @param params the request parameters
+   * @return the JSON answer
+   * @throws TimeoutException if the search passed its deadline
+   * @throws InterruptedException if the request was interrupted
+   */
+  private String search(final Map<String, String> params)
+    throws TimeoutException, InterruptedException
+  {
+    final QueryKey query = getQuery(params, DEFAULT_LIMIT);
+    if ((query.getKeyword() == null) && (query.getAuthor() == null))
+    {
+      throw new IllegalArgumentException("No keyword or author");
+    }
+
+    final SearchResult result = searcher.search(query, params.get("continuation"),
+                                                getTimeout(params));
+    final int nCount = result.size();
+    StringBuilder sb = new StringBuilder(100 + (nCount * 200));
+    sb.append("{\"version\":").append(result.getVersion())
+      .append(",\"matches\":").append(nCount)
+      .append(",\"full\":").append(result.isFull());
+    appendProgress(sb, result);
+    sb.append(",\"results\":[");
+    for (int i = 0; i < nCount; ++i)
+    {
+      if (i > 0)
+      {
+        sb.append(',');
+      }
+
+      BatchQuery.appendQuote(sb, result.getId(i), result.getQuote(i), false);
+    }
+
+    sb.append("]}");
+    return sb.toString();
+  }
+
+
+  /**
+   * Answer a request for one quotation.
+   *
+   * @param params the request parameters
+   * @return the JSON answer, or null if there's no such quotation
+   */
+  private String lookup(final Map<String, String> params)
+  {
+    final int nId = parseId(params);
+    final CorpusSnapshot snapshot = engine.getSnapshot();
+    final QuotationNode quote = snapshot.findById(nId);
+    if (quote == null)
+    {
+      return null;
+    }
+
+    StringBuilder sb = new StringBuilder(400);
+    sb.append("{\"version\":").append(snapshot.getVersion())
+      .append(",\"quote\":");
+    BatchQuery.appendQuote(sb, nId, quote, true);
+    sb.append('}');
+    return sb.toString();
+  }
+
+
+  /**
+   * Answer a request for the quotations most like one.  The index
+   * is built the first time, and again after the corpus changes.
+   *
+   * @param params the request parameters
+   * @return the JSON answer, or null if there's no such quotation
+   */
+  private String findSimilar(final Map<String, String> params)
+  {
+    final int nId = parseId(params);
+    final int nSize = Math.max(0, Math.min(MAX_SIMILAR,
+        BatchQuery.parseLimit(params.get("size"), SimilarityIndex.DEFAULT_COUNT)));
+    SimilarityIndex index = engine.getSimilarity();
+    if ((index == null) ||
+        (index.getVersion() != engine.getSnapshot().getVersion()))
+    {
+      index = engine.updateSimilarity();
+    }
+
+    final CorpusSnapshot snapshot = index.getSnapshot();
+    final QuotationNode quote = snapshot.findById(nId);
+    if (quote == null)
+    {
+      return null;
+    }
+
+    float[] scores = new float[nSize];
+    final int[] positions = index.findSimilar(quote, nId, engine.getDuplicates(),
+                                              nSize, scores);
+    StringBuilder sb = new StringBuilder(100 + (200 * positions.length));
+    sb.append("{\"version\":").append(snapshot.getVersion())
+      .append(",\"id\":").append(nId)
+      .append(",\"results\":[");
+    for (int i = 0; i < positions.length; ++i)
+    {
+      if (i > 0)
+      {
+        sb.append(',');
+      }
+
+      sb.append("{\"score\":").append(scores[i]).append(",\"quote\":");
+      BatchQuery.appendQuote(sb, snapshot.getId(positions[i]),
+                             snapshot.getQuote(positions[i]), false);
+      sb.append('}');
+    }
+
+    sb.append("]}");
+    return sb.toString();
+  }
+
+
+  /**
+   * Get the ID of the quotation a request is for.
+   *
+   * @param params the request parameters
+   * @return the ID
+   * @throws IllegalArgumentException if it's missing or not a number
+   */
+  private static int parseId(final Map<String, String> params)
+  {
+    final String id = params.get("id");
+    if (id == null)
+    {
+      throw new IllegalArgumentException("No id");
+    }
+
+    try
+    {
+      return Integer.parseInt(id.trim());
+    }
+    catch (NumberFormatException nfe)
+    {
+      throw new IllegalArgumentException("Invalid id: " + id);
+    }
+  }
+
+
+  /**
+   * Answer a request for a random quotation.
+   *
+   * @param params the request parameters
+   * @return the JSON answer, or null if there's no such topic or
+   *         author
+   */
+  private String pickRandom(final Map<String, String> params)
+  {
+    final String topic = params.get("topic");
+    final String author = params.get("author");
+    if ((topic != null) && (author != null))
+    {
+      throw new IllegalArgumentException("Pick by topic or by author, not both");
+    }
+
+    // Each request thread uses its own generator, so picks
+    // don't contend on a shared seed
+    final boolean bWeighted = isWeighted(params);
+    final QuoteSampler sampler = engine.getSampler();
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final int nPos;
+    if (topic != null)
+    {
+      nPos = sampler.pickByTopic(topic, random, bWeighted);
+    }
+    else if (author != null)
+    {
+      nPos = sampler.pickByAuthor(author, random, bWeighted);
+    }
+    else
+    {
+      nPos = sampler.pick(random, bWeighted);
+    }
+
+    return pickAnswer(sampler, nPos, bWeighted);
+  }
+
+
+  /**
+   * Answer a request for the quotation of the day.
+   *
+   * @param params the request parameters
+   * @return the JSON answer, or null if the corpus is empty
+   */
+  private String pickForDay(final Map<String, String> params)
+  {
+    final boolean bWeighted = isWeighted(params);
+    final QuoteSampler sampler = engine.getSampler();
+    return pickAnswer(sampler, sampler.pickForDay(parseDate(params.get("date")),
+                                                  bWeighted), bWeighted);
+  }
+
+
+  /**
+   * Build the answer to a random pick.
+   *
+   * @param sampler the sampler that made the pick
+   * @param nPos the position of the quotation, or -1
+   * @param bWeighted whether the pick was asked to be weighted
+   * @return the JSON answer, or null if there's no quotation
+   */
+  private static String pickAnswer(final QuoteSampler sampler,
+                                   final int nPos,
+                                   final boolean bWeighted)
+  {
+    if (nPos < 0)
+    {
+      return null;
+    }
+
+    final CorpusSnapshot snapshot = sampler.getSnapshot();
+    StringBuilder sb = new StringBuilder(400);
+    sb.append("{\"version\":").append(snapshot.getVersion())
+      .append(",\"weighted\":").append(bWeighted && sampler.isWeighted())
+      .append(",\"quote\":");
+    BatchQuery.appendQuote(sb, snapshot.getId(nPos), snapshot.getQuote(nPos), true);
+    sb.append('}');
+    return sb.toString();
+  }
+
+
+  /**
+   * Returns whether a random pick should be weighted by
+   * popularity, which it is unless weighted=false.
+   *
+   * @param params the request parameters
+   * @return whether to weight the pick
+   */
+  private static boolean isWeighted(final Map<String, String> params)
+  {
+    final String weighted = params.get("weighted");
+    return ((weighted == null) || !weighted.trim().equalsIgnoreCase("false"));
+  }
+
+
+  /**
+   * Parse a date of the form yyyy-mm-dd.
+   *
+   * @param date the date, or null for today
+   * @return the date as a number of the form yyyymmdd
+   * @throws IllegalArgumentException if the date isn't valid
+   */
+  private static int parseDate(final String date)
+  {
+    Calendar cal = Calendar.getInstance();
+    if (date != null)
+    {
+      final String[] parts = date.trim().split("-", -1);
+      try
+      {
+        if (parts.length != 3)
+        {
+          throw new IllegalArgumentException("Invalid date: " + date);
+        }
+
+        cal.clear();
+        cal.setLenient(false);
+        cal.set(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) - 1,
+                Integer.parseInt(parts[2]));
+        cal.getTimeInMillis();
+      }
+      catch (IllegalArgumentException iae)
+      {
+        // Includes a part that isn't a number, or a day that
+        // isn't in the month
+        throw new IllegalArgumentException("Invalid date: " + date);
+      }
+    }
+
+    return (cal.get(Calendar.YEAR) * 10000) +
+           ((cal.get(Calendar.MONTH) + 1) * 100) + cal.get(Calendar.DAY_OF_MONTH);
+  }
+
+
+  /**
+   * Answer a facets request.
+   *
+   * @param params the request parameters
+   * @return the JSON answer
+   * @throws TimeoutException if the search passed its deadline
+   * @throws InterruptedException if the request was interrupted
+   */
+  private String facets(final Map<String, String> params)
+    throws TimeoutException, InterruptedException
+  {
+    final int nSize = Math.max(0, BatchQuery.parseLimit(params.get("size"),
+                                                        DEFAULT_FACET_SIZE));
+    final QueryKey query = getQuery(params, -1);
+
+    Map<String, int[]> authorCounts = new HashMap<String, int[]>(256);
+    Map<String, int[]> topicCounts = new HashMap<String, int[]>(256);
+    long version = 0L;
+    int nMatches = 0;
+    boolean bPartial = false;
+    final SuggestionIndex index = engine.getSuggestions();
+    if ((query.getKeyword() == null) && (query.getAuthor() == null) &&
+        (index != null) &&
+        (index.getVersion() == engine.getSnapshot().getVersion()))
+    {
+      // The index already has the counts for the whole corpus
+      version = index.getVersion();
+      nMatches = engine.getSnapshot().getLiveCount();
+      addCounts(index.getAuthors(), authorCounts);
+      addCounts(index.getTopics(), topicCounts);
+    }
+    else
+    {
+      final SearchResult result = searcher.search(query, getTimeout(params));
+      version = result.getVersion();
+      nMatches = result.size();
+      bPartial = result.isPartial();
+      for (int i = 0; i < nMatches; ++i)
+      {
+        final QuotationNode quote = result.getQuote(i);
+        count(quote.getName(), authorCounts, 1);
+        count(quote.getTopic(), topicCounts, 1);
+      }
+    }
+
+    StringBuilder sb = new StringBuilder(200 + (nSize * 80));
+    sb.append("{\"version\":").append(version)
+      .append(",\"matches\":").append(nMatches)
+      .append(",\"partial\":").append(bPartial)
+      .append(",\"authors\":");
+    appendFacet(sb, authorCounts, nSize);
+    sb.append(",\"topics\":");
+    appendFacet(sb, topicCounts, nSize);
+    sb.append('}');
+    return sb.toString();
+  }
+
+
+  /**
+   * Answer a batch of queries, one per line of the request body.
+   * A query that isn't valid gets an error, without failing the
+   * others.  The batch counts as one expensive search.
+   *
+   * @param params the request parameters
+   * @param body the request body
+   * @return the JSON answer
+   * @throws TimeoutException if the search passed its deadline
+   * @throws InterruptedException if the request was interrupted
+   */
+  private String batch(final Map<String, String> params, final String body)
+    throws TimeoutException, InterruptedException
+  {
+    // Compile the queries
+    final String[] lines = body.split("\r?\n");
+    List<SearchRun> runs = new ArrayList<SearchRun>(lines.length);
+    List<Integer> lineNumbers = new ArrayList<Integer>(lines.length);
+    List<String> errors = new ArrayList<String>(lines.length);
+    for (int i = 0; i < lines.length; ++i)
+    {
+      final String line = lines[i];
+      if ((line.trim().length() == 0) || line.startsWith("#"))
+      {
+        continue;
+      }
+
+      if (lineNumbers.size() >= MAX_BATCH_QUERIES)
+      {
+        throw new IllegalArgumentException("More than " + MAX_BATCH_QUERIES +
+                                           " queries");
+      }
+
+      lineNumbers.add(Integer.valueOf(i + 1));
+      try
+      {
+        runs.add(engine.createRun(BatchQuery.parse(line, DEFAULT_LIMIT)));
+        errors.add(null);
+      }
+      catch (IllegalArgumentException iae)
+      {
+        // Such as a bad regular expression
+        runs.add(null);
+        errors.add(iae.getMessage());
+      }
+    }
+
+    // Search for the valid ones together
+    final CorpusSnapshot snapshot = engine.getSnapshot();
+    List<SearchRun> valid = new ArrayList<SearchRun>(runs.size());
+    for (SearchRun run : runs)
+    {
+      if (run != null)
+      {
+        valid.add(run);
+      }
+    }
+
+    searcher.execute(SearchExecutor.Cost.EXPENSIVE,
+                     valid.toArray(new SearchRun[valid.size()]), snapshot,
+                     getTimeout(params));
+
+    StringBuilder sb = new StringBuilder(100 + (runs.size() * 1000));
+    sb.append("{\"version\":").append(snapshot.getVersion())
+      .append(",\"answers\":[");
+    for (int q = 0; q < runs.size(); ++q)
+    {
+      if (q > 0)
+      {
+        sb.append(',');
+      }
+
+      sb.append("{\"query\":").append(q + 1)
+        .append(",\"line\":").append(lineNumbers.get(q));
+      if (runs.get(q) == null)
+      {
+        sb.append(",\"error\":");
+        BatchQuery.appendJson(sb, errors.get(q));
+        sb.append('}');
+        continue;
+      }
+
+      final SearchResult result = new SearchResult(runs.get(q), snapshot);
+      final int nCount = result.size();
+      sb.append(",\"matches\":").append(nCount)
+        .append(",\"full\":").append(result.isFull());
+      appendProgress(sb, result);
+      sb.append(",\"results\":[");
+      for (int i = 0; i < nCount; ++i)
+      {
+        if (i > 0)
+        {
+          sb.append(',');
+        }
+
+        BatchQuery.appendQuote(sb, result.getId(i), result.getQuote(i), false);
+      }
+
+      sb.append("]}");
+    }
+
+    sb.append("]}");
+    return sb.toString();
+  }
+
+
+  /**
+   * Answer a request to add or remove stored queries.
+   *
+   * @param params the request parameters
+   * @param body the queries to add, one per line
+   * @return the JSON answer
+   */
+  private String updateAlerts(final Map<String, String> params, final String body)
+  {
+    // Remove the ones listed
+    StringBuilder sb = new StringBuilder(200);
+    sb.append("{\"removed\":[");
+    final String remove = params.get("remove");
+    if (remove != null)
+    {
+      boolean bFirst = true;
+      for (String number : remove.split(","))
+      {
+        final int nAlert;
+        try
+        {
+          nAlert = Integer.parseInt(number.trim());
+        }
+        catch (NumberFormatException nfe)
+        {
+          throw new IllegalArgumentException("Invalid alert: " + number);
+        }
+
+        if (percolator.remove(nAlert))
+        {
+          sb.append(bFirst ? "" : ",").append(nAlert);
+          bFirst = false;
+        }
+      }
+    }
+
+    // Add the others
+    sb.append("],\"added\":[");
+    final String[] lines = body.split("\r?\n");
+    int nAdded = 0;
+    for (int i = 0; i < lines.length; ++i)
+    {
+      final String line = lines[i];
+      if ((line.trim().length() == 0) || line.startsWith("#"))
+      {
+        continue;
+      }
+
+      if (nAdded >= MAX_BATCH_QUERIES)
+      {
+        throw new IllegalArgumentException("More than " + MAX_BATCH_QUERIES +
+                                           " queries");
+      }
+
+      sb.append((nAdded++ > 0) ? "," : "")
+        .append("{\"line\":").append(i + 1);
+      try
+      {
+        sb.append(",\"alert\":").append(percolator.add(BatchQuery.parse(line, -1)))
+          .append('}');
+      }
+      catch (IllegalArgumentException iae)
+      {
+        // Such as a bad regular expression
+        sb.append(",\"error\":");
+        BatchQuery.appendJson(sb, iae.getMessage());
+        sb.append('}');
+      }
+    }
+
+    sb.append("],\"alerts\":").append(percolator.size()).append('}');
+    return sb.toString();
+  }
+
+
+  /**
+   * Answer a request for the stored queries new quotations match.
+   *
+   * @param body the quotations, one per line, with the first
+   *             name, last name, topic and quotation separated by
+   *             tabs
+   * @return the JSON answer
+   */
+  private String percolate(final String body)
+  {
+    final String[] lines = body.split("\r?\n");
+    StringBuilder sb = new StringBuilder(100 + (lines.length * 50));
+    sb.append("{\"alerts\":").append(percolator.size())
+      .append(",\"answers\":[");
+    int nQuotes = 0;
+    for (int i = 0; i < lines.length; ++i)
+    {
+      final String line = lines[i];
+      if (line.trim().length() == 0)
+      {
+        continue;
+      }
+
+      if (nQuotes >= MAX_BATCH_QUERIES)
+      {
+        throw new IllegalArgumentException("More than " + MAX_BATCH_QUERIES +
+                                           " quotations");
+      }
+
+      final String[] fields = line.split("\t", -1);
+      if (fields.length != 4)
+      {
+        throw new IllegalArgumentException("Line " + (i + 1) +
+                                           " doesn't have four fields");
+      }
+
+      QuotationNode quote = new QuotationNode();
+      quote.setFirstName(fields[0].trim());
+      quote.setLastName(fields[1].trim());
+      quote.setTopic(fields[2].trim());
+      quote.setQuotation(fields[3].trim());
+      sb.append((nQuotes++ > 0) ? "," : "")
+        .append("{\"line\":").append(i + 1).append(",\"matches\":[");
+      final int[] alerts = percolator.match(quote);
+      for (int a = 0; a < alerts.length; ++a)
+      {
+        sb.append((a > 0) ? "," : "").append(alerts[a]);
+      }
+
+      sb.append("]}");
+    }
+
+    sb.append("]}");
+    return sb.toString();
+  }
+
+
+  /**
+   * Append how much of the corpus a search scanned, and where to
+   * carry on from if it stopped at its deadline.
+   *
+   * @param sb the buffer
+   * @param result the result of the search
+   */
+  private static void appendProgress(final StringBuilder sb,
+                                     final SearchResult result)
+  {
+    sb.append(",\"partial\":").append(result.isPartial())
+      .append(",\"scanned\":").append(result.getScannedUpTo())
+      .append(",\"corpusSize\":").append(result.getCorpusSize());
+    final String continuation = result.getContinuation();
+    if (continuation != null)
+    {
+      sb.append(",\"continuation\":");
+      BatchQuery.appendJson(sb, continuation);
+    }
+  }
+
+
+  /**
+   * Answer a request for the search metrics.
+   *
+   * @return the JSON answer
+   */
+  private String metrics()
+  {
+    StringBuilder sb = new StringBuilder(400);
+    sb.append("{\"timeout\":").append(timeout)
+      .append(",\"queueCapacity\":").append(searcher.getQueueCapacity());
+    for (SearchExecutor.Cost cost : SearchExecutor.Cost.values())
+    {
+      sb.append(",\"").append(cost.name().toLowerCase()).append("\":{")
+        .append("\"threads\":").append(searcher.getThreadCount(cost))
+        .append(",\"active\":").append(searcher.getActiveCount(cost))
+        .append(",\"queued\":").append(searcher.getQueueDepth(cost))
+        .append(",\"completed\":").append(searcher.getCompletedCount(cost))
+        .append(",\"partial\":").append(searcher.getPartialCount(cost))
+        .append(",\"rejected\":").append(searcher.getRejectedCount(cost))
+        .append(",\"timedOut\":").append(searcher.getTimedOutCount(cost))
+        .append('}');
+    }
+
+    sb.append('}');
+    return sb.toString();
+  }
+
+
+  /**
+   * Get the time a search may take, from the request parameters,
+   * up to the server's limit.
+   *
+   * @param params the request parameters
+   * @return the timeout, in milliseconds
+   */
+  private long getTimeout(final Map<String, String> params)
+  {
+    final String value = params.get("timeout");
+    if (value == null)
+    {
+      return timeout;
+    }
+
+    try
+    {
+      return Math.min(timeout, Math.max(1L, Long.parseLong(value.trim())));
+    }
+    catch (NumberFormatException nfe)
+    {
+      throw new IllegalArgumentException("Invalid timeout: " + value);
+    }
+  }
+
+
+  /**
+   * Create the executor for the searches.
+   *
+   * @param engine the search engine
+   * @param nCheap the number of cheap searches at once, or 0 for
+   *               one per processor
+   * @param nExpensive the number of expensive searches at once, or
+   *                   0 for one per two processors
+   * @param nQueue the number of searches of each class that may wait
+   * @return the executor
+   */
+  private static SearchExecutor createSearcher(final QuoteSearchEngine engine,
+                                               final int nCheap,
+                                               final int nExpensive,
+                                               final int nQueue)
+  {
+    final int nProcessors = Runtime.getRuntime().availableProcessors();
+    return new SearchExecutor(engine,
+                              ((nCheap > 0) ? nCheap : nProcessors),
+                              ((nExpensive > 0) ? nExpensive
+                                                : Math.max(1, nProcessors / 2)),
+                              nQueue);
+  }
+
+
+  /**
+   * Build the query from the request parameters.
+   *
+   * @param params the request parameters
+   * @param nDefaultLimit the limit if the request has none
+   * @return the query
+   */
+  private static QueryKey getQuery(final Map<String, String> params,
+                                   final int nDefaultLimit)
+  {
+    final String matchCase = params.get("case");
+    final String collapse = params.get("collapse");
+    return new QueryKey(BatchQuery.parseMode(params.get("mode")),
+                        params.get("q"), params.get("author"),
+                        ((matchCase != null) && matchCase.equalsIgnoreCase("true")),
+                        BatchQuery.parseLimit(params.get("limit"), nDefaultLimit),
+                        ((collapse != null) && collapse.equalsIgnoreCase("true")));
+  }
+
+
+  /**
+   * Add the counts of every term in a trie.
+   *
+   * @param trie the trie
+   * @param counts the counts to add to
+   */
+  private static void addCounts(final CompletionTrie trie,
+                                final Map<String, int[]> counts)
+  {
+    final int nTerms = trie.size();
+    for (int t = 0; t < nTerms; ++t)
+    {
+      count(trie.getTerm(t), counts, trie.getCount(t));
+    }
+  }
+
+
+  /**
+   * Add to the count of a value.
+   *
+   * @param value the value (skipped if null or empty)
+   * @param counts the counts
+   * @param nCount the amount to add
+   */
+  private static void count(final String value,
+                            final Map<String, int[]> counts,
+                            final int nCount)
+  {
+    if ((value == null) || (value.trim().length() == 0))
+    {
+      return;
+    }
+
+    int[] count = counts.get(value);
+    if (count == null)
+    {
+      count = new int[1];
+      counts.put(value, count);
+    }
+
+    count[0] += nCount;
+  }
+
+
+  /**
+   * Append the most common values of a facet, most common first.
+   *
+   * @param sb the buffer
+   * @param counts the count of each value
+   * @param nSize the number of values to include
+   */
+  private static void appendFacet(final StringBuilder sb,
+                                  final Map<String, int[]> counts,
+                                  final int nSize)
+  {
+    List<Map.Entry<String, int[]>> entries =
+      new ArrayList<Map.Entry<String, int[]>>(counts.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, int[]>>()
+    {
+      public int compare(final Map.Entry<String, int[]> e1,
+                         final Map.Entry<String, int[]> e2)
+      {
+        final int c1 = e1.getValue()[0];
+        final int c2 = e2.getValue()[0];
+        if (c1 != c2)
+        {
+          return ((c1 > c2) ? -1 : 1);
+        }
+
+        return e1.getKey().compareTo(e2.getKey());
+      }
+    });
+
+    sb.append('[');
+    final int nCount = Math.min(nSize, entries.size());
+    for (int i = 0; i < nCount; ++i)
+    {
+      if (i > 0)
+      {
+        sb.append(',');
+      }
+
+      sb.append("{\"value\":");
+      BatchQuery.appendJson(sb, entries.get(i).getKey());
+      sb.append(",\"count\":").append(entries.get(i).getValue()[0]).append('}');
+    }
+
+    sb.append(']');
+  }
+
+
+  /**
+   * Parse a query string.
+   *
+   * @param query the raw query string (may be null)
+   * @return the parameters; empty values are left out
+   * @throws UnsupportedEncodingException never, since UTF-8 is built in
+   */
+  private static Map<String, String> parseParams(final String query)
+    throws UnsupportedEncodingException
+  {
+    Map<String, String> params = new HashMap<String, String>(8);
+    if (query == null)
+    {
+      return params;
+    }
+
+    final String[] pairs = query.split("&");
+    for (String pair : pairs)
+    {
+      final int eq = pair.indexOf('=');
+      final String name = URLDecoder.decode((eq < 0) ? pair : pair.substring(0, eq),
+                                            "UTF-8");
+      final String value = ((eq < 0) ? "" :
+                            URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+      if (value.trim().length() > 0)
+      {
+        params.put(name, value);
+      }
+    }
+
+    return params;
+  }
+
+
+  /**
+   * Create an executor that runs each task on a new virtual
+   * thread.  This is looked up by reflection, so the server still
+   * runs on older JVMs.
+   *
+   * @return the executor, or null if there are no virtual threads
+   */
+  private static ExecutorService createVirtualExecutor()
+  {
+    try
+    {
+      final Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    }
+    catch (Exception e)
+    {
+      // Older JVM (or virtual threads are disabled)
+      return null;
+    }
+  }
+
+
+  /**
+   * Create a fixed pool of threads.
+   *
+   * @param nThreads the number of threads
+   * @return the pool
+   */
+  private static ExecutorService createPool(final int nThreads)
+  {
+    return Executors.newFixedThreadPool(Math.max(1, nThreads), new ThreadFactory()
+    {
+      public Thread newThread(final Runnable r)
+      {
+        Thread t = new Thread(r, "quotes-http");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+
+  /**
+   * Print how to run the server.
+   */
+  private static void printUsage()
+  {
+    System.err.println("Usage: quotes -server [-data file] [-port n] [-threads n] " +
+                       "[-cheap n] [-expensive n] [-queue n] [-timeout ms] " +
+                       "[-popularity file] [-alerts file]");
+  }
+
+
+  /**
+   * Load the popularity scores of the quotations.
+   *
+   * @param fileName the name of the file of scores
+   * @return the scores
+   * @throws IOException if the file can't be read or a line isn't
+   *         an ID and a score
+   */
+  private static QuoteSampler.Popularity loadPopularity(final String fileName)
+    throws IOException
+  {
+    final Map<Integer, Double> scores = new HashMap<Integer, Double>(1024);
+    BufferedReader in = null;
+    try
+    {
+      in = new BufferedReader(new InputStreamReader(new FileInputStream(fileName),
+                                                    "UTF-8"));
+      String line = null;
+      int nLine = 0;
+      while ((line = in.readLine()) != null)
+      {
+        ++nLine;
+        line = line.trim();
+        if ((line.length() == 0) || line.startsWith("#"))
+        {
+          continue;
+        }
+
+        final String[] fields = line.split("[\\s,]+");
+        try
+        {
+          if (fields.length != 2)
+          {
+            throw new NumberFormatException();
+          }
+
+          scores.put(Integer.valueOf(fields[0]), Double.valueOf(fields[1]));
+        }
+        catch (NumberFormatException nfe)
+        {
+          throw new IOException("Invalid score on line " + nLine + " of " + fileName);
+        }
+      }
+    }
+    finally
+    {
+      if (in != null)
+      {
+        try
+        {
+          in.close();
+        }
+        catch (IOException ioe)
+        {
+          System.err.println("IOException: " + ioe.getMessage());
+        }
+      }
+    }
+
+    return new QuoteSampler.Popularity()
+    {
+      public double getScore(final int nId, final QuotationNode quote)
+      {
+        final Double score = scores.get(Integer.valueOf(nId));
+        return ((score == null) ? 1.0 : score.doubleValue());
+      }
+    };
+  }
+
+
+  /**
+   * Read the body of a request as UTF-8.
+   *
+   * @param exchange the request
+   * @return the body
+   * @throws IOException if the body can't be read
+   * @throws IllegalArgumentException if the body is too large
+   */
+  private static String readBody(final HttpExchange exchange)
+    throws IOException
+  {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+    final InputStream is = exchange.getRequestBody();
+    try
+    {
+      byte[] buffer = new byte[8192];
+      int nRead = 0;
+      while ((nRead = is.read(buffer)) > 0)
+      {
+        if (baos.size() + nRead > MAX_BODY_BYTES)
+        {
+          throw new IllegalArgumentException("The request is too large");
+        }
+
+        baos.write(buffer, 0, nRead);
+      }
+    }
+    finally
+    {
+      is.close();
+    }
+
+    return baos.toString("UTF-8");
+  }
+
+
+  /**
+   * Answers requests with JSON, turning a bad request into
+   * a 400 response, a missing quotation into a 404, and a search
+   * that was rejected or took too long into a 503.
+   */
+  private abstract static class JsonHandler implements HttpHandler
+  {
+    /**
+     * The HTTP method this answers.
+     */
+    private final String method;
+
+
+    /**
+     * Create a handler of GET requests.
+     */
+    JsonHandler()
+    {
+      this("GET");
+    }
+
+
+    /**
+     * Create a handler.
+     *
+     * @param pMethod the HTTP method to answer
+     */
+    JsonHandler(final String pMethod)
+    {
+      super();
+      method = pMethod;
+    }
+
+
+    /**
+     * Answer a request.
+     *
+     * @param params the request parameters
+     * @param body the request body, or null for a GET
+     * @return the JSON answer, or null if there's nothing to return
+     * @throws IllegalArgumentException if the request isn't valid
+     * @throws TimeoutException if the search passed its deadline
+     * @throws InterruptedException if the request was interrupted
+     */
+    abstract String answer(Map<String, String> params, String body)
+      throws TimeoutException, InterruptedException;
+
+
+    /**
+     * Handle a request.
+     *
+     * @param exchange the request and response
+     * @throws IOException if the response can't be sent
+     */
+    public void handle(final HttpExchange exchange) throws IOException
+    {
+      int nStatus = 200;
+      String body = null;
+      try
+      {
+        if (!exchange.getRequestMethod().equals(method))
+        {
+          nStatus = 405;
+          body = error("Only " + method + " is supported");
+        }
+        else
+        {
+          final String request = (method.equals("GET") ? null
+                                  : readBody(exchange));
+          body = answer(parseParams(exchange.getRequestURI().getRawQuery()),
+                        request);
+          if (body == null)
+          {
+            nStatus = 404;
+            body = error("Not found");
+          }
+        }
+      }
+      catch (IllegalArgumentException iae)
+      {
+        // Such as a bad regular expression or an unknown mode
+        nStatus = 400;
+        body = error(iae.getMessage());
+      }
+      catch (RejectedExecutionException ree)
+      {
+        // Too many searches are waiting; try again shortly
+        nStatus = 503;
+        body = error(ree.getMessage());
+        exchange.getResponseHeaders().set("Retry-After", "1");
+      }
+      catch (TimeoutException te)
+      {
+        nStatus = 503;
+        body = error(te.getMessage());
+      }
+      catch (InterruptedException ie)
+      {
+        Thread.currentThread().interrupt();
+        nStatus = 503;
+        body = error("Interrupted");
+      }
+      catch (RuntimeException re)
+      {
+        System.err.println("Error answering " + exchange.getRequestURI() +
+                           ": " + re);
+        nStatus = 500;
+        body = error("Internal error");
+      }
+
+      // Send the response
+      final byte[] bytes = body.getBytes("UTF-8");
+      OutputStream os = null;
+      try
+      {
+        exchange.getResponseHeaders().set("Content-Type",
+                                          "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(nStatus, bytes.length);
+        os = exchange.getResponseBody();
+        os.write(bytes);
+      }
+      finally
+      {
+        if (os != null)
+        {
+          os.close();
+        }
+
+        exchange.close();
+      }
+    }
+
+
+    /**
+     * Build an error answer.
+     *
+     * @param message the message
+     * @return the JSON answer
+     */
+    private static String error(final String message)
+    {
+      StringBuilder sb = new StringBuilder(100);
+      sb.append("{\"error\":");
+      BatchQuery.appendJson(sb, message);
+      sb.append('}');
+      return sb.toString();
+    }
+  }
+}
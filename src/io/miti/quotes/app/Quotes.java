@@ -16,12 +16,18 @@ import java.awt.event.KeyEvent;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.PatternSyntaxException;
 
 import javax.swing.BorderFactory;
 import javax.swing.ButtonGroup;
@@ -29,27 +35,41 @@ import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComponent;
 import javax.swing.JEditorPane;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTabbedPane;
 import javax.swing.JTable;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingConstants;
+import javax.swing.Timer;
+import javax.swing.UIManager;
 import javax.swing.border.TitledBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.HyperlinkEvent;
+import javax.swing.event.HyperlinkListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
-import io.miti.quotes.app.filter.ContainsAllFilter;
-import io.miti.quotes.app.filter.RegexFilter;
-import io.miti.quotes.app.filter.SoundFilter;
-import io.miti.quotes.app.filter.TermFilter;
-import io.miti.quotes.app.filter.WildcardFilter;
+import io.miti.quotes.app.corpus.ColdFieldStore;
+import io.miti.quotes.app.corpus.CorpusLoader;
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.corpus.CorpusStore;
+import io.miti.quotes.app.corpus.SegmentedCorpus;
+import io.miti.quotes.app.search.NearDuplicates;
+import io.miti.quotes.app.search.QueryKey;
+import io.miti.quotes.app.search.SearchMode;
+import io.miti.quotes.app.search.SimilarityIndex;
+import io.miti.quotes.app.search.SuggestionIndex;
 import io.miti.quotes.gui.component.Factory;
 import io.miti.quotes.gui.panel.SimpleInternalFrame;
 
@@ -68,7 +88,7 @@ public final class Quotes implements ComponentListener, ItemListener
   /**
    * This is the root name of the input file.
    */
-  private static final String INPUT_FILE = "quotes.ser";
+  private static final String INPUT_FILE = QuoteSearchEngine.DATA_FILE;
   
   /**
    * This is the name of the input file as accessed by the program.
@@ -122,6 +142,16 @@ public final class Quotes implements ComponentListener, ItemListener
    */
   private JCheckBox cbCase = null;
   
+  /**
+   * Checkbox to search as the user types.
+   */
+  private JCheckBox cbLive = null;
+  
+  /**
+   * Checkbox to hide near-duplicates of a match.
+   */
+  private JCheckBox cbCollapse = null;
+  
   /**
    * Text field that has the maximum number of matches
    * to return (enabled if cbLimit is checked).
@@ -146,6 +176,31 @@ public final class Quotes implements ComponentListener, ItemListener
    */
   private static final int nInitialLimitValue = 50;
   
+  /**
+   * This is the initial value for whether to search
+   * as the user types.
+   */
+  private static final boolean bInitialLiveValue = true;
+  
+  /**
+   * This is the initial value for whether to hide
+   * near-duplicates of a match.
+   */
+  private static final boolean bInitialCollapseValue = false;
+  
+  /**
+   * How long to wait after the last keystroke before starting
+   * a live search, in milliseconds.  This can be set with the
+   * quotes.debounce system property.
+   */
+  private static final int nLiveDelay =
+    Math.max(0, Integer.getInteger("quotes.debounce", 150).intValue());
+  
+  /**
+   * The most completions to show under a search field.
+   */
+  private static final int MAX_COMPLETIONS = 8;
+  
   /**
    * The results table model.
    */
@@ -161,6 +216,26 @@ public final class Quotes implements ComponentListener, ItemListener
    */
   private JButton btnSearchAuthor = null;
   
+  /**
+   * The button used to show the next page of matches.
+   */
+  private JButton btnNextPage = null;
+  
+  /**
+   * The button used to reload the data file.
+   */
+  private JButton btnReload = null;
+  
+  /**
+   * The button used to export quotations to a file.
+   */
+  private JButton btnExport = null;
+  
+  /**
+   * The button used to show quotations like the selected one.
+   */
+  private JButton btnSimilar = null;
+  
   /**
    * The results table.
    */
@@ -179,13 +254,90 @@ public final class Quotes implements ComponentListener, ItemListener
   /**
    * The data to search.
    */
-  private List<QuotationNode> listData = null;
+  private SegmentedCorpus corpus = null;
+  
+  /**
+   * The search engine for the corpus.
+   */
+  private QuoteSearchEngine engine = null;
+  
+  /**
+   * The durable store for edits to the corpus.  This is null if
+   * the store could not be opened, in which case editing is disabled.
+   */
+  private CorpusStore store = null;
   
   /**
    * The search results.
    */
   private List<QuotationNode> listResults = null;
   
+  /**
+   * The IDs of the search results.
+   */
+  private List<Integer> listResultIds = null;
+  
+  /**
+   * The search whose results are shown, or null.
+   */
+  private SearchRun activeRun = null;
+  
+  /**
+   * The live search running in the background, or null.
+   */
+  private SearchRun liveRun = null;
+  
+  /**
+   * The timer that starts a live search once the user stops typing.
+   */
+  private Timer liveTimer = null;
+  
+  /**
+   * The thread that runs the live searches, one at a time.  A
+   * search that's been replaced is cancelled, so it ends quickly.
+   */
+  private final ExecutorService liveSearcher =
+    Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      public Thread newThread(final Runnable r)
+      {
+        Thread t = new Thread(r, "quotes-live-search");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  
+  /**
+   * Whether the pending live search includes the author.
+   */
+  private boolean bLiveByAuthor = false;
+  
+  /**
+   * Whether the suggestion index is being built.
+   */
+  private boolean bIndexing = false;
+  
+  /**
+   * Whether an edit is being saved.
+   */
+  private boolean bSaving = false;
+  
+  /**
+   * The corrected keyword offered after a search with no
+   * results, or null.
+   */
+  private String suggestedKeyword = null;
+  
+  /**
+   * Whether the corpus is still being loaded.
+   */
+  private boolean bLoading = false;
+  
+  /**
+   * The progress bar shown while loading the corpus.
+   */
+  private JProgressBar progressLoad = null;
+  
   
   /**
    * Default constructor.
@@ -203,7 +355,14 @@ public final class Quotes implements ComponentListener, ItemListener
   {
     // Create and set up the window
     m_appFrame = new JFrame("Quotes");
-    m_appFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+    m_appFrame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+    m_appFrame.addWindowListener(new java.awt.event.WindowAdapter()
+    {
+      public void windowClosing(final java.awt.event.WindowEvent evt)
+      {
+        exitApplication(null);
+      }
+    });
     m_appFrame.addComponentListener(this);
     
     // Set the window size and center it
@@ -261,18 +420,9 @@ public final class Quotes implements ComponentListener, ItemListener
       bOpenDataFromJar = false;
     }
     
-    // Get the current cursor
-    java.awt.Cursor currCursor = m_appFrame.getCursor();
-    
-    // Set the Wait cursor
-    m_appFrame.setCursor(java.awt.Cursor.getPredefinedCursor(
-        java.awt.Cursor.WAIT_CURSOR));
-    
-    // Read the input file
-    getInputData();
-    
-    // Restore the cursor
-    m_appFrame.setCursor(currCursor);
+    // Start reading the input file in the background.  The corpus
+    // can be searched while it fills up.
+    startLoading();
   }
   
   
@@ -307,6 +457,13 @@ public final class Quotes implements ComponentListener, ItemListener
     
     // Add the main panel to the content pane
     m_appFrame.getContentPane().add(sp, BorderLayout.CENTER);
+    
+    // Add the progress bar shown while loading the data
+    progressLoad = new JProgressBar(0, 1000);
+    progressLoad.setStringPainted(true);
+    progressLoad.setString("Loading quotations...");
+    progressLoad.setVisible(false);
+    m_appFrame.getContentPane().add(progressLoad, BorderLayout.SOUTH);
   }
   
   
@@ -359,7 +516,28 @@ public final class Quotes implements ComponentListener, ItemListener
     c.gridy = 1;
     c.gridwidth = 1;
     
+    // Start a live search once the user stops typing
+    liveTimer = new Timer(nLiveDelay, new java.awt.event.ActionListener()
+    {
+      public void actionPerformed(final java.awt.event.ActionEvent evt)
+      {
+        startLiveSearch();
+      }
+    });
+    liveTimer.setRepeats(false);
+    
     tfTitle = new JTextField(12);
+    tfTitle.getDocument().addDocumentListener(new LiveSearchListener(false));
+    new CompletionPopup(tfTitle, new CompletionPopup.Source()
+    {
+      public List<String> getCompletions(final String text)
+      {
+        // Complete the topics
+        final SuggestionIndex index = getSuggestions();
+        return ((index == null) ? null :
+                index.getTopics().complete(text, MAX_COMPLETIONS));
+      }
+    });
     panel.add(tfTitle, c);
     
     c.insets = new Insets(2, 3, 3, 3);
@@ -402,6 +580,17 @@ public final class Quotes implements ComponentListener, ItemListener
     c.gridwidth = 1;
     
     tfAuthor = new JTextField(12);
+    tfAuthor.getDocument().addDocumentListener(new LiveSearchListener(true));
+    new CompletionPopup(tfAuthor, new CompletionPopup.Source()
+    {
+      public List<String> getCompletions(final String text)
+      {
+        // Complete the author names
+        final SuggestionIndex index = getSuggestions();
+        return ((index == null) ? null :
+                index.getAuthors().complete(text, MAX_COMPLETIONS));
+      }
+    });
     panel.add(tfAuthor, c);
     
     c.insets = new Insets(2, 3, 3, 3);
@@ -421,10 +610,30 @@ public final class Quotes implements ComponentListener, ItemListener
     });
     panel.add(btnSearchAuthor, c);
     
+    // Add the Next Page button
+    c.insets = new Insets(12, 3, 3, 3);
+    c.gridx = 0;
+    c.gridy = 5;
+    c.gridwidth = 2;
+    
+    btnNextPage = new JButton("Next Page");
+    btnNextPage.setMnemonic(KeyEvent.VK_N);
+    btnNextPage.setToolTipText(
+        "Show the next matches, after the maximum number were found");
+    btnNextPage.setEnabled(false);
+    btnNextPage.addActionListener(new java.awt.event.ActionListener()
+    {
+      public void actionPerformed(final java.awt.event.ActionEvent evt)
+      {
+        showNextPage(evt);
+      }
+    });
+    panel.add(btnNextPage, c);
+    
     // Add the About button
     c.insets = new Insets(29, 3, 3, 3);
     c.gridx = 0;
-    c.gridy = 5;
+    c.gridy = 6;
     c.gridwidth = 2;
     
     JButton btnAbout = new JButton("About");
@@ -439,10 +648,47 @@ public final class Quotes implements ComponentListener, ItemListener
     });
     panel.add(btnAbout, c);
     
+    // Add the Reload button
+    c.insets = new Insets(12, 3, 3, 3);
+    c.gridx = 0;
+    c.gridy = 7;
+    c.gridwidth = 2;
+    
+    btnReload = new JButton("Reload");
+    btnReload.setMnemonic(KeyEvent.VK_L);
+    btnReload.setToolTipText("Load a different data file, without restarting");
+    btnReload.addActionListener(new java.awt.event.ActionListener()
+    {
+      public void actionPerformed(final java.awt.event.ActionEvent evt)
+      {
+        reloadData(evt);
+      }
+    });
+    panel.add(btnReload, c);
+    
+    // Add the Export button
+    c.insets = new Insets(12, 3, 3, 3);
+    c.gridx = 0;
+    c.gridy = 8;
+    c.gridwidth = 2;
+    
+    btnExport = new JButton("Export");
+    btnExport.setMnemonic(KeyEvent.VK_X);
+    btnExport.setToolTipText(
+        "Save the results or all the quotations as JSON Lines, CSV or XML");
+    btnExport.addActionListener(new java.awt.event.ActionListener()
+    {
+      public void actionPerformed(final java.awt.event.ActionEvent evt)
+      {
+        exportData(evt);
+      }
+    });
+    panel.add(btnExport, c);
+    
     // Add the Quit button
     c.insets = new Insets(12, 3, 3, 3);
     c.gridx = 0;
-    c.gridy = 6;
+    c.gridy = 9;
     c.gridwidth = 2;
     c.anchor = GridBagConstraints.NORTH;
     c.weighty = 1.0;
@@ -544,6 +790,37 @@ public final class Quotes implements ComponentListener, ItemListener
     panelMaxValue.add(tfMaxValue);
     panel.add(panelMaxValue, c);
     
+    c.insets = new Insets(3, 20, 0, 3);
+    c.gridx = 0;
+    c.gridy = 3;
+    c.gridwidth = 1;
+    c.anchor = GridBagConstraints.WEST;
+    
+    // Add a checkbox to search as the user types
+    cbLive = new JCheckBox("Search as you type?");
+    cbLive.setBackground(Color.WHITE);
+    cbLive.setMnemonic(KeyEvent.VK_T);
+    cbLive.setToolTipText("Whether to search while typing, without pressing Go");
+    cbLive.setSelected(bInitialLiveValue);
+    panel.add(cbLive, c);
+    cbLive.addItemListener(this);
+    
+    c.insets = new Insets(3, 20, 0, 3);
+    c.gridx = 0;
+    c.gridy = 4;
+    c.gridwidth = 1;
+    c.anchor = GridBagConstraints.WEST;
+    
+    // Add a checkbox to hide copies of the same quotation
+    cbCollapse = new JCheckBox("Hide Near-Duplicates?");
+    cbCollapse.setBackground(Color.WHITE);
+    cbCollapse.setMnemonic(KeyEvent.VK_H);
+    cbCollapse.setToolTipText("<html>Whether to show only the first of the " +
+            "quotations that differ<br>only in punctuation, wording or author");
+    cbCollapse.setSelected(bInitialCollapseValue);
+    panel.add(cbCollapse, c);
+    cbCollapse.addItemListener(this);
+    
     // Add the Search Options group box
     JPanel subPanel = new JPanel(new GridLayout(0, 1));
     subPanel.setBackground(Color.WHITE);
@@ -590,7 +867,7 @@ public final class Quotes implements ComponentListener, ItemListener
     
     c.insets = new Insets(11, 25, 11, 3);
     c.gridx = 0;
-    c.gridy = 3;
+    c.gridy = 5;
     c.gridwidth = 1;
     c.anchor = GridBagConstraints.NORTHWEST;
     c.weighty = 1.0;
@@ -618,6 +895,17 @@ public final class Quotes implements ComponentListener, ItemListener
     paneDetails.setContentType("text/html");
     paneDetails.setOpaque(false);
     paneDetails.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+    paneDetails.addHyperlinkListener(new HyperlinkListener()
+    {
+      public void hyperlinkUpdate(final HyperlinkEvent e)
+      {
+        // The only link is the spelling suggestion
+        if (e.getEventType() == HyperlinkEvent.EventType.ACTIVATED)
+        {
+          useSuggestion();
+        }
+      }
+    });
     
     panelDetails.setBackground(Color.WHITE);
     
@@ -625,9 +913,65 @@ public final class Quotes implements ComponentListener, ItemListener
     JScrollPane scrollPane = new JScrollPane(paneDetails);
     panelDetails.add(scrollPane);
     
+    // Add the buttons for editing the quotations
+    JPanel panelEdit = new JPanel(new GridLayout(1, 4, 6, 0));
+    panelEdit.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+    
+    JButton btnNew = new JButton("New");
+    btnNew.setMnemonic(KeyEvent.VK_N);
+    btnNew.setToolTipText("Add a new quotation");
+    btnNew.addActionListener(new java.awt.event.ActionListener()
+    {
+      public void actionPerformed(final java.awt.event.ActionEvent evt)
+      {
+        addQuote(evt);
+      }
+    });
+    panelEdit.add(btnNew);
+    
+    JButton btnEdit = new JButton("Edit");
+    btnEdit.setMnemonic(KeyEvent.VK_D);
+    btnEdit.setToolTipText("Edit the selected quotation");
+    btnEdit.addActionListener(new java.awt.event.ActionListener()
+    {
+      public void actionPerformed(final java.awt.event.ActionEvent evt)
+      {
+        editQuote(evt);
+      }
+    });
+    panelEdit.add(btnEdit);
+    
+    JButton btnDelete = new JButton("Delete");
+    btnDelete.setMnemonic(KeyEvent.VK_T);
+    btnDelete.setToolTipText("Delete the selected quotation");
+    btnDelete.addActionListener(new java.awt.event.ActionListener()
+    {
+      public void actionPerformed(final java.awt.event.ActionEvent evt)
+      {
+        deleteQuote(evt);
+      }
+    });
+    panelEdit.add(btnDelete);
+    
+    btnSimilar = new JButton("Similar");
+    btnSimilar.setMnemonic(KeyEvent.VK_I);
+    btnSimilar.setToolTipText("Show the quotations most like the selected one");
+    btnSimilar.addActionListener(new java.awt.event.ActionListener()
+    {
+      public void actionPerformed(final java.awt.event.ActionEvent evt)
+      {
+        showSimilar(evt);
+      }
+    });
+    panelEdit.add(btnSimilar);
+    
+    JPanel panelOuter = new JPanel(new BorderLayout());
+    panelOuter.add(panelDetails, BorderLayout.CENTER);
+    panelOuter.add(panelEdit, BorderLayout.SOUTH);
+    
     SimpleInternalFrame sif = new SimpleInternalFrame("Details");
     sif.setPreferredSize(new Dimension(300, 500));
-    sif.add(panelDetails);
+    sif.add(panelOuter);
     
     return sif;
   }
@@ -652,6 +996,16 @@ public final class Quotes implements ComponentListener, ItemListener
       // Enable the text field if checked
       tfMaxValue.setEnabled(bSetting);
     }
+    else if ((source == cbLive) && !cbLive.isSelected())
+    {
+      // Stop any live search
+      cancelLiveSearch();
+    }
+    else if ((source == cbCollapse) && cbCollapse.isSelected())
+    {
+      // Find the near-duplicates, if they haven't been found
+      refreshSuggestions();
+    }
   }
   
   
@@ -782,79 +1136,753 @@ public final class Quotes implements ComponentListener, ItemListener
   
   
   /**
-   * Search by keyword.
+   * Load a new data file in the background and swap it in.
+   * Searches keep running against the old data until the new
+   * data is ready.
    * 
    * @param evt the event
    */
-  private void searchByName(final ActionEvent evt)
+  private void reloadData(final ActionEvent evt)
   {
-    generateFiltersAndSearch(tfTitle.getText(), null);
+    // Ask the user for the file
+    JFileChooser chooser = new JFileChooser(new File("."));
+    chooser.setDialogTitle("Reload Quotations");
+    if (chooser.showOpenDialog(m_appFrame) != JFileChooser.APPROVE_OPTION)
+    {
+      return;
+    }
+    
+    final File inFile = chooser.getSelectedFile();
+    btnReload.setEnabled(false);
+    
+    // Load and publish the data off the event thread
+    Thread loader = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        String message = null;
+        final List<QuotationNode> list = loadFromFile(inFile);
+        if (list == null)
+        {
+          message = "Unable to read " + inFile.getName();
+        }
+        else
+        {
+          try
+          {
+            replaceData(list);
+            message = "Loaded " + list.size() + " quotations from " +
+                      inFile.getName();
+          }
+          catch (IOException ioe)
+          {
+            message = "Unable to save the new data: " + ioe.getMessage();
+          }
+        }
+        
+        // Tell the user
+        final String result = message;
+        javax.swing.SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            btnReload.setEnabled(true);
+            JOptionPane.showMessageDialog(m_appFrame, result,
+                "Reload", JOptionPane.INFORMATION_MESSAGE);
+          }
+        });
+      }
+    }, "quotes-reload");
+    loader.setDaemon(true);
+    loader.start();
   }
   
   
   /**
-   * Search by author.
+   * Export the results, or all the quotations, to a file.  The
+   * format comes from the file's extension: .csv for CSV, .xml for
+   * XML, and JSON Lines otherwise.  The quotations are written one
+   * at a time in the background, so a large corpus doesn't need
+   * any more memory.
    * 
    * @param evt the event
    */
-  private void searchByAuthor(final ActionEvent evt)
+  private void exportData(final ActionEvent evt)
   {
-    generateFiltersAndSearch(tfTitle.getText(), tfAuthor.getText());
+    if (bLoading || (corpus == null))
+    {
+      JOptionPane.showMessageDialog(m_appFrame,
+          "The quotations are still loading. Try again in a moment.",
+          "Quotes", JOptionPane.INFORMATION_MESSAGE);
+      return;
+    }
+    
+    // Ask whether to export the results or everything
+    boolean bAll = true;
+    if ((listResults != null) && !listResults.isEmpty())
+    {
+      final Object[] options = {"Results", "All Quotations", "Cancel"};
+      final int choice = JOptionPane.showOptionDialog(m_appFrame,
+          "Export the " + listResults.size() + " results, or all the quotations?",
+          "Export", JOptionPane.YES_NO_CANCEL_OPTION,
+          JOptionPane.QUESTION_MESSAGE, null, options, options[0]);
+      if ((choice != JOptionPane.YES_OPTION) && (choice != JOptionPane.NO_OPTION))
+      {
+        return;
+      }
+      
+      bAll = (choice == JOptionPane.NO_OPTION);
+    }
+    
+    // Ask the user for the file
+    JFileChooser chooser = new JFileChooser(new File("."));
+    chooser.setDialogTitle("Export Quotations");
+    if (chooser.showSaveDialog(m_appFrame) != JFileChooser.APPROVE_OPTION)
+    {
+      return;
+    }
+    
+    final File outFile = chooser.getSelectedFile();
+    final String name = outFile.getName().toLowerCase();
+    final QuoteExporter.Format format = (name.endsWith(".csv") ? QuoteExporter.Format.CSV
+        : (name.endsWith(".xml") ? QuoteExporter.Format.XML
+           : QuoteExporter.Format.JSONL));
+    
+    // Take the quotations now, since the results can change; the
+    // snapshot is immutable
+    final CorpusSnapshot snapshot = (bAll ? corpus.getSnapshot() : null);
+    final QuotationNode[] quotes = (bAll ? null
+        : listResults.toArray(new QuotationNode[listResults.size()]));
+    final Integer[] ids = (bAll ? null
+        : listResultIds.toArray(new Integer[listResultIds.size()]));
+    btnExport.setEnabled(false);
+    
+    // Write the file off the event thread
+    Thread exporter = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        String message = null;
+        FileOutputStream out = null;
+        try
+        {
+          out = new FileOutputStream(outFile);
+          QuoteExporter writer = new QuoteExporter(out.getChannel(), format, true);
+          if (snapshot != null)
+          {
+            writer.writeAll(snapshot);
+          }
+          else
+          {
+            for (int i = 0; i < quotes.length; ++i)
+            {
+              writer.write(ids[i].intValue(), quotes[i]);
+            }
+          }
+          
+          writer.finish();
+          message = "Exported " + writer.getCount() + " quotations to " +
+                    outFile.getName();
+        }
+        catch (IOException ioe)
+        {
+          message = "Unable to export the quotations: " + ioe.getMessage();
+        }
+        finally
+        {
+          if (out != null)
+          {
+            try
+            {
+              out.close();
+            }
+            catch (IOException ioe)
+            {
+              System.err.println("IOException: " + ioe.getMessage());
+            }
+          }
+        }
+        
+        // Tell the user
+        final String result = message;
+        javax.swing.SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            btnExport.setEnabled(true);
+            JOptionPane.showMessageDialog(m_appFrame, result,
+                "Export", JOptionPane.INFORMATION_MESSAGE);
+          }
+        });
+      }
+    }, "quotes-export");
+    exporter.setDaemon(true);
+    exporter.start();
   }
   
   
   /**
-   * Generate the filters and search.
+   * Replace the corpus with a new list of quotations.  This is
+   * an atomic swap, so it's safe to call while searching.
    * 
-   * @param keyword the keyword to search for
-   * @param author the author to search for
+   * @param list the new quotations
+   * @throws IOException if the store can't save the new data
    */
-  private void generateFiltersAndSearch(final String keyword,
-                                        final String author)
+  private void replaceData(final List<QuotationNode> list)
+    throws IOException
   {
-    // Declare the filters
-    TermFilter nameFilter = null;
-    TermFilter authorFilter = null;
-    
-    // Check the keyword
-    if ((keyword != null) && (keyword.length() > 0))
+    if (store != null)
     {
-      nameFilter = getSearchFilter(keyword, getCaseMatching());
+      store.replaceAll(list);
     }
-    
-    // Check the author
-    if ((author != null) && (author.length() > 0))
+    else
     {
-      // The author filter is always a Contains All filter
-      authorFilter = new ContainsAllFilter(author, !getCaseMatching());
+      corpus.replaceAll(list);
     }
     
-    // Perform the search
-    performSearch(nameFilter, authorFilter);
+    // The new version would miss anyway, but free the memory
+    engine.clearCache();
   }
   
   
   /**
-   * Perform a search.
+   * Add a new quotation.
    * 
-   * @param nameFilter the filter for the name
-   * @param authorFilter the author filter
+   * @param evt the event
    */
-  private void performSearch(final TermFilter nameFilter,
-                             final TermFilter authorFilter)
+  private void addQuote(final ActionEvent evt)
   {
-    // Clear the list of results
-    resultsModel.setRowData(null);
-    resultsModel.fireTableDataChanged();
+    // Check that edits can be saved
+    if (!checkEditable())
+    {
+      return;
+    }
     
-    if (listResults != null)
+    // Ask the user for the new quotation
+    final QuotationNode quote = showQuoteEditor("New Quotation", null);
+    if (quote == null)
     {
-      listResults.clear();
-      listResults = null;
+      return;
     }
     
-    // Clear the detail pane
-    updateDetailsPane(0);
+    saveEdit(new EditTask()
+    {
+      public int save() throws IOException
+      {
+        return store.add(quote);
+      }
+      
+      public void saved(final int id)
+      {
+        // Show the new quotation as the only result
+        listResults = new ArrayList<QuotationNode>(1);
+        listResultIds = new ArrayList<Integer>(1);
+        listResults.add(quote);
+        listResultIds.add(Integer.valueOf(id));
+        resultsModel.setRowData(listResults);
+        resultsModel.fireTableDataChanged();
+        tableResults.getSelectionModel().setSelectionInterval(0, 0);
+        updateDetailsPane(0);
+      }
+    });
+  }
+  
+  
+  /**
+   * Edit the selected quotation.
+   * 
+   * @param evt the event
+   */
+  private void editQuote(final ActionEvent evt)
+  {
+    // Check that edits can be saved and something is selected
+    final int nRow = tableResults.getSelectedRow();
+    if (!checkEditable() || !checkSelection(nRow))
+    {
+      return;
+    }
+    
+    // Ask the user for the new values
+    final QuotationNode quote = showQuoteEditor("Edit Quotation",
+                                                listResults.get(nRow));
+    if (quote == null)
+    {
+      return;
+    }
+    
+    final List<QuotationNode> results = listResults;
+    final int nId = listResultIds.get(nRow).intValue();
+    saveEdit(new EditTask()
+    {
+      public int save() throws IOException
+      {
+        return (store.update(nId, quote) ? 1 : 0);
+      }
+      
+      public void saved(final int found)
+      {
+        if (found == 0)
+        {
+          showQuoteMissing();
+        }
+        else if (isResultRow(results, nRow, nId))
+        {
+          // Replace the row, if it's still shown
+          listResults.set(nRow, quote);
+          resultsModel.fireTableRowsUpdated(nRow, nRow);
+          updateDetailsPane(nRow);
+        }
+      }
+    });
+  }
+  
+  
+  /**
+   * Delete the selected quotation.
+   * 
+   * @param evt the event
+   */
+  private void deleteQuote(final ActionEvent evt)
+  {
+    // Check that edits can be saved and something is selected
+    final int nRow = tableResults.getSelectedRow();
+    if (!checkEditable() || !checkSelection(nRow))
+    {
+      return;
+    }
+    
+    // Confirm the deletion
+    final int choice = JOptionPane.showConfirmDialog(m_appFrame,
+        "Delete the selected quotation?", "Delete Quotation",
+        JOptionPane.YES_NO_OPTION);
+    if (choice != JOptionPane.YES_OPTION)
+    {
+      return;
+    }
+    
+    final List<QuotationNode> results = listResults;
+    final int nId = listResultIds.get(nRow).intValue();
+    saveEdit(new EditTask()
+    {
+      public int save() throws IOException
+      {
+        return (store.delete(nId) ? 1 : 0);
+      }
+      
+      public void saved(final int found)
+      {
+        if (found == 0)
+        {
+          showQuoteMissing();
+        }
+        else if (isResultRow(results, nRow, nId))
+        {
+          // Remove the row, if it's still shown
+          listResults.remove(nRow);
+          listResultIds.remove(nRow);
+          resultsModel.setRowData(listResults);
+          resultsModel.fireTableDataChanged();
+          updateDetailsPane(-1);
+        }
+      }
+    });
+  }
+  
+  
+  /**
+   * Save an edit in the background, since the store waits until
+   * it's synced to disk, and then finish it on the event thread.
+   * Only one edit is saved at a time.
+   * 
+   * @param task the edit
+   */
+  private void saveEdit(final EditTask task)
+  {
+    bSaving = true;
+    Thread saver = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        int result = 0;
+        IOException error = null;
+        try
+        {
+          result = task.save();
+        }
+        catch (IOException ioe)
+        {
+          error = ioe;
+        }
+        
+        // Show the result
+        final int nResult = result;
+        final IOException failure = error;
+        javax.swing.SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            bSaving = false;
+            if (failure != null)
+            {
+              showEditError(failure);
+            }
+            else
+            {
+              task.saved(nResult);
+            }
+          }
+        });
+      }
+    }, "quotes-edit");
+    saver.setDaemon(true);
+    saver.start();
+  }
+  
+  
+  /**
+   * Returns whether a row of the results still shows a quotation,
+   * since the results may have changed while an edit was saved.
+   * 
+   * @param results the results the row was in
+   * @param nRow the row
+   * @param nId the ID of the quotation
+   * @return whether the row is still shown
+   */
+  private boolean isResultRow(final List<QuotationNode> results,
+                              final int nRow, final int nId)
+  {
+    return ((listResults == results) && (nRow < listResultIds.size()) &&
+            (listResultIds.get(nRow).intValue() == nId));
+  }
+  
+  
+  /**
+   * Show the quotations most like the selected one, by the words
+   * they share, in place of the search results.  The index is
+   * built in the background the first time, which takes a moment
+   * on a large corpus, and the button is disabled until it's
+   * ready; after that it's kept up to date in the background.
+   * 
+   * @param evt the event
+   */
+  private void showSimilar(final ActionEvent evt)
+  {
+    // Check that the corpus is loaded and something is selected
+    final int nRow = tableResults.getSelectedRow();
+    if (bLoading)
+    {
+      JOptionPane.showMessageDialog(m_appFrame,
+          "The quotations are still loading. Try again in a moment.",
+          "Quotes", JOptionPane.INFORMATION_MESSAGE);
+      return;
+    }
+    else if ((engine == null) || !checkSelection(nRow))
+    {
+      return;
+    }
+    
+    final QuotationNode quote = listResults.get(nRow);
+    final int nId = listResultIds.get(nRow).intValue();
+    
+    // Use the index if it's been built
+    final SimilarityIndex index = engine.getSimilarity();
+    if (index != null)
+    {
+      showSimilar(index, quote, nId);
+      return;
+    }
+    
+    // Build it in the background, then show the quotations if the
+    // same one is still selected
+    final java.awt.Cursor currCursor = m_appFrame.getCursor();
+    m_appFrame.setCursor(java.awt.Cursor.getPredefinedCursor(
+        java.awt.Cursor.WAIT_CURSOR));
+    btnSimilar.setEnabled(false);
+    final QuoteSearchEngine searcher = engine;
+    final List<QuotationNode> results = listResults;
+    Thread builder = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        final SimilarityIndex built = searcher.updateSimilarity();
+        javax.swing.SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            m_appFrame.setCursor(currCursor);
+            btnSimilar.setEnabled(true);
+            if ((engine == searcher) &&
+                (tableResults.getSelectedRow() == nRow) &&
+                isResultRow(results, nRow, nId))
+            {
+              showSimilar(built, quote, nId);
+            }
+          }
+        });
+      }
+    }, "quotes-similar");
+    builder.setDaemon(true);
+    builder.start();
+  }
+  
+  
+  /**
+   * Show the quotations most like one, in place of the search
+   * results.
+   * 
+   * @param index the index of similar quotations
+   * @param quote the quotation
+   * @param nId the ID of the quotation
+   */
+  private void showSimilar(final SimilarityIndex index,
+                           final QuotationNode quote, final int nId)
+  {
+    // Find the similar quotations, leaving out copies of this one
+    final int[] positions = index.findSimilar(quote, nId, engine.getDuplicates(),
+                                              SimilarityIndex.DEFAULT_COUNT, null);
+    final CorpusSnapshot snapshot = index.getSnapshot();
+    List<QuotationNode> list = new ArrayList<QuotationNode>(positions.length);
+    List<Integer> ids = new ArrayList<Integer>(positions.length);
+    for (int pos : positions)
+    {
+      list.add(snapshot.getQuote(pos));
+      ids.add(Integer.valueOf(snapshot.getId(pos)));
+    }
+    
+    // Show them in place of the results; they're not a search, so
+    // there's no next page
+    clearResults();
+    activeRun = null;
+    listResults = list;
+    listResultIds = ids;
+    resultsModel.setRowData(listResults);
+    resultsModel.fireTableDataChanged();
+    if (!list.isEmpty())
+    {
+      ListSelectionModel lsm = tableResults.getSelectionModel();
+      lsm.setAnchorSelectionIndex(0);
+      lsm.setLeadSelectionIndex(0);
+      tableResults.scrollRectToVisible(tableResults.getCellRect(0, 0, true));
+    }
+    
+    tableResults.requestFocusInWindow();
+    refreshSuggestions();
+  }
+  
+  
+  /**
+   * Returns whether edits can be saved, and tells the user if not.
+   * 
+   * @return whether the corpus can be edited
+   */
+  private boolean checkEditable()
+  {
+    if (bLoading)
+    {
+      JOptionPane.showMessageDialog(m_appFrame,
+          "The quotations are still loading. Try again in a moment.",
+          "Quotes", JOptionPane.INFORMATION_MESSAGE);
+      return false;
+    }
+    else if (store == null)
+    {
+      JOptionPane.showMessageDialog(m_appFrame,
+          "Edits can't be saved, so editing is disabled.",
+          "Quotes", JOptionPane.WARNING_MESSAGE);
+      return false;
+    }
+    else if (bSaving)
+    {
+      JOptionPane.showMessageDialog(m_appFrame,
+          "The last edit is still being saved. Try again in a moment.",
+          "Quotes", JOptionPane.INFORMATION_MESSAGE);
+      return false;
+    }
+    
+    return true;
+  }
+  
+  
+  /**
+   * Returns whether a result row is selected, and tells the user if not.
+   * 
+   * @param nRow the selected row
+   * @return whether the row is valid
+   */
+  private boolean checkSelection(final int nRow)
+  {
+    if ((listResults == null) || (nRow < 0) || (nRow >= listResults.size()))
+    {
+      JOptionPane.showMessageDialog(m_appFrame,
+          "Select a quotation first.", "Quotes",
+          JOptionPane.INFORMATION_MESSAGE);
+      return false;
+    }
+    
+    return true;
+  }
+  
+  
+  /**
+   * Tell the user the quotation being edited no longer exists,
+   * such as after the data was reloaded.
+   */
+  private void showQuoteMissing()
+  {
+    JOptionPane.showMessageDialog(m_appFrame,
+        "That quotation is no longer in the data. Search again.",
+        "Quotes", JOptionPane.WARNING_MESSAGE);
+  }
+  
+  
+  /**
+   * Tell the user an edit could not be saved.
+   * 
+   * @param ioe the exception
+   */
+  private void showEditError(final IOException ioe)
+  {
+    JOptionPane.showMessageDialog(m_appFrame,
+        "The edit could not be saved: " + ioe.getMessage(),
+        "Quotes", JOptionPane.ERROR_MESSAGE);
+  }
+  
+  
+  /**
+   * Show a dialog to enter the fields of a quotation.
+   * 
+   * @param title the dialog title
+   * @param initial the initial values (may be null)
+   * @return a new quotation with the entered values, or null if
+   *         the user cancelled
+   */
+  private QuotationNode showQuoteEditor(final String title,
+                                        final QuotationNode initial)
+  {
+    // Build the fields
+    JTextField tfFirst = new JTextField(20);
+    JTextField tfLast = new JTextField(20);
+    JTextField tfTopic = new JTextField(20);
+    JTextField tfSource = new JTextField(20);
+    JTextField tfBio = new JTextField(20);
+    JTextArea taQuote = new JTextArea(5, 30);
+    taQuote.setLineWrap(true);
+    taQuote.setWrapStyleWord(true);
+    
+    if (initial != null)
+    {
+      tfFirst.setText(initial.getFirstName());
+      tfLast.setText(initial.getLastName());
+      tfTopic.setText(initial.getTopic());
+      tfSource.setText(initial.getSource());
+      tfBio.setText(initial.getBio());
+      taQuote.setText(initial.getQuotation());
+    }
+    
+    JPanel panel = new JPanel(new GridLayout(0, 1, 0, 2));
+    panel.add(new JLabel("Quotation:"));
+    panel.add(new JScrollPane(taQuote));
+    panel.add(new JLabel("First name:"));
+    panel.add(tfFirst);
+    panel.add(new JLabel("Last name:"));
+    panel.add(tfLast);
+    panel.add(new JLabel("Topic:"));
+    panel.add(tfTopic);
+    panel.add(new JLabel("Source:"));
+    panel.add(tfSource);
+    panel.add(new JLabel("Bio:"));
+    panel.add(tfBio);
+    
+    final int choice = JOptionPane.showConfirmDialog(m_appFrame, panel,
+        title, JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+    if (choice != JOptionPane.OK_OPTION)
+    {
+      return null;
+    }
+    
+    // Always build a new node, since the old one may be in use
+    // by other snapshots of the corpus
+    QuotationNode quote = new QuotationNode();
+    quote.setFirstName(tfFirst.getText().trim());
+    quote.setLastName(tfLast.getText().trim());
+    quote.setTopic(tfTopic.getText().trim());
+    quote.setSource(tfSource.getText().trim());
+    quote.setBio(tfBio.getText().trim());
+    quote.setQuotation(taQuote.getText().trim());
+    return quote;
+  }
+  
+  
+  /**
+   * Search by keyword.
+   * 
+   * @param evt the event
+   */
+  private void searchByName(final ActionEvent evt)
+  {
+    generateFiltersAndSearch(tfTitle.getText(), null);
+  }
+  
+  
+  /**
+   * Search by author.
+   * 
+   * @param evt the event
+   */
+  private void searchByAuthor(final ActionEvent evt)
+  {
+    generateFiltersAndSearch(tfTitle.getText(), tfAuthor.getText());
+  }
+  
+  
+  /**
+   * Generate the filters and search.
+   * 
+   * @param keyword the keyword to search for
+   * @param author the author to search for
+   */
+  private void generateFiltersAndSearch(final String keyword,
+                                        final String author)
+  {
+    // A search from the buttons replaces any live search
+    cancelLiveSearch();
+    
+    // Perform the search
+    performSearch(createSearch(keyword, author));
+  }
+  
+  
+  /**
+   * Create a search from the user's input and options.
+   * 
+   * @param keyword the keyword to search for
+   * @param author the author to search for
+   * @return the search, not yet run
+   */
+  private SearchRun createSearch(final String keyword, final String author)
+  {
+    // A limit that isn't a number allows no matches
+    final int nLimit = (getMatchLimiting() ? Math.max(0, getMatchLimit()) : -1);
+    
+    // Normalize the query, so repeated searches hit the cache
+    final QueryKey key = new QueryKey(getSearchMode(), keyword, author,
+                                      getCaseMatching(), nLimit,
+                                      cbCollapse.isSelected());
+    
+    // Build the filters
+    return engine.createRun(key);
+  }
+  
+  
+  /**
+   * Perform a search.
+   * 
+   * @param run the search to run
+   */
+  private void performSearch(final SearchRun run)
+  {
+    // Clear the list of results
+    clearResults();
     
     // Get the current cursor
     java.awt.Cursor currCursor = m_appFrame.getCursor();
@@ -864,21 +1892,61 @@ public final class Quotes implements ComponentListener, ItemListener
         java.awt.Cursor.WAIT_CURSOR));
     
     // Do the search
-    searchMatches(nameFilter, authorFilter);
+    if (engine != null)
+    {
+      final CorpusSnapshot snapshot = corpus.getSnapshot();
+      run.narrowFrom(activeRun, snapshot.getVersion());
+      engine.search(run, snapshot, !bLoading);
+    }
     
     // Restore the cursor
     m_appFrame.setCursor(currCursor);
     
-    // Check for no data
-    if (listResults == null)
-    {
-      return;
-    }
+    // Show the results
+    showResults(run, true);
+    refreshSuggestions();
+  }
+  
+  
+  /**
+   * Clear the results table and the detail pane.
+   */
+  private void clearResults()
+  {
+    // Clear the list of results
+    resultsModel.setRowData(null);
+    resultsModel.fireTableDataChanged();
+    
+    // The lists belong to the search that found them, so they're
+    // not emptied; a later search may narrow them
+    listResults = null;
+    listResultIds = null;
+    suggestedKeyword = null;
+    btnNextPage.setEnabled(false);
+    
+    // Clear the detail pane
+    updateDetailsPane(0);
+  }
+  
+  
+  /**
+   * Make a finished search the current one, and show its results.
+   * 
+   * @param run the search
+   * @param bFocusTable whether to move the focus to the results
+   */
+  private void showResults(final SearchRun run, final boolean bFocusTable)
+  {
+    activeRun = run;
+    listResults = run.getResults();
+    listResultIds = run.getResultIds();
+    updateNextPage();
     
     // Check the size and return if the data set is empty
     final int nSize = listResults.size();
     if (nSize < 1)
     {
+      showSuggestion(run);
       return;
     }
     
@@ -894,19 +1962,237 @@ public final class Quotes implements ComponentListener, ItemListener
     // Make sure the first row is visible
     tableResults.scrollRectToVisible(tableResults.getCellRect(0, 0, true));
     
-    // Set the focus on the table
-    tableResults.requestFocusInWindow();
+    // Set the focus on the table, unless the user is typing
+    if (bFocusTable)
+    {
+      tableResults.requestFocusInWindow();
+    }
+  }
+  
+  
+  /**
+   * Enable the Next Page button if the current search stopped at
+   * its limit before the end of the corpus.
+   */
+  private void updateNextPage()
+  {
+    btnNextPage.setEnabled((activeRun != null) && (corpus != null) &&
+                           activeRun.isFull() &&
+                           (activeRun.getScannedUpTo() < corpus.getSnapshot().size()));
+  }
+  
+  
+  /**
+   * Show the next page of matches of the current search.  The
+   * search carries on from where the last page stopped, so each
+   * page costs the same as the first.  That place is kept when
+   * the corpus is compacted or loads more, and when collapsing
+   * near-duplicates, the clusters already shown are skipped.
+   * 
+   * @param evt the event
+   */
+  private void showNextPage(final java.awt.event.ActionEvent evt)
+  {
+    if ((activeRun == null) || !activeRun.isFull())
+    {
+      return;
+    }
+    
+    cancelLiveSearch();
+    
+    // This starts again if the quotations were reloaded
+    performSearch(activeRun.nextPage(corpus.getSnapshot()));
+  }
+  
+  
+  /**
+   * Offer a corrected spelling of the keyword after a Contains
+   * search finds nothing, if the words of the corpus suggest one.
+   * 
+   * @param run the search
+   */
+  private void showSuggestion(final SearchRun run)
+  {
+    final QueryKey key = run.getKey();
+    final SuggestionIndex index = getSuggestions();
+    if ((index == null) || (key.getKeyword() == null) ||
+        (key.getMode() != SearchMode.CONTAINS))
+    {
+      return;
+    }
+    
+    final String corrected =
+      index.getSpelling().correct(key.getKeyword().toLowerCase());
+    if (corrected == null)
+    {
+      return;
+    }
+    
+    suggestedKeyword = corrected;
+    paneDetails.setText("<html><body>No matches were found.  Did you mean " +
+                        "<a href=\"#\">" + Utility.convertToXml(corrected) +
+                        "</a>?</body></html>");
+  }
+  
+  
+  /**
+   * Search for the suggested keyword, after the user clicks it.
+   */
+  private void useSuggestion()
+  {
+    if (suggestedKeyword == null)
+    {
+      return;
+    }
+    
+    // Search the same way as the search that found nothing
+    final String keyword = suggestedKeyword;
+    final boolean bAuthor = ((activeRun != null) &&
+                             (activeRun.getKey().getAuthor() != null));
+    tfTitle.setText(keyword);
+    generateFiltersAndSearch(keyword, (bAuthor ? tfAuthor.getText() : null));
+  }
+  
+  
+  /**
+   * Restart the live search timer after the user edits a
+   * search field.
+   * 
+   * @param bAuthor whether the author field was edited
+   */
+  private void scheduleLiveSearch(final boolean bAuthor)
+  {
+    if ((cbLive == null) || !cbLive.isSelected())
+    {
+      return;
+    }
+    
+    // Search the way the Go button next to the field would
+    bLiveByAuthor = bAuthor;
+    liveTimer.restart();
+  }
+  
+  
+  /**
+   * Start a live search in the background, cancelling the
+   * previous one.  When the new text only adds to the text of
+   * the search being shown, just its matches are checked again.
+   * A regular expression that doesn't compile is marked, and the
+   * results being shown are kept.
+   */
+  private void startLiveSearch()
+  {
+    cancelLiveSearch();
+    if (corpus == null)
+    {
+      return;
+    }
+    
+    SearchRun search = null;
+    try
+    {
+      search = createSearch(tfTitle.getText(),
+                            (bLiveByAuthor ? tfAuthor.getText() : null));
+    }
+    catch (PatternSyntaxException pse)
+    {
+      // The user is still typing the regular expression, so mark
+      // it as incomplete and wait for the next keystroke
+      tfTitle.setForeground(Color.RED);
+      tfTitle.setToolTipText(pse.getDescription());
+      return;
+    }
+    
+    final SearchRun run = search;
+    
+    // Clear the results if there's nothing to search for
+    if ((run.getNameFilter() == null) && (run.getAuthorFilter() == null))
+    {
+      clearResults();
+      activeRun = null;
+      return;
+    }
+    
+    // Take the candidates while on the event thread, which
+    // owns the current results
+    final CorpusSnapshot snapshot = corpus.getSnapshot();
+    run.narrowFrom(activeRun, snapshot.getVersion());
+    final boolean bCacheable = !bLoading;
+    liveRun = run;
+    refreshSuggestions();
+    
+    liveSearcher.execute(new Runnable()
+    {
+      public void run()
+      {
+        engine.search(run, snapshot, bCacheable);
+        javax.swing.SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            finishLiveSearch(run);
+          }
+        });
+      }
+    });
+  }
+  
+  
+  /**
+   * Called on the event thread when a live search is done.  The
+   * results are shown unless a newer search has replaced it.
+   * 
+   * @param run the search
+   */
+  private void finishLiveSearch(final SearchRun run)
+  {
+    if ((run != liveRun) || run.isCancelled())
+    {
+      return;
+    }
+    
+    liveRun = null;
+    clearResults();
+    showResults(run, false);
+  }
+  
+  
+  /**
+   * Cancel the pending or running live search, if any.
+   */
+  private void cancelLiveSearch()
+  {
+    if (liveTimer != null)
+    {
+      liveTimer.stop();
+    }
+    
+    // Clear any mark left by an incomplete pattern
+    if (tfTitle != null)
+    {
+      tfTitle.setForeground(UIManager.getColor("TextField.foreground"));
+      tfTitle.setToolTipText(null);
+    }
+    
+    if (liveRun != null)
+    {
+      liveRun.cancel();
+      liveRun = null;
+    }
   }
   
   
   /**
    * Read the contents of a file.
+   * 
+   * @param inFile the input file
+   * @return the quotations in the file, or null on error
    */
   @SuppressWarnings("unchecked")
-  private void loadFromFile()
+  private List<QuotationNode> loadFromFile(final File inFile)
   {
-    // Declare the input file
-    final File inFile = new File(inputDataFile);
+    // This will hold the data
+    List<QuotationNode> list = null;
     
     // Read the file
     ObjectInputStream os = null;
@@ -916,7 +2202,7 @@ public final class Quotes implements ComponentListener, ItemListener
       os = new ObjectInputStream(new FileInputStream(inFile));
       
       // Read the data
-      listData = (List<QuotationNode>) os.readObject();
+      list = (List<QuotationNode>) os.readObject();
       
       // Clear the stream
       os.close();
@@ -950,6 +2236,8 @@ public final class Quotes implements ComponentListener, ItemListener
         os = null;
       }
     }
+    
+    return list;
   }
   
   
@@ -957,10 +2245,14 @@ public final class Quotes implements ComponentListener, ItemListener
    * Read the contents of a file from a stream.
    * 
    * @param is the input stream
+   * @return the quotations in the stream, or null on error
    */
   @SuppressWarnings("unchecked")
-  private void loadFromFileStream(final InputStream is)
+  private List<QuotationNode> loadFromFileStream(final InputStream is)
   {
+    // This will hold the data
+    List<QuotationNode> list = null;
+    
     // Read the file
     ObjectInputStream os = null;
     try
@@ -969,7 +2261,7 @@ public final class Quotes implements ComponentListener, ItemListener
       os = new ObjectInputStream(is);
       
       // Read the data
-      listData = (List<QuotationNode>) os.readObject();
+      list = (List<QuotationNode>) os.readObject();
       
       // Clear the stream
       os.close();
@@ -1003,54 +2295,366 @@ public final class Quotes implements ComponentListener, ItemListener
         os = null;
       }
     }
+    
+    return list;
   }
   
   
   /**
-   * Search for matches against the user's search criteria.
-   * 
-   * @param nameFilter the user's input name filter
-   * @param authorFilter the author name filter
+   * Rebuild the suggestion index in the background if it's
+   * missing or out of date, the clusters of near-duplicates if
+   * they're being hidden, and the index of similar quotations if
+   * it's been used.  They're not built while loading, since the
+   * corpus is changing too quickly.
    */
-  private void searchMatches(final TermFilter nameFilter,
-                             final TermFilter authorFilter)
+  private void refreshSuggestions()
   {
-    // Get the search parameters
-    final boolean bLimitCap = getMatchLimiting();
-    final int nLimitCap = getMatchLimit();
+    if (bLoading || bIndexing || (engine == null))
+    {
+      return;
+    }
     
-    // Declare the results list
-    listResults = new ArrayList<QuotationNode>(100);
+    final long nVersion = engine.getSnapshot().getVersion();
+    final SuggestionIndex index = engine.getSuggestions();
+    final NearDuplicates duplicates = engine.getDuplicates();
+    final boolean bDuplicates = cbCollapse.isSelected() &&
+      ((duplicates == null) || (duplicates.getVersion() != nVersion));
+    final SimilarityIndex similarity = engine.getSimilarity();
+    final boolean bSimilarity = ((similarity != null) &&
+                                 (similarity.getVersion() != nVersion));
+    if ((index != null) && (index.getVersion() == nVersion) && !bDuplicates &&
+        !bSimilarity)
+    {
+      return;
+    }
     
-    // Check the return limit (only if the checkbox
-    // is selected)
-    if ((bLimitCap) && (nLimitCap < 1))
+    bIndexing = true;
+    final QuoteSearchEngine searcher = engine;
+    Thread indexer = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        searcher.updateSuggestions();
+        if (bDuplicates)
+        {
+          searcher.updateDuplicates(NearDuplicates.DEFAULT_THRESHOLD);
+        }
+        
+        if (bSimilarity)
+        {
+          searcher.updateSimilarity();
+        }
+        
+        javax.swing.SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            bIndexing = false;
+          }
+        });
+      }
+    }, "quotes-index");
+    indexer.setDaemon(true);
+    indexer.start();
+  }
+  
+  
+  /**
+   * Get the index of authors and topics.
+   * 
+   * @return the index, or null if it hasn't been built
+   */
+  private SuggestionIndex getSuggestions()
+  {
+    return ((engine == null) ? null : engine.getSuggestions());
+  }
+  
+  
+  /**
+   * Start loading the corpus on a background thread.  Searches
+   * run against whatever has been loaded so far.
+   */
+  private void startLoading()
+  {
+    // Start with an empty corpus, keeping the bio and source
+    // of the loaded quotations out of memory until they're shown
+    corpus = new SegmentedCorpus(null);
+    corpus.setColdFieldStore(openColdStore());
+    engine = new QuoteSearchEngine(corpus);
+    bLoading = true;
+    btnReload.setEnabled(false);
+    progressLoad.setValue(0);
+    progressLoad.setVisible(true);
+    
+    Thread loader = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        final CorpusStore result = loadCorpus();
+        if (result != null)
+        {
+          watchAlerts(result);
+        }
+        
+        javax.swing.SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            loadFinished(result);
+          }
+        });
+      }
+    }, "quotes-loader");
+    loader.setDaemon(true);
+    loader.start();
+  }
+  
+  
+  /**
+   * Load the stored alerts, if there are any, and check every
+   * quotation added or edited against them once it's saved.  The
+   * alerts are read from the file named by the quotes.alerts
+   * system property, or alerts.txt in the store directory, in the
+   * format of the batch query file.  This runs on the loading
+   * thread.
+   * 
+   * @param pStore the edit store
+   */
+  private void watchAlerts(final CorpusStore pStore)
+  {
+    final String prop = System.getProperty("quotes.alerts");
+    final File file = (((prop != null) && (prop.length() > 0)) ? new File(prop)
+                       : new File(CorpusStore.getDefaultDirectory(), "alerts.txt"));
+    if (!file.isFile())
     {
-      // The user entered a limit less than one, so return
       return;
     }
     
-    // Set up a counter to record how many hits we have so far
-    int nCount = 0;
+    final Percolator alerts = new Percolator(corpus.getSnapshot());
+    try
+    {
+      alerts.load(file.getPath());
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("Unable to load the alerts: " + ioe.getMessage());
+      return;
+    }
     
-    // Iterate over the list
-    final int size = listData.size();
-    for (int i = 0; i < size; ++i)
+    // Tell the user on the event thread; the edit is already saved
+    alerts.watch(pStore, new Percolator.Listener()
     {
-      // Save the object
-      final QuotationNode quote = listData.get(i);
-      
-      // Check for a match
-      if (matchOnSearch(nameFilter, authorFilter, quote))
+      public void alertsMatched(final int nId, final QuotationNode quote,
+                                final int[] matched)
       {
-        // Add the match
-        listResults.add(quote);
-        ++nCount;
+        final StringBuilder sb = new StringBuilder(100);
+        sb.append("The quotation by ").append(quote.getName())
+          .append(" matches ").append(matched.length)
+          .append((matched.length == 1) ? " alert:" : " alerts:");
+        for (int nAlert : matched)
+        {
+          final QueryKey query = alerts.getQuery(nAlert);
+          if (query != null)
+          {
+            sb.append('\n').append(describeAlert(query));
+          }
+        }
         
-        // Check if we exceeded the limit
-        if ((bLimitCap) && (nCount >= nLimitCap))
+        final String message = sb.toString();
+        javax.swing.SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            JOptionPane.showMessageDialog(m_appFrame, message, "Quotes",
+                                          JOptionPane.INFORMATION_MESSAGE);
+          }
+        });
+      }
+    });
+  }
+  
+  
+  /**
+   * Describe an alert for the user.
+   * 
+   * @param query the query of the alert
+   * @return the description
+   */
+  private static String describeAlert(final QueryKey query)
+  {
+    final StringBuilder sb = new StringBuilder(60);
+    sb.append(query.getMode().toString().toLowerCase());
+    if (query.getKeyword() != null)
+    {
+      sb.append(" \"").append(query.getKeyword()).append('"');
+    }
+    
+    if (query.getAuthor() != null)
+    {
+      sb.append(" by ").append(query.getAuthor());
+    }
+    
+    if (query.isMatchCase())
+    {
+      sb.append(" (match case)");
+    }
+    
+    return sb.toString();
+  }
+  
+  
+  /**
+   * Open the store for the bio and source fields.
+   * 
+   * @return the store, or null if it could not be opened
+   */
+  private static ColdFieldStore openColdStore()
+  {
+    try
+    {
+      return new ColdFieldStore();
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("Unable to open the cold field store: " +
+                         ioe.getMessage());
+      return null;
+    }
+  }
+  
+  
+  /**
+   * Load the corpus.  If the edit store has a snapshot, that's
+   * used; otherwise the input file is read.  This runs on the
+   * loading thread.
+   * 
+   * @return the edit store, or null if it could not be opened
+   */
+  private CorpusStore loadCorpus()
+  {
+    // Report each batch to the event thread
+    final CorpusLoader.Listener listener = new CorpusLoader.Listener()
+    {
+      public void quotesLoaded(final CorpusSnapshot snapshot,
+                               final long bytesRead,
+                               final long totalBytes)
+      {
+        javax.swing.SwingUtilities.invokeLater(new Runnable()
+        {
+          public void run()
+          {
+            loadProgress(snapshot, bytesRead, totalBytes);
+          }
+        });
+      }
+    };
+    
+    // If the edited corpus hasn't been saved since the input file
+    // last changed, read the input file
+    final File storeDir = CorpusStore.getDefaultDirectory();
+    final String sourceId = getInputFileId();
+    final boolean hasSnapshot = CorpusStore.hasSnapshot(storeDir, sourceId);
+    if (!hasSnapshot)
+    {
+      streamInputFile(listener);
+    }
+    
+    // Open the store, replaying any saved edits
+    try
+    {
+      return CorpusStore.open(storeDir, sourceId, corpus, listener);
+    }
+    catch (IOException ioe)
+    {
+      // Fall back to a read-only corpus
+      System.err.println("Unable to open the edit store: " + ioe.getMessage());
+      if (hasSnapshot)
+      {
+        corpus.replaceAll(readInputFile());
+      }
+      
+      return null;
+    }
+  }
+  
+  
+  /**
+   * Get the identity of the input file, so a saved corpus can be
+   * told apart from a newer input file.
+   * 
+   * @return the identity of the input file
+   */
+  private String getInputFileId()
+  {
+    if (bOpenDataFromJar)
+    {
+      try
+      {
+        final URLConnection conn = getClass().getResource(inputDataFile)
+                                             .openConnection();
+        return CorpusStore.getSourceId(conn.getContentLengthLong(),
+                                       conn.getLastModified());
+      }
+      catch (IOException ioe)
+      {
+        System.err.println("IOException: " + ioe.getMessage());
+        return CorpusStore.getSourceId(-1L, 0L);
+      }
+    }
+    
+    final File inFile = new File(inputDataFile);
+    return CorpusStore.getSourceId(inFile.length(), inFile.lastModified());
+  }
+  
+  
+  /**
+   * Stream the input file into the corpus.  This runs on the
+   * loading thread.
+   * 
+   * @param listener the progress listener
+   */
+  private void streamInputFile(final CorpusLoader.Listener listener)
+  {
+    InputStream is = null;
+    try
+    {
+      // Open the input file and get its size
+      long nTotal = -1L;
+      if (bOpenDataFromJar)
+      {
+        final URL url = getClass().getResource(inputDataFile);
+        nTotal = url.openConnection().getContentLength();
+        is = url.openStream();
+      }
+      else
+      {
+        final File inFile = new File(inputDataFile);
+        nTotal = inFile.length();
+        is = new FileInputStream(inFile);
+      }
+      
+      // Read the quotations into the corpus
+      CorpusLoader.load(CorpusLoader.open(is, nTotal), corpus, listener);
+    }
+    catch (FileNotFoundException fnfe)
+    {
+      System.err.println("File not found: " + fnfe.getMessage());
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("IOException: " + ioe.getMessage());
+    }
+    finally
+    {
+      if (is != null)
+      {
+        try
+        {
+          is.close();
+        }
+        catch (IOException ioe)
         {
-          break;
+          System.err.println("IOException: " + ioe.getMessage());
         }
       }
     }
@@ -1058,57 +2662,122 @@ public final class Quotes implements ComponentListener, ItemListener
   
   
   /**
-   * Returns whether the two terms match.
+   * Show the loading progress, and extend the current search
+   * over the newly loaded quotations.
+   * 
+   * @param snapshot the snapshot with the latest batch
+   * @param bytesRead the number of bytes read
+   * @param totalBytes the size of the input, or -1 if unknown
+   */
+  private void loadProgress(final CorpusSnapshot snapshot,
+                            final long bytesRead,
+                            final long totalBytes)
+  {
+    // Update the progress bar
+    if (totalBytes > 0)
+    {
+      progressLoad.setValue((int) Math.min(1000L,
+                              (bytesRead * 1000L) / totalBytes));
+    }
+    else
+    {
+      progressLoad.setIndeterminate(true);
+    }
+    
+    progressLoad.setString("Loading quotations... " +
+                           snapshot.getLiveCount() + " loaded");
+    
+    // Extend the current search over the new quotations
+    if ((activeRun != null) && !activeRun.isFull() &&
+        (listResults == activeRun.getResults()))
+    {
+      final int nOldSize = listResults.size();
+      QuoteSearchEngine.scanMatches(snapshot, activeRun);
+      showNewResults(nOldSize);
+    }
+  }
+  
+  
+  /**
+   * Called on the event thread when loading is done.  The current
+   * search is run again, since replaying saved edits may have
+   * changed quotations that were already matched.  If the saved
+   * edits were for an older data file, the user is told where
+   * they were moved.
    * 
-   * @param nameFilter the filter for the search word
-   * @param authorFilter the filter for the author
-   * @param term the term from the data source
-   * @return whether the term matches the user's search criteria
+   * @param pStore the edit store, or null if it could not be opened
    */
-  private boolean matchOnSearch(final TermFilter nameFilter,
-                                final TermFilter authorFilter,
-                                final QuotationNode term)
+  private void loadFinished(final CorpusStore pStore)
   {
-    // Strip out any non-ASCII characters
-    final String targetTerm = Utility.updateBytes(term.getQuotation());
+    store = pStore;
+    bLoading = false;
+    btnReload.setEnabled(true);
+    progressLoad.setVisible(false);
     
-    // Check the name filter
-    boolean result = true;
-    if (nameFilter != null)
+    // Tell the user if their edits couldn't be used
+    if ((pStore != null) && (pStore.getSetAsideDirectory() != null))
     {
-      // Match on the quotation or the topic
-      result = ((nameFilter.accept(targetTerm)) ||
-                (nameFilter.accept(term.getTopic())));
+      JOptionPane.showMessageDialog(m_appFrame,
+          "The data file has changed since your edits were saved, so they\n" +
+          "could not be applied to it.  They have been moved to\n" +
+          pStore.getSetAsideDirectory().getPath(), "Quotes",
+          JOptionPane.WARNING_MESSAGE);
     }
     
-    // Check the author filter, if the current result is true
-    if ((result) && (authorFilter != null))
+    if (activeRun != null)
     {
-      result = authorFilter.accept(term.getName());
+      performSearch(activeRun.restart());
     }
     
-    // Return the result
-    return result;
+    refreshSuggestions();
   }
   
   
   /**
-   * Returns a reader for the input file.
+   * Show the results added to the list after a position.
+   * 
+   * @param nOldSize the number of results already shown
    */
-  @SuppressWarnings("unchecked")
-  private void getInputData()
+  private void showNewResults(final int nOldSize)
+  {
+    final int nNewSize = listResults.size();
+    if (nNewSize <= nOldSize)
+    {
+      return;
+    }
+    
+    // Add the rows without disturbing the selection
+    resultsModel.setRowData(listResults);
+    resultsModel.fireTableRowsInserted(nOldSize, nNewSize - 1);
+    updateNextPage();
+    
+    // Show the first result if these are the first ones
+    if (nOldSize == 0)
+    {
+      tableResults.getSelectionModel().setSelectionInterval(0, 0);
+      updateDetailsPane(0);
+    }
+  }
+  
+  
+  /**
+   * Read the input file.
+   * 
+   * @return the quotations in the input file, or null on error
+   */
+  private List<QuotationNode> readInputFile()
   {
     // Check how to read the input file
     if (bOpenDataFromJar)
     {
       // Read the file from the jar file
       InputStream is = getClass().getResourceAsStream(inputDataFile);
-      loadFromFileStream(is);
+      return loadFromFileStream(is);
     }
     else
     {
       // Open the input file (that's outside the jar file)
-      loadFromFile();
+      return loadFromFile(new File(inputDataFile));
     }
   }
   
@@ -1116,35 +2785,30 @@ public final class Quotes implements ComponentListener, ItemListener
   
   
   /**
-   * Returns the search filter.
+   * Returns the selected search mode.
    * 
-   * @param term the search term
-   * @param matchCase whether to match on case
-   * @return the search filter
+   * @return the search mode, or null if none is selected
    */
-  private TermFilter getSearchFilter(final String term,
-                                     final boolean matchCase)
+  private SearchMode getSearchMode()
   {
-    TermFilter tf = null;
-    
     if (btnRegex.isSelected())
     {
-      tf = new RegexFilter(term, !matchCase);
+      return SearchMode.REGEX;
     }
     else if (btnSoundex.isSelected())
     {
-      tf = new SoundFilter(term, !matchCase);
+      return SearchMode.SOUNDEX;
     }
     else if (btnWildcard.isSelected())
     {
-      tf = new WildcardFilter(term, !matchCase);
+      return SearchMode.WILDCARD;
     }
     else if (btnContains.isSelected())
     {
-      tf = new ContainsAllFilter(term, !matchCase);
+      return SearchMode.CONTAINS;
     }
     
-    return tf;
+    return null;
   }
   
   
@@ -1301,6 +2965,16 @@ public final class Quotes implements ComponentListener, ItemListener
    */
   private void exitApplication(final ActionEvent evt)
   {
+    // Write any pending edits, and delete the cold store's file
+    if (store != null)
+    {
+      store.close();
+    }
+    else if (corpus != null)
+    {
+      corpus.shutdown();
+    }
+    
     // The window closed, so exit the application
     Runtime.getRuntime().exit(0);
   }
@@ -1385,12 +3059,51 @@ public final class Quotes implements ComponentListener, ItemListener
   
   
   /**
-   * Main method for the application.
+   * Main method for the application.  If the first argument
+   * is -batch, -dedup, -export or -server, the rest are passed to
+   * the batch query runner, the duplicate finder, the exporter or
+   * the HTTP server instead of starting the user interface.
    * 
    * @param args command-line arguments
    */
   public static void main(final String[] args)
   {
+    // Answer a file of queries without starting the user interface
+    if ((args.length > 0) && args[0].equals("-batch"))
+    {
+      String[] batchArgs = new String[args.length - 1];
+      System.arraycopy(args, 1, batchArgs, 0, batchArgs.length);
+      BatchQuery.main(batchArgs);
+      return;
+    }
+    
+    // Find the near-duplicates in a data file
+    if ((args.length > 0) && args[0].equals("-dedup"))
+    {
+      String[] dedupArgs = new String[args.length - 1];
+      System.arraycopy(args, 1, dedupArgs, 0, dedupArgs.length);
+      DuplicateFinder.main(dedupArgs);
+      return;
+    }
+    
+    // Export the quotations without starting the user interface
+    if ((args.length > 0) && args[0].equals("-export"))
+    {
+      String[] exportArgs = new String[args.length - 1];
+      System.arraycopy(args, 1, exportArgs, 0, exportArgs.length);
+      QuoteExporter.main(exportArgs);
+      return;
+    }
+    
+    // Serve searches over HTTP without starting the user interface
+    if ((args.length > 0) && args[0].equals("-server"))
+    {
+      String[] serverArgs = new String[args.length - 1];
+      System.arraycopy(args, 1, serverArgs, 0, serverArgs.length);
+      QuoteServer.main(serverArgs);
+      return;
+    }
+    
     // Set up the Mac-related properties
     makeMacCompatible("Quotes");
     
@@ -1403,4 +3116,83 @@ public final class Quotes implements ComponentListener, ItemListener
       }
     });
   }
+  
+  
+  /**
+   * An edit saved in the background by saveEdit().
+   */
+  private interface EditTask
+  {
+    /**
+     * Save the edit.  This runs off the event thread.
+     * 
+     * @return the result to pass to saved()
+     * @throws IOException if the edit can't be saved
+     */
+    int save() throws IOException;
+    
+    /**
+     * Show the saved edit.  This runs on the event thread.
+     * 
+     * @param result the result of save()
+     */
+    void saved(int result);
+  }
+  
+  
+  /**
+   * Starts a live search when the text of a search field changes.
+   */
+  private final class LiveSearchListener implements DocumentListener
+  {
+    /**
+     * Whether this listens to the author field.
+     */
+    private final boolean bAuthor;
+    
+    
+    /**
+     * Create a listener.
+     * 
+     * @param bAuthorField whether this listens to the author field
+     */
+    LiveSearchListener(final boolean bAuthorField)
+    {
+      super();
+      bAuthor = bAuthorField;
+    }
+    
+    
+    /**
+     * Called when text is inserted.
+     * 
+     * @param e the event
+     */
+    public void insertUpdate(final DocumentEvent e)
+    {
+      scheduleLiveSearch(bAuthor);
+    }
+    
+    
+    /**
+     * Called when text is removed.
+     * 
+     * @param e the event
+     */
+    public void removeUpdate(final DocumentEvent e)
+    {
+      scheduleLiveSearch(bAuthor);
+    }
+    
+    
+    /**
+     * Called when attributes change, which doesn't affect a search.
+     * 
+     * @param e the event
+     */
+    public void changedUpdate(final DocumentEvent e)
+    {
+      // Plain text fields don't fire this
+    }
+  }
 }
@@ -0,0 +1,477 @@
+package io.miti.quotes.app;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.search.QueryKey;
+import io.miti.quotes.app.search.SearchMode;
+
+/**
+ * Runs searches for many concurrent callers, keeping expensive
+ * queries from starving cheap ones.  Each class of query has its
+ * own threads, which limits how many of them run at once, and its
+ * own bounded queue; once the queue is full, new searches of that
+ * class are rejected at once instead of waiting.  Every search has
+ * a deadline, counted from when it's submitted.  A scan that
+ * passes it stops, and returns a partial result; a search that
+ * waited until its deadline to start times out.
+ *
+ * Contains searches and searches for just an author are cheap;
+ * regular expressions, wildcards and Soundex searches, which
+ * can't use the folded text or the author index, are expensive.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class SearchExecutor
+{
+  /**
+   * How long to wait for a scan to stop after its deadline, in
+   * milliseconds.  A scan checks its deadline every few thousand
+   * quotations, so this is only reached if a single match is slow.
+   */
+  private static final long STOP_GRACE_MILLIS = 250L;
+
+  /**
+   * The classes of query, by how much work they are.
+   */
+  public enum Cost
+  {
+    /**
+     * Searches that are quick to run.
+     */
+    CHEAP,
+
+    /**
+     * Searches that may take much longer.
+     */
+    EXPENSIVE;
+  }
+
+  /**
+   * The search engine.
+   */
+  private final QuoteSearchEngine engine;
+
+  /**
+   * The threads for each class of query.
+   */
+  private final ThreadPoolExecutor[] pools;
+
+  /**
+   * The capacity of each queue.
+   */
+  private final int queueCapacity;
+
+  /**
+   * The number of searches finished in each class.
+   */
+  private final AtomicLong[] completed;
+
+  /**
+   * The number of searches rejected in each class.
+   */
+  private final AtomicLong[] rejected;
+
+  /**
+   * The number of searches in each class that returned a partial
+   * result at their deadline.
+   */
+  private final AtomicLong[] partial;
+
+  /**
+   * The number of searches in each class that passed their
+   * deadline with no result.
+   */
+  private final AtomicLong[] timedOut;
+
+
+  /**
+   * Create an executor.
+   *
+   * @param pEngine the search engine
+   * @param nCheapThreads the number of cheap searches run at once
+   * @param nExpensiveThreads the number of expensive searches run
+   *                          at once
+   * @param nQueueCapacity the number of searches of each class
+   *                       that may wait to run
+   */
+  public SearchExecutor(final QuoteSearchEngine pEngine,
+                        final int nCheapThreads,
+                        final int nExpensiveThreads,
+                        final int nQueueCapacity)
+  {
+    super();
+    engine = pEngine;
+    queueCapacity = Math.max(1, nQueueCapacity);
+
+    final int numClasses = Cost.values().length;
+    pools = new ThreadPoolExecutor[numClasses];
+    completed = new AtomicLong[numClasses];
+    rejected = new AtomicLong[numClasses];
+    partial = new AtomicLong[numClasses];
+    timedOut = new AtomicLong[numClasses];
+    for (Cost cost : Cost.values())
+    {
+      final int nThreads = Math.max(1, ((cost == Cost.CHEAP) ? nCheapThreads
+                                                             : nExpensiveThreads));
+      final int n = cost.ordinal();
+      pools[n] = createPool(nThreads, "quotes-" + cost.name().toLowerCase());
+      completed[n] = new AtomicLong(0L);
+      rejected[n] = new AtomicLong(0L);
+      partial[n] = new AtomicLong(0L);
+      timedOut[n] = new AtomicLong(0L);
+    }
+  }
+
+
+  /**
+   * Get the class of a query.
+   *
+   * @param query the query
+   * @return the class
+   */
+  public static Cost classify(final QueryKey query)
+  {
+    if ((query.getKeyword() == null) ||
+        (query.getMode() == SearchMode.CONTAINS))
+    {
+      return Cost.CHEAP;
+    }
+
+    return Cost.EXPENSIVE;
+  }
+
+
+  /**
+   * Search the current snapshot of the corpus, waiting for the
+   * answer.
+   *
+   * @param query the query
+   * @param nTimeoutMillis the time the search may take, including
+   *                       the time it waits to run
+   * @return the matches, which are partial if the search passed
+   *         its deadline
+   * @throws RejectedExecutionException if too many searches of
+   *         this class are already waiting
+   * @throws TimeoutException if the search didn't start before
+   *         its deadline
+   * @throws InterruptedException if the caller is interrupted
+   * @throws java.util.regex.PatternSyntaxException if the query is
+   *         a regular expression that isn't valid
+   */
+  public SearchResult search(final QueryKey query, final long nTimeoutMillis)
+    throws TimeoutException, InterruptedException
+  {
+    return search(query, null, nTimeoutMillis);
+  }
+
+
+  /**
+   * Search the current snapshot of the corpus, carrying on from
+   * where an earlier search of the query stopped, and wait for
+   * the answer.
+   *
+   * @param query the query
+   * @param continuation the continuation of an earlier result of
+   *                     the query, or null to start at the beginning
+   * @param nTimeoutMillis the time the search may take, including
+   *                       the time it waits to run
+   * @return the matches, which are partial if the search passed
+   *         its deadline
+   * @throws RejectedExecutionException if too many searches of
+   *         this class are already waiting
+   * @throws TimeoutException if the search didn't start before
+   *         its deadline
+   * @throws InterruptedException if the caller is interrupted
+   * @throws IllegalArgumentException if the continuation isn't
+   *         valid, or the query is a regular expression that isn't
+   */
+  public SearchResult search(final QueryKey query,
+                             final String continuation,
+                             final long nTimeoutMillis)
+    throws TimeoutException, InterruptedException
+  {
+    final CorpusSnapshot snapshot = engine.getSnapshot();
+    final SearchRun run = engine.createRun(query, continuation, snapshot);
+    execute(classify(query), new SearchRun[] {run}, snapshot, nTimeoutMillis);
+    return new SearchResult(run, snapshot);
+  }
+
+
+  /**
+   * Search a snapshot for many runs at once, waiting for the
+   * answers.  Runs that are still scanning at the deadline stop
+   * where they are, and are partial.
+   *
+   * @param cost the class to run them in
+   * @param runs the searches
+   * @param snapshot the snapshot to search
+   * @param nTimeoutMillis the time the search may take, including
+   *                       the time it waits to run
+   * @throws RejectedExecutionException if too many searches of
+   *         this class are already waiting
+   * @throws TimeoutException if the search didn't start before
+   *         its deadline, or didn't stop soon after it
+   * @throws InterruptedException if the caller is interrupted
+   */
+  void execute(final Cost cost,
+               final SearchRun[] runs,
+               final CorpusSnapshot snapshot,
+               final long nTimeoutMillis)
+    throws TimeoutException, InterruptedException
+  {
+    final int n = cost.ordinal();
+    final long deadline = System.nanoTime() +
+                          TimeUnit.MILLISECONDS.toNanos(Math.max(1L, nTimeoutMillis));
+    for (SearchRun run : runs)
+    {
+      run.setDeadline(deadline);
+    }
+
+    // Queue the search, or reject it if the queue is full
+    final AtomicBoolean started = new AtomicBoolean(false);
+    Future<?> future = null;
+    try
+    {
+      future = pools[n].submit(new Runnable()
+      {
+        public void run()
+        {
+          // Skip it if it waited too long to start
+          if ((System.nanoTime() - deadline) < 0L)
+          {
+            started.set(true);
+            engine.searchAll(runs, snapshot);
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException ree)
+    {
+      rejected[n].incrementAndGet();
+      throw new RejectedExecutionException("Too many " + cost.name().toLowerCase() +
+                                           " searches are waiting");
+    }
+
+    // Wait for it to finish, and then for a scan that's running
+    // at the deadline to stop
+    try
+    {
+      try
+      {
+        future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+      }
+      catch (TimeoutException te)
+      {
+        if (!started.get())
+        {
+          throw te;
+        }
+
+        future.get(STOP_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+      }
+    }
+    catch (TimeoutException te)
+    {
+      // Stop it, and take it off the queue if it hasn't started
+      stop(runs, future, n);
+      timedOut[n].incrementAndGet();
+      throw new TimeoutException("The search took longer than " +
+                                 nTimeoutMillis + " ms");
+    }
+    catch (InterruptedException ie)
+    {
+      stop(runs, future, n);
+      throw ie;
+    }
+    catch (ExecutionException ee)
+    {
+      final Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException)
+      {
+        throw (RuntimeException) cause;
+      }
+      else if (cause instanceof Error)
+      {
+        throw (Error) cause;
+      }
+
+      throw new IllegalStateException(cause);
+    }
+
+    // Count it as partial if any scan stopped at the deadline
+    for (SearchRun run : runs)
+    {
+      if (!run.isComplete(snapshot))
+      {
+        partial[n].incrementAndGet();
+        return;
+      }
+    }
+
+    completed[n].incrementAndGet();
+  }
+
+
+  /**
+   * Stop a search that's running or waiting.
+   *
+   * @param runs the searches
+   * @param future the task running them
+   * @param n the index of the class
+   */
+  private void stop(final SearchRun[] runs, final Future<?> future, final int n)
+  {
+    for (SearchRun run : runs)
+    {
+      run.cancel();
+    }
+
+    future.cancel(false);
+    pools[n].purge();
+  }
+
+
+  /**
+   * Get the number of threads for a class of query.
+   *
+   * @param cost the class
+   * @return the number of searches that may run at once
+   */
+  public int getThreadCount(final Cost cost)
+  {
+    return pools[cost.ordinal()].getMaximumPoolSize();
+  }
+
+
+  /**
+   * Get the number of searches of a class running now.
+   *
+   * @param cost the class
+   * @return the number of searches running
+   */
+  public int getActiveCount(final Cost cost)
+  {
+    return pools[cost.ordinal()].getActiveCount();
+  }
+
+
+  /**
+   * Get the number of searches of a class waiting to run.
+   *
+   * @param cost the class
+   * @return the depth of the queue
+   */
+  public int getQueueDepth(final Cost cost)
+  {
+    return pools[cost.ordinal()].getQueue().size();
+  }
+
+
+  /**
+   * Get the number of searches of each class that may wait.
+   *
+   * @return the capacity of each queue
+   */
+  public int getQueueCapacity()
+  {
+    return queueCapacity;
+  }
+
+
+  /**
+   * Get the number of searches of a class that finished in time.
+   *
+   * @param cost the class
+   * @return the number of searches completed
+   */
+  public long getCompletedCount(final Cost cost)
+  {
+    return completed[cost.ordinal()].get();
+  }
+
+
+  /**
+   * Get the number of searches of a class that returned partial
+   * results at their deadline.
+   *
+   * @param cost the class
+   * @return the number of partial searches
+   */
+  public long getPartialCount(final Cost cost)
+  {
+    return partial[cost.ordinal()].get();
+  }
+
+
+  /**
+   * Get the number of searches of a class that were rejected
+   * because the queue was full.
+   *
+   * @param cost the class
+   * @return the number of searches rejected
+   */
+  public long getRejectedCount(final Cost cost)
+  {
+    return rejected[cost.ordinal()].get();
+  }
+
+
+  /**
+   * Get the number of searches of a class that passed their
+   * deadline with no result.
+   *
+   * @param cost the class
+   * @return the number of searches timed out
+   */
+  public long getTimedOutCount(final Cost cost)
+  {
+    return timedOut[cost.ordinal()].get();
+  }
+
+
+  /**
+   * Stop the threads.  Searches that are waiting aren't run.
+   */
+  public void shutdown()
+  {
+    for (ThreadPoolExecutor pool : pools)
+    {
+      pool.shutdownNow();
+    }
+  }
+
+
+  /**
+   * Create the threads for a class of query.
+   *
+   * @param nThreads the number of threads
+   * @param name the name of the threads
+   * @return the pool
+   */
+  private ThreadPoolExecutor createPool(final int nThreads, final String name)
+  {
+    return new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(queueCapacity),
+      new ThreadFactory()
+      {
+        public Thread newThread(final Runnable r)
+        {
+          Thread t = new Thread(r, name);
+          t.setDaemon(true);
+          return t;
+        }
+      },
+      new ThreadPoolExecutor.AbortPolicy());
+  }
+}
@@ -0,0 +1,246 @@
+package io.miti.quotes.app;
+
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.search.Continuation;
+import io.miti.quotes.app.search.QueryKey;
+
+/**
+ * The answer to a query from the search engine: the IDs of the
+ * matching quotations, in corpus order, and the quotations
+ * themselves.  The IDs are only meaningful in the version of the
+ * corpus that was searched, which is kept with them.
+ *
+ * A search that ran out of time is partial: it has the matches
+ * in the part of the corpus it scanned, and a continuation to
+ * carry on from there.  A search that stopped at its limit has a
+ * continuation too, which gets the next page of matches.
+ *
+ * A result is immutable, and can be shared between threads.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class SearchResult
+{
+  /**
+   * The query.
+   */
+  private final QueryKey query;
+
+  /**
+   * The snapshot that was searched.
+   */
+  private final CorpusSnapshot snapshot;
+
+  /**
+   * The IDs of the matches.
+   */
+  private final int[] ids;
+
+  /**
+   * The matching quotations.
+   */
+  private final QuotationNode[] quotes;
+
+  /**
+   * Whether the search stopped at the query's limit.
+   */
+  private final boolean full;
+
+  /**
+   * Whether the search stopped at its deadline, before it scanned
+   * the whole corpus.
+   */
+  private final boolean partial;
+
+  /**
+   * The corpus position the search started from.
+   */
+  private final int startPosition;
+
+  /**
+   * The corpus position the search scanned up to.
+   */
+  private final int scannedUpTo;
+
+
+  /**
+   * Create a result from a finished search.
+   *
+   * @param run the search
+   * @param pSnapshot the snapshot that was searched
+   */
+  SearchResult(final SearchRun run, final CorpusSnapshot pSnapshot)
+  {
+    super();
+    query = run.getKey();
+    snapshot = pSnapshot;
+    full = run.isFull();
+    partial = !run.isComplete(pSnapshot);
+    startPosition = run.getStartPosition();
+    scannedUpTo = Math.min(run.getScannedUpTo(), pSnapshot.size());
+    quotes = run.getResults().toArray(new QuotationNode[run.getResults().size()]);
+    ids = new int[quotes.length];
+    for (int i = 0; i < ids.length; ++i)
+    {
+      ids[i] = run.getResultIds().get(i).intValue();
+    }
+  }
+
+
+  /**
+   * Get the query.
+   *
+   * @return the query
+   */
+  public QueryKey getQuery()
+  {
+    return query;
+  }
+
+
+  /**
+   * Get the snapshot that was searched.
+   *
+   * @return the snapshot
+   */
+  public CorpusSnapshot getSnapshot()
+  {
+    return snapshot;
+  }
+
+
+  /**
+   * Get the version of the corpus that was searched.
+   *
+   * @return the version
+   */
+  public long getVersion()
+  {
+    return snapshot.getVersion();
+  }
+
+
+  /**
+   * Get the number of matches.
+   *
+   * @return the number of matches
+   */
+  public int size()
+  {
+    return ids.length;
+  }
+
+
+  /**
+   * Get the ID of a match.
+   *
+   * @param nIndex the index of the match
+   * @return the ID
+   */
+  public int getId(final int nIndex)
+  {
+    return ids[nIndex];
+  }
+
+
+  /**
+   * Get the IDs of the matches.
+   *
+   * @return a copy of the IDs
+   */
+  public int[] getIds()
+  {
+    return ids.clone();
+  }
+
+
+  /**
+   * Get a matching quotation.
+   *
+   * @param nIndex the index of the match
+   * @return the quotation
+   */
+  public QuotationNode getQuote(final int nIndex)
+  {
+    return quotes[nIndex];
+  }
+
+
+  /**
+   * Returns whether the search stopped at the query's limit, so
+   * there may be more matches.
+   *
+   * @return whether the result is full
+   */
+  public boolean isFull()
+  {
+    return full;
+  }
+
+
+  /**
+   * Returns whether the search stopped at its deadline, so only
+   * part of the corpus was scanned.
+   *
+   * @return whether the result is partial
+   */
+  public boolean isPartial()
+  {
+    return partial;
+  }
+
+
+  /**
+   * Get the corpus position the search started from.
+   *
+   * @return the position, which is 0 unless it carried on from
+   *         an earlier search
+   */
+  public int getStartPosition()
+  {
+    return startPosition;
+  }
+
+
+  /**
+   * Get the corpus position the search scanned up to.
+   *
+   * @return the position
+   */
+  public int getScannedUpTo()
+  {
+    return scannedUpTo;
+  }
+
+
+  /**
+   * Get the size of the corpus that was searched, counting
+   * deleted quotations, in the same units as the positions.
+   *
+   * @return the size of the corpus
+   */
+  public int getCorpusSize()
+  {
+    return snapshot.size();
+  }
+
+
+  /**
+   * Get the continuation of a result that stopped before the end
+   * of the corpus, at its deadline or its limit, to carry on the
+   * search from where it stopped.
+   *
+   * @return the continuation token, or null if the whole corpus
+   *         was scanned
+   */
+  public String getContinuation()
+  {
+    if ((!partial && !full) || (scannedUpTo >= snapshot.size()))
+    {
+      return null;
+    }
+
+    return new Continuation(query, snapshot, scannedUpTo).toString();
+  }
+}
@@ -0,0 +1,608 @@
+package io.miti.quotes.app;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.filter.TermFilter;
+import io.miti.quotes.app.search.Continuation;
+import io.miti.quotes.app.search.NearDuplicates;
+import io.miti.quotes.app.search.QueryKey;
+
+/**
+ * One run of a search: the query and its filters, the matches
+ * found so far, and how far through the corpus it has scanned.
+ * A run can be extended as more of the corpus is loaded, and can
+ * be cancelled from another thread, such as when the user types
+ * another character before a live search has finished.  It can
+ * also be given a deadline, after which it counts as cancelled.
+ *
+ * A run can also be given candidates: the positions of every
+ * quotation that could match in part of the corpus, such as the
+ * matches of a previous run whose query it narrows.  Those are
+ * checked instead of scanning that part of the corpus.
+ *
+ * If the query collapses near-duplicates, a match whose cluster
+ * already has a match in the run is left out, and doesn't count
+ * towards the limit.  The next page of a run carries its clusters
+ * over, so a cluster shown on one page isn't shown again.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+final class SearchRun
+{
+  /**
+   * The normalized query.
+   */
+  private final QueryKey key;
+
+  /**
+   * The filter for the keyword, or null.
+   */
+  private final TermFilter nameFilter;
+
+  /**
+   * The filter for the author, or null.
+   */
+  private final TermFilter authorFilter;
+
+  /**
+   * The maximum number of matches, or -1 for no limit.
+   */
+  private final int limit;
+
+  /**
+   * The matching quotations.
+   */
+  private final List<QuotationNode> results = new ArrayList<QuotationNode>(100);
+
+  /**
+   * The IDs of the matching quotations.
+   */
+  private final List<Integer> resultIds = new ArrayList<Integer>(100);
+
+  /**
+   * The corpus position of each match.
+   */
+  private int[] positions = new int[100];
+
+  /**
+   * The corpus position the search started from.
+   */
+  private int startPosition = 0;
+
+  /**
+   * The corpus position the search has scanned up to.
+   */
+  private int scannedUpTo = 0;
+
+  /**
+   * Whether the search reached the match limit.
+   */
+  private boolean full = false;
+
+  /**
+   * The version of the corpus that was searched.
+   */
+  private long version = -1L;
+
+  /**
+   * Whether the position of every match is known, so a later
+   * run can narrow this one.
+   */
+  private boolean narrowable = true;
+
+  /**
+   * Whether the run has been cancelled.
+   */
+  private volatile boolean cancelled = false;
+
+  /**
+   * Whether the run has a deadline.
+   */
+  private volatile boolean hasDeadline = false;
+
+  /**
+   * The value of System.nanoTime() when the run expires.
+   */
+  private volatile long deadline = 0L;
+
+  /**
+   * The corpus positions of the candidates, sorted, or null.
+   */
+  private int[] candidatePositions = null;
+
+  /**
+   * The position the candidates cover the corpus up to.
+   */
+  private int candidatesScannedUpTo = 0;
+
+  /**
+   * The corpus version the candidate positions are for.
+   */
+  private long candidateVersion = -1L;
+
+  /**
+   * The clusters of near-duplicates to collapse, or null.
+   */
+  private NearDuplicates duplicates = null;
+
+  /**
+   * The clusters that already have a match, or null if there
+   * haven't been any.
+   */
+  private BitSet clustersSeen = null;
+
+  /**
+   * Where the search stopped in the snapshot it searched, or null
+   * if it hasn't been searched.
+   */
+  private Continuation stop = null;
+
+
+  /**
+   * Create a run.
+   *
+   * @param pKey the normalized query
+   * @param pNameFilter the filter for the keyword, or null
+   * @param pAuthorFilter the filter for the author, or null
+   * @param nLimit the maximum number of matches, or -1 for no limit
+   */
+  SearchRun(final QueryKey pKey,
+            final TermFilter pNameFilter,
+            final TermFilter pAuthorFilter,
+            final int nLimit)
+  {
+    super();
+    key = pKey;
+    nameFilter = pNameFilter;
+    authorFilter = pAuthorFilter;
+    limit = nLimit;
+  }
+
+
+  /**
+   * Create a new run of the same query, starting from scratch.
+   *
+   * @return the new run
+   */
+  SearchRun restart()
+  {
+    SearchRun run = new SearchRun(key, nameFilter, authorFilter, limit);
+    run.duplicates = duplicates;
+    return run;
+  }
+
+
+  /**
+   * Create a run of the same query for the next page of matches,
+   * carrying on from where this one stopped.  The place is found
+   * by the IDs on either side of it, so it survives compaction
+   * and loading.  Any clusters with a match so far are carried
+   * over, so later pages don't repeat them.
+   *
+   * @param snapshot the snapshot the next page will search
+   * @return the new run, which starts from the beginning if the
+   *         place this one stopped is no longer in the corpus
+   */
+  SearchRun nextPage(final CorpusSnapshot snapshot)
+  {
+    SearchRun run = restart();
+    final int nPosition = ((stop == null) ? -1 : stop.findPosition(snapshot));
+    if (nPosition > 0)
+    {
+      run.resumeFrom(nPosition);
+      if (clustersSeen != null)
+      {
+        run.clustersSeen = (BitSet) clustersSeen.clone();
+      }
+    }
+
+    return run;
+  }
+
+
+  /**
+   * Note where the search stopped in the snapshot it searched,
+   * for the next page.
+   *
+   * @param snapshot the snapshot that was searched
+   */
+  void markStop(final CorpusSnapshot snapshot)
+  {
+    stop = new Continuation(key, snapshot, Math.min(scannedUpTo, snapshot.size()));
+  }
+
+
+  /**
+   * Collapse the near-duplicates in a set of clusters, keeping
+   * the first match of each.  This must be called before the
+   * search.
+   *
+   * @param pDuplicates the clusters
+   */
+  void setDuplicates(final NearDuplicates pDuplicates)
+  {
+    duplicates = pDuplicates;
+  }
+
+
+  /**
+   * Returns whether near-duplicates are being collapsed.
+   *
+   * @return whether the run has clusters to collapse
+   */
+  boolean hasDuplicates()
+  {
+    return (duplicates != null);
+  }
+
+
+  /**
+   * Take the matches of a previous run as the candidates for
+   * this one, if this query narrows the previous one and the
+   * previous run searched the current version of the corpus.
+   * Both runs must start at the beginning of the corpus, since
+   * a page of matches says nothing about the pages before it.
+   * This copies the matches, so it must be called on the thread
+   * that owns the previous run.
+   *
+   * @param previous the previous run, or null
+   * @param nVersion the current corpus version
+   * @return whether the candidates were taken
+   */
+  boolean narrowFrom(final SearchRun previous, final long nVersion)
+  {
+    if ((previous == null) || !previous.narrowable ||
+        (previous.version != nVersion) ||
+        (previous.startPosition != 0) || (startPosition != 0) ||
+        (previous.results.size() != previous.resultIds.size()) ||
+        !key.isNarrowingOf(previous.key))
+    {
+      return false;
+    }
+
+    final int count = previous.results.size();
+    candidatePositions = new int[count];
+    System.arraycopy(previous.positions, 0, candidatePositions, 0, count);
+    candidatesScannedUpTo = previous.scannedUpTo;
+    candidateVersion = previous.version;
+    return true;
+  }
+
+
+  /**
+   * Take a set of quotations as the candidates, such as those of
+   * the authors that match the author filter.  They must include
+   * every quotation in the snapshot that could match.
+   *
+   * @param snapshot the snapshot
+   * @param pPositions the sorted positions of the candidates (not copied)
+   */
+  void setCandidates(final CorpusSnapshot snapshot, final int[] pPositions)
+  {
+    candidatePositions = pPositions;
+    candidatesScannedUpTo = snapshot.size();
+    candidateVersion = snapshot.getVersion();
+  }
+
+
+  /**
+   * Get the normalized query.
+   *
+   * @return the query
+   */
+  QueryKey getKey()
+  {
+    return key;
+  }
+
+
+  /**
+   * Get the filter for the keyword.
+   *
+   * @return the filter, or null
+   */
+  TermFilter getNameFilter()
+  {
+    return nameFilter;
+  }
+
+
+  /**
+   * Get the filter for the author.
+   *
+   * @return the filter, or null
+   */
+  TermFilter getAuthorFilter()
+  {
+    return authorFilter;
+  }
+
+
+  /**
+   * Get the matching quotations.  The list is shown in the table,
+   * and edits to the shown rows are made to it.
+   *
+   * @return the matches
+   */
+  List<QuotationNode> getResults()
+  {
+    return results;
+  }
+
+
+  /**
+   * Get the IDs of the matching quotations.
+   *
+   * @return the IDs
+   */
+  List<Integer> getResultIds()
+  {
+    return resultIds;
+  }
+
+
+  /**
+   * Add a match, unless it's a near-duplicate of an earlier
+   * match and the run collapses them.
+   *
+   * @param quote the quotation
+   * @param nId the ID of the quotation
+   * @param nPosition the corpus position, or -1 if it's unknown
+   */
+  void addMatch(final QuotationNode quote, final int nId, final int nPosition)
+  {
+    // Skip it if another quotation in its cluster matched
+    if (duplicates != null)
+    {
+      final int nCluster = duplicates.getCluster(nId);
+      if (nCluster >= 0)
+      {
+        if (clustersSeen == null)
+        {
+          clustersSeen = new BitSet(duplicates.getClusterCount());
+        }
+        else if (clustersSeen.get(nCluster))
+        {
+          return;
+        }
+
+        clustersSeen.set(nCluster);
+      }
+    }
+
+    final int index = results.size();
+    if (index == positions.length)
+    {
+      int[] newPositions = new int[index * 2];
+      System.arraycopy(positions, 0, newPositions, 0, index);
+      positions = newPositions;
+    }
+
+    positions[index] = nPosition;
+    narrowable = narrowable && (nPosition >= 0);
+    results.add(quote);
+    resultIds.add(Integer.valueOf(nId));
+  }
+
+
+  /**
+   * Returns whether the run has as many matches as it may have.
+   *
+   * @return whether the limit is reached
+   */
+  boolean isLimitReached()
+  {
+    return ((limit >= 0) && (results.size() >= limit));
+  }
+
+
+  /**
+   * Start the search part way through the corpus, carrying on
+   * from an earlier run of the query.  This must be called
+   * before the search.
+   *
+   * @param nPosition the corpus position to start from
+   */
+  void resumeFrom(final int nPosition)
+  {
+    startPosition = nPosition;
+    scannedUpTo = nPosition;
+  }
+
+
+  /**
+   * Get the corpus position the search started from.
+   *
+   * @return the position, which is 0 unless it was resumed
+   */
+  int getStartPosition()
+  {
+    return startPosition;
+  }
+
+
+  /**
+   * Get the corpus position the search has scanned up to.
+   *
+   * @return the position
+   */
+  int getScannedUpTo()
+  {
+    return scannedUpTo;
+  }
+
+
+  /**
+   * Set the corpus position the search has scanned up to.
+   *
+   * @param nPosition the position
+   */
+  void setScannedUpTo(final int nPosition)
+  {
+    scannedUpTo = nPosition;
+  }
+
+
+  /**
+   * Returns whether the search reached the match limit.
+   *
+   * @return whether the search is full
+   */
+  boolean isFull()
+  {
+    return full;
+  }
+
+
+  /**
+   * Set whether the search reached the match limit.
+   *
+   * @param bFull whether the search is full
+   */
+  void setFull(final boolean bFull)
+  {
+    full = bFull;
+  }
+
+
+  /**
+   * Get the version of the corpus that was searched.
+   *
+   * @return the version
+   */
+  long getVersion()
+  {
+    return version;
+  }
+
+
+  /**
+   * Set the version of the corpus that was searched.
+   *
+   * @param nVersion the version
+   */
+  void setVersion(final long nVersion)
+  {
+    version = nVersion;
+  }
+
+
+  /**
+   * Returns whether there are candidates from a previous run
+   * that can be used on a corpus version.
+   *
+   * @param nVersion the version being searched
+   * @return whether the candidates can be used
+   */
+  boolean hasCandidates(final long nVersion)
+  {
+    return ((candidatePositions != null) && (candidateVersion == nVersion));
+  }
+
+
+  /**
+   * Get the number of candidates.
+   *
+   * @return the number of candidates
+   */
+  int getCandidateCount()
+  {
+    return candidatePositions.length;
+  }
+
+
+  /**
+   * Get the corpus position of a candidate.
+   *
+   * @param nIndex the index of the candidate
+   * @return the position
+   */
+  int getCandidatePosition(final int nIndex)
+  {
+    return candidatePositions[nIndex];
+  }
+
+
+  /**
+   * Get the position the candidates cover the corpus up to.
+   *
+   * @return the position
+   */
+  int getCandidatesScannedUpTo()
+  {
+    return candidatesScannedUpTo;
+  }
+
+
+  /**
+   * Drop the candidates once they've been checked.
+   */
+  void clearCandidates()
+  {
+    candidatePositions = null;
+  }
+
+
+  /**
+   * Cancel the run.  A scan in progress stops soon after.
+   */
+  void cancel()
+  {
+    cancelled = true;
+  }
+
+
+  /**
+   * Returns whether the run has been cancelled, or has passed
+   * its deadline.
+   *
+   * @return whether the run was cancelled
+   */
+  boolean isCancelled()
+  {
+    return (cancelled || isExpired());
+  }
+
+
+  /**
+   * Give the run a deadline.  A scan in progress stops soon
+   * after it passes.
+   *
+   * @param nDeadline the value of System.nanoTime() when the
+   *                  run expires
+   */
+  void setDeadline(final long nDeadline)
+  {
+    deadline = nDeadline;
+    hasDeadline = true;
+  }
+
+
+  /**
+   * Returns whether the run has passed its deadline.
+   *
+   * @return whether the run has expired
+   */
+  boolean isExpired()
+  {
+    return (hasDeadline && ((System.nanoTime() - deadline) >= 0L));
+  }
+
+
+  /**
+   * Returns whether the run finished: it reached its limit, or
+   * scanned the whole of a snapshot.  A run that was cancelled
+   * part way through hasn't.
+   *
+   * @param snapshot the snapshot that was searched
+   * @return whether the run is complete
+   */
+  boolean isComplete(final CorpusSnapshot snapshot)
+  {
+    return (full || (scannedUpTo >= snapshot.size()));
+  }
+}
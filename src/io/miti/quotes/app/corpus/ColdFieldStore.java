@@ -0,0 +1,602 @@
+package io.miti.quotes.app.corpus;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.miti.quotes.app.QuotationNode;
+
+/**
+ * Holds the rarely used fields of the quotations (the bio and the
+ * source) in a file instead of on the heap.  They're only shown
+ * in the details pane, while searching only looks at the
+ * quotation, topic and name.
+ *
+ * Each quotation's cold fields are appended to the file as one
+ * record, and the quotation keeps the offset of its record.  The
+ * fields are read back on demand, through a small LRU cache.
+ *
+ * Records are never removed, so when the quotations are replaced
+ * the corpus starts a new store and retires the old one.  A
+ * retired store's file is closed and deleted once none of its
+ * quotations can be reached.
+ *
+ * A store can also be kept in a file that outlives it, such as
+ * the one a CorpusStore snapshot refers to.  That file is opened
+ * for appending, and it's never deleted by the store; its owner
+ * deletes it once nothing refers to it.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class ColdFieldStore implements QuotationNode.ColdStore
+{
+  /**
+   * The default number of records kept in the cache.
+   */
+  private static final int DEFAULT_CACHE_SIZE = 256;
+
+  /**
+   * The queue the retired stores are put on once they can't be
+   * reached.
+   */
+  private static final ReferenceQueue<ColdFieldStore> RETIRED =
+    new ReferenceQueue<ColdFieldStore>();
+
+  /**
+   * The files of the retired stores that haven't been deleted.
+   */
+  private static final Set<RetiredFile> RETIRED_FILES =
+    Collections.synchronizedSet(new HashSet<RetiredFile>());
+
+  /**
+   * The thread that deletes the files of retired stores, started
+   * when the first store is retired.
+   */
+  private static Thread reclaimer = null;
+
+  /**
+   * The file holding the records.
+   */
+  private final File file;
+
+  /**
+   * The file stream under out, for syncing.
+   */
+  private final FileOutputStream fileOut;
+
+  /**
+   * The stream used to append records.
+   */
+  private final DataOutputStream out;
+
+  /**
+   * The channel used to read records.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The file used to read records.
+   */
+  private final RandomAccessFile reader;
+
+  /**
+   * The offset of the next record to write.
+   */
+  private long writeOffset = 0L;
+
+  /**
+   * The number of bytes that have been flushed to the file.
+   */
+  private volatile long flushedOffset = 0L;
+
+  /**
+   * Whether the file is kept when the store is closed or retired.
+   */
+  private final boolean keep;
+
+  /**
+   * The number of records kept in the cache.
+   */
+  private final int cacheSize;
+
+  /**
+   * The cache of recently read records, in access order.
+   */
+  private final Map<Long, String[]> cache;
+
+
+  /**
+   * Create a store backed by a temporary file, which is deleted
+   * when the application exits.
+   *
+   * @throws IOException if the file can't be created
+   */
+  public ColdFieldStore() throws IOException
+  {
+    this(createTempFile(), DEFAULT_CACHE_SIZE);
+  }
+
+
+  /**
+   * Create a store backed by a file.  Anything already in the
+   * file is discarded.
+   *
+   * @param pFile the file to hold the records
+   * @param nCacheSize the number of records to cache
+   * @throws IOException if the file can't be opened
+   */
+  public ColdFieldStore(final File pFile, final int nCacheSize)
+    throws IOException
+  {
+    this(pFile, nCacheSize, false);
+  }
+
+
+  /**
+   * Create a store backed by a file.
+   *
+   * @param pFile the file to hold the records
+   * @param nCacheSize the number of records to cache
+   * @param bKeep whether to keep the file and the records already
+   *              in it, rather than start it empty and delete it
+   *              once the store is closed
+   * @throws IOException if the file can't be opened
+   */
+  ColdFieldStore(final File pFile, final int nCacheSize, final boolean bKeep)
+    throws IOException
+  {
+    super();
+    file = pFile;
+    keep = bKeep;
+    fileOut = new FileOutputStream(file, keep);
+    out = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+    reader = new RandomAccessFile(file, "r");
+    channel = reader.getChannel();
+    writeOffset = (keep ? file.length() : 0L);
+    flushedOffset = writeOffset;
+
+    cacheSize = Math.max(1, nCacheSize);
+    final int maxEntries = cacheSize;
+    cache = new LinkedHashMap<Long, String[]>(maxEntries * 2, 0.75f, true)
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Long, String[]> e)
+      {
+        return (size() > maxEntries);
+      }
+    };
+  }
+
+
+  /**
+   * Open a store on a file that's kept, such as the one a saved
+   * corpus refers to.  New records are added after the ones that
+   * are already there.
+   *
+   * @param pFile the file
+   * @return the store
+   * @throws IOException if the file can't be opened
+   */
+  static ColdFieldStore openKept(final File pFile) throws IOException
+  {
+    return new ColdFieldStore(pFile, DEFAULT_CACHE_SIZE, true);
+  }
+
+
+  /**
+   * Get the file holding the records.
+   *
+   * @return the file
+   */
+  File getFile()
+  {
+    return file;
+  }
+
+
+  /**
+   * Write out every record added so far, and wait until they're
+   * on the disk.
+   *
+   * @throws IOException if the records can't be written
+   */
+  synchronized void sync() throws IOException
+  {
+    out.flush();
+    flushedOffset = writeOffset;
+    fileOut.getFD().sync();
+  }
+
+
+  /**
+   * Move the cold fields of a quotation into the store.  The
+   * quotation will read them back from the store when asked.
+   *
+   * @param quote the quotation
+   * @throws IOException if the fields can't be written
+   */
+  public void spill(final QuotationNode quote) throws IOException
+  {
+    if (quote.hasColdFields())
+    {
+      return;
+    }
+
+    final long offset = append(quote.getBio(), quote.getSource());
+    quote.attachColdFields(this, offset);
+  }
+
+
+  /**
+   * Move the cold fields of a list of quotations into the store.
+   *
+   * @param list the quotations
+   * @throws IOException if the fields can't be written
+   */
+  public void spillAll(final List<QuotationNode> list) throws IOException
+  {
+    for (QuotationNode quote : list)
+    {
+      spill(quote);
+    }
+  }
+
+
+  /**
+   * Get the cold fields of a quotation.
+   *
+   * @param offset the offset of the record
+   * @param useCache whether to use (and fill) the cache; bulk
+   *                 readers should skip it so they don't evict
+   *                 the records the user is looking at
+   * @return the bio and the source, in that order
+   */
+  public String[] fetch(final long offset, final boolean useCache)
+  {
+    final Long key = Long.valueOf(offset);
+    if (useCache)
+    {
+      synchronized (cache)
+      {
+        final String[] fields = cache.get(key);
+        if (fields != null)
+        {
+          return fields;
+        }
+      }
+    }
+
+    String[] fields = null;
+    try
+    {
+      fields = read(offset);
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("IOException: " + ioe.getMessage());
+      return new String[2];
+    }
+
+    if (useCache)
+    {
+      synchronized (cache)
+      {
+        cache.put(key, fields);
+      }
+    }
+
+    return fields;
+  }
+
+
+  /**
+   * Create an empty store like this one, backed by a new
+   * temporary file, for a new set of quotations.
+   *
+   * @return the new store
+   * @throws IOException if the file can't be created
+   */
+  public ColdFieldStore createNext() throws IOException
+  {
+    return new ColdFieldStore(createTempFile(), cacheSize);
+  }
+
+
+  /**
+   * Stop adding to this store.  The quotations already in it can
+   * still read their fields, and the file is closed and deleted
+   * (unless it's kept) once none of them can be reached.
+   */
+  public void retire()
+  {
+    synchronized (this)
+    {
+      try
+      {
+        out.close();
+      }
+      catch (IOException ioe)
+      {
+        System.err.println("IOException: " + ioe.getMessage());
+      }
+
+      // Everything is on disk, so reads don't need to flush
+      flushedOffset = writeOffset;
+    }
+
+    RETIRED_FILES.add(new RetiredFile(this, reader, (keep ? null : file)));
+    startReclaimer();
+  }
+
+
+  /**
+   * Close the store, and delete its file unless it's kept.
+   */
+  public void close()
+  {
+    try
+    {
+      synchronized (this)
+      {
+        out.close();
+      }
+      reader.close();
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("IOException: " + ioe.getMessage());
+    }
+
+    if (!keep)
+    {
+      file.delete();
+    }
+  }
+
+
+  /**
+   * Append a record.
+   *
+   * @param bio the bio
+   * @param source the source
+   * @return the offset of the record
+   * @throws IOException if the record can't be written
+   */
+  synchronized long append(final String bio, final String source)
+    throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+    DataOutputStream data = new DataOutputStream(bytes);
+    writeString(data, bio);
+    writeString(data, source);
+    data.flush();
+
+    final long offset = writeOffset;
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+    writeOffset += 4 + bytes.size();
+    return offset;
+  }
+
+
+  /**
+   * Read a record.
+   *
+   * @param offset the offset of the record
+   * @return the bio and the source
+   * @throws IOException if the record can't be read
+   */
+  private String[] read(final long offset) throws IOException
+  {
+    // Make sure the record has been written out
+    if (offset >= flushedOffset)
+    {
+      synchronized (this)
+      {
+        out.flush();
+        flushedOffset = writeOffset;
+      }
+    }
+
+    // Positional reads don't move the channel, so no lock is needed
+    ByteBuffer lenBuf = ByteBuffer.allocate(4);
+    readFully(lenBuf, offset);
+    lenBuf.flip();
+    ByteBuffer buf = ByteBuffer.allocate(lenBuf.getInt());
+    readFully(buf, offset + 4);
+    buf.flip();
+
+    String[] fields = new String[2];
+    fields[0] = readString(buf);
+    fields[1] = readString(buf);
+    return fields;
+  }
+
+
+  /**
+   * Fill a buffer from the file.
+   *
+   * @param buf the buffer
+   * @param position the file position
+   * @throws IOException if the end of the file is reached
+   */
+  private void readFully(final ByteBuffer buf, final long position)
+    throws IOException
+  {
+    long pos = position;
+    while (buf.hasRemaining())
+    {
+      final int n = channel.read(buf, pos);
+      if (n < 0)
+      {
+        throw new IOException("Unexpected end of " + file);
+      }
+
+      pos += n;
+    }
+  }
+
+
+  /**
+   * Write a nullable string as a length and UTF-8 bytes.
+   *
+   * @param data the output stream
+   * @param str the string
+   * @throws IOException on error
+   */
+  private static void writeString(final DataOutputStream data,
+                                  final String str) throws IOException
+  {
+    if (str == null)
+    {
+      data.writeInt(-1);
+      return;
+    }
+
+    final byte[] b = str.getBytes("UTF-8");
+    data.writeInt(b.length);
+    data.write(b);
+  }
+
+
+  /**
+   * Read a nullable string written by writeString().
+   *
+   * @param buf the buffer
+   * @return the string
+   * @throws IOException on error
+   */
+  private static String readString(final ByteBuffer buf) throws IOException
+  {
+    final int len = buf.getInt();
+    if (len < 0)
+    {
+      return null;
+    }
+
+    final String str = new String(buf.array(), buf.position(), len, "UTF-8");
+    buf.position(buf.position() + len);
+    return str;
+  }
+
+
+  /**
+   * Start the thread that deletes the files of retired stores,
+   * if it isn't running.
+   */
+  private static synchronized void startReclaimer()
+  {
+    if (reclaimer != null)
+    {
+      return;
+    }
+
+    reclaimer = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        while (true)
+        {
+          try
+          {
+            final RetiredFile retired = (RetiredFile) RETIRED.remove();
+            RETIRED_FILES.remove(retired);
+            retired.delete();
+          }
+          catch (InterruptedException ie)
+          {
+            return;
+          }
+        }
+      }
+    }, "cold-store-reclaimer");
+    reclaimer.setDaemon(true);
+    reclaimer.start();
+  }
+
+
+  /**
+   * Create the temporary file for a store.
+   *
+   * @return the file
+   * @throws IOException if the file can't be created
+   */
+  private static File createTempFile() throws IOException
+  {
+    File f = File.createTempFile("quotes", ".cold");
+    f.deleteOnExit();
+    return f;
+  }
+
+
+  /**
+   * The file of a retired store, which is closed and deleted once
+   * the store can't be reached.
+   */
+  private static final class RetiredFile extends PhantomReference<ColdFieldStore>
+  {
+    /**
+     * The file used to read records.
+     */
+    private final RandomAccessFile reader;
+
+    /**
+     * The file holding the records, or null if it's kept.
+     */
+    private final File file;
+
+
+    /**
+     * Create the reference.
+     *
+     * @param store the retired store
+     * @param pReader the file used to read records
+     * @param pFile the file holding the records, or null to keep it
+     */
+    RetiredFile(final ColdFieldStore store, final RandomAccessFile pReader,
+                final File pFile)
+    {
+      super(store, RETIRED);
+      reader = pReader;
+      file = pFile;
+    }
+
+
+    /**
+     * Close the file, and delete it unless it's kept.
+     */
+    void delete()
+    {
+      try
+      {
+        reader.close();
+      }
+      catch (IOException ioe)
+      {
+        System.err.println("IOException: " + ioe.getMessage());
+      }
+
+      if (file != null)
+      {
+        file.delete();
+      }
+    }
+  }
+}
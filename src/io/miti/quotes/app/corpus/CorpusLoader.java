@@ -0,0 +1,432 @@
+package io.miti.quotes.app.corpus;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import io.miti.quotes.app.QuotationNode;
+
+/**
+ * Loads a serialized list of quotations into a corpus one record
+ * at a time, publishing them in batches so the loaded prefix of
+ * the corpus can be searched while the rest is still loading.
+ *
+ * The data file is a single serialized List, which can't be read
+ * piecemeal through the List API.  Instead, the object stream has
+ * object replacement turned on, which hands us each QuotationNode
+ * as soon as it has been deserialized.
+ *
+ * A corpus saved by a CorpusStore is instead a run of records in
+ * the layout OffHeapQuoteStore uses, which are copied into the
+ * corpus as they are, without making any objects.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class CorpusLoader
+{
+  /**
+   * The number of quotations published at a time.
+   */
+  private static final int BATCH_SIZE = 5000;
+
+  /**
+   * Callback for progress while loading.
+   */
+  public interface Listener
+  {
+    /**
+     * Called on the loading thread after each batch of
+     * quotations has been published to the corpus.
+     *
+     * @param snapshot the snapshot including the new batch
+     * @param bytesRead the number of bytes read so far
+     * @param totalBytes the size of the input, or -1 if unknown
+     */
+    void quotesLoaded(CorpusSnapshot snapshot, long bytesRead, long totalBytes);
+  }
+
+
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private CorpusLoader()
+  {
+    super();
+  }
+
+
+  /**
+   * Read a serialized list of quotations into a corpus.  The
+   * quotations are appended in batches with consecutive IDs.
+   * The stream is left open after the list, so the caller can
+   * read anything that follows it.
+   *
+   * @param in the object stream to read
+   * @param corpus the corpus to add the quotations to
+   * @param listener the progress listener (may be null)
+   * @return the number of quotations read
+   * @throws IOException if the list can't be read
+   */
+  public static int load(final QuoteInputStream in,
+                         final SegmentedCorpus corpus,
+                         final Listener listener) throws IOException
+  {
+    in.target = corpus;
+    in.listener = listener;
+    try
+    {
+      in.readObject();
+    }
+    catch (ClassNotFoundException cnfe)
+    {
+      throw new IOException("Class not found: " + cnfe.getMessage());
+    }
+    finally
+    {
+      // Publish whatever's left in the last batch
+      in.publishBatch();
+      corpus.sealBatches();
+      in.target = null;
+      in.listener = null;
+    }
+
+    return in.count;
+  }
+
+
+  /**
+   * Read a run of encoded records into a corpus, such as those
+   * in a snapshot saved by a CorpusStore.  The records are copied
+   * into the corpus's records as they are, in batches with
+   * consecutive IDs, so the bio and source of a cold record stay
+   * wherever its offset points; the corpus's cold store must be
+   * the file they were saved to.
+   *
+   * @param in the stream, positioned at the first record
+   * @param count the number of records
+   * @param corpus the corpus to add the quotations to
+   * @param listener the progress listener (may be null)
+   * @param nStart the number of bytes before the first record
+   * @param totalBytes the size of the input, or -1 if unknown
+   * @return the number of quotations read
+   * @throws IOException if the records can't be read
+   */
+  static int loadRecords(final DataInputStream in,
+                         final int count,
+                         final SegmentedCorpus corpus,
+                         final Listener listener,
+                         final long nStart,
+                         final long totalBytes) throws IOException
+  {
+    byte[] buf = new byte[1 << 20];
+    int used = 0;
+    int numInBatch = 0;
+    int numLoaded = 0;
+    long bytesRead = nStart;
+    try
+    {
+      for (int i = 0; i < count; ++i)
+      {
+        // Copy the record a field at a time, since it's not prefixed
+        // with its length
+        for (int f = 0; f < OffHeapQuoteStore.FIELD_COUNT; ++f)
+        {
+          if (buf.length - used < OffHeapQuoteStore.FIELD_HEADER)
+          {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+          }
+
+          in.readFully(buf, used, OffHeapQuoteStore.FIELD_HEADER);
+          final int len = ByteBuffer.wrap(buf, used + 1, 4)
+                                    .order(OffHeapQuoteStore.ORDER).getInt();
+          if (len < 0)
+          {
+            throw new IOException("Bad record " + i + " in the saved corpus");
+          }
+
+          used += OffHeapQuoteStore.FIELD_HEADER;
+          if (buf.length - used < len)
+          {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, used + len));
+          }
+
+          in.readFully(buf, used, len);
+          used += len;
+        }
+
+        // Publish a full batch
+        if (++numInBatch >= BATCH_SIZE)
+        {
+          bytesRead += used;
+          publishRecords(buf, used, numInBatch, corpus, listener,
+                         bytesRead, totalBytes);
+          numLoaded += numInBatch;
+          used = 0;
+          numInBatch = 0;
+        }
+      }
+    }
+    finally
+    {
+      // Publish whatever's left in the last batch
+      if (numInBatch > 0)
+      {
+        bytesRead += used;
+        publishRecords(buf, used, numInBatch, corpus, listener,
+                       bytesRead, totalBytes);
+        numLoaded += numInBatch;
+      }
+
+      corpus.sealBatches();
+    }
+
+    return numLoaded;
+  }
+
+
+  /**
+   * Add a batch of encoded records to a corpus, and report it.
+   *
+   * @param buf the records
+   * @param used the number of bytes in the records
+   * @param num the number of records
+   * @param corpus the corpus to add the quotations to
+   * @param listener the progress listener (may be null)
+   * @param bytesRead the number of bytes read so far
+   * @param totalBytes the size of the input, or -1 if unknown
+   */
+  private static void publishRecords(final byte[] buf,
+                                     final int used,
+                                     final int num,
+                                     final SegmentedCorpus corpus,
+                                     final Listener listener,
+                                     final long bytesRead,
+                                     final long totalBytes)
+  {
+    corpus.appendRecords(ByteBuffer.wrap(buf, 0, used)
+                                   .order(OffHeapQuoteStore.ORDER), num);
+    if (listener != null)
+    {
+      listener.quotesLoaded(corpus.getSnapshot(), bytesRead, totalBytes);
+    }
+  }
+
+
+  /**
+   * Open a quotation stream on an input stream.
+   *
+   * @param is the input stream
+   * @param totalBytes the size of the input, or -1 if unknown
+   * @return the reader
+   * @throws IOException if the stream header can't be read
+   */
+  public static QuoteInputStream open(final InputStream is,
+                                      final long totalBytes)
+    throws IOException
+  {
+    return new QuoteInputStream(
+        new CountingStream(new BufferedInputStream(is, 65536)), totalBytes);
+  }
+
+
+  /**
+   * An object stream that passes each quotation to the corpus
+   * as soon as it has been read.
+   */
+  public static final class QuoteInputStream extends ObjectInputStream
+  {
+    /**
+     * The underlying stream, for counting bytes.
+     */
+    private final CountingStream counter;
+
+    /**
+     * The size of the input, or -1 if unknown.
+     */
+    private final long totalBytes;
+
+    /**
+     * The corpus being loaded, while a list is being read.
+     */
+    private SegmentedCorpus target = null;
+
+    /**
+     * The progress listener.
+     */
+    private Listener listener = null;
+
+    /**
+     * The current batch.
+     */
+    private final QuotationNode[] batch = new QuotationNode[BATCH_SIZE];
+
+    /**
+     * The number of quotations in the current batch.
+     */
+    private int batchCount = 0;
+
+    /**
+     * The number of quotations read.
+     */
+    private int count = 0;
+
+
+    /**
+     * Create the stream.
+     *
+     * @param in the counting stream
+     * @param nTotalBytes the size of the input, or -1 if unknown
+     * @throws IOException if the stream header can't be read
+     */
+    private QuoteInputStream(final CountingStream in, final long nTotalBytes)
+      throws IOException
+    {
+      super(in);
+      counter = in;
+      totalBytes = nTotalBytes;
+      enableResolveObject(true);
+    }
+
+
+    /**
+     * Called for each object as it's deserialized.
+     *
+     * @param obj the object
+     * @return the same object
+     */
+    @Override
+    protected Object resolveObject(final Object obj)
+    {
+      if ((target != null) && (obj instanceof QuotationNode))
+      {
+        batch[batchCount++] = (QuotationNode) obj;
+        ++count;
+        if (batchCount >= BATCH_SIZE)
+        {
+          publishBatch();
+        }
+      }
+
+      return obj;
+    }
+
+
+    /**
+     * Publish the current batch.
+     */
+    private void publishBatch()
+    {
+      if ((target == null) || (batchCount == 0))
+      {
+        return;
+      }
+
+      target.appendBatch(batch, batchCount);
+      batchCount = 0;
+      if (listener != null)
+      {
+        listener.quotesLoaded(target.getSnapshot(), counter.getCount(),
+                              totalBytes);
+      }
+    }
+  }
+
+
+  /**
+   * An input stream that counts the bytes read through it.
+   */
+  private static final class CountingStream extends FilterInputStream
+  {
+    /**
+     * The number of bytes read.
+     */
+    private long count = 0L;
+
+
+    /**
+     * Create the stream.
+     *
+     * @param in the underlying stream
+     */
+    CountingStream(final InputStream in)
+    {
+      super(in);
+    }
+
+
+    /**
+     * Get the number of bytes read.
+     *
+     * @return the number of bytes read
+     */
+    long getCount()
+    {
+      return count;
+    }
+
+
+    /**
+     * Read a byte.
+     *
+     * @return the byte, or -1 at the end of the stream
+     * @throws IOException on error
+     */
+    @Override
+    public int read() throws IOException
+    {
+      final int b = super.read();
+      if (b >= 0)
+      {
+        ++count;
+      }
+
+      return b;
+    }
+
+
+    /**
+     * Read into an array.
+     *
+     * @param b the array
+     * @param off the offset in the array
+     * @param len the maximum number of bytes to read
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException on error
+     */
+    @Override
+    public int read(final byte[] b, final int off, final int len)
+      throws IOException
+    {
+      final int n = super.read(b, off, len);
+      if (n > 0)
+      {
+        count += n;
+      }
+
+      return n;
+    }
+
+
+    /**
+     * Skip bytes.
+     *
+     * @param n the number of bytes to skip
+     * @return the number of bytes skipped
+     * @throws IOException on error
+     */
+    @Override
+    public long skip(final long n) throws IOException
+    {
+      final long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+}
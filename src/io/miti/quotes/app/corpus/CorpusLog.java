@@ -0,0 +1,589 @@
+package io.miti.quotes.app.corpus;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import io.miti.quotes.app.QuotationNode;
+
+/**
+ * An append-only write-ahead log of corpus edits.  Each record
+ * is an add, update or delete, written as:
+ *
+ *   int    payload length
+ *   byte[] payload (op, ID, and the fields for adds and updates)
+ *   long   CRC-32 of the payload
+ *
+ * Records are written by a single background thread.  Whatever
+ * has been queued since the last write is written together and
+ * made durable with one fsync (group commit), so concurrent
+ * editors share the cost of the sync.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class CorpusLog
+{
+  /**
+   * The op code for adding a quotation.
+   */
+  static final byte OP_ADD = 1;
+
+  /**
+   * The op code for updating a quotation.
+   */
+  static final byte OP_UPDATE = 2;
+
+  /**
+   * The op code for deleting a quotation.
+   */
+  static final byte OP_DELETE = 3;
+
+  /**
+   * The largest payload we'll accept when reading the log.
+   */
+  private static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+  /**
+   * The log file.
+   */
+  private final File file;
+
+  /**
+   * The open log file.
+   */
+  private final RandomAccessFile raf;
+
+  /**
+   * The channel for the log file.
+   */
+  private final FileChannel channel;
+
+  /**
+   * The lock guarding the queue and sequence numbers.
+   */
+  private final Object lock = new Object();
+
+  /**
+   * The records waiting to be written.
+   */
+  private List<byte[]> queue = new ArrayList<byte[]>(32);
+
+  /**
+   * The sequence number of the last queued record.
+   */
+  private long appendedSeq = 0L;
+
+  /**
+   * The sequence number of the last durable record.
+   */
+  private long durableSeq = 0L;
+
+  /**
+   * Whether the log has been closed.
+   */
+  private boolean closed = false;
+
+  /**
+   * The error from the writer thread, if any.
+   */
+  private IOException failure = null;
+
+  /**
+   * The writer thread.
+   */
+  private final Thread writer;
+
+
+  /**
+   * Open a log file for appending.
+   *
+   * @param pFile the log file
+   * @throws IOException if the file can't be opened
+   */
+  public CorpusLog(final File pFile) throws IOException
+  {
+    super();
+    file = pFile;
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+    channel.position(channel.size());
+
+    writer = new Thread(new Runnable()
+    {
+      public void run()
+      {
+        writeLoop();
+      }
+    }, "corpus-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+
+  /**
+   * Get the log file.
+   *
+   * @return the log file
+   */
+  public File getFile()
+  {
+    return file;
+  }
+
+
+  /**
+   * Queue a record for writing.
+   *
+   * @param record the encoded record
+   * @return the sequence number of the record
+   * @throws IOException if the log is closed or has failed
+   */
+  public long append(final byte[] record) throws IOException
+  {
+    synchronized (lock)
+    {
+      if (failure != null)
+      {
+        throw failure;
+      }
+      else if (closed)
+      {
+        throw new IOException("The log is closed: " + file);
+      }
+
+      queue.add(record);
+      ++appendedSeq;
+      lock.notifyAll();
+      return appendedSeq;
+    }
+  }
+
+
+  /**
+   * Wait until a record is durable on disk.
+   *
+   * @param seq the sequence number of the record
+   * @throws IOException if the record could not be written
+   */
+  public void awaitDurable(final long seq) throws IOException
+  {
+    synchronized (lock)
+    {
+      while ((durableSeq < seq) && (failure == null))
+      {
+        try
+        {
+          lock.wait();
+        }
+        catch (InterruptedException ie)
+        {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted waiting for the log");
+        }
+      }
+
+      if (durableSeq < seq)
+      {
+        throw failure;
+      }
+    }
+  }
+
+
+  /**
+   * Wait until a record has been written, or the write has
+   * failed.  Unlike awaitDurable(), this can't be interrupted,
+   * since the caller needs to know which it was.
+   *
+   * @param seq the sequence number of the record
+   * @return null if the record is durable, or the error
+   */
+  IOException waitForWrite(final long seq)
+  {
+    boolean bInterrupted = false;
+    synchronized (lock)
+    {
+      while ((durableSeq < seq) && (failure == null))
+      {
+        try
+        {
+          lock.wait();
+        }
+        catch (InterruptedException ie)
+        {
+          bInterrupted = true;
+        }
+      }
+
+      if (bInterrupted)
+      {
+        Thread.currentThread().interrupt();
+      }
+
+      return ((durableSeq < seq) ? failure : null);
+    }
+  }
+
+
+  /**
+   * Write any queued records and close the log.
+   */
+  public void close()
+  {
+    synchronized (lock)
+    {
+      closed = true;
+      lock.notifyAll();
+    }
+
+    try
+    {
+      writer.join();
+    }
+    catch (InterruptedException ie)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    try
+    {
+      raf.close();
+    }
+    catch (IOException ioe)
+    {
+      System.err.println("IOException: " + ioe.getMessage());
+    }
+  }
+
+
+  /**
+   * The body of the writer thread.  Each pass writes every
+   * queued record and syncs once.
+   */
+  private void writeLoop()
+  {
+    while (true)
+    {
+      // Wait for work
+      List<byte[]> batch = null;
+      long lastSeq = 0L;
+      synchronized (lock)
+      {
+        while (queue.isEmpty() && !closed)
+        {
+          try
+          {
+            lock.wait();
+          }
+          catch (InterruptedException ie)
+          {
+            closed = true;
+          }
+        }
+
+        if (queue.isEmpty())
+        {
+          // Closed and nothing left to write
+          return;
+        }
+
+        batch = queue;
+        lastSeq = appendedSeq;
+        queue = new ArrayList<byte[]>(32);
+      }
+
+      // Write the batch and sync once
+      IOException error = null;
+      try
+      {
+        int total = 0;
+        for (byte[] record : batch)
+        {
+          total += record.length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(total);
+        for (byte[] record : batch)
+        {
+          buf.put(record);
+        }
+
+        buf.flip();
+        while (buf.hasRemaining())
+        {
+          channel.write(buf);
+        }
+
+        channel.force(false);
+      }
+      catch (IOException ioe)
+      {
+        error = ioe;
+      }
+
+      // Wake up the waiting editors
+      synchronized (lock)
+      {
+        if (error == null)
+        {
+          durableSeq = lastSeq;
+        }
+        else
+        {
+          failure = error;
+        }
+
+        lock.notifyAll();
+      }
+    }
+  }
+
+
+  /**
+   * Encode a record.
+   *
+   * @param op the op code
+   * @param nId the quotation ID
+   * @param quote the quotation (null for deletes)
+   * @return the encoded record
+   */
+  static byte[] encode(final byte op, final int nId, final QuotationNode quote)
+  {
+    try
+    {
+      // Build the payload
+      ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+      DataOutputStream out = new DataOutputStream(payload);
+      out.writeByte(op);
+      out.writeInt(nId);
+      if (quote != null)
+      {
+        writeString(out, quote.getFirstName());
+        writeString(out, quote.getLastName());
+        writeString(out, quote.getBio());
+        writeString(out, quote.getSource());
+        writeString(out, quote.getTopic());
+        writeString(out, quote.getQuotation());
+      }
+      out.flush();
+
+      // Add the length and checksum
+      final byte[] data = payload.toByteArray();
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, data.length);
+
+      ByteArrayOutputStream record = new ByteArrayOutputStream(data.length + 12);
+      DataOutputStream rout = new DataOutputStream(record);
+      rout.writeInt(data.length);
+      rout.write(data);
+      rout.writeLong(crc.getValue());
+      rout.flush();
+      return record.toByteArray();
+    }
+    catch (IOException ioe)
+    {
+      // Can't happen with a byte array stream
+      throw new RuntimeException(ioe);
+    }
+  }
+
+
+  /**
+   * Replay a log file into a corpus.  Replay stops at the first
+   * incomplete or corrupt record (a write that was cut short by
+   * a crash), and the file is truncated there.
+   *
+   * @param logFile the log file
+   * @param corpus the corpus to apply the edits to
+   * @return the number of records applied
+   * @throws IOException if the file can't be read
+   */
+  static int replay(final File logFile, final SegmentedCorpus corpus)
+    throws IOException
+  {
+    int count = 0;
+    long goodLength = 0L;
+    DataInputStream in = null;
+    try
+    {
+      in = new DataInputStream(new BufferedInputStream(
+                  new FileInputStream(logFile), 65536));
+      while (true)
+      {
+        // Read the next record
+        final int len;
+        try
+        {
+          len = in.readInt();
+        }
+        catch (EOFException eof)
+        {
+          break;
+        }
+
+        if ((len < 5) || (len > MAX_PAYLOAD))
+        {
+          break;
+        }
+
+        byte[] data = new byte[len];
+        final long checksum;
+        try
+        {
+          in.readFully(data);
+          checksum = in.readLong();
+        }
+        catch (EOFException eof)
+        {
+          break;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, len);
+        if (crc.getValue() != checksum)
+        {
+          break;
+        }
+
+        // Apply it
+        apply(data, corpus);
+        goodLength += (len + 12);
+        ++count;
+      }
+    }
+    finally
+    {
+      if (in != null)
+      {
+        in.close();
+      }
+    }
+
+    // Drop any partial record at the end
+    if (logFile.length() > goodLength)
+    {
+      RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+      try
+      {
+        file.setLength(goodLength);
+      }
+      finally
+      {
+        file.close();
+      }
+    }
+
+    return count;
+  }
+
+
+  /**
+   * Apply one record to the corpus.
+   *
+   * @param data the payload of the record
+   * @param corpus the corpus
+   * @throws IOException if the record is malformed
+   */
+  private static void apply(final byte[] data, final SegmentedCorpus corpus)
+    throws IOException
+  {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+    final byte op = in.readByte();
+    final int id = in.readInt();
+    switch (op)
+    {
+      case OP_ADD:
+        corpus.insert(id, readQuote(in));
+        break;
+
+      case OP_UPDATE:
+        corpus.update(id, readQuote(in));
+        break;
+
+      case OP_DELETE:
+        corpus.delete(id);
+        break;
+
+      default:
+        throw new IOException("Unknown log op: " + op);
+    }
+  }
+
+
+  /**
+   * Read the fields of a quotation.
+   *
+   * @param in the input stream
+   * @return the quotation
+   * @throws IOException if the data is malformed
+   */
+  private static QuotationNode readQuote(final DataInputStream in)
+    throws IOException
+  {
+    QuotationNode quote = new QuotationNode();
+    quote.setFirstName(readString(in));
+    quote.setLastName(readString(in));
+    quote.setBio(readString(in));
+    quote.setSource(readString(in));
+    quote.setTopic(readString(in));
+    quote.setQuotation(readString(in));
+    return quote;
+  }
+
+
+  /**
+   * Write a nullable string as a length and UTF-8 bytes.
+   *
+   * @param out the output stream
+   * @param str the string
+   * @throws IOException on error
+   */
+  private static void writeString(final DataOutputStream out,
+                                  final String str) throws IOException
+  {
+    if (str == null)
+    {
+      out.writeInt(-1);
+      return;
+    }
+
+    final byte[] bytes = str.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+
+  /**
+   * Read a nullable string written by writeString().
+   *
+   * @param in the input stream
+   * @return the string
+   * @throws IOException on error
+   */
+  private static String readString(final DataInputStream in)
+    throws IOException
+  {
+    final int len = in.readInt();
+    if (len < 0)
+    {
+      return null;
+    }
+
+    byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+}
@@ -0,0 +1,348 @@
+package io.miti.quotes.app.corpus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.miti.quotes.app.QuotationNode;
+
+/**
+ * An immutable, point-in-time view of the corpus.  A search
+ * should grab one snapshot and use it for the whole scan, so
+ * it sees a consistent set of quotations while writes continue.
+ *
+ * Positions run from zero to size() - 1 across all segments,
+ * in segment order.  A position may refer to a deleted quotation,
+ * so callers should check isLive() while scanning.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class CorpusSnapshot
+{
+  /**
+   * The segments, in order.
+   */
+  private final Segment[] segments;
+
+  /**
+   * The starting position of each segment.
+   */
+  private final int[] starts;
+
+  /**
+   * The total number of positions.
+   */
+  private final int size;
+
+  /**
+   * The number of live quotations.
+   */
+  private final int liveCount;
+
+  /**
+   * The version of the corpus this snapshot represents.
+   */
+  private final long version;
+
+
+  /**
+   * Create a snapshot.
+   *
+   * @param pSegments the segments (not copied)
+   * @param nVersion the version number
+   */
+  CorpusSnapshot(final Segment[] pSegments, final long nVersion)
+  {
+    super();
+    segments = pSegments;
+    version = nVersion;
+
+    starts = new int[segments.length];
+    int total = 0;
+    int live = 0;
+    for (int i = 0; i < segments.length; ++i)
+    {
+      starts[i] = total;
+      total += segments[i].size();
+      live += segments[i].getLiveCount();
+    }
+
+    size = total;
+    liveCount = live;
+  }
+
+
+  /**
+   * Get the version of this snapshot.  The version changes
+   * every time the corpus is modified.
+   *
+   * @return the version
+   */
+  public long getVersion()
+  {
+    return version;
+  }
+
+
+  /**
+   * Get the number of positions, including deleted quotations.
+   *
+   * @return the number of positions
+   */
+  public int size()
+  {
+    return size;
+  }
+
+
+  /**
+   * Get the number of live quotations.
+   *
+   * @return the number of live quotations
+   */
+  public int getLiveCount()
+  {
+    return liveCount;
+  }
+
+
+  /**
+   * Get the number of segments.
+   *
+   * @return the number of segments
+   */
+  public int getSegmentCount()
+  {
+    return segments.length;
+  }
+
+
+  /**
+   * Get a segment.
+   *
+   * @param nIndex the index of the segment
+   * @return the segment
+   */
+  public Segment getSegment(final int nIndex)
+  {
+    return segments[nIndex];
+  }
+
+
+  /**
+   * Get the starting position of a segment.
+   *
+   * @param nIndex the index of the segment
+   * @return the position of the first quotation in the segment
+   */
+  public int getSegmentStart(final int nIndex)
+  {
+    return starts[nIndex];
+  }
+
+
+  /**
+   * Get the index of the segment holding a position.
+   *
+   * @param nPos the position
+   * @return the index of the segment
+   */
+  public int getSegmentIndex(final int nPos)
+  {
+    // Binary search for the last segment starting at or before nPos
+    int low = 0;
+    int high = segments.length - 1;
+    while (low < high)
+    {
+      final int mid = (low + high + 1) >>> 1;
+      if (starts[mid] <= nPos)
+      {
+        low = mid;
+      }
+      else
+      {
+        high = mid - 1;
+      }
+    }
+
+    return low;
+  }
+
+
+  /**
+   * Returns whether the quotation at a position is live.
+   *
+   * @param nPos the position
+   * @return whether the quotation has not been deleted
+   */
+  public boolean isLive(final int nPos)
+  {
+    final int seg = getSegmentIndex(nPos);
+    return !segments[seg].isDeleted(nPos - starts[seg]);
+  }
+
+
+  /**
+   * Get the quotation at a position.
+   *
+   * @param nPos the position
+   * @return the quotation
+   */
+  public QuotationNode getQuote(final int nPos)
+  {
+    final int seg = getSegmentIndex(nPos);
+    return segments[seg].getQuote(nPos - starts[seg]);
+  }
+
+
+  /**
+   * Get the ID of the quotation at a position.
+   *
+   * @param nPos the position
+   * @return the quotation ID
+   */
+  public int getId(final int nPos)
+  {
+    final int seg = getSegmentIndex(nPos);
+    return segments[seg].getId(nPos - starts[seg]);
+  }
+
+
+  /**
+   * Get the position of the live quotation with an ID.
+   *
+   * @param nId the quotation ID
+   * @return the position, or -1 if not found
+   */
+  public int getPosition(final int nId)
+  {
+    // Search the newest segments first, since that's where
+    // recently added and updated quotations live
+    for (int i = segments.length - 1; i >= 0; --i)
+    {
+      final int pos = segments[i].indexOf(nId);
+      if (pos >= 0)
+      {
+        return (starts[i] + pos);
+      }
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * Get the ID of the last live quotation before a position.
+   *
+   * @param nPos the position
+   * @return the ID, or -1 if every quotation before it is deleted
+   */
+  public int getIdBefore(final int nPos)
+  {
+    for (int pos = Math.min(nPos, size) - 1; pos >= 0; --pos)
+    {
+      if (isLive(pos))
+      {
+        return getId(pos);
+      }
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * Get the ID of the first live quotation at or after a position.
+   *
+   * @param nPos the position
+   * @return the ID, or -1 if every quotation from there is deleted
+   */
+  public int getIdFrom(final int nPos)
+  {
+    for (int pos = Math.max(nPos, 0); pos < size; ++pos)
+    {
+      if (isLive(pos))
+      {
+        return getId(pos);
+      }
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * Find the position, in this snapshot, of the boundary between
+   * two quotations that were next to each other in an older one,
+   * ignoring deleted quotations.  Compaction and appends keep the
+   * order of the live quotations, and IDs don't change, so the
+   * boundary is still between them.  An edited quotation moves to
+   * the end of the corpus, so if one of the two moved, the other
+   * marks the boundary; whichever comes first is used.
+   *
+   * @param nBeforeId the ID of the quotation before the boundary,
+   *                  or -1 if the boundary is at the start
+   * @param nAfterId the ID of the quotation after it, or -1 if
+   *                 it was at the end
+   * @return the position of the boundary, or -1 if neither
+   *         quotation is in this snapshot, as after a reload
+   */
+  public int findBoundary(final int nBeforeId, final int nAfterId)
+  {
+    if (nBeforeId < 0)
+    {
+      return 0;
+    }
+
+    final int nBefore = getPosition(nBeforeId);
+    final int nAfter = ((nAfterId < 0) ? -1 : getPosition(nAfterId));
+    if (nBefore < 0)
+    {
+      return nAfter;
+    }
+    else if (nAfter < 0)
+    {
+      return (nBefore + 1);
+    }
+
+    return Math.min(nBefore + 1, nAfter);
+  }
+
+
+  /**
+   * Get the live quotation with an ID.
+   *
+   * @param nId the quotation ID
+   * @return the quotation, or null if not found
+   */
+  public QuotationNode findById(final int nId)
+  {
+    final int pos = getPosition(nId);
+    return ((pos < 0) ? null : getQuote(pos));
+  }
+
+
+  /**
+   * Get the live quotations as a list.
+   *
+   * @return a new list of the live quotations
+   */
+  public List<QuotationNode> toList()
+  {
+    List<QuotationNode> list = new ArrayList<QuotationNode>(liveCount);
+    for (int s = 0; s < segments.length; ++s)
+    {
+      final Segment seg = segments[s];
+      final int segSize = seg.size();
+      for (int i = 0; i < segSize; ++i)
+      {
+        if (!seg.isDeleted(i))
+        {
+          list.add(seg.getQuote(i));
+        }
+      }
+    }
+
+    return list;
+  }
+}
@@ -0,0 +1,1506 @@
+package io.miti.quotes.app.corpus;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.miti.quotes.app.QuotationNode;
+
+/**
+ * Durable storage for an editable corpus.  The store directory
+ * holds a snapshot of the corpus plus a series of numbered
+ * write-ahead logs.  Each edit is appended to the current log, so
+ * it costs one sequential write instead of serializing the whole
+ * corpus.  It's only applied to the in-memory corpus once it's
+ * durable, and edits are applied in the same order as they were
+ * logged, so searches never see an edit that isn't on disk.  If the
+ * log can't be written, the edit is dropped and its caller gets the
+ * error.
+ *
+ * On startup the snapshot is loaded and every log it doesn't
+ * already cover is replayed on top of it.  Every so often a
+ * checkpoint writes a new snapshot and deletes the logs it covers.
+ *
+ * The snapshot file starts with a short header naming the data
+ * file it was imported from (its size and modification time) and
+ * the file holding the bio and source of its quotations.  Then it
+ * has the quotations, as records in the layout OffHeapQuoteStore
+ * uses, followed by the quotation IDs, the next ID, and the number
+ * of the first log that isn't included.  Loading it copies the
+ * records into the corpus as they are: the bio and source stay in
+ * their file, which becomes the corpus's cold store, and are only
+ * read when a quotation is shown.  A checkpoint copies the records
+ * back out the same way, and only writes a new cold file when some
+ * quotations have their bio and source somewhere else, such as
+ * after the data file is imported.  Older snapshots, which hold a
+ * serialized List of QuotationNode objects like the data file, can
+ * still be read.  If the data file changes,
+ * such as when a newer jar ships a newer one, the snapshot is out
+ * of date and the data file is imported again.  The old snapshot
+ * and logs can't be replayed on the new data, so they're moved to
+ * a saved-<time> directory in the store rather than deleted,
+ * along with the snapshot's cold file.
+ *
+ * All edits must go through the store, not the corpus directly.
+ * Listeners are told about each quotation added or changed, once
+ * the edit is durable.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class CorpusStore
+{
+  /**
+   * The name of the snapshot file.
+   */
+  private static final String SNAPSHOT_FILE = "quotes.ser";
+
+  /**
+   * The first four bytes of a snapshot file holding serialized
+   * quotations after its header.  Older snapshots start with the
+   * object stream's own magic number.
+   */
+  private static final int SNAPSHOT_MAGIC = 0x51534E50;
+
+  /**
+   * The first four bytes of a snapshot file holding records.
+   */
+  private static final int RECORDS_MAGIC = 0x51534E52;
+
+  /**
+   * The prefix for the directories that out-of-date edits are
+   * moved to.
+   */
+  private static final String SAVED_PREFIX = "saved-";
+
+  /**
+   * The prefix for log file names.
+   */
+  private static final String LOG_PREFIX = "quotes-";
+
+  /**
+   * The suffix for log file names.
+   */
+  private static final String LOG_SUFFIX = ".log";
+
+  /**
+   * The suffix for the names of the files holding the bio and
+   * source of a snapshot's quotations.
+   */
+  private static final String COLD_SUFFIX = ".cold";
+
+  /**
+   * The number of logged edits that triggers a checkpoint.
+   */
+  private static final int CHECKPOINT_INTERVAL = 1000;
+
+  /**
+   * The store directory.
+   */
+  private final File dir;
+
+  /**
+   * The identity of the data file the snapshot was imported from.
+   */
+  private final String sourceId;
+
+  /**
+   * The corpus.
+   */
+  private final SegmentedCorpus corpus;
+
+  /**
+   * The lock that keeps the log in the same order as the corpus.
+   */
+  private final Object editLock = new Object();
+
+  /**
+   * The lock held while writing a checkpoint.
+   */
+  private final Object checkpointLock = new Object();
+
+  /**
+   * The lock held while applying edits to the corpus.  It may be
+   * taken while holding the edit lock, but not the other way round.
+   */
+  private final Object applyLock = new Object();
+
+  /**
+   * The edits that have been logged but not applied, in log order.
+   * Guarded by itself, so logging an edit doesn't wait for another
+   * editor's write to finish.
+   */
+  private final Deque<PendingEdit> pending = new ArrayDeque<PendingEdit>(32);
+
+  /**
+   * The ticket of the last edit logged.
+   */
+  private long lastTicket = 0L;
+
+  /**
+   * The ticket of the last edit applied (or dropped).
+   */
+  private long appliedTicket = 0L;
+
+  /**
+   * The ticket of the last edit that may be applied.  A checkpoint
+   * lowers this while it takes its snapshot, so the snapshot holds
+   * exactly the edits in the logs it covers.
+   */
+  private long applyLimit = Long.MAX_VALUE;
+
+  /**
+   * The next ID to give a new quotation.  IDs are handed out when
+   * an add is logged, before the corpus has seen it.
+   */
+  private int nextId;
+
+  /**
+   * The current log.
+   */
+  private CorpusLog log;
+
+  /**
+   * The number of the current log.
+   */
+  private long logNumber;
+
+  /**
+   * The number of edits since the last checkpoint.
+   */
+  private int editsSinceCheckpoint = 0;
+
+  /**
+   * Whether a checkpoint is scheduled or running.
+   */
+  private boolean checkpointPending = false;
+
+  /**
+   * The thread used for checkpoints.
+   */
+  private final ExecutorService checkpointer;
+
+  /**
+   * The listeners told about saved quotations.
+   */
+  private final List<EditListener> listeners =
+    new CopyOnWriteArrayList<EditListener>();
+
+  /**
+   * The directory out-of-date edits were moved to when the store
+   * was opened, or null.
+   */
+  private File setAsideDir = null;
+
+  /**
+   * The cold file the snapshot was loaded from, which is also the
+   * corpus's cold store, or null.  While the corpus's quotations
+   * are all in this file, checkpoints don't write a new one.
+   */
+  private ColdFieldStore coldFile = null;
+
+
+  /**
+   * Create the store.
+   *
+   * @param pDir the store directory
+   * @param pSourceId the identity of the data file
+   * @param pCorpus the corpus, with all logs replayed
+   * @param nLogNumber the number of the log to write to
+   * @throws IOException if the log can't be opened
+   */
+  private CorpusStore(final File pDir,
+                      final String pSourceId,
+                      final SegmentedCorpus pCorpus,
+                      final long nLogNumber) throws IOException
+  {
+    super();
+    dir = pDir;
+    sourceId = pSourceId;
+    corpus = pCorpus;
+    nextId = corpus.getNextId();
+    logNumber = nLogNumber;
+    log = new CorpusLog(getLogFile(logNumber));
+
+    checkpointer = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      public Thread newThread(final Runnable r)
+      {
+        Thread t = new Thread(r, "corpus-checkpoint");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+
+  /**
+   * Get the default store directory.  This is the directory
+   * named by the quotes.dir system property, or .quotes in
+   * the user's home directory.
+   *
+   * @return the default store directory
+   */
+  public static File getDefaultDirectory()
+  {
+    final String prop = System.getProperty("quotes.dir");
+    if ((prop != null) && (prop.length() > 0))
+    {
+      return new File(prop);
+    }
+
+    return new File(System.getProperty("user.home"), ".quotes");
+  }
+
+
+  /**
+   * Get the identity of a data file, from its size and when it
+   * was last modified.  A snapshot imported from a data file with
+   * a different identity is out of date.
+   *
+   * @param nSize the size of the data file, or -1 if unknown
+   * @param nLastModified when it was last modified, or 0 if unknown
+   * @return the identity
+   */
+  public static String getSourceId(final long nSize, final long nLastModified)
+  {
+    return nSize + ":" + nLastModified;
+  }
+
+
+  /**
+   * Returns whether a directory has an up-to-date snapshot of a
+   * data file.  If it doesn't, the caller should load the data
+   * file and pass it to open().  A snapshot saved before the data
+   * file was recorded counts as up to date, so its edits are kept.
+   *
+   * @param pDir the store directory
+   * @param pSourceId the identity of the data file
+   * @return whether an up-to-date snapshot exists
+   */
+  public static boolean hasSnapshot(final File pDir, final String pSourceId)
+  {
+    final File snapFile = new File(pDir, SNAPSHOT_FILE);
+    if (!snapFile.isFile())
+    {
+      return false;
+    }
+
+    DataInputStream in = null;
+    try
+    {
+      in = new DataInputStream(new FileInputStream(snapFile));
+      final int magic = in.readInt();
+      return ((magic != SNAPSHOT_MAGIC) && (magic != RECORDS_MAGIC)) ||
+             in.readUTF().equals(pSourceId);
+    }
+    catch (IOException ioe)
+    {
+      // Too short to have a header, so it's not usable
+      return false;
+    }
+    finally
+    {
+      if (in != null)
+      {
+        try
+        {
+          in.close();
+        }
+        catch (IOException ioe)
+        {
+          System.err.println("IOException: " + ioe.getMessage());
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Open a store.  If the directory has an up-to-date snapshot,
+   * it's loaded; otherwise the initial list is used.  Then any
+   * logs not included in the snapshot are replayed.
+   *
+   * @param pDir the store directory (created if needed)
+   * @param pSourceId the identity of the data file
+   * @param initial the quotations in the data file, used if there's
+   *                no up-to-date snapshot (may be null)
+   * @return the store
+   * @throws IOException if the store can't be read
+   */
+  public static CorpusStore open(final File pDir,
+                                 final String pSourceId,
+                                 final List<QuotationNode> initial)
+    throws IOException
+  {
+    final boolean current = hasSnapshot(pDir, pSourceId);
+    return open(pDir, pSourceId, new SegmentedCorpus(current ? null : initial),
+                null);
+  }
+
+
+  /**
+   * Open a store on a corpus that may still be filling up.  If
+   * the directory has an up-to-date snapshot, the corpus must be
+   * empty, and the snapshot is streamed into it in batches, so the
+   * corpus can be searched while it loads.  Otherwise the corpus
+   * should already hold the quotations in the data file.  Any older
+   * snapshot and its logs are moved to a new directory in the store,
+   * since their IDs refer to the old data; getSetAsideDirectory()
+   * names it.  Then any logs not included in the snapshot are
+   * replayed.
+   *
+   * @param pDir the store directory (created if needed)
+   * @param pSourceId the identity of the data file
+   * @param corpus the corpus
+   * @param listener the progress listener (may be null)
+   * @return the store
+   * @throws IOException if the store can't be read, or the old
+   *                     edits can't be moved
+   */
+  public static CorpusStore open(final File pDir,
+                                 final String pSourceId,
+                                 final SegmentedCorpus corpus,
+                                 final CorpusLoader.Listener listener)
+    throws IOException
+  {
+    if (!pDir.isDirectory() && !pDir.mkdirs())
+    {
+      throw new IOException("Unable to create " + pDir);
+    }
+
+    // Load the snapshot, if there is one
+    long firstLog = 0L;
+    final File snapFile = new File(pDir, SNAPSHOT_FILE);
+    final boolean hasSnapshot = hasSnapshot(pDir, pSourceId);
+    long[] logs = listLogs(pDir);
+    File setAside = null;
+    String coldName = null;
+    ColdFieldStore cold = null;
+    if (hasSnapshot)
+    {
+      coldName = readColdName(snapFile);
+      if (coldName == null)
+      {
+        firstLog = loadSerialized(snapFile, corpus, listener);
+      }
+      else
+      {
+        // The records point into the cold file, so the corpus has
+        // to read their bio and source from there
+        if (coldName.length() > 0)
+        {
+          cold = ColdFieldStore.openKept(new File(pDir, coldName));
+          corpus.setColdFieldStore(cold);
+        }
+
+        firstLog = loadRecords(snapFile, corpus, listener);
+      }
+    }
+
+    else if (snapFile.isFile() || (logs.length > 0))
+    {
+      // The edits are for other data, so their IDs don't match the
+      // quotations just read.  Keep them where the user can get them.
+      setAside = setAside(pDir, logs);
+      System.err.println("The saved edits are for other data; " +
+                         "they were moved to " + setAside);
+      logs = new long[0];
+    }
+
+    // Replay the logs the snapshot doesn't cover
+    long lastLog = firstLog - 1;
+    for (int i = 0; i < logs.length; ++i)
+    {
+      final File logFile = new File(pDir, getLogName(logs[i]));
+      if (logs[i] < firstLog)
+      {
+        // Left over from a checkpoint that didn't finish cleaning up
+        logFile.delete();
+        continue;
+      }
+
+      CorpusLog.replay(logFile, corpus);
+      lastLog = logs[i];
+    }
+
+    // Keep appending to the newest log (replay has already cut off
+    // any partial record at its end)
+    CorpusStore store = new CorpusStore(pDir, pSourceId, corpus,
+                                        Math.max(firstLog, lastLog));
+    store.setAsideDir = setAside;
+    store.coldFile = cold;
+    store.deleteColdFilesExcept(coldName);
+
+    // After importing the data file, save it so the logs have
+    // something to be replayed on top of
+    if (!hasSnapshot)
+    {
+      store.checkpoint();
+    }
+
+    return store;
+  }
+
+
+  /**
+   * Move the snapshot and logs of a store to a new directory
+   * inside it, named for the current time.
+   *
+   * @param pDir the store directory
+   * @param logs the numbers of the logs
+   * @return the new directory
+   * @throws IOException if the files can't be moved
+   */
+  private static File setAside(final File pDir, final long[] logs)
+    throws IOException
+  {
+    // Find an unused name
+    final String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+    File target = new File(pDir, SAVED_PREFIX + stamp);
+    for (int i = 2; target.exists(); ++i)
+    {
+      target = new File(pDir, SAVED_PREFIX + stamp + "-" + i);
+    }
+
+    if (!target.mkdir())
+    {
+      throw new IOException("Unable to create " + target);
+    }
+
+    // Move the files
+    final File snapFile = new File(pDir, SNAPSHOT_FILE);
+    if (snapFile.isFile())
+    {
+      final String coldName = readColdName(snapFile);
+      Files.move(snapFile.toPath(), new File(target, SNAPSHOT_FILE).toPath());
+      if ((coldName != null) && new File(pDir, coldName).isFile())
+      {
+        Files.move(new File(pDir, coldName).toPath(),
+                   new File(target, coldName).toPath());
+      }
+    }
+
+    for (int i = 0; i < logs.length; ++i)
+    {
+      final String name = getLogName(logs[i]);
+      Files.move(new File(pDir, name).toPath(), new File(target, name).toPath());
+    }
+
+    return target;
+  }
+
+
+  /**
+   * Get the directory the edits for older data were moved to when
+   * the store was opened.  If this isn't null, the user should be
+   * told, since those edits aren't in the corpus.
+   *
+   * @return the directory, or null if nothing was moved
+   */
+  public File getSetAsideDirectory()
+  {
+    return setAsideDir;
+  }
+
+
+  /**
+   * Get the corpus.  Use it for searching; edit through the store.
+   *
+   * @return the corpus
+   */
+  public SegmentedCorpus getCorpus()
+  {
+    return corpus;
+  }
+
+
+  /**
+   * Add a listener to tell about each quotation added or changed.
+   *
+   * @param listener the listener
+   */
+  public void addEditListener(final EditListener listener)
+  {
+    listeners.add(listener);
+  }
+
+
+  /**
+   * Remove a listener.
+   *
+   * @param listener the listener
+   */
+  public void removeEditListener(final EditListener listener)
+  {
+    listeners.remove(listener);
+  }
+
+
+  /**
+   * Tell the listeners about a saved quotation.
+   *
+   * @param nId the ID of the quotation
+   * @param quote the quotation
+   */
+  private void fireQuoteSaved(final int nId, final QuotationNode quote)
+  {
+    for (EditListener listener : listeners)
+    {
+      listener.quoteSaved(nId, quote);
+    }
+  }
+
+
+  /**
+   * Add a quotation.  Returns once the edit is durable and in
+   * the corpus.
+   *
+   * @param quote the quotation
+   * @return the ID of the new quotation
+   * @throws IOException if the log can't be written
+   */
+  public int add(final QuotationNode quote) throws IOException
+  {
+    PendingEdit edit = null;
+    synchronized (editLock)
+    {
+      edit = logEdit(CorpusLog.OP_ADD, nextId, quote);
+      ++nextId;
+    }
+
+    applyUpTo(edit);
+    fireQuoteSaved(edit.id, quote);
+    return edit.id;
+  }
+
+
+  /**
+   * Replace a quotation.  Returns once the edit is durable and
+   * in the corpus.
+   *
+   * @param nId the ID of the quotation
+   * @param quote the new quotation
+   * @return whether the ID was found
+   * @throws IOException if the log can't be written
+   */
+  public boolean update(final int nId, final QuotationNode quote)
+    throws IOException
+  {
+    PendingEdit edit = null;
+    synchronized (editLock)
+    {
+      if (corpus.getSnapshot().findById(nId) == null)
+      {
+        return false;
+      }
+
+      edit = logEdit(CorpusLog.OP_UPDATE, nId, quote);
+    }
+
+    applyUpTo(edit);
+    fireQuoteSaved(nId, quote);
+    return true;
+  }
+
+
+  /**
+   * Delete a quotation.  Returns once the edit is durable and
+   * in the corpus.
+   *
+   * @param nId the ID of the quotation
+   * @return whether the ID was found
+   * @throws IOException if the log can't be written
+   */
+  public boolean delete(final int nId) throws IOException
+  {
+    PendingEdit edit = null;
+    synchronized (editLock)
+    {
+      if (corpus.getSnapshot().findById(nId) == null)
+      {
+        return false;
+      }
+
+      edit = logEdit(CorpusLog.OP_DELETE, nId, null);
+    }
+
+    applyUpTo(edit);
+    return true;
+  }
+
+
+  /**
+   * Append an edit to the current log, and queue it to be applied
+   * once it's durable.  The caller must hold the edit lock.
+   *
+   * @param op the op code
+   * @param nId the quotation ID
+   * @param quote the quotation (null for deletes)
+   * @return the queued edit
+   * @throws IOException if the log is closed or has failed
+   */
+  private PendingEdit logEdit(final byte op,
+                              final int nId,
+                              final QuotationNode quote) throws IOException
+  {
+    final long seq = log.append(CorpusLog.encode(op, nId, quote));
+    PendingEdit edit = new PendingEdit(++lastTicket, log, seq, op, nId, quote);
+    synchronized (pending)
+    {
+      pending.addLast(edit);
+    }
+
+    countEdit();
+    return edit;
+  }
+
+
+  /**
+   * Apply the queued edits, in order, up to and including one
+   * edit.  Each waits until it's durable; any whose write failed
+   * are dropped.  Whichever editor gets here first applies the
+   * edits of the others too.
+   *
+   * @param edit the edit
+   * @throws IOException if the edit could not be written
+   */
+  private void applyUpTo(final PendingEdit edit) throws IOException
+  {
+    boolean bInterrupted = false;
+    synchronized (applyLock)
+    {
+      while (appliedTicket < edit.ticket)
+      {
+        if (appliedTicket >= applyLimit)
+        {
+          // Wait for the checkpoint to take its snapshot.  The edit
+          // is already logged, so it must still be applied.
+          try
+          {
+            applyLock.wait();
+          }
+          catch (InterruptedException ie)
+          {
+            bInterrupted = true;
+          }
+
+          continue;
+        }
+
+        applyNext();
+      }
+    }
+
+    if (bInterrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+
+    if (edit.error != null)
+    {
+      throw edit.error;
+    }
+  }
+
+
+  /**
+   * Apply every queued edit up to a ticket, ignoring the limit.
+   * The caller must hold the apply lock, and the logs of those
+   * edits must be closed or still being written.
+   *
+   * @param ticket the ticket of the last edit to apply
+   */
+  private void applyAll(final long ticket)
+  {
+    while (appliedTicket < ticket)
+    {
+      applyNext();
+    }
+  }
+
+
+  /**
+   * Apply the oldest queued edit once it's durable, or drop it if
+   * it couldn't be written.  The caller must hold the apply lock.
+   */
+  private void applyNext()
+  {
+    PendingEdit edit = null;
+    synchronized (pending)
+    {
+      edit = pending.removeFirst();
+    }
+
+    edit.error = edit.log.waitForWrite(edit.seq);
+    if (edit.error == null)
+    {
+      switch (edit.op)
+      {
+        case CorpusLog.OP_ADD:
+          corpus.insert(edit.id, edit.quote);
+          break;
+
+        case CorpusLog.OP_UPDATE:
+          corpus.update(edit.id, edit.quote);
+          break;
+
+        default:
+          corpus.delete(edit.id);
+          break;
+      }
+    }
+
+    appliedTicket = edit.ticket;
+  }
+
+
+  /**
+   * Write a new snapshot and delete the logs it covers.
+   *
+   * @throws IOException if the snapshot can't be written
+   */
+  public void checkpoint() throws IOException
+  {
+    synchronized (checkpointLock)
+    {
+      // Switch to a new log.  Everything in the old logs goes in
+      // this snapshot, and nothing in the new log does, so hold
+      // back the new log's edits until the snapshot is taken.
+      CorpusLog oldLog = null;
+      long coveredUpTo = 0L;
+      long barrier = 0L;
+      synchronized (editLock)
+      {
+        oldLog = log;
+        coveredUpTo = logNumber + 1;
+        log = new CorpusLog(getLogFile(coveredUpTo));
+        logNumber = coveredUpTo;
+        editsSinceCheckpoint = 0;
+        barrier = lastTicket;
+        synchronized (applyLock)
+        {
+          applyLimit = barrier;
+        }
+      }
+
+      // Let any pending edits in the old log finish, and apply them
+      oldLog.close();
+      CorpusSnapshot snap = null;
+      int snapNextId = 0;
+      synchronized (applyLock)
+      {
+        try
+        {
+          applyAll(barrier);
+          snap = corpus.getSnapshot();
+          snapNextId = corpus.getNextId();
+        }
+        finally
+        {
+          applyLimit = Long.MAX_VALUE;
+          applyLock.notifyAll();
+        }
+      }
+
+      // Save the snapshot
+      writeSnapshot(snap, false, getLiveIds(snap), snapNextId, coveredUpTo);
+      deleteLogsBefore(coveredUpTo);
+    }
+  }
+
+
+  /**
+   * Replace the whole corpus with a new list of quotations, as
+   * when reloading the data file.  The new corpus is saved as
+   * the snapshot before it's published, so the logs never refer
+   * to IDs the snapshot doesn't know about.  Edits wait while the
+   * snapshot is written; searches do not.  The snapshot is still
+   * marked as coming from the data file the store was opened with,
+   * so the new quotations are kept until that data file changes.
+   *
+   * @param list the new quotations
+   * @throws IOException if the snapshot can't be written
+   */
+  public void replaceAll(final List<QuotationNode> list) throws IOException
+  {
+    synchronized (checkpointLock)
+    {
+      synchronized (editLock)
+      {
+        // The new quotations get IDs starting from the next ID
+        final int size = list.size();
+        final int firstId = nextId;
+        int[] ids = new int[size];
+        for (int i = 0; i < size; ++i)
+        {
+          ids[i] = firstId + i;
+        }
+
+        // Encode the new quotations, to save them
+        OffHeapQuoteStore records = OffHeapQuoteStore.forRun(size, null);
+        for (int i = 0; i < size; ++i)
+        {
+          records.append(list.get(i));
+        }
+
+        final CorpusSnapshot snap = new CorpusSnapshot(new Segment[]
+          {Segment.createDense(0L, firstId, records, size)}, 0L);
+
+        // Start a new log; the old ones are for the old corpus
+        log.close();
+        final long coveredUpTo = logNumber + 1;
+        try
+        {
+          writeSnapshot(snap, true, ids, firstId + size, coveredUpTo);
+        }
+        catch (IOException ioe)
+        {
+          // Keep using the old corpus and log
+          log = new CorpusLog(getLogFile(logNumber));
+          throw ioe;
+        }
+
+        log = new CorpusLog(getLogFile(coveredUpTo));
+        logNumber = coveredUpTo;
+        editsSinceCheckpoint = 0;
+        nextId = firstId + size;
+
+        // Publish the new corpus, after the edits to the old one.
+        // It gets a new cold store, so the old cold file isn't used.
+        synchronized (applyLock)
+        {
+          applyAll(lastTicket);
+          corpus.replaceAll(list);
+        }
+        coldFile = null;
+        deleteLogsBefore(coveredUpTo);
+        deleteColdFilesExcept(getColdName(coveredUpTo));
+      }
+    }
+  }
+
+
+  /**
+   * Close the store.  Pending edits are written first.
+   */
+  public void close()
+  {
+    checkpointer.shutdown();
+    synchronized (editLock)
+    {
+      log.close();
+      synchronized (applyLock)
+      {
+        applyAll(lastTicket);
+      }
+    }
+    corpus.shutdown();
+  }
+
+
+  /**
+   * Write a snapshot file.  It's written to a temporary file,
+   * synced, and then renamed over the old snapshot.  If all the
+   * cold quotations have their bio and source in the cold file the
+   * snapshot was loaded from, the records are copied as they are
+   * and the new snapshot refers to the same file.  Otherwise every
+   * quotation's bio and source are written to a new cold file.
+   *
+   * @param snap the snapshot of the corpus to save
+   * @param bNewCold whether to always write a new cold file
+   * @param ids the ID of each live quotation
+   * @param nextId the next ID to assign
+   * @param coveredUpTo the number of the first log not included
+   * @throws IOException if the snapshot can't be written
+   */
+  private void writeSnapshot(final CorpusSnapshot snap,
+                             final boolean bNewCold,
+                             final int[] ids,
+                             final int nextId,
+                             final long coveredUpTo) throws IOException
+  {
+    // Find where the bio and source go
+    ColdFieldStore cold = coldFile;
+    ColdFieldStore newCold = null;
+    if (bNewCold || (cold == null) || !isAllColdIn(snap, cold))
+    {
+      final File coldTarget = new File(dir, getColdName(coveredUpTo));
+      coldTarget.delete();
+      newCold = new ColdFieldStore(coldTarget, 1, true);
+      cold = newCold;
+    }
+
+    // Write the snapshot to a temporary file
+    final File tmpFile = new File(dir, SNAPSHOT_FILE + ".tmp");
+    FileOutputStream fos = new FileOutputStream(tmpFile);
+    try
+    {
+      DataOutputStream out = new DataOutputStream(
+                                 new BufferedOutputStream(fos, 65536));
+      out.writeInt(RECORDS_MAGIC);
+      out.writeUTF(sourceId);
+      out.writeUTF(cold.getFile().getName());
+      out.writeInt(ids.length);
+      writeRecords(snap, newCold, out);
+      for (int i = 0; i < ids.length; ++i)
+      {
+        out.writeInt(ids[i]);
+      }
+
+      out.writeInt(nextId);
+      out.writeLong(coveredUpTo);
+      out.flush();
+
+      // The cold file has to be on the disk before the snapshot is
+      cold.sync();
+      fos.getFD().sync();
+    }
+    finally
+    {
+      fos.close();
+      if (newCold != null)
+      {
+        newCold.close();
+      }
+    }
+
+    // Swap it in
+    Files.move(tmpFile.toPath(), new File(dir, SNAPSHOT_FILE).toPath(),
+               StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+    deleteColdFilesExcept(cold.getFile().getName());
+  }
+
+
+  /**
+   * Write the records of the live quotations in a snapshot.
+   *
+   * @param snap the snapshot
+   * @param newCold the new cold file to move every bio and source
+   *                to, or null to copy the records as they are
+   * @param out the stream to write to
+   * @throws IOException if the records can't be written
+   */
+  private static void writeRecords(final CorpusSnapshot snap,
+                                   final ColdFieldStore newCold,
+                                   final DataOutputStream out)
+    throws IOException
+  {
+    byte[] buf = new byte[4096];
+    final int numSegments = snap.getSegmentCount();
+    for (int s = 0; s < numSegments; ++s)
+    {
+      final Segment seg = snap.getSegment(s);
+      final QuoteFlyweight view = seg.getOffHeapStore().newFlyweight();
+      final int size = seg.size();
+      for (int i = 0; i < size; ++i)
+      {
+        if (seg.isDeleted(i))
+        {
+          continue;
+        }
+
+        view.moveTo(i);
+        if (newCold != null)
+        {
+          // Move the bio and source to the new file.  A bulk read,
+          // so it doesn't use the cold store's cache.
+          String[] fields = null;
+          if (view.isCold())
+          {
+            fields = view.getStore().getColdSource().fetch(view.getColdOffset(),
+                                                           false);
+          }
+          else
+          {
+            fields = new String[] {view.getBio(), view.getSource()};
+          }
+
+          out.write(OffHeapQuoteStore.encodeRecord(view.toQuotationNode(),
+                                            newCold.append(fields[0], fields[1])));
+          continue;
+        }
+
+        // Copy the record's bytes
+        final int len = view.getRecordEnd() - view.getRecordStart();
+        if (len > buf.length)
+        {
+          buf = new byte[Math.max(len, buf.length * 2)];
+        }
+
+        ByteBuffer record = view.getRecordChunk().duplicate();
+        record.position(view.getRecordStart());
+        record.get(buf, 0, len);
+        out.write(buf, 0, len);
+      }
+    }
+  }
+
+
+  /**
+   * Returns whether every live quotation in a snapshot whose bio
+   * and source aren't in its record has them in a cold store.
+   *
+   * @param snap the snapshot
+   * @param cold the cold store
+   * @return whether the snapshot's cold quotations are all in it
+   */
+  private static boolean isAllColdIn(final CorpusSnapshot snap,
+                                     final ColdFieldStore cold)
+  {
+    final int numSegments = snap.getSegmentCount();
+    for (int s = 0; s < numSegments; ++s)
+    {
+      final Segment seg = snap.getSegment(s);
+      final QuoteFlyweight view = seg.getOffHeapStore().newFlyweight();
+      final int size = seg.size();
+      for (int i = 0; i < size; ++i)
+      {
+        if (!seg.isDeleted(i) && view.moveTo(i).isCold() &&
+            (view.getStore().getColdSource() != cold))
+        {
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Get the name of the cold file in a snapshot's header.
+   *
+   * @param snapFile the snapshot file
+   * @return the name, which is empty if there's no cold file, or
+   *         null if the snapshot holds serialized quotations
+   * @throws IOException if the file can't be read
+   */
+  private static String readColdName(final File snapFile) throws IOException
+  {
+    DataInputStream in = new DataInputStream(new FileInputStream(snapFile));
+    try
+    {
+      if (in.readInt() != RECORDS_MAGIC)
+      {
+        return null;
+      }
+
+      in.readUTF();
+      return in.readUTF();
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+
+  /**
+   * Load a snapshot file holding records into a corpus.  The
+   * corpus's cold store must already be the snapshot's cold file.
+   *
+   * @param snapFile the snapshot file
+   * @param corpus the corpus, which must be empty
+   * @param listener the progress listener (may be null)
+   * @return the number of the first log not included
+   * @throws IOException if the snapshot can't be read
+   */
+  private static long loadRecords(final File snapFile,
+                                  final SegmentedCorpus corpus,
+                                  final CorpusLoader.Listener listener)
+    throws IOException
+  {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+                               new FileInputStream(snapFile), 65536));
+    try
+    {
+      in.readInt();
+      final String pSourceId = in.readUTF();
+      final String coldName = in.readUTF();
+      final int count = in.readInt();
+
+      // The header's strings are ASCII, so a byte per character
+      final long nStart = 12L + pSourceId.length() + coldName.length();
+      CorpusLoader.loadRecords(in, count, corpus, listener, nStart,
+                               snapFile.length());
+
+      int[] ids = new int[count];
+      for (int i = 0; i < count; ++i)
+      {
+        ids[i] = in.readInt();
+      }
+
+      final int nextId = in.readInt();
+      final long firstLog = in.readLong();
+      corpus.restoreIds(ids, nextId);
+      return firstLog;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+
+  /**
+   * Load an older snapshot file, holding serialized quotations,
+   * into a corpus.
+   *
+   * @param snapFile the snapshot file
+   * @param corpus the corpus, which must be empty
+   * @param listener the progress listener (may be null)
+   * @return the number of the first log not included
+   * @throws IOException if the snapshot can't be read
+   */
+  private static long loadSerialized(final File snapFile,
+                                     final SegmentedCorpus corpus,
+                                     final CorpusLoader.Listener listener)
+    throws IOException
+  {
+    CorpusLoader.QuoteInputStream in = CorpusLoader.open(
+               openSnapshot(snapFile), snapFile.length());
+    try
+    {
+      CorpusLoader.load(in, corpus, listener);
+      final int[] ids = (int[]) in.readObject();
+      final int nextId = in.readInt();
+      final long firstLog = in.readLong();
+      corpus.restoreIds(ids, nextId);
+      return firstLog;
+    }
+    catch (ClassNotFoundException cnfe)
+    {
+      throw new IOException("Class not found: " + cnfe.getMessage());
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+
+
+  /**
+   * Open an older snapshot file, positioned after its header.
+   *
+   * @param snapFile the snapshot file
+   * @return the stream, at the start of the serialized quotations
+   * @throws IOException if the file can't be read
+   */
+  private static InputStream openSnapshot(final File snapFile)
+    throws IOException
+  {
+    FileInputStream fis = new FileInputStream(snapFile);
+    try
+    {
+      DataInputStream in = new DataInputStream(fis);
+      if (in.readInt() == SNAPSHOT_MAGIC)
+      {
+        in.readUTF();
+      }
+      else
+      {
+        // An older snapshot, with no header
+        fis.getChannel().position(0L);
+      }
+    }
+    catch (IOException ioe)
+    {
+      fis.close();
+      throw ioe;
+    }
+
+    return fis;
+  }
+
+
+  /**
+   * Delete the cold files in the store that nothing refers to:
+   * all but the one named, and the one the corpus is using.
+   *
+   * @param keepName the name of the cold file to keep, or null
+   */
+  private void deleteColdFilesExcept(final String keepName)
+  {
+    final String[] names = dir.list();
+    if (names == null)
+    {
+      return;
+    }
+
+    final String inUse = ((coldFile == null) ? null
+                          : coldFile.getFile().getName());
+    for (String name : names)
+    {
+      if (name.startsWith(LOG_PREFIX) && name.endsWith(COLD_SUFFIX) &&
+          !name.equals(keepName) && !name.equals(inUse))
+      {
+        new File(dir, name).delete();
+      }
+    }
+  }
+
+
+  /**
+   * Delete the log files with numbers below a limit.
+   *
+   * @param limit the first log number to keep
+   */
+  private void deleteLogsBefore(final long limit)
+  {
+    final long[] logs = listLogs(dir);
+    for (int i = 0; i < logs.length; ++i)
+    {
+      if (logs[i] < limit)
+      {
+        new File(dir, getLogName(logs[i])).delete();
+      }
+    }
+  }
+
+
+  /**
+   * Count an edit, and schedule a checkpoint if enough have
+   * accumulated.  The caller must hold the edit lock.
+   */
+  private void countEdit()
+  {
+    ++editsSinceCheckpoint;
+    if ((editsSinceCheckpoint < CHECKPOINT_INTERVAL) || checkpointPending)
+    {
+      return;
+    }
+
+    checkpointPending = true;
+    checkpointer.execute(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          checkpoint();
+        }
+        catch (IOException ioe)
+        {
+          System.err.println("IOException: " + ioe.getMessage());
+        }
+        finally
+        {
+          synchronized (editLock)
+          {
+            checkpointPending = false;
+          }
+        }
+      }
+    });
+  }
+
+
+  /**
+   * Get the IDs of the live quotations in a snapshot, in order.
+   *
+   * @param snap the snapshot
+   * @return the IDs
+   */
+  private static int[] getLiveIds(final CorpusSnapshot snap)
+  {
+    int[] ids = new int[snap.getLiveCount()];
+    int next = 0;
+    final int numSegments = snap.getSegmentCount();
+    for (int s = 0; s < numSegments; ++s)
+    {
+      final Segment seg = snap.getSegment(s);
+      final int size = seg.size();
+      for (int i = 0; i < size; ++i)
+      {
+        if (!seg.isDeleted(i))
+        {
+          ids[next++] = seg.getId(i);
+        }
+      }
+    }
+
+    return ids;
+  }
+
+
+  /**
+   * Get the file for a log number.
+   *
+   * @param nNumber the log number
+   * @return the log file
+   */
+  private File getLogFile(final long nNumber)
+  {
+    return new File(dir, getLogName(nNumber));
+  }
+
+
+  /**
+   * Get the name of the cold file written with a snapshot.
+   *
+   * @param nNumber the number of the first log the snapshot
+   *                doesn't include
+   * @return the file name
+   */
+  private static String getColdName(final long nNumber)
+  {
+    return LOG_PREFIX + String.format("%010d", nNumber) + COLD_SUFFIX;
+  }
+
+
+  /**
+   * Get the file name for a log number.
+   *
+   * @param nNumber the log number
+   * @return the file name
+   */
+  private static String getLogName(final long nNumber)
+  {
+    return LOG_PREFIX + String.format("%010d", nNumber) + LOG_SUFFIX;
+  }
+
+
+  /**
+   * Get the numbers of the log files in a directory, in order.
+   *
+   * @param pDir the directory
+   * @return the sorted log numbers
+   */
+  private static long[] listLogs(final File pDir)
+  {
+    final String[] names = pDir.list();
+    if (names == null)
+    {
+      return new long[0];
+    }
+
+    long[] numbers = new long[names.length];
+    int count = 0;
+    for (String name : names)
+    {
+      if (name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX))
+      {
+        try
+        {
+          numbers[count] = Long.parseLong(name.substring(LOG_PREFIX.length(),
+                                name.length() - LOG_SUFFIX.length()));
+          ++count;
+        }
+        catch (NumberFormatException nfe)
+        {
+          // Not one of ours
+          continue;
+        }
+      }
+    }
+
+    long[] result = Arrays.copyOf(numbers, count);
+    Arrays.sort(result);
+    return result;
+  }
+
+
+  /**
+   * An edit that has been logged but not applied to the corpus.
+   */
+  private static final class PendingEdit
+  {
+    /**
+     * The order the edit was logged in, across all logs.
+     */
+    final long ticket;
+
+    /**
+     * The log the edit was written to.
+     */
+    final CorpusLog log;
+
+    /**
+     * The sequence number of the edit in its log.
+     */
+    final long seq;
+
+    /**
+     * The op code.
+     */
+    final byte op;
+
+    /**
+     * The quotation ID.
+     */
+    final int id;
+
+    /**
+     * The quotation (null for deletes).
+     */
+    final QuotationNode quote;
+
+    /**
+     * The error if the edit couldn't be written.  Set under the
+     * apply lock before the edit counts as applied.
+     */
+    IOException error = null;
+
+
+    /**
+     * Create the edit.
+     *
+     * @param nTicket the order the edit was logged in
+     * @param pLog the log it was written to
+     * @param nSeq its sequence number in the log
+     * @param nOp the op code
+     * @param nId the quotation ID
+     * @param pQuote the quotation (null for deletes)
+     */
+    PendingEdit(final long nTicket,
+                final CorpusLog pLog,
+                final long nSeq,
+                final byte nOp,
+                final int nId,
+                final QuotationNode pQuote)
+    {
+      ticket = nTicket;
+      log = pLog;
+      seq = nSeq;
+      op = nOp;
+      id = nId;
+      quote = pQuote;
+    }
+  }
+
+
+  /**
+   * Told about each quotation added to or changed in the store.
+   */
+  public interface EditListener
+  {
+    /**
+     * Called on the thread that made the edit, once it's durable.
+     *
+     * @param nId the ID of the quotation
+     * @param quote the quotation as saved
+     */
+    void quoteSaved(int nId, QuotationNode quote);
+  }
+}
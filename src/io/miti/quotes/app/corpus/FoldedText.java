@@ -0,0 +1,362 @@
+package io.miti.quotes.app.corpus;
+
+import java.util.Arrays;
+
+import io.miti.quotes.app.Utility;
+import io.miti.quotes.app.filter.CaseFold;
+
+/**
+ * A packed copy of the searched text of a segment (the quotation,
+ * topic and name of each quotation), folded through CaseFold and
+ * stored as Latin-1 bytes in one array.  Case-insensitive searches
+ * scan this instead of lowercasing a String per field, and the
+ * byte scanner can check eight positions at a time.
+ *
+ * The quotation is stored as the search sees it, after
+ * Utility.updateBytes().  A field with characters outside Latin-1
+ * isn't packed, and is checked the usual way.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class FoldedText
+{
+  /**
+   * The index of the quotation field.
+   */
+  public static final int FIELD_QUOTATION = 0;
+
+  /**
+   * The index of the topic field.
+   */
+  public static final int FIELD_TOPIC = 1;
+
+  /**
+   * The index of the name field.
+   */
+  public static final int FIELD_NAME = 2;
+
+  /**
+   * The number of fields per quotation.
+   */
+  private static final int FIELD_COUNT = 3;
+
+  /**
+   * The record field of each field of the folded text.
+   */
+  private static final int[] RECORD_FIELDS = {OffHeapQuoteStore.FIELD_QUOTATION,
+                                              OffHeapQuoteStore.FIELD_TOPIC,
+                                              OffHeapQuoteStore.FIELD_NAME};
+
+  /**
+   * The folded text of every field.  The array may be longer
+   * than the text (it can be shared with a longer copy).
+   */
+  private final byte[] data;
+
+  /**
+   * The start of each field in data, with one extra entry for
+   * the end of the last field.
+   */
+  private final int[] starts;
+
+  /**
+   * The fields that aren't packed (null or not Latin-1), one
+   * bit per field.
+   */
+  private final long[] unpacked;
+
+
+  /**
+   * Create the folded text.
+   *
+   * @param pData the folded text
+   * @param pStarts the start of each field
+   * @param pUnpacked the fields that aren't packed
+   */
+  private FoldedText(final byte[] pData, final int[] pStarts,
+                     final long[] pUnpacked)
+  {
+    super();
+    data = pData;
+    starts = pStarts;
+    unpacked = pUnpacked;
+  }
+
+
+  /**
+   * Build the folded text for a run of quotations.
+   *
+   * @param records the quotations
+   * @param size the number of quotations
+   * @return the folded text
+   */
+  static FoldedText build(final OffHeapQuoteStore records, final int size)
+  {
+    Builder builder = new Builder(size);
+    builder.extendTo(records, size);
+    return builder.trim();
+  }
+
+
+  /**
+   * Get the folded text.
+   *
+   * @return the array holding every field
+   */
+  public byte[] getData()
+  {
+    return data;
+  }
+
+
+  /**
+   * Check whether a field is in the folded text.
+   *
+   * @param nPos the position of the quotation in the segment
+   * @param nField the field index
+   * @return whether the field is packed
+   */
+  public boolean isPacked(final int nPos, final int nField)
+  {
+    final int field = (nPos * FIELD_COUNT) + nField;
+    return ((unpacked[field >>> 6] & (1L << field)) == 0L);
+  }
+
+
+  /**
+   * Get the start of a field in the folded text.
+   *
+   * @param nPos the position of the quotation in the segment
+   * @param nField the field index
+   * @return the start of the field
+   */
+  public int getStart(final int nPos, final int nField)
+  {
+    return starts[(nPos * FIELD_COUNT) + nField];
+  }
+
+
+  /**
+   * Get the length of a field in the folded text.
+   *
+   * @param nPos the position of the quotation in the segment
+   * @param nField the field index
+   * @return the length of the field
+   */
+  public int getLength(final int nPos, final int nField)
+  {
+    final int field = (nPos * FIELD_COUNT) + nField;
+    return (starts[field + 1] - starts[field]);
+  }
+
+
+  /**
+   * Folds quotations onto the end of the folded text of a segment.
+   * The arrays are only ever appended to, and are copied when they
+   * need to grow, so a FoldedText handed out earlier keeps seeing
+   * exactly the quotations it was made for.  That lets every version
+   * of a segment that's still being appended to (the memtable, or
+   * the segment a load is filling) share one builder, and each
+   * version only folds the quotations that are new to it.
+   */
+  static final class Builder
+  {
+    /**
+     * The folded text.
+     */
+    private byte[] data;
+
+    /**
+     * The number of bytes used in data.
+     */
+    private int length = 0;
+
+    /**
+     * The start of each field, plus the end of the last one.
+     */
+    private int[] starts;
+
+    /**
+     * The fields that aren't packed.
+     */
+    private long[] unpacked;
+
+    /**
+     * The number of quotations folded so far.
+     */
+    private int count = 0;
+
+
+    /**
+     * Create a builder.
+     *
+     * @param nExpected the number of quotations expected
+     */
+    Builder(final int nExpected)
+    {
+      super();
+      data = new byte[Math.max(64, nExpected * 96)];
+      starts = new int[(Math.max(16, nExpected) * FIELD_COUNT) + 1];
+      unpacked = new long[(starts.length + 63) >>> 6];
+    }
+
+
+    /**
+     * Fold any quotations the builder hasn't seen yet, and return
+     * the folded text for the first size quotations.  The caller
+     * must pass the same records each time, which holds for the
+     * versions of one segment.
+     *
+     * @param records the quotations
+     * @param size the number of quotations
+     * @return the folded text
+     */
+    synchronized FoldedText extendTo(final OffHeapQuoteStore records,
+                                     final int size)
+    {
+      if (count < size)
+      {
+        QuoteFlyweight view = records.newFlyweight();
+        for (int i = count; i < size; ++i)
+        {
+          append(view.moveTo(i));
+        }
+      }
+
+      return new FoldedText(data, starts, unpacked);
+    }
+
+
+    /**
+     * Copy the arrays down to the space that's used, for a
+     * segment that won't be appended to any more, and return
+     * the folded text of every quotation folded so far.
+     *
+     * @return the folded text
+     */
+    synchronized FoldedText trim()
+    {
+      final int fields = count * FIELD_COUNT;
+      if (data.length > length)
+      {
+        data = Arrays.copyOf(data, length);
+      }
+
+      if (starts.length > (fields + 1))
+      {
+        starts = Arrays.copyOf(starts, fields + 1);
+        unpacked = Arrays.copyOf(unpacked, (fields + 64) >>> 6);
+      }
+
+      return new FoldedText(data, starts, unpacked);
+    }
+
+
+    /**
+     * Fold one quotation onto the end of the arrays.
+     *
+     * @param quote the record of the quotation
+     */
+    private void append(final QuoteFlyweight quote)
+    {
+      // Make sure there's room for the field starts and the end
+      final int fields = (count + 1) * FIELD_COUNT;
+      if (starts.length <= fields)
+      {
+        starts = Arrays.copyOf(starts, Math.max(fields + 1,
+                                 (starts.length * 3) / 2));
+      }
+
+      if (unpacked.length < ((fields + 64) >>> 6))
+      {
+        unpacked = Arrays.copyOf(unpacked, (starts.length + 63) >>> 6);
+      }
+
+      for (int f = 0; f < FIELD_COUNT; ++f)
+      {
+        final int field = (count * FIELD_COUNT) + f;
+        starts[field] = length;
+        if (!appendField(quote, f))
+        {
+          unpacked[field >>> 6] |= (1L << field);
+        }
+      }
+
+      ++count;
+      starts[count * FIELD_COUNT] = length;
+    }
+
+
+    /**
+     * Fold one field onto the end of the data.  Latin-1 fields are
+     * folded from the bytes of the record; a quotation that isn't
+     * ASCII is decoded, since Utility.updateBytes() works on Strings.
+     *
+     * @param quote the record of the quotation
+     * @param nField the field index
+     * @return whether the field was packed
+     */
+    private boolean appendField(final QuoteFlyweight quote, final int nField)
+    {
+      final int nRecordField = RECORD_FIELDS[nField];
+      if ((nField != FIELD_QUOTATION) || quote.isAscii(nRecordField))
+      {
+        if (!quote.isLatin1(nRecordField))
+        {
+          // Null, or has characters outside Latin-1
+          return false;
+        }
+
+        final int len = quote.getLength(nRecordField);
+        ensureData(len);
+        quote.readField(nRecordField, data, length);
+        for (int c = 0; c < len; ++c)
+        {
+          data[length + c] = CaseFold.fold(data[length + c]);
+        }
+
+        length += len;
+        return true;
+      }
+
+      final String str = Utility.updateBytes(quote.getQuotation());
+      if (str == null)
+      {
+        return false;
+      }
+
+      // Fold each character, giving up on anything outside Latin-1
+      final int strLen = str.length();
+      ensureData(strLen);
+      for (int c = 0; c < strLen; ++c)
+      {
+        final char ch = str.charAt(c);
+        if (ch > 0xFF)
+        {
+          return false;
+        }
+
+        data[length + c] = CaseFold.fold((byte) ch);
+      }
+
+      length += strLen;
+      return true;
+    }
+
+
+    /**
+     * Make sure there's room for more bytes of folded text.
+     *
+     * @param len the number of bytes
+     */
+    private void ensureData(final int len)
+    {
+      if ((length + len) > data.length)
+      {
+        data = Arrays.copyOf(data, Math.max(length + len,
+                               (data.length * 3) / 2));
+      }
+    }
+  }
+}
@@ -0,0 +1,666 @@
+package io.miti.quotes.app.corpus;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.miti.quotes.app.QuotationNode;
+
+/**
+ * Stores the fields of quotations in direct (off-heap) buffers,
+ * so a large corpus doesn't fill the heap with QuotationNode and
+ * String objects that the garbage collector has to trace.
+ *
+ * Each quotation is one record, made up of its six fields in a
+ * fixed order, then its name as QuotationNode.getName() builds it,
+ * so an author search can match the name where it lies.  Each
+ * field is written as:
+ *
+ *   byte   encoding (null, ASCII, Latin-1, UTF-8 or cold)
+ *   int    length in bytes (little-endian)
+ *   byte[] the encoded text
+ *
+ * Fields with only Latin-1 characters are stored one byte per
+ * character; anything else is stored as UTF-8.  If the bio and
+ * source were moved to the store's cold store, the bio holds
+ * their offset there (a long) and the source is empty.  Records
+ * are packed into fixed-size chunks and never span two chunks.
+ *
+ * This is the only copy of a segment's quotations: record N is
+ * the quotation at position N, and a QuotationNode is only made
+ * when one is asked for, such as for a search result.  Records
+ * are only ever appended, so the versions of a segment that's
+ * growing share one store, each reading the records it knows of.
+ *
+ * Records are read through a QuoteFlyweight, which is positioned
+ * on one record at a time and never creates Strings unless asked.
+ * There can be one writer, and any number of readers with their
+ * own flyweights.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class OffHeapQuoteStore implements QuotationNode.ColdStore
+{
+  /**
+   * The index of the first name field.
+   */
+  public static final int FIELD_FIRST_NAME = 0;
+
+  /**
+   * The index of the last name field.
+   */
+  public static final int FIELD_LAST_NAME = 1;
+
+  /**
+   * The index of the bio field.
+   */
+  public static final int FIELD_BIO = 2;
+
+  /**
+   * The index of the source field.
+   */
+  public static final int FIELD_SOURCE = 3;
+
+  /**
+   * The index of the topic field.
+   */
+  public static final int FIELD_TOPIC = 4;
+
+  /**
+   * The index of the quotation field.
+   */
+  public static final int FIELD_QUOTATION = 5;
+
+  /**
+   * The index of the name, as QuotationNode.getName() builds it.
+   */
+  public static final int FIELD_NAME = 6;
+
+  /**
+   * The number of fields in a record.
+   */
+  public static final int FIELD_COUNT = 7;
+
+  /**
+   * The encoding byte for a null field.
+   */
+  static final byte ENC_NULL = 0;
+
+  /**
+   * The encoding byte for a Latin-1 field.
+   */
+  static final byte ENC_LATIN1 = 1;
+
+  /**
+   * The encoding byte for a UTF-8 field.
+   */
+  static final byte ENC_UTF8 = 2;
+
+  /**
+   * The encoding byte for a field with only ASCII characters,
+   * which is also Latin-1.
+   */
+  static final byte ENC_ASCII = 3;
+
+  /**
+   * The encoding byte for a bio and source kept in the cold store.
+   */
+  static final byte ENC_COLD = 4;
+
+  /**
+   * The size of the header before each field.
+   */
+  static final int FIELD_HEADER = 5;
+
+  /**
+   * The byte order of the chunks.
+   */
+  static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  /**
+   * The default chunk size.
+   */
+  private static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+  /**
+   * The smallest chunk size used for a run of quotations.
+   */
+  private static final int MIN_RUN_CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * The size of a new chunk.
+   */
+  private final int chunkSize;
+
+  /**
+   * The store holding the bio and source of cold records, or null.
+   */
+  private final QuotationNode.ColdStore coldSource;
+
+  /**
+   * The chunks.  Readers see the list through volatile reads of
+   * chunkArray.
+   */
+  private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>(16);
+
+  /**
+   * The chunks, as an array that's replaced when a chunk is added.
+   */
+  private volatile ByteBuffer[] chunkArray = new ByteBuffer[0];
+
+  /**
+   * The location of each record, as the chunk index in the high
+   * 32 bits and the offset in the chunk in the low 32 bits.  The
+   * array is replaced when it grows.
+   */
+  private volatile long[] locations = new long[1024];
+
+  /**
+   * The number of records.  Written after the record, so a
+   * reader never sees a partial record.
+   */
+  private volatile int count = 0;
+
+
+  /**
+   * Create an empty store.
+   */
+  public OffHeapQuoteStore()
+  {
+    this(DEFAULT_CHUNK_SIZE, null);
+  }
+
+
+  /**
+   * Create an empty store.
+   *
+   * @param nChunkSize the size of each off-heap chunk
+   * @param pColdSource the store holding the bio and source of
+   *                    cold records, or null
+   */
+  public OffHeapQuoteStore(final int nChunkSize,
+                           final QuotationNode.ColdStore pColdSource)
+  {
+    super();
+    chunkSize = Math.max(1024, nChunkSize);
+    coldSource = pColdSource;
+  }
+
+
+  /**
+   * Create an empty store for a run of quotations, with the chunks
+   * sized for the run, so small segments stay small.
+   *
+   * @param nExpected the number of quotations expected
+   * @param pColdSource the store holding the bio and source of
+   *                    cold records, or null
+   * @return the new store
+   */
+  static OffHeapQuoteStore forRun(final int nExpected,
+                                  final QuotationNode.ColdStore pColdSource)
+  {
+    final long estimate = Math.max(MIN_RUN_CHUNK_SIZE, nExpected * 200L);
+    return new OffHeapQuoteStore((int) Math.min(DEFAULT_CHUNK_SIZE, estimate),
+                                 pColdSource);
+  }
+
+
+  /**
+   * Get the number of records.
+   *
+   * @return the number of records
+   */
+  public int size()
+  {
+    return count;
+  }
+
+
+  /**
+   * Get the store holding the bio and source of cold records.
+   *
+   * @return the cold store, or null
+   */
+  QuotationNode.ColdStore getColdSource()
+  {
+    return coldSource;
+  }
+
+
+  /**
+   * Create a new flyweight for reading this store.  A flyweight
+   * must only be used by one thread at a time.
+   *
+   * @return a new flyweight, not yet positioned on a record
+   */
+  public QuoteFlyweight newFlyweight()
+  {
+    return new QuoteFlyweight(this);
+  }
+
+
+  /**
+   * Make a QuotationNode from a record.  The bio and source are
+   * only read if they're asked for.
+   *
+   * @param nRecord the record index
+   * @return the new quotation
+   */
+  public QuotationNode getQuote(final int nRecord)
+  {
+    final long location = getLocation(nRecord);
+    final ByteBuffer chunk = getChunk((int) (location >>> 32)).duplicate();
+    chunk.order(ORDER);
+    int offset = (int) location;
+
+    QuotationNode quote = new QuotationNode();
+    long coldOffset = -1L;
+    for (int i = 0; i < FIELD_COUNT; ++i)
+    {
+      final byte enc = chunk.get(offset);
+      final int len = chunk.getInt(offset + 1);
+      offset += FIELD_HEADER;
+      switch (i)
+      {
+        case FIELD_FIRST_NAME:
+          quote.setFirstName(decode(chunk, offset, len, enc));
+          break;
+
+        case FIELD_LAST_NAME:
+          quote.setLastName(decode(chunk, offset, len, enc));
+          break;
+
+        case FIELD_BIO:
+          if (enc == ENC_COLD)
+          {
+            coldOffset = chunk.getLong(offset);
+          }
+          break;
+
+        case FIELD_TOPIC:
+          quote.setTopic(decode(chunk, offset, len, enc));
+          break;
+
+        case FIELD_QUOTATION:
+          quote.setQuotation(decode(chunk, offset, len, enc));
+          break;
+
+        default:
+          break;
+      }
+
+      offset += len;
+    }
+
+    // The bio and source are read from the cold store, or from
+    // this record, when they're first asked for
+    if (coldOffset < 0L)
+    {
+      quote.attachColdFields(this, nRecord);
+    }
+    else
+    {
+      quote.attachColdFields(coldSource, coldOffset);
+    }
+
+    return quote;
+  }
+
+
+  /**
+   * Read the bio and source of a record.  This lets the quotations
+   * made by getQuote() leave them here until they're asked for.
+   *
+   * @param offset the record index
+   * @param useCache ignored, since the record is in memory
+   * @return the bio and the source, in that order
+   */
+  public String[] fetch(final long offset, final boolean useCache)
+  {
+    QuoteFlyweight view = newFlyweight();
+    view.moveTo((int) offset);
+    return new String[] {view.getBio(), view.getSource()};
+  }
+
+
+  /**
+   * Add a quotation, with its bio and source.  Only one thread
+   * may add at a time.
+   *
+   * @param quote the quotation
+   * @return the index of the new record
+   */
+  public int append(final QuotationNode quote)
+  {
+    return append(quote, -1L);
+  }
+
+
+  /**
+   * Add a quotation.  Only one thread may add at a time.
+   *
+   * @param quote the quotation
+   * @param coldOffset the offset of its bio and source in the
+   *                   cold store, or -1 to store them here
+   * @return the index of the new record
+   */
+  synchronized int append(final QuotationNode quote, final long coldOffset)
+  {
+    final byte[] record = encodeRecord(quote, coldOffset);
+    final ByteBuffer chunk = reserve(record.length);
+    final long location = (((long) (chunks.size() - 1)) << 32) | chunk.position();
+    chunk.put(record);
+    return addLocation(location);
+  }
+
+
+  /**
+   * Add a copy of the record a flyweight is on, such as when
+   * segments are merged.  The bytes are copied as they are, unless
+   * the record's bio and source are in a different cold store, in
+   * which case they're read back and stored in the new record.
+   * Only one thread may add at a time.
+   *
+   * @param view the flyweight, positioned on the record to copy
+   * @return the index of the new record
+   */
+  synchronized int appendRecord(final QuoteFlyweight view)
+  {
+    if (view.isCold() && (view.getStore().getColdSource() != coldSource))
+    {
+      return append(view.toQuotationNode(), -1L);
+    }
+
+    // Copy the bytes from one chunk to the other, off the heap
+    ByteBuffer source = view.getRecordChunk().duplicate();
+    source.limit(view.getRecordEnd());
+    source.position(view.getRecordStart());
+    return copyRecord(source);
+  }
+
+
+  /**
+   * Add a record that's already encoded, such as one read from a
+   * saved corpus, and move the buffer past it.  A cold record's
+   * offset must be in this store's cold store.  Only one thread
+   * may add at a time.
+   *
+   * @param src the buffer, in little-endian order and positioned
+   *            at the start of the record
+   * @return the index of the new record
+   */
+  synchronized int appendEncoded(final ByteBuffer src)
+  {
+    // Find the end of the record from the field lengths
+    final int start = src.position();
+    int end = start;
+    for (int i = 0; i < FIELD_COUNT; ++i)
+    {
+      end += FIELD_HEADER + src.getInt(end + 1);
+    }
+
+    ByteBuffer source = src.duplicate();
+    source.limit(end);
+    src.position(end);
+    return copyRecord(source);
+  }
+
+
+  /**
+   * Encode a quotation as a record, as it's laid out in a chunk.
+   *
+   * @param quote the quotation
+   * @param coldOffset the offset of its bio and source in the
+   *                   cold store, or -1 to store them in the record
+   * @return the record
+   */
+  static byte[] encodeRecord(final QuotationNode quote, final long coldOffset)
+  {
+    // Encode the fields
+    byte[][] data = new byte[FIELD_COUNT][];
+    byte[] encodings = new byte[FIELD_COUNT];
+    encode(quote.getFirstName(), FIELD_FIRST_NAME, data, encodings);
+    encode(quote.getLastName(), FIELD_LAST_NAME, data, encodings);
+    if (coldOffset < 0L)
+    {
+      encode(quote.getBio(), FIELD_BIO, data, encodings);
+      encode(quote.getSource(), FIELD_SOURCE, data, encodings);
+    }
+    else
+    {
+      encodings[FIELD_BIO] = ENC_COLD;
+      data[FIELD_BIO] = ByteBuffer.allocate(8).order(ORDER)
+                                  .putLong(coldOffset).array();
+      encodings[FIELD_SOURCE] = ENC_COLD;
+    }
+
+    encode(quote.getTopic(), FIELD_TOPIC, data, encodings);
+    encode(quote.getQuotation(), FIELD_QUOTATION, data, encodings);
+    encode(quote.getName(), FIELD_NAME, data, encodings);
+
+    int recordSize = 0;
+    for (int i = 0; i < FIELD_COUNT; ++i)
+    {
+      recordSize += FIELD_HEADER + ((data[i] == null) ? 0 : data[i].length);
+    }
+
+    // Lay out the record
+    ByteBuffer record = ByteBuffer.allocate(recordSize).order(ORDER);
+    for (int i = 0; i < FIELD_COUNT; ++i)
+    {
+      record.put(encodings[i]);
+      if (data[i] == null)
+      {
+        record.putInt(0);
+      }
+      else
+      {
+        record.putInt(data[i].length);
+        record.put(data[i]);
+      }
+    }
+
+    return record.array();
+  }
+
+
+  /**
+   * Get the location of a record.
+   *
+   * @param nRecord the record index
+   * @return the chunk index and offset
+   */
+  long getLocation(final int nRecord)
+  {
+    if ((nRecord < 0) || (nRecord >= count))
+    {
+      throw new IndexOutOfBoundsException("Record " + nRecord +
+                                          " of " + count);
+    }
+
+    return locations[nRecord];
+  }
+
+
+  /**
+   * Get a chunk.
+   *
+   * @param nChunk the chunk index
+   * @return the chunk
+   */
+  ByteBuffer getChunk(final int nChunk)
+  {
+    return chunkArray[nChunk];
+  }
+
+
+  /**
+   * Decode a field into a String.
+   *
+   * @param buf the buffer holding the field
+   * @param offset the offset of the field's text
+   * @param len the length of the text in bytes
+   * @param enc the encoding of the field
+   * @return the field value
+   */
+  static String decode(final ByteBuffer buf, final int offset,
+                       final int len, final byte enc)
+  {
+    if ((enc == ENC_NULL) || (enc == ENC_COLD))
+    {
+      return null;
+    }
+
+    byte[] bytes = new byte[len];
+    buf.position(offset);
+    buf.get(bytes, 0, len);
+    return decode(bytes, 0, len, enc);
+  }
+
+
+  /**
+   * Decode the bytes of a field into a String.
+   *
+   * @param bytes the array holding the field
+   * @param offset the offset of the field's text
+   * @param len the length of the text in bytes
+   * @param enc the encoding of the field
+   * @return the field value
+   */
+  static String decode(final byte[] bytes, final int offset,
+                       final int len, final byte enc)
+  {
+    try
+    {
+      return new String(bytes, offset, len,
+                        ((enc == ENC_UTF8) ? "UTF-8" : "ISO-8859-1"));
+    }
+    catch (UnsupportedEncodingException uee)
+    {
+      // Can't happen, since both encodings are always supported
+      throw new RuntimeException(uee);
+    }
+  }
+
+
+  /**
+   * Find room for a record, starting a chunk if needed.
+   *
+   * @param recordSize the size of the record
+   * @return the chunk, positioned where the record goes
+   */
+  private ByteBuffer reserve(final int recordSize)
+  {
+    ByteBuffer chunk = (chunks.isEmpty() ? null : chunks.get(chunks.size() - 1));
+    if ((chunk == null) || (chunk.remaining() < recordSize))
+    {
+      chunk = ByteBuffer.allocateDirect(Math.max(chunkSize, recordSize));
+      chunk.order(ORDER);
+      chunks.add(chunk);
+      chunkArray = chunks.toArray(new ByteBuffer[chunks.size()]);
+    }
+
+    return chunk;
+  }
+
+
+  /**
+   * Copy an encoded record into the last chunk.
+   *
+   * @param source the record, from its position to its limit
+   * @return the index of the new record
+   */
+  private int copyRecord(final ByteBuffer source)
+  {
+    final ByteBuffer chunk = reserve(source.remaining());
+    final long location = (((long) (chunks.size() - 1)) << 32) | chunk.position();
+    chunk.put(source);
+    return addLocation(location);
+  }
+
+
+  /**
+   * Record where a new record is, making it visible to readers.
+   *
+   * @param location the chunk index and offset of the record
+   * @return the index of the record
+   */
+  private int addLocation(final long location)
+  {
+    final int index = count;
+    long[] array = locations;
+    if (index == array.length)
+    {
+      long[] newLocations = new long[index * 2];
+      System.arraycopy(array, 0, newLocations, 0, index);
+      array = newLocations;
+    }
+
+    array[index] = location;
+    locations = array;
+    count = index + 1;
+    return index;
+  }
+
+
+  /**
+   * Encode a field, as Latin-1 if possible.
+   *
+   * @param str the field value
+   * @param nField the field index
+   * @param data the encoded fields
+   * @param encodings the encoding of each field
+   */
+  private static void encode(final String str, final int nField,
+                             final byte[][] data, final byte[] encodings)
+  {
+    if (str == null)
+    {
+      encodings[nField] = ENC_NULL;
+      return;
+    }
+
+    try
+    {
+      final int maxChar = getMaxChar(str);
+      if (maxChar <= 0xFF)
+      {
+        encodings[nField] = ((maxChar < 0x80) ? ENC_ASCII : ENC_LATIN1);
+        data[nField] = str.getBytes("ISO-8859-1");
+      }
+      else
+      {
+        encodings[nField] = ENC_UTF8;
+        data[nField] = str.getBytes("UTF-8");
+      }
+    }
+    catch (UnsupportedEncodingException uee)
+    {
+      // Can't happen, since both encodings are always supported
+      throw new RuntimeException(uee);
+    }
+  }
+
+
+  /**
+   * Get the largest character in a string, stopping early once
+   * it's past Latin-1.
+   *
+   * @param str the string
+   * @return the largest character, or 0 if the string is empty
+   */
+  private static int getMaxChar(final String str)
+  {
+    int max = 0;
+    final int len = str.length();
+    for (int i = 0; (i < len) && (max <= 0xFF); ++i)
+    {
+      max = Math.max(max, str.charAt(i));
+    }
+
+    return max;
+  }
+}
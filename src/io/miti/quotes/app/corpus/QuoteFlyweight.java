@@ -0,0 +1,432 @@
+package io.miti.quotes.app.corpus;
+
+import java.nio.ByteBuffer;
+
+import io.miti.quotes.app.QuotationNode;
+import io.miti.quotes.app.filter.SliceFilter;
+
+/**
+ * A reusable view of one record in an OffHeapQuoteStore.  It has
+ * the same accessors as QuotationNode, and can also copy the raw
+ * bytes of a field into a caller's buffer, or run a slice filter
+ * on them where they lie, so a scan can match on the encoded text
+ * without creating any Strings or copying any bytes.
+ *
+ * Moving to a record is free; its fields are found the first
+ * time one of them is asked for.
+ *
+ * A flyweight is not thread-safe; each scanning thread should
+ * get its own from the store.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class QuoteFlyweight
+{
+  /**
+   * The store being read.
+   */
+  private final OffHeapQuoteStore store;
+
+  /**
+   * Our own views of the chunks, so reads don't disturb other
+   * readers.
+   */
+  private ByteBuffer[] views = new ByteBuffer[0];
+
+  /**
+   * The current record, or -1.
+   */
+  private int record = -1;
+
+  /**
+   * Whether the fields of the current record have been found.
+   */
+  private boolean parsed = false;
+
+  /**
+   * The view of the chunk holding the current record.
+   */
+  private ByteBuffer view = null;
+
+  /**
+   * The offset of the current record in its chunk.
+   */
+  private int recordStart = 0;
+
+  /**
+   * The offset of each field's text in the chunk.
+   */
+  private final int[] fieldOffsets = new int[OffHeapQuoteStore.FIELD_COUNT];
+
+  /**
+   * The length of each field in bytes, or -1 if it's null.
+   */
+  private final int[] fieldLengths = new int[OffHeapQuoteStore.FIELD_COUNT];
+
+  /**
+   * The encoding of each field.
+   */
+  private final byte[] fieldEncodings = new byte[OffHeapQuoteStore.FIELD_COUNT];
+
+
+  /**
+   * Create a flyweight.
+   *
+   * @param pStore the store to read
+   */
+  QuoteFlyweight(final OffHeapQuoteStore pStore)
+  {
+    super();
+    store = pStore;
+  }
+
+
+  /**
+   * Position this view on a record.
+   *
+   * @param nRecord the record index
+   * @return this view
+   */
+  public QuoteFlyweight moveTo(final int nRecord)
+  {
+    record = nRecord;
+    parsed = false;
+    return this;
+  }
+
+
+  /**
+   * Get the current record index.
+   *
+   * @return the record index, or -1 if not positioned
+   */
+  public int getRecord()
+  {
+    return record;
+  }
+
+
+  /**
+   * Get the length of a field in bytes.
+   *
+   * @param nField the field index
+   * @return the length, or -1 if the field is null
+   */
+  public int getLength(final int nField)
+  {
+    parse();
+    return fieldLengths[nField];
+  }
+
+
+  /**
+   * Check whether a field is stored as Latin-1, with one byte
+   * per character.  Otherwise it's UTF-8 (or null).
+   *
+   * @param nField the field index
+   * @return whether the field is Latin-1
+   */
+  public boolean isLatin1(final int nField)
+  {
+    parse();
+    final byte enc = fieldEncodings[nField];
+    return ((enc == OffHeapQuoteStore.ENC_LATIN1) ||
+            (enc == OffHeapQuoteStore.ENC_ASCII));
+  }
+
+
+  /**
+   * Check whether a field only has ASCII characters.
+   *
+   * @param nField the field index
+   * @return whether the field is ASCII
+   */
+  public boolean isAscii(final int nField)
+  {
+    parse();
+    return (fieldEncodings[nField] == OffHeapQuoteStore.ENC_ASCII);
+  }
+
+
+  /**
+   * Run a filter on the bytes of a Latin-1 field where they lie
+   * in the chunk, without copying them or creating a String.
+   *
+   * @param filter the filter
+   * @param nField the field index, which must be Latin-1
+   * @return whether the filter accepts the field
+   */
+  public boolean accept(final SliceFilter filter, final int nField)
+  {
+    parse();
+    return filter.accept(view, fieldOffsets[nField], fieldLengths[nField]);
+  }
+
+
+  /**
+   * Copy the encoded bytes of a field into an array.
+   *
+   * @param nField the field index
+   * @param dest the array, which must have room for getLength() bytes
+   * @param nOffset the offset in the array
+   * @return the number of bytes copied, or -1 if the field is null
+   */
+  public int readField(final int nField, final byte[] dest, final int nOffset)
+  {
+    parse();
+    final int len = fieldLengths[nField];
+    if (len > 0)
+    {
+      view.position(fieldOffsets[nField]);
+      view.get(dest, nOffset, len);
+    }
+
+    return len;
+  }
+
+
+  /**
+   * Get the value for firstName.
+   *
+   * @return the firstName
+   */
+  public String getFirstName()
+  {
+    return getString(OffHeapQuoteStore.FIELD_FIRST_NAME);
+  }
+
+
+  /**
+   * Get the value for lastName.
+   *
+   * @return the lastName
+   */
+  public String getLastName()
+  {
+    return getString(OffHeapQuoteStore.FIELD_LAST_NAME);
+  }
+
+
+  /**
+   * Return the name as a single string.
+   *
+   * @return the name
+   */
+  public String getName()
+  {
+    return getString(OffHeapQuoteStore.FIELD_NAME);
+  }
+
+
+  /**
+   * Get the value for bio.
+   *
+   * @return the bio
+   */
+  public String getBio()
+  {
+    return getColdField(0, OffHeapQuoteStore.FIELD_BIO);
+  }
+
+
+  /**
+   * Get the value for source.
+   *
+   * @return the source
+   */
+  public String getSource()
+  {
+    return getColdField(1, OffHeapQuoteStore.FIELD_SOURCE);
+  }
+
+
+  /**
+   * Get the value for topic.
+   *
+   * @return the topic
+   */
+  public String getTopic()
+  {
+    return getString(OffHeapQuoteStore.FIELD_TOPIC);
+  }
+
+
+  /**
+   * Get the value for quotation.
+   *
+   * @return the quotation
+   */
+  public String getQuotation()
+  {
+    return getString(OffHeapQuoteStore.FIELD_QUOTATION);
+  }
+
+
+  /**
+   * Make a QuotationNode from the current record, such as for
+   * showing it.  The bio and source are read when asked for.
+   *
+   * @return the new quotation
+   */
+  public QuotationNode toQuotationNode()
+  {
+    return store.getQuote(record);
+  }
+
+
+  /**
+   * Get the store being read.
+   *
+   * @return the store
+   */
+  OffHeapQuoteStore getStore()
+  {
+    return store;
+  }
+
+
+  /**
+   * Check whether the bio and source of the current record are in
+   * the store's cold store.
+   *
+   * @return whether the record's bio and source are cold
+   */
+  boolean isCold()
+  {
+    parse();
+    return (fieldEncodings[OffHeapQuoteStore.FIELD_BIO] ==
+            OffHeapQuoteStore.ENC_COLD);
+  }
+
+
+  /**
+   * Get the offset of the current record's bio and source in the
+   * store's cold store.  Only valid if isCold() is true.
+   *
+   * @return the offset in the cold store
+   */
+  long getColdOffset()
+  {
+    parse();
+    return view.getLong(fieldOffsets[OffHeapQuoteStore.FIELD_BIO]);
+  }
+
+
+  /**
+   * Get our view of the chunk holding the current record.
+   *
+   * @return the chunk
+   */
+  ByteBuffer getRecordChunk()
+  {
+    parse();
+    return view;
+  }
+
+
+  /**
+   * Get the offset of the current record in its chunk.
+   *
+   * @return the start of the record
+   */
+  int getRecordStart()
+  {
+    parse();
+    return recordStart;
+  }
+
+
+  /**
+   * Get the offset just past the end of the current record.
+   *
+   * @return the end of the record
+   */
+  int getRecordEnd()
+  {
+    parse();
+    final int last = OffHeapQuoteStore.FIELD_COUNT - 1;
+    return (fieldOffsets[last] + Math.max(0, fieldLengths[last]));
+  }
+
+
+  /**
+   * Find the fields of the current record, if that hasn't been
+   * done since it was moved to.
+   */
+  private void parse()
+  {
+    if (parsed)
+    {
+      return;
+    }
+
+    final long location = store.getLocation(record);
+    final int chunk = (int) (location >>> 32);
+    int offset = (int) location;
+
+    // Get our own view of the chunk
+    if (chunk >= views.length)
+    {
+      ByteBuffer[] newViews = new ByteBuffer[chunk + 1];
+      System.arraycopy(views, 0, newViews, 0, views.length);
+      views = newViews;
+    }
+
+    if (views[chunk] == null)
+    {
+      views[chunk] = store.getChunk(chunk).duplicate();
+      views[chunk].order(OffHeapQuoteStore.ORDER);
+    }
+
+    view = views[chunk];
+    recordStart = offset;
+
+    // Find the fields
+    for (int i = 0; i < OffHeapQuoteStore.FIELD_COUNT; ++i)
+    {
+      final byte enc = view.get(offset);
+      final int len = view.getInt(offset + 1);
+      offset += OffHeapQuoteStore.FIELD_HEADER;
+      fieldEncodings[i] = enc;
+      fieldOffsets[i] = offset;
+      fieldLengths[i] = ((enc == OffHeapQuoteStore.ENC_NULL) ? -1 : len);
+      offset += len;
+    }
+
+    parsed = true;
+  }
+
+
+  /**
+   * Get the bio or the source, from the cold store if that's
+   * where they are.
+   *
+   * @param nIndex the index of the field in the cold store's record
+   * @param nField the field index
+   * @return the field value
+   */
+  private String getColdField(final int nIndex, final int nField)
+  {
+    if (isCold())
+    {
+      return store.getColdSource().fetch(getColdOffset(), true)[nIndex];
+    }
+
+    return getString(nField);
+  }
+
+
+  /**
+   * Decode a field into a String.
+   *
+   * @param nField the field index
+   * @return the field value
+   */
+  private String getString(final int nField)
+  {
+    parse();
+    return OffHeapQuoteStore.decode(view, fieldOffsets[nField],
+                                    fieldLengths[nField], fieldEncodings[nField]);
+  }
+}
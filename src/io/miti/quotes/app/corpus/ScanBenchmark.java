@@ -0,0 +1,211 @@
+package io.miti.quotes.app.corpus;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.List;
+
+import io.miti.quotes.app.QuotationNode;
+import io.miti.quotes.app.filter.ByteScanner;
+import io.miti.quotes.app.filter.CaseFold;
+
+/**
+ * Compares the ways of finding a substring in the quotations,
+ * ignoring case: lowercasing each quotation and calling
+ * String.indexOf() (what the String filters do), String.indexOf()
+ * on copies lowercased in advance, and the byte scanner (one
+ * position at a time, and eight at a time) on the folded text.  Run it with the data file and any number of search
+ * terms:
+ *
+ *   java -cp quotes.jar io.miti.quotes.app.corpus.ScanBenchmark quotes.ser love courage
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class ScanBenchmark
+{
+  /**
+   * The number of timed passes per method.
+   */
+  private static final int PASSES = 10;
+
+  /**
+   * The number of untimed passes per method, to let the JIT
+   * compile it first.
+   */
+  private static final int WARMUP_PASSES = 5;
+
+
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private ScanBenchmark()
+  {
+    super();
+  }
+
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args the data file, followed by the search terms
+   * @throws Exception on error
+   */
+  @SuppressWarnings("unchecked")
+  public static void main(final String[] args) throws Exception
+  {
+    if (args.length < 2)
+    {
+      System.err.println("Usage: ScanBenchmark <data file> <term> ...");
+      return;
+    }
+
+    // Load the data
+    List<QuotationNode> list = null;
+    ObjectInputStream in = null;
+    try
+    {
+      in = new ObjectInputStream(new BufferedInputStream(
+                  new FileInputStream(args[0]), 65536));
+      list = (List<QuotationNode>) in.readObject();
+    }
+    finally
+    {
+      if (in != null)
+      {
+        in.close();
+      }
+    }
+
+    // Build the lowercased copies and the folded text
+    final int size = list.size();
+    String[] original = new String[size];
+    String[] lower = new String[size];
+    for (int i = 0; i < size; ++i)
+    {
+      final String quote = list.get(i).getQuotation();
+      original[i] = ((quote == null) ? "" : quote);
+      lower[i] = original[i].toLowerCase();
+    }
+
+    OffHeapQuoteStore records = OffHeapQuoteStore.forRun(size, null);
+    for (int i = 0; i < size; ++i)
+    {
+      records.append(list.get(i));
+    }
+
+    FoldedText folded = FoldedText.build(records, size);
+    System.out.println("Quotations: " + size + ", folded bytes: " +
+                       folded.getData().length);
+
+    for (int t = 1; t < args.length; ++t)
+    {
+      final String term = args[t];
+      System.out.println("Term: \"" + term + "\"");
+      runString(original, term.toLowerCase(), true);
+      runString(lower, term.toLowerCase(), false);
+      runBytes(folded, size, CaseFold.toLatin1(term, true), false);
+      runBytes(folded, size, CaseFold.toLatin1(term, true), true);
+    }
+  }
+
+
+  /**
+   * Time String.indexOf() over the quotations.
+   *
+   * @param quotes the quotations
+   * @param term the lowercased term
+   * @param toLower whether to lowercase each quotation first
+   */
+  private static void runString(final String[] quotes, final String term,
+                                final boolean toLower)
+  {
+    int hits = 0;
+    long best = Long.MAX_VALUE;
+    for (int p = 0; p < (WARMUP_PASSES + PASSES); ++p)
+    {
+      final long start = System.nanoTime();
+      hits = 0;
+      for (int i = 0; i < quotes.length; ++i)
+      {
+        final String quote = (toLower ? quotes[i].toLowerCase() : quotes[i]);
+        if (quote.indexOf(term) >= 0)
+        {
+          ++hits;
+        }
+      }
+
+      if (p >= WARMUP_PASSES)
+      {
+        best = Math.min(best, System.nanoTime() - start);
+      }
+    }
+
+    report((toLower ? "String.toLowerCase().indexOf()"
+                    : "String.indexOf() on lowercased copies"), hits, best);
+  }
+
+
+  /**
+   * Time the byte scanner over the folded quotations.
+   *
+   * @param folded the folded text
+   * @param size the number of quotations
+   * @param needle the folded term
+   * @param swar whether to check eight positions at a time
+   */
+  private static void runBytes(final FoldedText folded, final int size,
+                               final byte[] needle, final boolean swar)
+  {
+    if (needle == null)
+    {
+      System.out.println("  The term isn't Latin-1");
+      return;
+    }
+
+    final byte[] data = folded.getData();
+    int hits = 0;
+    long best = Long.MAX_VALUE;
+    for (int p = 0; p < (WARMUP_PASSES + PASSES); ++p)
+    {
+      final long start = System.nanoTime();
+      hits = 0;
+      for (int i = 0; i < size; ++i)
+      {
+        final int from = folded.getStart(i, FoldedText.FIELD_QUOTATION);
+        final int to = from + folded.getLength(i, FoldedText.FIELD_QUOTATION);
+        final int index = (swar ? ByteScanner.indexOf(data, from, to, needle)
+                                : ByteScanner.indexOfScalar(data, from, to, needle));
+        if (index >= 0)
+        {
+          ++hits;
+        }
+      }
+
+      if (p >= WARMUP_PASSES)
+      {
+        best = Math.min(best, System.nanoTime() - start);
+      }
+    }
+
+    report((swar ? "ByteScanner (8 at a time)" : "ByteScanner (scalar)"),
+           hits, best);
+  }
+
+
+  /**
+   * Print the result of a run.
+   *
+   * @param name the name of the method
+   * @param hits the number of matches
+   * @param nanos the best time for a pass
+   */
+  private static void report(final String name, final int hits,
+                             final long nanos)
+  {
+    System.out.println("  " + name + ": " + hits + " matches in " +
+                       (nanos / 1000000L) + " ms");
+  }
+}
@@ -0,0 +1,596 @@
+package io.miti.quotes.app.corpus;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.miti.quotes.app.QuotationNode;
+
+/**
+ * An immutable run of quotations inside the corpus.  Each
+ * quotation has a stable ID, and deleted quotations are
+ * recorded in a tombstone bitset instead of being removed,
+ * so an existing segment never changes once it's published.
+ * The quotations themselves are records in an off-heap store,
+ * and a QuotationNode is only made when one is asked for.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class Segment
+{
+  /**
+   * The generation of this segment.  Copies of a segment that
+   * only differ by their tombstones share the same generation.
+   */
+  private final long generation;
+
+  /**
+   * The quotation IDs.  This array may be longer than size
+   * (it can be shared with a newer, larger copy).
+   */
+  private final int[] ids;
+
+  /**
+   * The quotations, with one record per position.  The store may
+   * have more records than size (it can be shared with a newer,
+   * larger copy).
+   */
+  private final OffHeapQuoteStore records;
+
+  /**
+   * The number of quotations in this segment.
+   */
+  private final int size;
+
+  /**
+   * The tombstones for deleted quotations.  Never modified.
+   */
+  private final BitSet deleted;
+
+  /**
+   * The number of deleted quotations.
+   */
+  private final int deletedCount;
+
+  /**
+   * If the IDs are consecutive, this is the first ID; otherwise
+   * it's -1 and the sorted lookup arrays are used.
+   */
+  private final int firstDenseId;
+
+  /**
+   * The IDs in sorted order (null for dense segments).
+   */
+  private final int[] sortedIds;
+
+  /**
+   * The position of each entry in sortedIds (null for dense segments).
+   */
+  private final int[] sortedPositions;
+
+  /**
+   * Folds the searched text.  Shared by every version of the
+   * segment, so a version that's been appended to only folds the
+   * new quotations.
+   */
+  private final FoldedText.Builder folding;
+
+  /**
+   * The folded copy of the searched text, built on first use.
+   * Shared with copies that only differ by their tombstones.
+   */
+  private final AtomicReference<FoldedText> folded;
+
+  /**
+   * Whether this segment was made by appending to another, so it
+   * may be appended to again.  The folded text of a segment that
+   * won't grow is copied down to its size when it's built.
+   */
+  private final boolean growing;
+
+
+  /**
+   * Create a new segment.
+   *
+   * @param nGeneration the generation of the segment
+   * @param pIds the quotation IDs
+   * @param pRecords the quotations, one record per position
+   * @param nSize the number of quotations
+   * @param pDeleted the tombstones (not copied; must not be modified later)
+   */
+  Segment(final long nGeneration,
+          final int[] pIds,
+          final OffHeapQuoteStore pRecords,
+          final int nSize,
+          final BitSet pDeleted)
+  {
+    this(nGeneration, pIds, pRecords, nSize, pDeleted,
+         new FoldedText.Builder(nSize), new AtomicReference<FoldedText>());
+  }
+
+
+  /**
+   * Create a new segment that shares its folded text with another.
+   *
+   * @param nGeneration the generation of the segment
+   * @param pIds the quotation IDs
+   * @param pRecords the quotations, one record per position
+   * @param nSize the number of quotations
+   * @param pDeleted the tombstones (not copied; must not be modified later)
+   * @param pFolding the builder for the folded text
+   * @param pFolded the folded text, once it's built
+   */
+  private Segment(final long nGeneration,
+                  final int[] pIds,
+                  final OffHeapQuoteStore pRecords,
+                  final int nSize,
+                  final BitSet pDeleted,
+                  final FoldedText.Builder pFolding,
+                  final AtomicReference<FoldedText> pFolded)
+  {
+    super();
+    generation = nGeneration;
+    ids = pIds;
+    records = pRecords;
+    size = nSize;
+    deleted = pDeleted;
+    deletedCount = pDeleted.cardinality();
+    folding = pFolding;
+    folded = pFolded;
+    growing = false;
+
+    // Check if the IDs are consecutive, which is the normal case
+    // for the segment built when the corpus is loaded
+    boolean dense = true;
+    for (int i = 1; (i < size) && dense; ++i)
+    {
+      dense = (ids[i] == (ids[i - 1] + 1));
+    }
+
+    if (dense)
+    {
+      firstDenseId = ((size > 0) ? ids[0] : 0);
+      sortedIds = null;
+      sortedPositions = null;
+    }
+    else
+    {
+      // Build the sorted lookup arrays; sort on (id, position)
+      // packed into a long so duplicate IDs stay ordered
+      firstDenseId = -1;
+      long[] keys = new long[size];
+      for (int i = 0; i < size; ++i)
+      {
+        keys[i] = (((long) ids[i]) << 32) | (i & 0xFFFFFFFFL);
+      }
+      Arrays.sort(keys);
+
+      sortedIds = new int[size];
+      sortedPositions = new int[size];
+      for (int i = 0; i < size; ++i)
+      {
+        sortedIds[i] = (int) (keys[i] >>> 32);
+        sortedPositions[i] = (int) keys[i];
+      }
+    }
+  }
+
+
+  /**
+   * Create a copy of a segment with different tombstones.  The
+   * ID lookup arrays are shared with the source segment.
+   *
+   * @param source the segment to copy
+   * @param pDeleted the tombstones (not copied; must not be modified later)
+   */
+  private Segment(final Segment source, final BitSet pDeleted)
+  {
+    super();
+    generation = source.generation;
+    ids = source.ids;
+    records = source.records;
+    size = source.size;
+    deleted = pDeleted;
+    deletedCount = pDeleted.cardinality();
+    firstDenseId = source.firstDenseId;
+    sortedIds = source.sortedIds;
+    sortedPositions = source.sortedPositions;
+    folding = source.folding;
+    folded = source.folded;
+    growing = source.growing;
+  }
+
+
+  /**
+   * Create a longer version of a segment.  The arrays are shared
+   * with the source segment up to its size, as are the records
+   * and the folded text, so nothing is built again.
+   *
+   * @param source the segment being appended to
+   * @param pIds the quotation IDs
+   * @param nSize the number of quotations
+   * @param nFirstDenseId the first ID, or -1 if not dense
+   * @param pSortedIds the sorted IDs (null if dense)
+   * @param pSortedPositions the positions of the sorted IDs
+   */
+  private Segment(final Segment source,
+                  final int[] pIds,
+                  final int nSize,
+                  final int nFirstDenseId,
+                  final int[] pSortedIds,
+                  final int[] pSortedPositions)
+  {
+    super();
+    generation = source.generation;
+    ids = pIds;
+    records = source.records;
+    size = nSize;
+    deleted = source.deleted;
+    deletedCount = source.deletedCount;
+    firstDenseId = nFirstDenseId;
+    sortedIds = pSortedIds;
+    sortedPositions = pSortedPositions;
+    folding = source.folding;
+    folded = new AtomicReference<FoldedText>();
+    growing = true;
+  }
+
+
+  /**
+   * Create a segment with consecutive IDs.
+   *
+   * @param nGeneration the generation of the segment
+   * @param nFirstId the ID of the first quotation
+   * @param pRecords the quotations, one record per position
+   * @param nSize the number of quotations
+   * @return the new segment
+   */
+  static Segment createDense(final long nGeneration,
+                             final int nFirstId,
+                             final OffHeapQuoteStore pRecords,
+                             final int nSize)
+  {
+    int[] pIds = new int[nSize];
+    for (int i = 0; i < nSize; ++i)
+    {
+      pIds[i] = nFirstId + i;
+    }
+
+    return new Segment(nGeneration, pIds, pRecords, nSize, new BitSet(0));
+  }
+
+
+  /**
+   * Get the generation of this segment.
+   *
+   * @return the generation
+   */
+  public long getGeneration()
+  {
+    return generation;
+  }
+
+
+  /**
+   * Get the number of quotations, including deleted ones.
+   *
+   * @return the number of quotations
+   */
+  public int size()
+  {
+    return size;
+  }
+
+
+  /**
+   * Get the number of quotations that are not deleted.
+   *
+   * @return the number of live quotations
+   */
+  public int getLiveCount()
+  {
+    return (size - deletedCount);
+  }
+
+
+  /**
+   * Get the number of deleted quotations.
+   *
+   * @return the number of deleted quotations
+   */
+  public int getDeletedCount()
+  {
+    return deletedCount;
+  }
+
+
+  /**
+   * Returns whether the quotation at a position is deleted.
+   *
+   * @param nPos the position in the segment
+   * @return whether the quotation is deleted
+   */
+  public boolean isDeleted(final int nPos)
+  {
+    return deleted.get(nPos);
+  }
+
+
+  /**
+   * Get the ID of the quotation at a position.
+   *
+   * @param nPos the position in the segment
+   * @return the quotation ID
+   */
+  public int getId(final int nPos)
+  {
+    return ids[nPos];
+  }
+
+
+  /**
+   * Get the quotation at a position.  This makes a new
+   * QuotationNode from the record each time it's called.
+   *
+   * @param nPos the position in the segment
+   * @return the quotation
+   */
+  public QuotationNode getQuote(final int nPos)
+  {
+    return records.getQuote(nPos);
+  }
+
+
+  /**
+   * Get the position of the live quotation with the specified ID.
+   *
+   * @param nId the quotation ID
+   * @return the position, or -1 if not found (or deleted)
+   */
+  public int indexOf(final int nId)
+  {
+    if (firstDenseId >= 0)
+    {
+      final int pos = nId - firstDenseId;
+      if ((pos < 0) || (pos >= size) || deleted.get(pos))
+      {
+        return -1;
+      }
+
+      return pos;
+    }
+
+    // Find the first entry with this ID
+    int index = Arrays.binarySearch(sortedIds, 0, size, nId);
+    if (index < 0)
+    {
+      return -1;
+    }
+
+    while ((index > 0) && (sortedIds[index - 1] == nId))
+    {
+      --index;
+    }
+
+    // An ID may appear more than once if it was updated, but only
+    // one of the copies can be live
+    for (int i = index; (i < size) && (sortedIds[i] == nId); ++i)
+    {
+      if (!deleted.get(sortedPositions[i]))
+      {
+        return sortedPositions[i];
+      }
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * Get the folded copy of the searched text, building it if
+   * this is the first time it's been asked for.
+   *
+   * @return the folded text
+   */
+  public FoldedText getFoldedText()
+  {
+    FoldedText text = folded.get();
+    if (text == null)
+    {
+      // If two threads build it at once, both copies are the same
+      text = folding.extendTo(records, size);
+      if (!growing)
+      {
+        text = folding.trim();
+      }
+
+      if (!folded.compareAndSet(null, text))
+      {
+        text = folded.get();
+      }
+    }
+
+    return text;
+  }
+
+
+  /**
+   * Get the store holding the quotations, with one record per
+   * position.  Scans read it through a flyweight, and match on its
+   * bytes when they can't use the folded text.
+   *
+   * @return the off-heap store
+   */
+  public OffHeapQuoteStore getOffHeapStore()
+  {
+    return records;
+  }
+
+
+  /**
+   * Fold the searched text of every quotation, and copy the folded
+   * text down to its size, for a segment that's finished growing.
+   */
+  void trimFoldedText()
+  {
+    folding.extendTo(records, size);
+    folded.set(folding.trim());
+  }
+
+
+  /**
+   * Return a copy of this segment with different IDs for its
+   * quotations.  The quotations and their folded text are shared.
+   *
+   * @param nGeneration the generation of the new segment
+   * @param pIds the new IDs, one per position
+   * @return the new segment
+   */
+  Segment withIds(final long nGeneration, final int[] pIds)
+  {
+    return new Segment(nGeneration, pIds, records, size, deleted,
+                       folding, folded);
+  }
+
+
+  /**
+   * Return a copy of this segment with the quotation at a
+   * position marked as deleted.
+   *
+   * @param nPos the position to delete
+   * @return the new segment
+   */
+  Segment withDeleted(final int nPos)
+  {
+    BitSet bits = (BitSet) deleted.clone();
+    bits.set(nPos);
+    return new Segment(this, bits);
+  }
+
+
+  /**
+   * Return a copy of this segment with the quotations at
+   * the specified positions marked as deleted.
+   *
+   * @param pDeleted the positions to delete
+   * @return the new segment
+   */
+  Segment withDeleted(final BitSet pDeleted)
+  {
+    BitSet bits = (BitSet) deleted.clone();
+    bits.or(pDeleted);
+    return new Segment(this, bits);
+  }
+
+
+  /**
+   * Return a copy of this segment with quotations appended, once
+   * their records have been added to the end of getOffHeapStore().
+   * The ID array is shared with this segment when it has room,
+   * which is safe because this segment never reads past its own
+   * size.  The ID lookup is extended rather than rebuilt: it stays
+   * dense while the IDs are consecutive, and an ID that's not the
+   * largest so far is inserted into a copy of the sorted arrays.
+   * Only the single writer may call this.
+   *
+   * @param pIds the IDs of the new quotations
+   * @param nCount the number of new quotations
+   * @return the new segment
+   */
+  Segment withAppended(final int[] pIds, final int nCount)
+  {
+    final int newSize = size + nCount;
+    if (records.size() < newSize)
+    {
+      throw new IllegalStateException("Only " + records.size() +
+                                      " records for " + newSize + " quotations");
+    }
+
+    int[] newIds = ids;
+    if (newSize > ids.length)
+    {
+      newIds = Arrays.copyOf(ids, Math.max(16, Math.max(newSize, size * 2)));
+    }
+
+    System.arraycopy(pIds, 0, newIds, size, nCount);
+
+    int newFirstDenseId = firstDenseId;
+    int[] newSortedIds = sortedIds;
+    int[] newSortedPositions = sortedPositions;
+    boolean bCopied = false;
+    for (int i = size; i < newSize; ++i)
+    {
+      final int nId = newIds[i];
+      if (newFirstDenseId >= 0)
+      {
+        if (i == 0)
+        {
+          newFirstDenseId = nId;
+          continue;
+        }
+        else if (nId == (newIds[i - 1] + 1))
+        {
+          continue;
+        }
+
+        // The IDs so far are consecutive, so they're already sorted
+        newFirstDenseId = -1;
+        newSortedIds = new int[newIds.length];
+        newSortedPositions = new int[newIds.length];
+        for (int j = 0; j < i; ++j)
+        {
+          newSortedIds[j] = newIds[j];
+          newSortedPositions[j] = j;
+        }
+
+        bCopied = true;
+      }
+      else if (newSortedIds.length < newIds.length)
+      {
+        newSortedIds = Arrays.copyOf(newSortedIds, newIds.length);
+        newSortedPositions = Arrays.copyOf(newSortedPositions, newIds.length);
+        bCopied = true;
+      }
+
+      // Find where the ID goes: after any entries with the same ID,
+      // since this position is larger than theirs
+      int low = 0;
+      int high = i;
+      while (low < high)
+      {
+        final int mid = (low + high) >>> 1;
+        if (newSortedIds[mid] <= nId)
+        {
+          low = mid + 1;
+        }
+        else
+        {
+          high = mid;
+        }
+      }
+
+      if (low < i)
+      {
+        // The entries shared with this segment can't move
+        if (!bCopied)
+        {
+          newSortedIds = Arrays.copyOf(newSortedIds, newSortedIds.length);
+          newSortedPositions = Arrays.copyOf(newSortedPositions,
+                                             newSortedPositions.length);
+          bCopied = true;
+        }
+
+        System.arraycopy(newSortedIds, low, newSortedIds, low + 1, i - low);
+        System.arraycopy(newSortedPositions, low, newSortedPositions,
+                         low + 1, i - low);
+      }
+
+      newSortedIds[low] = nId;
+      newSortedPositions[low] = i;
+    }
+
+    return new Segment(this, newIds, newSize, newFirstDenseId,
+                       newSortedIds, newSortedPositions);
+  }
+}
@@ -0,0 +1,979 @@
+package io.miti.quotes.app.corpus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import io.miti.quotes.app.QuotationNode;
+
+/**
+ * The corpus of quotations, organized as a log-structured set
+ * of segments so quotations can be added, updated and deleted
+ * while searches are running.
+ *
+ * New quotations go into a small in-memory segment (the memtable)
+ * at the end of the corpus.  Deletions are recorded as tombstones
+ * in the segment holding the quotation.  An update is a deletion
+ * followed by an add with the same ID.  When the memtable fills
+ * up it's sealed, and once there are too many small segments a
+ * background thread merges them, dropping deleted quotations.
+ *
+ * Every change publishes a new immutable CorpusSnapshot, so
+ * readers never take a lock.  Writers are serialized.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class SegmentedCorpus
+{
+  /**
+   * The default number of quotations in the memtable before
+   * it gets sealed.
+   */
+  static final int DEFAULT_MEMTABLE_SIZE = 4096;
+
+  /**
+   * The default number of sealed segments (besides the first)
+   * before a compaction is started.
+   */
+  static final int DEFAULT_MAX_SEGMENTS = 8;
+
+  /**
+   * The fraction of deleted quotations in the first segment
+   * that causes it to be included in a compaction.
+   */
+  private static final double MAX_DELETED_RATIO = 0.25;
+
+  /**
+   * The current snapshot.
+   */
+  private volatile CorpusSnapshot snapshot;
+
+  /**
+   * The lock held by writers.
+   */
+  private final Object writeLock = new Object();
+
+  /**
+   * The lock held while compacting, so only one compaction
+   * runs at a time.
+   */
+  private final Object compactLock = new Object();
+
+  /**
+   * The next quotation ID to assign.
+   */
+  private int nextId = 0;
+
+  /**
+   * The next segment generation to assign.
+   */
+  private long nextGeneration = 0L;
+
+  /**
+   * The version of the next snapshot.
+   */
+  private long nextVersion = 0L;
+
+  /**
+   * The generation of the open memtable, or -1 if there isn't one.
+   */
+  private long memtableGeneration = -1L;
+
+  /**
+   * The generation of the segment that loading is appending
+   * batches to, or -1 if there isn't one.
+   */
+  private long batchGeneration = -1L;
+
+  /**
+   * The maximum size of the memtable.
+   */
+  private final int memtableSize;
+
+  /**
+   * The maximum number of sealed segments before compacting.
+   */
+  private final int maxSegments;
+
+  /**
+   * Whether a compaction is scheduled or running.
+   */
+  private boolean compactionPending = false;
+
+  /**
+   * The thread used for compactions.
+   */
+  private final ExecutorService compactor;
+
+  /**
+   * The store for the bio and source of bulk loaded quotations,
+   * or null to keep them in memory.
+   */
+  private volatile ColdFieldStore coldStore = null;
+
+
+  /**
+   * Create a corpus from a list of quotations.  The quotations
+   * get IDs matching their index in the list.
+   *
+   * @param list the initial quotations (may be null)
+   */
+  public SegmentedCorpus(final List<QuotationNode> list)
+  {
+    this(list, DEFAULT_MEMTABLE_SIZE, DEFAULT_MAX_SEGMENTS);
+  }
+
+
+  /**
+   * Create a corpus from a list of quotations.
+   *
+   * @param list the initial quotations (may be null)
+   * @param nMemtableSize the number of quotations in the memtable
+   *                      before it's sealed
+   * @param nMaxSegments the number of sealed segments that
+   *                     triggers a compaction
+   */
+  public SegmentedCorpus(final List<QuotationNode> list,
+                         final int nMemtableSize,
+                         final int nMaxSegments)
+  {
+    this(list, null, -1, nMemtableSize, nMaxSegments);
+  }
+
+
+  /**
+   * Create a corpus from a list of quotations with known IDs,
+   * such as one saved by a checkpoint.
+   *
+   * @param list the initial quotations (may be null)
+   * @param pIds the ID of each quotation, or null to use the
+   *             index in the list
+   * @param nNextId the next ID to assign, or -1 to use one more
+   *                than the largest ID
+   * @param nMemtableSize the number of quotations in the memtable
+   *                      before it's sealed
+   * @param nMaxSegments the number of sealed segments that
+   *                     triggers a compaction
+   */
+  SegmentedCorpus(final List<QuotationNode> list,
+                  final int[] pIds,
+                  final int nNextId,
+                  final int nMemtableSize,
+                  final int nMaxSegments)
+  {
+    super();
+    memtableSize = Math.max(1, nMemtableSize);
+    maxSegments = Math.max(1, nMaxSegments);
+
+    // Build the first segment from the list
+    final int size = ((list == null) ? 0 : list.size());
+    OffHeapQuoteStore records = OffHeapQuoteStore.forRun(size, null);
+    for (int i = 0; i < size; ++i)
+    {
+      records.append(list.get(i));
+    }
+
+    Segment base = null;
+    if (pIds == null)
+    {
+      base = Segment.createDense(nextGeneration++, 0, records, size);
+      nextId = size;
+    }
+    else
+    {
+      base = new Segment(nextGeneration++, pIds, records, size, new BitSet(0));
+      for (int i = 0; i < size; ++i)
+      {
+        nextId = Math.max(nextId, pIds[i] + 1);
+      }
+    }
+
+    nextId = Math.max(nextId, nNextId);
+    snapshot = new CorpusSnapshot(new Segment[] {base}, nextVersion++);
+
+    // Compactions run on a single daemon thread
+    compactor = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+      public Thread newThread(final Runnable r)
+      {
+        Thread t = new Thread(r, "corpus-compactor");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+      }
+    });
+  }
+
+
+  /**
+   * Get the current snapshot.  This never blocks.
+   *
+   * @return the current snapshot
+   */
+  public CorpusSnapshot getSnapshot()
+  {
+    return snapshot;
+  }
+
+
+  /**
+   * Set the store for the bio and source of quotations added by
+   * bulk loads and replacements.  Quotations already in the
+   * corpus, and those added one at a time, are left as they are.
+   * Any store set before is retired.  The corpus closes the store
+   * when it's shut down.
+   *
+   * @param store the store, or null to keep the fields in memory
+   */
+  public void setColdFieldStore(final ColdFieldStore store)
+  {
+    final ColdFieldStore oldStore = coldStore;
+    coldStore = store;
+    if ((oldStore != null) && (oldStore != store))
+    {
+      oldStore.retire();
+    }
+  }
+
+
+  /**
+   * Get the store for the bio and source of quotations added by
+   * bulk loads and replacements.
+   *
+   * @return the store, or null if the fields are kept in memory
+   */
+  ColdFieldStore getColdFieldStore()
+  {
+    return coldStore;
+  }
+
+
+  /**
+   * Add a quotation.
+   *
+   * @param quote the quotation to add
+   * @return the ID assigned to the quotation
+   */
+  public int add(final QuotationNode quote)
+  {
+    synchronized (writeLock)
+    {
+      final int id = nextId++;
+      publish(appendToMemtable(snapshot.getSegmentCount(),
+                               copySegments(snapshot), id, quote));
+      return id;
+    }
+  }
+
+
+  /**
+   * Add a quotation with a known ID, as when replaying a log.
+   *
+   * @param nId the ID of the quotation
+   * @param quote the quotation to add
+   */
+  void insert(final int nId, final QuotationNode quote)
+  {
+    synchronized (writeLock)
+    {
+      nextId = Math.max(nextId, nId + 1);
+      publish(appendToMemtable(snapshot.getSegmentCount(),
+                               copySegments(snapshot), nId, quote));
+    }
+  }
+
+
+  /**
+   * Append a batch of quotations with consecutive IDs.  This is
+   * used while loading the corpus: the batches go into one segment,
+   * which grows in place (sharing its records, arrays and folded
+   * text with the version before it) until sealBatches() is called,
+   * and isn't merged by compaction until then.  The quotations are
+   * encoded into the segment's records, so the caller can reuse
+   * the batch array.
+   *
+   * @param batch the quotations
+   * @param count the number of quotations in the batch
+   * @return the ID of the first quotation in the batch
+   */
+  int appendBatch(final QuotationNode[] batch, final int count)
+  {
+    return appendToBatches(batch, null, count);
+  }
+
+
+  /**
+   * Append a batch of quotations that are already encoded as
+   * records, such as those read from a saved corpus, in the same
+   * way as appendBatch().  The bio and source of a cold record must
+   * be in the corpus's cold store.
+   *
+   * @param encoded the records, in little-endian order, starting
+   *                at the buffer's position
+   * @param count the number of records
+   * @return the ID of the first quotation in the batch
+   */
+  int appendRecords(final ByteBuffer encoded, final int count)
+  {
+    return appendToBatches(null, encoded, count);
+  }
+
+
+  /**
+   * Append a batch of quotations to the segment that loading
+   * appends to, starting one if needed.
+   *
+   * @param batch the quotations, or null if they're encoded
+   * @param encoded the encoded records, if batch is null
+   * @param count the number of quotations
+   * @return the ID of the first quotation in the batch
+   */
+  private int appendToBatches(final QuotationNode[] batch,
+                              final ByteBuffer encoded,
+                              final int count)
+  {
+    int firstId = 0;
+    Segment segment = null;
+    synchronized (writeLock)
+    {
+      firstId = nextId;
+      nextId += count;
+      int[] ids = new int[count];
+      for (int i = 0; i < count; ++i)
+      {
+        ids[i] = firstId + i;
+      }
+
+      // The batch goes after any open memtable, which gets sealed
+      memtableGeneration = -1L;
+      final int segCount = snapshot.getSegmentCount();
+      Segment[] segs = copySegments(snapshot);
+      final Segment last = ((segCount > 0) ? segs[segCount - 1] : null);
+      if ((last != null) && (last.getGeneration() == batchGeneration))
+      {
+        fill(last.getOffHeapStore(), batch, encoded, count);
+        segment = last.withAppended(ids, count);
+        segs[segCount - 1] = segment;
+      }
+      else
+      {
+        OffHeapQuoteStore records = OffHeapQuoteStore.forRun(count, coldStore);
+        fill(records, batch, encoded, count);
+        batchGeneration = nextGeneration++;
+        segment = new Segment(batchGeneration, ids, records, count,
+                              new BitSet(0));
+        Segment[] grown = new Segment[segCount + 1];
+        System.arraycopy(segs, 0, grown, 0, segCount);
+        grown[segCount] = segment;
+        segs = grown;
+        if (segCount > maxSegments)
+        {
+          scheduleCompaction();
+        }
+      }
+
+      publish(segs);
+    }
+
+    // Fold the new quotations while loading, instead of during
+    // the first search
+    segment.getFoldedText();
+    return firstId;
+  }
+
+
+  /**
+   * Add a batch to the end of a segment's records.  The caller
+   * must hold the write lock.
+   *
+   * @param records the records
+   * @param batch the quotations, or null if they're encoded
+   * @param encoded the encoded records, if batch is null
+   * @param count the number of quotations
+   */
+  private void fill(final OffHeapQuoteStore records,
+                    final QuotationNode[] batch,
+                    final ByteBuffer encoded,
+                    final int count)
+  {
+    if (batch == null)
+    {
+      for (int i = 0; i < count; ++i)
+      {
+        records.appendEncoded(encoded);
+      }
+    }
+    else
+    {
+      // Only use the cold store the records read from
+      final ColdFieldStore store = coldStore;
+      appendAll(records, ((records.getColdSource() == store) ? store : null),
+                batch, count);
+    }
+  }
+
+
+  /**
+   * Seal the segment that loading appended batches to, so it
+   * can be merged, and copy its folded text down to its size.
+   */
+  void sealBatches()
+  {
+    Segment segment = null;
+    synchronized (writeLock)
+    {
+      final int segCount = snapshot.getSegmentCount();
+      if ((segCount > 0) &&
+          (snapshot.getSegment(segCount - 1).getGeneration() == batchGeneration))
+      {
+        segment = snapshot.getSegment(segCount - 1);
+      }
+
+      batchGeneration = -1L;
+    }
+
+    if (segment != null)
+    {
+      segment.trimFoldedText();
+    }
+  }
+
+
+  /**
+   * Replace the IDs of all the live quotations, keeping their
+   * order.  This is used after streaming in a snapshot whose IDs
+   * are stored after the quotations.  The result is a single
+   * segment, with the same positions for the live quotations.
+   *
+   * @param ids the new ID of each live quotation, in order
+   * @param nNextId the next ID to assign
+   */
+  void restoreIds(final int[] ids, final int nNextId)
+  {
+    synchronized (compactLock)
+    {
+      synchronized (writeLock)
+      {
+        final int live = snapshot.getLiveCount();
+        if (live != ids.length)
+        {
+          throw new IllegalStateException("Expected " + ids.length +
+                         " quotations but found " + live);
+        }
+
+        nextId = nNextId;
+        for (int i = 0; i < ids.length; ++i)
+        {
+          nextId = Math.max(nextId, ids[i] + 1);
+        }
+
+        memtableGeneration = -1L;
+        batchGeneration = -1L;
+
+        // A snapshot normally loads as one segment with nothing
+        // deleted, which can keep its folded text
+        final Segment first = ((snapshot.getSegmentCount() == 1) ?
+                               snapshot.getSegment(0) : null);
+        if ((first != null) && (first.getDeletedCount() == 0))
+        {
+          publish(new Segment[] {first.withIds(nextGeneration++, ids)});
+          return;
+        }
+
+        OffHeapQuoteStore records = copyLive(snapshot, 0,
+                                             snapshot.getSegmentCount(),
+                                             ids.length, null);
+        publish(new Segment[] {new Segment(nextGeneration++, ids, records,
+                                           ids.length, new BitSet(0))});
+      }
+    }
+  }
+
+
+  /**
+   * Get the next ID that will be assigned.
+   *
+   * @return the next ID
+   */
+  int getNextId()
+  {
+    synchronized (writeLock)
+    {
+      return nextId;
+    }
+  }
+
+
+  /**
+   * Replace the quotation with the specified ID.
+   *
+   * @param nId the ID of the quotation to replace
+   * @param quote the new quotation
+   * @return whether the ID was found
+   */
+  public boolean update(final int nId, final QuotationNode quote)
+  {
+    synchronized (writeLock)
+    {
+      Segment[] segs = copySegments(snapshot);
+      if (!markDeleted(segs, nId))
+      {
+        return false;
+      }
+
+      publish(appendToMemtable(segs.length, segs, nId, quote));
+      return true;
+    }
+  }
+
+
+  /**
+   * Delete the quotation with the specified ID.
+   *
+   * @param nId the ID of the quotation to delete
+   * @return whether the ID was found
+   */
+  public boolean delete(final int nId)
+  {
+    synchronized (writeLock)
+    {
+      Segment[] segs = copySegments(snapshot);
+      if (!markDeleted(segs, nId))
+      {
+        return false;
+      }
+
+      publish(segs);
+      return true;
+    }
+  }
+
+
+  /**
+   * Replace every quotation in the corpus with a new list.  The
+   * new quotations get fresh IDs, so IDs from the old corpus never
+   * refer to a new quotation.  Searches running on an older
+   * snapshot finish on it; new searches see the new quotations.
+   * The new quotations get a new cold store, and the old one is
+   * retired, so its file is deleted once the old quotations are
+   * no longer used.
+   *
+   * @param list the new quotations (may be null)
+   * @return the ID of the first new quotation
+   */
+  public int replaceAll(final List<QuotationNode> list)
+  {
+    final int size = ((list == null) ? 0 : list.size());
+
+    // The cold fields of the old quotations won't be needed once
+    // they're gone, so start a new store for the new ones
+    final ColdFieldStore oldStore = coldStore;
+    ColdFieldStore newStore = oldStore;
+    if (oldStore != null)
+    {
+      try
+      {
+        newStore = oldStore.createNext();
+      }
+      catch (IOException ioe)
+      {
+        System.err.println("IOException: " + ioe.getMessage());
+      }
+    }
+
+    // Encode the new quotations before taking any locks
+    OffHeapQuoteStore records = OffHeapQuoteStore.forRun(size, newStore);
+    if (size > 0)
+    {
+      appendAll(records, newStore,
+                list.toArray(new QuotationNode[size]), size);
+    }
+
+    // Wait for any compaction, since it assumes the segments
+    // it's merging are still in place
+    int firstId = 0;
+    synchronized (compactLock)
+    {
+      synchronized (writeLock)
+      {
+        firstId = nextId;
+        nextId += size;
+        memtableGeneration = -1L;
+        batchGeneration = -1L;
+        publish(new Segment[] {Segment.createDense(nextGeneration++, firstId,
+                                                   records, size)});
+        coldStore = newStore;
+      }
+    }
+
+    if (newStore != oldStore)
+    {
+      oldStore.retire();
+    }
+
+    return firstId;
+  }
+
+
+  /**
+   * Add quotations to the end of a segment's records, moving
+   * their bio and source to the cold store.  If the cold store
+   * fails, the rest of the fields are kept in the records.
+   *
+   * @param records the records, whose cold store must be store
+   * @param store the cold store, or null to keep the fields in
+   *              the records
+   * @param quotes the quotations
+   * @param count the number of quotations
+   */
+  private static void appendAll(final OffHeapQuoteStore records,
+                                final ColdFieldStore store,
+                                final QuotationNode[] quotes,
+                                final int count)
+  {
+    ColdFieldStore cold = store;
+    for (int i = 0; i < count; ++i)
+    {
+      long offset = -1L;
+      if (cold != null)
+      {
+        try
+        {
+          offset = cold.append(quotes[i].getBio(), quotes[i].getSource());
+        }
+        catch (IOException ioe)
+        {
+          System.err.println("IOException: " + ioe.getMessage());
+          cold = null;
+        }
+      }
+
+      records.append(quotes[i], offset);
+    }
+  }
+
+
+  /**
+   * Copy the records of the live quotations in a range of
+   * segments into a new store, keeping their order.  The bytes
+   * are copied off the heap, without making any QuotationNodes.
+   *
+   * @param snap the snapshot holding the segments
+   * @param from the index of the first segment
+   * @param end the index after the last segment
+   * @param live the number of live quotations in the range
+   * @param ids where to put the ID of each live quotation, or null
+   * @return the new store
+   */
+  private OffHeapQuoteStore copyLive(final CorpusSnapshot snap,
+                                     final int from,
+                                     final int end,
+                                     final int live,
+                                     final int[] ids)
+  {
+    OffHeapQuoteStore records = OffHeapQuoteStore.forRun(live, coldStore);
+    int next = 0;
+    for (int s = from; s < end; ++s)
+    {
+      final Segment seg = snap.getSegment(s);
+      final QuoteFlyweight view = seg.getOffHeapStore().newFlyweight();
+      final int size = seg.size();
+      for (int i = 0; i < size; ++i)
+      {
+        if (!seg.isDeleted(i))
+        {
+          if (ids != null)
+          {
+            ids[next] = seg.getId(i);
+          }
+
+          records.appendRecord(view.moveTo(i));
+          ++next;
+        }
+      }
+    }
+
+    return records;
+  }
+
+
+  /**
+   * Merge the small segments now, on the calling thread.
+   */
+  public void compact()
+  {
+    synchronized (compactLock)
+    {
+      mergeSegments();
+    }
+  }
+
+
+  /**
+   * Merge the sealed segments after the first one (and the first
+   * one too, if it has a lot of deleted quotations).  The caller
+   * must hold the compaction lock.
+   */
+  private void mergeSegments()
+  {
+    // Pick the segments to merge
+    final CorpusSnapshot start;
+    final int end;
+    synchronized (writeLock)
+    {
+      start = snapshot;
+      final int count = start.getSegmentCount();
+      end = (isOpen(start.getSegment(count - 1)) ? count - 1 : count);
+    }
+
+    final Segment first = start.getSegment(0);
+    final int from = (((first.size() > 0) &&
+                       (first.getDeletedCount() >
+                        (first.size() * MAX_DELETED_RATIO))) ? 0 : 1);
+    if ((end - from) < 1)
+    {
+      return;
+    }
+
+    // Build the merged segment without holding the lock
+    int live = 0;
+    for (int s = from; s < end; ++s)
+    {
+      live += start.getSegment(s).getLiveCount();
+    }
+
+    int[] ids = new int[live];
+    OffHeapQuoteStore records = copyLive(start, from, end, live, ids);
+
+    Segment mergedSegment = null;
+    synchronized (writeLock)
+    {
+      // Deletions may have happened while merging, so carry over
+      // any tombstones added to the source segments since then
+      final CorpusSnapshot current = snapshot;
+      BitSet deleted = new BitSet(live);
+      int merged = 0;
+      for (int s = from; s < end; ++s)
+      {
+        final Segment before = start.getSegment(s);
+        final Segment after = current.getSegment(s);
+        final int size = before.size();
+        for (int i = 0; i < size; ++i)
+        {
+          if (!before.isDeleted(i))
+          {
+            if (after.isDeleted(i))
+            {
+              deleted.set(merged);
+            }
+
+            ++merged;
+          }
+        }
+      }
+
+      // Splice the merged segment in place of the sources.  Segments
+      // are only ever appended, so the sources are still at the
+      // same indexes in the current snapshot.
+      final int curCount = current.getSegmentCount();
+      Segment[] segs = new Segment[curCount - (end - from) + 1];
+      int index = 0;
+      for (int s = 0; s < from; ++s)
+      {
+        segs[index++] = current.getSegment(s);
+      }
+
+      mergedSegment = new Segment(nextGeneration++, ids, records, live, deleted);
+      segs[index++] = mergedSegment;
+      for (int s = end; s < curCount; ++s)
+      {
+        segs[index++] = current.getSegment(s);
+      }
+
+      publish(segs);
+    }
+
+    // Build the folded text here rather than during the next search
+    mergedSegment.trimFoldedText();
+  }
+
+
+  /**
+   * Stop the compaction thread, and close the cold store.
+   */
+  public void shutdown()
+  {
+    compactor.shutdown();
+
+    final ColdFieldStore store = coldStore;
+    if (store != null)
+    {
+      coldStore = null;
+      store.close();
+    }
+  }
+
+
+  /**
+   * Append a quotation to the memtable, opening a new one if
+   * needed.  The memtable keeps the bio and source in its own
+   * records.  The caller must hold the write lock.
+   *
+   * @param count the number of used entries in segs
+   * @param segs the current segments
+   * @param nId the ID of the new quotation
+   * @param quote the quotation
+   * @return the new list of segments
+   */
+  private Segment[] appendToMemtable(final int count,
+                                     final Segment[] segs,
+                                     final int nId,
+                                     final QuotationNode quote)
+  {
+    final Segment last = segs[count - 1];
+    if (isMemtable(last) && (last.size() < memtableSize))
+    {
+      // Add to the open memtable
+      last.getOffHeapStore().append(quote);
+      segs[count - 1] = last.withAppended(new int[] {nId}, 1);
+      return segs;
+    }
+
+    // Seal the old memtable (if any) and start a new one
+    batchGeneration = -1L;
+    memtableGeneration = nextGeneration++;
+    OffHeapQuoteStore records = OffHeapQuoteStore.forRun(memtableSize, null);
+    Segment mem = new Segment(memtableGeneration, new int[16],
+                              records, 0, new BitSet(0));
+    records.append(quote);
+
+    Segment[] result = new Segment[count + 1];
+    System.arraycopy(segs, 0, result, 0, count);
+    result[count] = mem.withAppended(new int[] {nId}, 1);
+
+    // Check if it's time to merge
+    if ((count - 1) >= maxSegments)
+    {
+      scheduleCompaction();
+    }
+
+    return result;
+  }
+
+
+  /**
+   * Mark the live quotation with an ID as deleted.  The caller
+   * must hold the write lock.
+   *
+   * @param segs the segments (updated in place)
+   * @param nId the ID to delete
+   * @return whether the ID was found
+   */
+  private static boolean markDeleted(final Segment[] segs, final int nId)
+  {
+    for (int i = segs.length - 1; i >= 0; --i)
+    {
+      final int pos = segs[i].indexOf(nId);
+      if (pos >= 0)
+      {
+        segs[i] = segs[i].withDeleted(pos);
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+
+  /**
+   * Returns whether a segment is the open memtable.
+   *
+   * @param seg the segment
+   * @return whether it's the memtable
+   */
+  private boolean isMemtable(final Segment seg)
+  {
+    return (seg.getGeneration() == memtableGeneration);
+  }
+
+
+  /**
+   * Returns whether a segment is still being appended to (the
+   * memtable, or the segment a load is filling), so it can't be
+   * merged yet.
+   *
+   * @param seg the segment
+   * @return whether it's open
+   */
+  private boolean isOpen(final Segment seg)
+  {
+    return (isMemtable(seg) || (seg.getGeneration() == batchGeneration));
+  }
+
+
+  /**
+   * Copy the segments of a snapshot into a new array.
+   *
+   * @param snap the snapshot
+   * @return the segments
+   */
+  private static Segment[] copySegments(final CorpusSnapshot snap)
+  {
+    final int count = snap.getSegmentCount();
+    Segment[] segs = new Segment[count];
+    for (int i = 0; i < count; ++i)
+    {
+      segs[i] = snap.getSegment(i);
+    }
+
+    return segs;
+  }
+
+
+  /**
+   * Publish a new snapshot.  The caller must hold the write lock.
+   *
+   * @param segs the segments of the new snapshot
+   */
+  private void publish(final Segment[] segs)
+  {
+    snapshot = new CorpusSnapshot(segs, nextVersion++);
+  }
+
+
+  /**
+   * Run a compaction on the background thread, unless one
+   * is already pending.  The caller must hold the write lock.
+   */
+  private void scheduleCompaction()
+  {
+    if (compactionPending)
+    {
+      return;
+    }
+
+    compactionPending = true;
+    compactor.execute(new Runnable()
+    {
+      public void run()
+      {
+        try
+        {
+          compact();
+        }
+        finally
+        {
+          synchronized (writeLock)
+          {
+            compactionPending = false;
+          }
+        }
+      }
+    });
+  }
+}
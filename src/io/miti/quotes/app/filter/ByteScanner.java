@@ -0,0 +1,274 @@
+package io.miti.quotes.app.filter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds a needle in an array or buffer of bytes, eight bytes at
+ * a time.
+ *
+ * For each block of eight possible starting positions, the first
+ * byte of the needle is compared against the eight text bytes at
+ * those positions, and the last byte of the needle against the
+ * eight bytes where the needle would end, using plain long
+ * arithmetic (SWAR, or SIMD within a register).  Only positions
+ * where both bytes match are compared in full, which skips most
+ * of the text for needles whose first and last bytes are not
+ * both common.  The longs are assembled from the array with
+ * shifts, so a search allocates nothing.
+ * 
+ * @author mwallace
+ * @version 1.0
+ */
+public final class ByteScanner
+{
+  /**
+   * The low bit of every byte in a long.
+   */
+  private static final long LOW_BITS = 0x0101010101010101L;
+  
+  /**
+   * The high bit of every byte in a long.
+   */
+  private static final long HIGH_BITS = 0x8080808080808080L;
+  
+  
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private ByteScanner()
+  {
+    super();
+  }
+  
+  
+  /**
+   * Find the first occurrence of a needle in part of an array.
+   * 
+   * @param text the array to search
+   * @param from the first position to search from
+   * @param to the end of the part to search (exclusive)
+   * @param needle the bytes to find
+   * @return the position of the needle in the array, or -1
+   */
+  public static int indexOf(final byte[] text, final int from,
+                            final int to, final byte[] needle)
+  {
+    final int n = needle.length;
+    if (n < 2)
+    {
+      return indexOfScalar(text, from, to, needle);
+    }
+    
+    // Check eight starting positions per pass while the loads
+    // for both ends stay inside the part being searched
+    final long firstBytes = LOW_BITS * (needle[0] & 0xFF);
+    final long lastBytes = LOW_BITS * (needle[n - 1] & 0xFF);
+    final int last = to - n;
+    int i = Math.max(0, from);
+    for (; i <= (last - 7); i += 8)
+    {
+      // A zero byte marks a position where both ends match
+      final long x = (getLong(text, i) ^ firstBytes) |
+                     (getLong(text, i + n - 1) ^ lastBytes);
+      long mask = (x - LOW_BITS) & ~x & HIGH_BITS;
+      while (mask != 0L)
+      {
+        // Candidates are in order; a borrow can flag a byte above
+        // a real match, which the full comparison rejects
+        final int pos = i + (Long.numberOfTrailingZeros(mask) >>> 3);
+        if (matchesAt(text, pos, needle))
+        {
+          return pos;
+        }
+        
+        mask &= (mask - 1L);
+      }
+    }
+    
+    // Check the rest one position at a time
+    return indexOfScalar(text, i, to, needle);
+  }
+  
+  
+  /**
+   * Find the first occurrence of a needle in part of a buffer,
+   * such as an off-heap chunk.  The buffer is read at absolute
+   * positions, so its position and limit don't matter.
+   * 
+   * @param text the buffer to search
+   * @param from the first position to search from
+   * @param to the end of the part to search (exclusive)
+   * @param needle the bytes to find
+   * @return the position of the needle in the buffer, or -1
+   */
+  public static int indexOf(final ByteBuffer text, final int from,
+                            final int to, final byte[] needle)
+  {
+    final int n = needle.length;
+    if (n < 2)
+    {
+      return indexOfScalar(text, from, to, needle);
+    }
+    
+    // The same as for an array, with the longs read from the
+    // buffer and put in little-endian order if they aren't
+    final boolean bSwap = (text.order() != ByteOrder.LITTLE_ENDIAN);
+    final long firstBytes = LOW_BITS * (needle[0] & 0xFF);
+    final long lastBytes = LOW_BITS * (needle[n - 1] & 0xFF);
+    final int last = to - n;
+    int i = Math.max(0, from);
+    for (; i <= (last - 7); i += 8)
+    {
+      final long head = text.getLong(i);
+      final long tail = text.getLong(i + n - 1);
+      final long x = ((bSwap ? Long.reverseBytes(head) : head) ^ firstBytes) |
+                     ((bSwap ? Long.reverseBytes(tail) : tail) ^ lastBytes);
+      long mask = (x - LOW_BITS) & ~x & HIGH_BITS;
+      while (mask != 0L)
+      {
+        final int pos = i + (Long.numberOfTrailingZeros(mask) >>> 3);
+        if (matchesAt(text, pos, needle))
+        {
+          return pos;
+        }
+        
+        mask &= (mask - 1L);
+      }
+    }
+    
+    return indexOfScalar(text, i, to, needle);
+  }
+  
+  
+  /**
+   * Find the first occurrence of a needle in part of an array,
+   * one position at a time.
+   * 
+   * @param text the array to search
+   * @param from the first position to search from
+   * @param to the end of the part to search (exclusive)
+   * @param needle the bytes to find
+   * @return the position of the needle in the array, or -1
+   */
+  public static int indexOfScalar(final byte[] text, final int from,
+                                  final int to, final byte[] needle)
+  {
+    final int last = to - needle.length;
+    if (needle.length == 0)
+    {
+      return ((from <= to) ? Math.max(0, from) : -1);
+    }
+    
+    final byte first = needle[0];
+    for (int i = Math.max(0, from); i <= last; ++i)
+    {
+      if ((text[i] == first) && matchesAt(text, i, needle))
+      {
+        return i;
+      }
+    }
+    
+    return -1;
+  }
+  
+  
+  /**
+   * Find the first occurrence of a needle in part of a buffer,
+   * one position at a time.
+   * 
+   * @param text the buffer to search
+   * @param from the first position to search from
+   * @param to the end of the part to search (exclusive)
+   * @param needle the bytes to find
+   * @return the position of the needle in the buffer, or -1
+   */
+  public static int indexOfScalar(final ByteBuffer text, final int from,
+                                  final int to, final byte[] needle)
+  {
+    final int last = to - needle.length;
+    if (needle.length == 0)
+    {
+      return ((from <= to) ? Math.max(0, from) : -1);
+    }
+    
+    final byte first = needle[0];
+    for (int i = Math.max(0, from); i <= last; ++i)
+    {
+      if ((text.get(i) == first) && matchesAt(text, i, needle))
+      {
+        return i;
+      }
+    }
+    
+    return -1;
+  }
+  
+  
+  /**
+   * Read eight bytes of the text as a little-endian long, so the
+   * byte at the position is the lowest byte.
+   * 
+   * @param text the text
+   * @param pos the position of the first byte
+   * @return the eight bytes
+   */
+  private static long getLong(final byte[] text, final int pos)
+  {
+    return ((text[pos] & 0xFFL) |
+            ((text[pos + 1] & 0xFFL) << 8) |
+            ((text[pos + 2] & 0xFFL) << 16) |
+            ((text[pos + 3] & 0xFFL) << 24) |
+            ((text[pos + 4] & 0xFFL) << 32) |
+            ((text[pos + 5] & 0xFFL) << 40) |
+            ((text[pos + 6] & 0xFFL) << 48) |
+            ((long) text[pos + 7] << 56));
+  }
+  
+  
+  /**
+   * Check whether the needle is at a position in the text.
+   * 
+   * @param text the text
+   * @param pos the position
+   * @param needle the needle
+   * @return whether the needle is at the position
+   */
+  private static boolean matchesAt(final byte[] text, final int pos,
+                                   final byte[] needle)
+  {
+    for (int j = 0; j < needle.length; ++j)
+    {
+      if (text[pos + j] != needle[j])
+      {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  
+  /**
+   * Check whether the needle is at a position in a buffer.
+   * 
+   * @param text the buffer
+   * @param pos the position
+   * @param needle the needle
+   * @return whether the needle is at the position
+   */
+  private static boolean matchesAt(final ByteBuffer text, final int pos,
+                                   final byte[] needle)
+  {
+    for (int j = 0; j < needle.length; ++j)
+    {
+      if (text.get(pos + j) != needle[j])
+      {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+}
@@ -0,0 +1,137 @@
+package io.miti.quotes.app.filter;
+
+/**
+ * Lookup tables for case-insensitive matching.  Folding a
+ * character maps it to the lowercase form of its uppercase form,
+ * so characters that are equal ignoring case fold to the same
+ * value.  The tables replace making lowercase copies of text.
+ * 
+ * @author mwallace
+ * @version 1.0
+ */
+public final class CaseFold
+{
+  /**
+   * The folded value of every char.
+   */
+  private static final char[] FOLD_CHARS = new char[65536];
+  
+  /**
+   * The folded value of every Latin-1 byte.  Where a character's
+   * fold is outside Latin-1, its lowercase form is used instead.
+   */
+  private static final byte[] FOLD_BYTES = new byte[256];
+  
+  static
+  {
+    for (int i = 0; i < FOLD_CHARS.length; ++i)
+    {
+      FOLD_CHARS[i] = Character.toLowerCase(Character.toUpperCase((char) i));
+    }
+    
+    for (int i = 0; i < FOLD_BYTES.length; ++i)
+    {
+      char c = FOLD_CHARS[i];
+      if (c > 0xFF)
+      {
+        c = Character.toLowerCase((char) i);
+      }
+      
+      FOLD_BYTES[i] = (byte) ((c > 0xFF) ? i : c);
+    }
+  }
+  
+  
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private CaseFold()
+  {
+    super();
+  }
+  
+  
+  /**
+   * Fold a character.
+   * 
+   * @param c the character
+   * @return the folded character
+   */
+  public static char fold(final char c)
+  {
+    return FOLD_CHARS[c];
+  }
+  
+  
+  /**
+   * Fold a Latin-1 byte.
+   * 
+   * @param b the byte
+   * @return the folded byte
+   */
+  public static byte fold(final byte b)
+  {
+    return FOLD_BYTES[b & 0xFF];
+  }
+  
+  
+  /**
+   * Get the chars of a string, folded if requested.
+   * 
+   * @param str the string
+   * @param ignoreCase whether to fold the chars
+   * @return the chars, or null if the string is null
+   */
+  public static char[] toChars(final String str, final boolean ignoreCase)
+  {
+    if (str == null)
+    {
+      return null;
+    }
+    
+    char[] chars = str.toCharArray();
+    if (ignoreCase)
+    {
+      for (int i = 0; i < chars.length; ++i)
+      {
+        chars[i] = FOLD_CHARS[chars[i]];
+      }
+    }
+    
+    return chars;
+  }
+  
+  
+  /**
+   * Get the Latin-1 bytes of a string, folded if requested.
+   * 
+   * @param str the string
+   * @param ignoreCase whether to fold the bytes
+   * @return the bytes, or null if the string is null or has
+   *         a character outside Latin-1 (so it can never match
+   *         Latin-1 text)
+   */
+  public static byte[] toLatin1(final String str, final boolean ignoreCase)
+  {
+    if (str == null)
+    {
+      return null;
+    }
+    
+    final int len = str.length();
+    byte[] bytes = new byte[len];
+    for (int i = 0; i < len; ++i)
+    {
+      final char c = str.charAt(i);
+      if (c > 0xFF)
+      {
+        return null;
+      }
+      
+      bytes[i] = (ignoreCase ? FOLD_BYTES[c] : (byte) c);
+    }
+    
+    return bytes;
+  }
+}
@@ -1,5 +1,6 @@
 package io.miti.quotes.app.filter;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.List;
 
@@ -14,7 +15,7 @@ import java.util.List;
  * @author mwallace
  * @version 1.0
  */
-public final class ContainsAllFilter implements TermFilter
+public final class ContainsAllFilter implements FoldedFilter
 {
   /**
    * Whether to ignore the case.
@@ -26,6 +27,22 @@ public final class ContainsAllFilter implements TermFilter
    */
   private final HashMap<String, Integer> terms;
   
+  /**
+   * The phrases as chars, folded if ignoring case.
+   */
+  private final char[][] phraseChars;
+  
+  /**
+   * The phrases as Latin-1 bytes, folded if ignoring case.  A
+   * phrase that can't be encoded in Latin-1 is null.
+   */
+  private final byte[][] phraseBytes;
+  
+  /**
+   * The number of times each phrase must occur.
+   */
+  private final int[] phraseCounts;
+  
   
   /**
    * Default constructor.
@@ -35,6 +52,9 @@ public final class ContainsAllFilter implements TermFilter
     super();
     ignoreCase = false;
     terms = new HashMap<String, Integer>(0);
+    phraseChars = new char[0][];
+    phraseBytes = new byte[0][];
+    phraseCounts = new int[0];
   }
   
   
@@ -76,6 +96,20 @@ public final class ContainsAllFilter implements TermFilter
         terms.put(term, count);
       }
     }
+    
+    // Save the phrases for matching slices
+    final int numPhrases = terms.size();
+    phraseChars = new char[numPhrases][];
+    phraseBytes = new byte[numPhrases][];
+    phraseCounts = new int[numPhrases];
+    int index = 0;
+    for (String key : terms.keySet())
+    {
+      phraseChars[index] = CaseFold.toChars(key, ignoreCase);
+      phraseBytes[index] = CaseFold.toLatin1(key, ignoreCase);
+      phraseCounts[index] = terms.get(key).intValue();
+      ++index;
+    }
   }
   
   
@@ -137,4 +171,212 @@ public final class ContainsAllFilter implements TermFilter
     // Return whether we found one of the strings
     return found;
   }
+  
+  
+  /**
+   * Determines if a slice of a char array contains all the phrases.
+   * 
+   * @param text the array holding the text, or null for no text
+   * @param offset the start of the text in the array
+   * @param length the number of chars in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final char[] text, final int offset, final int length)
+  {
+    // Check the input
+    if (text == null)
+    {
+      return false;
+    }
+    
+    // Check that each phrase occurs often enough
+    for (int p = 0; p < phraseChars.length; ++p)
+    {
+      final char[] phrase = phraseChars[p];
+      
+      int index = SliceMatcher.indexOf(text, offset, length, phrase, 0,
+                                       ignoreCase, false);
+      for (int i = 1; (i < phraseCounts[p]) && (index >= 0); ++i)
+      {
+        index = SliceMatcher.indexOf(text, offset, length, phrase, index + 1,
+                                     ignoreCase, false);
+      }
+      
+      if (index < 0)
+      {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  
+  /**
+   * Determines if a slice of Latin-1 bytes contains all the phrases.
+   * 
+   * @param text the array holding the text, or null for no text
+   * @param offset the start of the text in the array
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final byte[] text, final int offset, final int length)
+  {
+    return containsAll(text, offset, length, ignoreCase);
+  }
+  
+  
+  /**
+   * Determines if a slice of Latin-1 bytes in a buffer contains
+   * all the phrases.
+   * 
+   * @param text the buffer holding the text, or null for no text
+   * @param offset the start of the text in the buffer
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final ByteBuffer text, final int offset,
+                        final int length)
+  {
+    // Check the input
+    if (text == null)
+    {
+      return false;
+    }
+    
+    // Check that each phrase occurs often enough
+    for (int p = 0; p < phraseBytes.length; ++p)
+    {
+      final byte[] phrase = phraseBytes[p];
+      if (phrase == null)
+      {
+        // The phrase isn't in Latin-1, so it can't be in the text
+        return false;
+      }
+      
+      int index = SliceMatcher.indexOf(text, offset, length, phrase, 0,
+                                       ignoreCase, false);
+      for (int i = 1; (i < phraseCounts[p]) && (index >= 0); ++i)
+      {
+        index = SliceMatcher.indexOf(text, offset, length, phrase, index + 1,
+                                     ignoreCase, false);
+      }
+      
+      if (index < 0)
+      {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  
+  /**
+   * Get the number of distinct phrases.
+   * 
+   * @return the number of phrases
+   */
+  public int getPhraseCount()
+  {
+    return phraseBytes.length;
+  }
+  
+  
+  /**
+   * Get a phrase as Latin-1 bytes, folded if ignoring case.
+   * 
+   * @param nIndex the index of the phrase
+   * @return the bytes (not a copy), or null if the phrase
+   *         isn't Latin-1
+   */
+  public byte[] getPhraseBytes(final int nIndex)
+  {
+    return phraseBytes[nIndex];
+  }
+  
+  
+  /**
+   * Get the number of times a phrase must occur.
+   * 
+   * @param nIndex the index of the phrase
+   * @return the number of occurrences
+   */
+  public int getPhraseOccurrences(final int nIndex)
+  {
+    return phraseCounts[nIndex];
+  }
+  
+  
+  /**
+   * Whether this filter can match folded text.
+   * 
+   * @return whether this filter ignores case
+   */
+  public boolean canAcceptFolded()
+  {
+    return ignoreCase;
+  }
+  
+  
+  /**
+   * Determines if a slice of folded Latin-1 bytes contains all
+   * the phrases.
+   * 
+   * @param text the array holding the folded text
+   * @param offset the start of the text in the array
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  public boolean acceptFolded(final byte[] text, final int offset,
+                              final int length)
+  {
+    return containsAll(text, offset, length, false);
+  }
+  
+  
+  /**
+   * Check whether a slice of Latin-1 bytes contains all the phrases.
+   * 
+   * @param text the array holding the text, or null for no text
+   * @param offset the start of the text in the array
+   * @param length the number of bytes in the text
+   * @param foldText whether to fold the text while comparing
+   * @return whether the text matches
+   */
+  private boolean containsAll(final byte[] text, final int offset,
+                              final int length, final boolean foldText)
+  {
+    // Check the input
+    if (text == null)
+    {
+      return false;
+    }
+    
+    // Check that each phrase occurs often enough
+    for (int p = 0; p < phraseBytes.length; ++p)
+    {
+      final byte[] phrase = phraseBytes[p];
+      if (phrase == null)
+      {
+        // The phrase isn't in Latin-1, so it can't be in the text
+        return false;
+      }
+      
+      int index = SliceMatcher.indexOf(text, offset, length, phrase, 0,
+                                       foldText, false);
+      for (int i = 1; (i < phraseCounts[p]) && (index >= 0); ++i)
+      {
+        index = SliceMatcher.indexOf(text, offset, length, phrase, index + 1,
+                                     foldText, false);
+      }
+      
+      if (index < 0)
+      {
+        return false;
+      }
+    }
+    
+    return true;
+  }
 }
@@ -1,5 +1,7 @@
 package io.miti.quotes.app.filter;
 
+import java.nio.ByteBuffer;
+
 /**
  * Provide a filter for search terms that only
  * accepts matches where the parameter to accept()
@@ -9,17 +11,28 @@ package io.miti.quotes.app.filter;
  * @author mwallace
  * @version 1.0
  */
-public final class ContainsFilter implements TermFilter
+public final class ContainsFilter implements FoldedFilter
 {
   /**
    * The source term.
    */
-  private String term = null;
+  private final String term;
   
   /**
    * Whether to ignore the case.
    */
-  private boolean ignoreCase = false;
+  private final boolean ignoreCase;
+  
+  /**
+   * The source term as chars, folded if ignoring case.
+   */
+  private final char[] termChars;
+  
+  /**
+   * The source term as Latin-1 bytes, folded if ignoring case,
+   * or null if it can't be encoded in Latin-1.
+   */
+  private final byte[] termBytes;
   
   
   /**
@@ -28,6 +41,10 @@ public final class ContainsFilter implements TermFilter
   private ContainsFilter()
   {
     super();
+    term = null;
+    ignoreCase = false;
+    termChars = null;
+    termBytes = null;
   }
   
   
@@ -42,6 +59,8 @@ public final class ContainsFilter implements TermFilter
   {
     term = word;
     ignoreCase = bIgnoreCase;
+    termChars = CaseFold.toChars(word, bIgnoreCase);
+    termBytes = CaseFold.toLatin1(word, bIgnoreCase);
   }
   
   
@@ -77,4 +96,112 @@ public final class ContainsFilter implements TermFilter
       return (word.indexOf(term) >= 0);
     }
   }
+  
+  
+  /**
+   * Determines if a slice of a char array contains the source term.
+   * 
+   * @param text the array holding the text, or null for no text
+   * @param offset the start of the text in the array
+   * @param length the number of chars in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final char[] text, final int offset, final int length)
+  {
+    // Check the two terms for nullness
+    if ((text == null) || (term == null))
+    {
+      return ((text == null) && (term == null));
+    }
+    
+    return (SliceMatcher.indexOf(text, offset, length, termChars, 0,
+                                 ignoreCase, false) >= 0);
+  }
+  
+  
+  /**
+   * Determines if a slice of Latin-1 bytes contains the source term.
+   * 
+   * @param text the array holding the text, or null for no text
+   * @param offset the start of the text in the array
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final byte[] text, final int offset, final int length)
+  {
+    // Check the two terms for nullness
+    if ((text == null) || (term == null))
+    {
+      return ((text == null) && (term == null));
+    }
+    else if (termBytes == null)
+    {
+      // The term has characters that aren't in Latin-1
+      return false;
+    }
+    
+    return (SliceMatcher.indexOf(text, offset, length, termBytes, 0,
+                                 ignoreCase, false) >= 0);
+  }
+  
+  
+  /**
+   * Determines if a slice of Latin-1 bytes in a buffer contains
+   * the source term.
+   * 
+   * @param text the buffer holding the text, or null for no text
+   * @param offset the start of the text in the buffer
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final ByteBuffer text, final int offset,
+                        final int length)
+  {
+    // Check the two terms for nullness
+    if ((text == null) || (term == null))
+    {
+      return ((text == null) && (term == null));
+    }
+    else if (termBytes == null)
+    {
+      // The term has characters that aren't in Latin-1
+      return false;
+    }
+    
+    return (SliceMatcher.indexOf(text, offset, length, termBytes, 0,
+                                 ignoreCase, false) >= 0);
+  }
+  
+  
+  /**
+   * Whether this filter can match folded text.
+   * 
+   * @return whether this filter ignores case
+   */
+  public boolean canAcceptFolded()
+  {
+    return ignoreCase;
+  }
+  
+  
+  /**
+   * Determines if a slice of folded Latin-1 bytes contains
+   * the source term.
+   * 
+   * @param text the array holding the folded text
+   * @param offset the start of the text in the array
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  public boolean acceptFolded(final byte[] text, final int offset,
+                              final int length)
+  {
+    if ((term == null) || (termBytes == null))
+    {
+      return false;
+    }
+    
+    return (SliceMatcher.indexOf(text, offset, length, termBytes, 0,
+                                 false, false) >= 0);
+  }
 }
@@ -1,5 +1,6 @@
 package io.miti.quotes.app.filter;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,7 +15,7 @@ import java.util.List;
  * @author mwallace
  * @version 1.0
  */
-public final class ContainsSomeFilter implements TermFilter
+public final class ContainsSomeFilter implements SliceFilter
 {
   /**
    * Whether to ignore the case.
@@ -26,6 +27,17 @@ public final class ContainsSomeFilter implements TermFilter
    */
   private final List<String> terms;
   
+  /**
+   * The phrases as chars, folded if ignoring case.
+   */
+  private final char[][] phraseChars;
+  
+  /**
+   * The phrases as Latin-1 bytes, folded if ignoring case.  A
+   * phrase that can't be encoded in Latin-1 is null.
+   */
+  private final byte[][] phraseBytes;
+  
   
   /**
    * Default constructor.
@@ -35,6 +47,8 @@ public final class ContainsSomeFilter implements TermFilter
     super();
     ignoreCase = false;
     terms = new ArrayList<String>(0);
+    phraseChars = new char[0][];
+    phraseBytes = new byte[0][];
   }
   
   
@@ -55,6 +69,16 @@ public final class ContainsSomeFilter implements TermFilter
     
     // Save the String parameter, after processing
     terms = FilterUtility.parseIntoPhrases(word);
+    
+    // Save the phrases for matching slices
+    final int size = terms.size();
+    phraseChars = new char[size][];
+    phraseBytes = new byte[size][];
+    for (int i = 0; i < size; ++i)
+    {
+      phraseChars[i] = CaseFold.toChars(terms.get(i), ignoreCase);
+      phraseBytes[i] = CaseFold.toLatin1(terms.get(i), ignoreCase);
+    }
   }
   
   
@@ -92,4 +116,98 @@ public final class ContainsSomeFilter implements TermFilter
     // Return whether we found one of the strings
     return found;
   }
+  
+  
+  /**
+   * Determines if a slice of a char array contains any of the phrases.
+   * 
+   * @param text the array holding the text, or null for no text
+   * @param offset the start of the text in the array
+   * @param length the number of chars in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final char[] text, final int offset, final int length)
+  {
+    // Check the input
+    if (text == null)
+    {
+      return false;
+    }
+    
+    // See if the text contains any of the phrases
+    for (int p = 0; p < phraseChars.length; ++p)
+    {
+      if (SliceMatcher.indexOf(text, offset, length, phraseChars[p], 0,
+                               ignoreCase, false) >= 0)
+      {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  
+  /**
+   * Determines if a slice of Latin-1 bytes contains any of the phrases.
+   * 
+   * @param text the array holding the text, or null for no text
+   * @param offset the start of the text in the array
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final byte[] text, final int offset, final int length)
+  {
+    // Check the input
+    if (text == null)
+    {
+      return false;
+    }
+    
+    // See if the text contains any of the phrases
+    for (int p = 0; p < phraseBytes.length; ++p)
+    {
+      if ((phraseBytes[p] != null) &&
+          (SliceMatcher.indexOf(text, offset, length, phraseBytes[p], 0,
+                                ignoreCase, false) >= 0))
+      {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  
+  /**
+   * Determines if a slice of Latin-1 bytes in a buffer contains
+   * any of the phrases.
+   * 
+   * @param text the buffer holding the text, or null for no text
+   * @param offset the start of the text in the buffer
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final ByteBuffer text, final int offset,
+                        final int length)
+  {
+    // Check the input
+    if (text == null)
+    {
+      return false;
+    }
+    
+    // See if the text contains any of the phrases
+    for (int p = 0; p < phraseBytes.length; ++p)
+    {
+      if ((phraseBytes[p] != null) &&
+          (SliceMatcher.indexOf(text, offset, length, phraseBytes[p], 0,
+                                ignoreCase, false) >= 0))
+      {
+        return true;
+      }
+    }
+    
+    return false;
+  }
 }
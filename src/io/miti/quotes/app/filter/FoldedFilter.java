@@ -0,0 +1,31 @@
+package io.miti.quotes.app.filter;
+
+/**
+ * A filter that can match text which has already been folded
+ * through CaseFold and packed as Latin-1 bytes, such as a copy
+ * of the corpus text built for case-insensitive searching.  Only
+ * the needle is compared, so the text isn't folded again.
+ * 
+ * @author mwallace
+ * @version 1.0
+ */
+public interface FoldedFilter extends SliceFilter
+{
+  /**
+   * Whether this filter gives the same result on folded text
+   * as on the original, which is only true when it ignores case.
+   * 
+   * @return whether acceptFolded() can be used
+   */
+  boolean canAcceptFolded();
+  
+  /**
+   * Determines if a slice of folded Latin-1 bytes matches.
+   * 
+   * @param text the array holding the folded text
+   * @param offset the start of the text in the array
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  boolean acceptFolded(byte[] text, int offset, int length);
+}
@@ -0,0 +1,212 @@
+package io.miti.quotes.app.filter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds many phrases in an array of bytes at once (Aho-Corasick).
+ * The phrases are compiled into one automaton that reads each byte
+ * of the text once, however many phrases there are, and counts
+ * every occurrence of every phrase, including overlapping ones.
+ * 
+ * The automaton is a full table of transitions over the bytes
+ * that occur in the phrases; every other byte shares one column.
+ * It's immutable once built, so it can be shared between threads,
+ * as long as each thread passes its own count arrays.
+ * 
+ * @author mwallace
+ * @version 1.0
+ */
+public final class PhraseAutomaton
+{
+  /**
+   * The number of phrases.
+   */
+  private final int numPhrases;
+  
+  /**
+   * The column of each byte in the transition table; bytes not
+   * in any phrase use column 0.
+   */
+  private final int[] columns = new int[256];
+  
+  /**
+   * The number of columns.
+   */
+  private final int numColumns;
+  
+  /**
+   * The next state for each state and column.
+   */
+  private final int[] next;
+  
+  /**
+   * The phrase ending at each state, or -1.
+   */
+  private final int[] phraseAt;
+  
+  /**
+   * The nearest state on each state's failure path (not counting
+   * itself) where a phrase ends, or -1.
+   */
+  private final int[] outputLink;
+  
+  
+  /**
+   * Build an automaton.
+   * 
+   * @param phrases the phrases, which must be distinct and not
+   *                empty; the index of each is its ID
+   */
+  public PhraseAutomaton(final List<byte[]> phrases)
+  {
+    super();
+    numPhrases = phrases.size();
+    
+    // Give each byte used in a phrase its own column
+    int cols = 1;
+    int maxStates = 1;
+    for (byte[] phrase : phrases)
+    {
+      maxStates += phrase.length;
+      for (byte b : phrase)
+      {
+        if (columns[b & 0xFF] == 0)
+        {
+          columns[b & 0xFF] = cols++;
+        }
+      }
+    }
+    
+    numColumns = cols;
+    
+    // Build the trie of the phrases
+    int[] trie = new int[maxStates * numColumns];
+    int[] phraseEnd = new int[maxStates];
+    Arrays.fill(trie, -1);
+    Arrays.fill(phraseEnd, -1);
+    int numStates = 1;
+    for (int p = 0; p < numPhrases; ++p)
+    {
+      int state = 0;
+      for (byte b : phrases.get(p))
+      {
+        final int cell = (state * numColumns) + columns[b & 0xFF];
+        if (trie[cell] < 0)
+        {
+          trie[cell] = numStates++;
+        }
+        
+        state = trie[cell];
+      }
+      
+      phraseEnd[state] = p;
+    }
+    
+    // Turn it into a full table of transitions, breadth first,
+    // following each state's failure link for missing edges
+    next = new int[numStates * numColumns];
+    phraseAt = new int[numStates];
+    outputLink = new int[numStates];
+    System.arraycopy(phraseEnd, 0, phraseAt, 0, numStates);
+    int[] fail = new int[numStates];
+    int[] queue = new int[numStates];
+    int head = 0;
+    int tail = 0;
+    outputLink[0] = -1;
+    for (int c = 0; c < numColumns; ++c)
+    {
+      final int child = trie[c];
+      if (child > 0)
+      {
+        fail[child] = 0;
+        outputLink[child] = -1;
+        next[c] = child;
+        queue[tail++] = child;
+      }
+      else
+      {
+        next[c] = 0;
+      }
+    }
+    
+    while (head < tail)
+    {
+      final int state = queue[head++];
+      final int base = state * numColumns;
+      final int failBase = fail[state] * numColumns;
+      for (int c = 0; c < numColumns; ++c)
+      {
+        final int child = trie[base + c];
+        if (child > 0)
+        {
+          // The failure of the child is where its parent's failure goes
+          final int f = next[failBase + c];
+          fail[child] = f;
+          outputLink[child] = ((phraseAt[f] >= 0) ? f : outputLink[f]);
+          next[base + c] = child;
+          queue[tail++] = child;
+        }
+        else
+        {
+          next[base + c] = next[failBase + c];
+        }
+      }
+    }
+  }
+  
+  
+  /**
+   * Get the number of phrases.
+   * 
+   * @return the number of phrases
+   */
+  public int getPhraseCount()
+  {
+    return numPhrases;
+  }
+  
+  
+  /**
+   * Count the occurrences of each phrase in a slice of bytes.
+   * The counts are added to, so the caller must clear the
+   * entries listed in touched before reusing them.
+   * 
+   * @param text the array holding the text
+   * @param offset the start of the text in the array
+   * @param length the number of bytes in the text
+   * @param counts the count of each phrase, added to
+   * @param touched receives the ID of each phrase whose count
+   *                went from zero; it must have room for every
+   *                phrase
+   * @param numTouched the number of entries already in touched
+   * @return the number of entries in touched
+   */
+  public int count(final byte[] text, final int offset, final int length,
+                   final int[] counts, final int[] touched,
+                   final int numTouched)
+  {
+    int nTouched = numTouched;
+    int state = 0;
+    final int end = offset + length;
+    for (int i = offset; i < end; ++i)
+    {
+      state = next[(state * numColumns) + columns[text[i] & 0xFF]];
+      
+      // Count every phrase ending here
+      int out = ((phraseAt[state] >= 0) ? state : outputLink[state]);
+      while (out >= 0)
+      {
+        final int p = phraseAt[out];
+        if (counts[p]++ == 0)
+        {
+          touched[nTouched++] = p;
+        }
+        
+        out = outputLink[out];
+      }
+    }
+    
+    return nTouched;
+  }
+}
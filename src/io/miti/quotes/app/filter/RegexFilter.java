@@ -16,7 +16,7 @@ public final class RegexFilter implements TermFilter
   /**
    * The pattern for the source term.
    */
-  private Pattern pattern = null;
+  private final Pattern pattern;
   
   
   /**
@@ -25,6 +25,7 @@ public final class RegexFilter implements TermFilter
   private RegexFilter()
   {
     super();
+    pattern = null;
   }
   
   
@@ -14,17 +14,17 @@ public final class SimilarFilter implements TermFilter
   /**
    * The source term.
    */
-  private String term = null;
+  private final String term;
   
   /**
    * Whether to ignore the case.
    */
-  private boolean ignoreCase = false;
+  private final boolean ignoreCase;
   
   /**
    * The maximum distance to allow matches.
    */
-  private int maxScore = 0;
+  private final int maxScore;
   
   
   /**
@@ -33,6 +33,9 @@ public final class SimilarFilter implements TermFilter
   private SimilarFilter()
   {
     super();
+    term = null;
+    ignoreCase = false;
+    maxScore = 0;
   }
   
   
@@ -0,0 +1,51 @@
+package io.miti.quotes.app.filter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A TermFilter that can also match text held in an array or a
+ * buffer, so a scan over compact or off-heap storage doesn't have
+ * to create a String (or copy the bytes) for each field it checks.
+ *
+ * Byte slices hold Latin-1 text, one byte per character.  Text
+ * in any other encoding should be decoded into chars first.
+ * When ignoring case, characters are compared after folding
+ * each one through CaseFold, so no lowercase copy is made.
+ * 
+ * @author mwallace
+ * @version 1.0
+ */
+public interface SliceFilter extends TermFilter
+{
+  /**
+   * Determines if a slice of a char array matches the source term.
+   * 
+   * @param text the array holding the text, or null for no text
+   * @param offset the start of the text in the array
+   * @param length the number of chars in the text
+   * @return whether the text matches
+   */
+  boolean accept(char[] text, int offset, int length);
+  
+  /**
+   * Determines if a slice of Latin-1 bytes matches the source term.
+   * 
+   * @param text the array holding the text, or null for no text
+   * @param offset the start of the text in the array
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  boolean accept(byte[] text, int offset, int length);
+  
+  /**
+   * Determines if a slice of Latin-1 bytes in a buffer matches the
+   * source term.  The buffer is read at absolute offsets, so its
+   * position and limit aren't used or changed.
+   * 
+   * @param text the buffer holding the text, or null for no text
+   * @param offset the start of the text in the buffer
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  boolean accept(ByteBuffer text, int offset, int length);
+}
@@ -0,0 +1,214 @@
+package io.miti.quotes.app.filter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The matching loops shared by the slice filters.  Patterns are
+ * folded in advance when ignoring case, so only the text is
+ * folded here, one character at a time.
+ * 
+ * @author mwallace
+ * @version 1.0
+ */
+final class SliceMatcher
+{
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private SliceMatcher()
+  {
+    super();
+  }
+  
+  
+  /**
+   * Find a pattern in a slice of chars.
+   * 
+   * @param text the text
+   * @param offset the start of the slice
+   * @param length the length of the slice
+   * @param pat the pattern, already folded if ignoring case
+   * @param from the index in the slice to start looking at
+   * @param ignoreCase whether to fold the text
+   * @param wild whether a '?' in the pattern matches any character
+   * @return the index of the pattern in the slice, or -1
+   */
+  static int indexOf(final char[] text, final int offset, final int length,
+                     final char[] pat, final int from,
+                     final boolean ignoreCase, final boolean wild)
+  {
+    final int last = length - pat.length;
+    for (int i = Math.max(0, from); i <= last; ++i)
+    {
+      if (regionMatches(text, offset + i, pat, ignoreCase, wild))
+      {
+        return i;
+      }
+    }
+    
+    return -1;
+  }
+  
+  
+  /**
+   * Find a pattern in a slice of Latin-1 bytes.
+   * 
+   * @param text the text
+   * @param offset the start of the slice
+   * @param length the length of the slice
+   * @param pat the pattern, already folded if ignoring case
+   * @param from the index in the slice to start looking at
+   * @param ignoreCase whether to fold the text
+   * @param wild whether a '?' in the pattern matches any character
+   * @return the index of the pattern in the slice, or -1
+   */
+  static int indexOf(final byte[] text, final int offset, final int length,
+                     final byte[] pat, final int from,
+                     final boolean ignoreCase, final boolean wild)
+  {
+    // Exact matches can use the faster scanner
+    if (!ignoreCase && !wild)
+    {
+      final int index = ByteScanner.indexOf(text, offset + Math.max(0, from),
+                                            offset + length, pat);
+      return ((index < 0) ? -1 : (index - offset));
+    }
+    
+    final int last = length - pat.length;
+    for (int i = Math.max(0, from); i <= last; ++i)
+    {
+      if (regionMatches(text, offset + i, pat, ignoreCase, wild))
+      {
+        return i;
+      }
+    }
+    
+    return -1;
+  }
+  
+  
+  /**
+   * Find a pattern in a slice of Latin-1 bytes in a buffer.
+   * 
+   * @param text the buffer
+   * @param offset the start of the slice
+   * @param length the length of the slice
+   * @param pat the pattern, already folded if ignoring case
+   * @param from the index in the slice to start looking at
+   * @param ignoreCase whether to fold the text
+   * @param wild whether a '?' in the pattern matches any character
+   * @return the index of the pattern in the slice, or -1
+   */
+  static int indexOf(final ByteBuffer text, final int offset, final int length,
+                     final byte[] pat, final int from,
+                     final boolean ignoreCase, final boolean wild)
+  {
+    // Exact matches can use the faster scanner
+    if (!ignoreCase && !wild)
+    {
+      final int index = ByteScanner.indexOf(text, offset + Math.max(0, from),
+                                            offset + length, pat);
+      return ((index < 0) ? -1 : (index - offset));
+    }
+    
+    final int last = length - pat.length;
+    for (int i = Math.max(0, from); i <= last; ++i)
+    {
+      if (regionMatches(text, offset + i, pat, ignoreCase, wild))
+      {
+        return i;
+      }
+    }
+    
+    return -1;
+  }
+  
+  
+  /**
+   * Check whether the chars at a position match a pattern.  The
+   * caller makes sure the text is long enough.
+   * 
+   * @param text the text
+   * @param pos the position in the text
+   * @param pat the pattern, already folded if ignoring case
+   * @param ignoreCase whether to fold the text
+   * @param wild whether a '?' in the pattern matches any character
+   * @return whether the pattern matches
+   */
+  static boolean regionMatches(final char[] text, final int pos,
+                               final char[] pat, final boolean ignoreCase,
+                               final boolean wild)
+  {
+    for (int j = 0; j < pat.length; ++j)
+    {
+      final char p = pat[j];
+      final char t = (ignoreCase ? CaseFold.fold(text[pos + j]) : text[pos + j]);
+      if ((t != p) && !(wild && (p == '?')))
+      {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  
+  /**
+   * Check whether the bytes at a position match a pattern.  The
+   * caller makes sure the text is long enough.
+   * 
+   * @param text the text
+   * @param pos the position in the text
+   * @param pat the pattern, already folded if ignoring case
+   * @param ignoreCase whether to fold the text
+   * @param wild whether a '?' in the pattern matches any character
+   * @return whether the pattern matches
+   */
+  static boolean regionMatches(final byte[] text, final int pos,
+                               final byte[] pat, final boolean ignoreCase,
+                               final boolean wild)
+  {
+    for (int j = 0; j < pat.length; ++j)
+    {
+      final byte p = pat[j];
+      final byte t = (ignoreCase ? CaseFold.fold(text[pos + j]) : text[pos + j]);
+      if ((t != p) && !(wild && (p == '?')))
+      {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  
+  /**
+   * Check whether the bytes at a position in a buffer match a
+   * pattern.  The caller makes sure the text is long enough.
+   * 
+   * @param text the buffer
+   * @param pos the position in the buffer
+   * @param pat the pattern, already folded if ignoring case
+   * @param ignoreCase whether to fold the text
+   * @param wild whether a '?' in the pattern matches any character
+   * @return whether the pattern matches
+   */
+  static boolean regionMatches(final ByteBuffer text, final int pos,
+                               final byte[] pat, final boolean ignoreCase,
+                               final boolean wild)
+  {
+    for (int j = 0; j < pat.length; ++j)
+    {
+      final byte p = pat[j];
+      final byte b = text.get(pos + j);
+      final byte t = (ignoreCase ? CaseFold.fold(b) : b);
+      if ((t != p) && !(wild && (p == '?')))
+      {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+}
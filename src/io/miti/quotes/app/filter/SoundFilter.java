@@ -13,12 +13,12 @@ public final class SoundFilter implements TermFilter
   /**
    * The soundex code for source term.
    */
-  private String termCode = null;
+  private final String termCode;
   
   /**
    * Whether to ignore the case.
    */
-  private boolean ignoreCase = false;
+  private final boolean ignoreCase;
   
   
   /**
@@ -27,6 +27,8 @@ public final class SoundFilter implements TermFilter
   private SoundFilter()
   {
     super();
+    termCode = null;
+    ignoreCase = false;
   }
   
   
@@ -1,6 +1,8 @@
 package io.miti.quotes.app.filter;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -13,17 +15,33 @@ import java.util.StringTokenizer;
  * @author mwallace
  * @version 1.0
  */
-public final class WildcardFilter implements TermFilter
+public final class WildcardFilter implements SliceFilter
 {
   /**
    * The list of substrings in the string with wildcards.
    */
-  private List<String> fields = new ArrayList<String>(8);
+  private final List<String> fields;
   
   /**
    * Whether to ignore the case.
    */
-  private boolean ignoreCase = false;
+  private final boolean ignoreCase;
+  
+  /**
+   * The substrings as chars, folded if ignoring case.  A null
+   * element is a '*', as in fields.
+   */
+  private final char[][] fieldChars;
+  
+  /**
+   * The substrings as Latin-1 bytes, folded if ignoring case.
+   */
+  private final byte[][] fieldBytes;
+  
+  /**
+   * Whether every substring can be encoded in Latin-1.
+   */
+  private final boolean latin1;
   
   
   /**
@@ -32,6 +50,11 @@ public final class WildcardFilter implements TermFilter
   private WildcardFilter()
   {
     super();
+    fields = Collections.emptyList();
+    ignoreCase = false;
+    fieldChars = new char[0][];
+    fieldBytes = new byte[0][];
+    latin1 = true;
   }
   
   
@@ -45,7 +68,25 @@ public final class WildcardFilter implements TermFilter
   public WildcardFilter(final String word, final boolean bIgnoreCase)
   {
     ignoreCase = bIgnoreCase;
-    parsePattern(word);
+    fields = parsePattern(word, bIgnoreCase);
+    
+    // Save the substrings for matching slices
+    final int size = fields.size();
+    fieldChars = new char[size][];
+    fieldBytes = new byte[size][];
+    boolean allLatin1 = true;
+    for (int i = 0; i < size; ++i)
+    {
+      final String field = fields.get(i);
+      if (field != null)
+      {
+        fieldChars[i] = CaseFold.toChars(field, ignoreCase);
+        fieldBytes[i] = CaseFold.toLatin1(field, ignoreCase);
+        allLatin1 = allLatin1 && (fieldBytes[i] != null);
+      }
+    }
+    
+    latin1 = allLatin1;
   }
   
   
@@ -74,6 +115,320 @@ public final class WildcardFilter implements TermFilter
   }
   
   
+  /**
+   * Determines if a slice of a char array matches the pattern.
+   * 
+   * @param text the array holding the text, or null for no text
+   * @param offset the start of the text in the array
+   * @param length the number of chars in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final char[] text, final int offset, final int length)
+  {
+    // Check the input.  If no pattern, assume it's a match.
+    if (text == null)
+    {
+      return false;
+    }
+    else if (fieldChars.length == 0)
+    {
+      return true;
+    }
+    else if (length == 0)
+    {
+      return false;
+    }
+    
+    // Check for just a *, or no * at all
+    if (fieldChars.length == 1)
+    {
+      final char[] pat = fieldChars[0];
+      return ((pat == null) ||
+              ((length == pat.length) &&
+               SliceMatcher.regionMatches(text, offset, pat, ignoreCase, true)));
+    }
+    
+    return findMatch(0, text, offset, length, 0);
+  }
+  
+  
+  /**
+   * Determines if a slice of Latin-1 bytes matches the pattern.
+   * 
+   * @param text the array holding the text, or null for no text
+   * @param offset the start of the text in the array
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final byte[] text, final int offset, final int length)
+  {
+    // Check the input.  If no pattern, assume it's a match.
+    if (text == null)
+    {
+      return false;
+    }
+    else if (fieldBytes.length == 0)
+    {
+      return true;
+    }
+    else if ((length == 0) || !latin1)
+    {
+      return false;
+    }
+    
+    // Check for just a *, or no * at all
+    if (fieldBytes.length == 1)
+    {
+      final byte[] pat = fieldBytes[0];
+      return ((pat == null) ||
+              ((length == pat.length) &&
+               SliceMatcher.regionMatches(text, offset, pat, ignoreCase, true)));
+    }
+    
+    return findMatch(0, text, offset, length, 0);
+  }
+  
+  
+  /**
+   * Determines if a slice of Latin-1 bytes in a buffer matches
+   * the pattern.
+   * 
+   * @param text the buffer holding the text, or null for no text
+   * @param offset the start of the text in the buffer
+   * @param length the number of bytes in the text
+   * @return whether the text matches
+   */
+  public boolean accept(final ByteBuffer text, final int offset,
+                        final int length)
+  {
+    // Check the input.  If no pattern, assume it's a match.
+    if (text == null)
+    {
+      return false;
+    }
+    else if (fieldBytes.length == 0)
+    {
+      return true;
+    }
+    else if ((length == 0) || !latin1)
+    {
+      return false;
+    }
+    
+    // Check for just a *, or no * at all
+    if (fieldBytes.length == 1)
+    {
+      final byte[] pat = fieldBytes[0];
+      return ((pat == null) ||
+              ((length == pat.length) &&
+               SliceMatcher.regionMatches(text, offset, pat, ignoreCase, true)));
+    }
+    
+    return findMatch(0, text, offset, length, 0);
+  }
+  
+  
+  /**
+   * The slice version of findMatch() for chars.
+   *
+   * @param nCurrPart The current part of the list we're checking
+   * @param text the array holding the text
+   * @param offset the start of the text in the array
+   * @param length the number of chars in the text
+   * @param nCurrIndex The current index in the text
+   * @return whether the pattern matches the text
+   */
+  private boolean findMatch(final int nCurrPart,
+                            final char[] text,
+                            final int offset,
+                            final int length,
+                            final int nCurrIndex)
+  {
+    // Check if we're looking past the end of the list
+    if (nCurrPart >= fieldChars.length)
+    {
+      return true;
+    }
+    
+    final char[] part = fieldChars[nCurrPart];
+    if (nCurrIndex >= length)
+    {
+      // If 'part' is * (null), return true; else, no match.
+      return (part == null);
+    }
+    else if (part == null)
+    {
+      // A * at the start means look for the next part anywhere,
+      // and a * at the end matches the rest of the text
+      return ((nCurrPart == 0) ? findMatch(1, text, offset, length, 0) : true);
+    }
+    else if (nCurrPart == (fieldChars.length - 1))
+    {
+      // The last part has to be at the end of the text
+      return ((length >= part.length) &&
+              SliceMatcher.regionMatches(text, offset + length - part.length,
+                                         part, ignoreCase, true));
+    }
+    
+    // Try each occurrence of the part until the rest matches
+    int foundIndex = SliceMatcher.indexOf(text, offset, length, part,
+                                          nCurrIndex, ignoreCase, true);
+    while (foundIndex >= 0)
+    {
+      // Without a * before the first part, it must be at the start
+      if ((foundIndex > nCurrIndex) && (nCurrPart == 0))
+      {
+        return false;
+      }
+      
+      if (findMatch(nCurrPart + 1, text, offset, length,
+                    foundIndex + part.length))
+      {
+        return true;
+      }
+      
+      foundIndex = SliceMatcher.indexOf(text, offset, length, part,
+                                        foundIndex + 1, ignoreCase, true);
+    }
+    
+    return false;
+  }
+  
+  
+  /**
+   * The slice version of findMatch() for Latin-1 bytes.
+   *
+   * @param nCurrPart The current part of the list we're checking
+   * @param text the array holding the text
+   * @param offset the start of the text in the array
+   * @param length the number of bytes in the text
+   * @param nCurrIndex The current index in the text
+   * @return whether the pattern matches the text
+   */
+  private boolean findMatch(final int nCurrPart,
+                            final byte[] text,
+                            final int offset,
+                            final int length,
+                            final int nCurrIndex)
+  {
+    // Check if we're looking past the end of the list
+    if (nCurrPart >= fieldBytes.length)
+    {
+      return true;
+    }
+    
+    final byte[] part = fieldBytes[nCurrPart];
+    if (nCurrIndex >= length)
+    {
+      // If 'part' is * (null), return true; else, no match.
+      return (part == null);
+    }
+    else if (part == null)
+    {
+      // A * at the start means look for the next part anywhere,
+      // and a * at the end matches the rest of the text
+      return ((nCurrPart == 0) ? findMatch(1, text, offset, length, 0) : true);
+    }
+    else if (nCurrPart == (fieldBytes.length - 1))
+    {
+      // The last part has to be at the end of the text
+      return ((length >= part.length) &&
+              SliceMatcher.regionMatches(text, offset + length - part.length,
+                                         part, ignoreCase, true));
+    }
+    
+    // Try each occurrence of the part until the rest matches
+    int foundIndex = SliceMatcher.indexOf(text, offset, length, part,
+                                          nCurrIndex, ignoreCase, true);
+    while (foundIndex >= 0)
+    {
+      // Without a * before the first part, it must be at the start
+      if ((foundIndex > nCurrIndex) && (nCurrPart == 0))
+      {
+        return false;
+      }
+      
+      if (findMatch(nCurrPart + 1, text, offset, length,
+                    foundIndex + part.length))
+      {
+        return true;
+      }
+      
+      foundIndex = SliceMatcher.indexOf(text, offset, length, part,
+                                        foundIndex + 1, ignoreCase, true);
+    }
+    
+    return false;
+  }
+  
+  
+  /**
+   * The slice version of findMatch() for Latin-1 bytes in a buffer.
+   *
+   * @param nCurrPart The current part of the list we're checking
+   * @param text the buffer holding the text
+   * @param offset the start of the text in the buffer
+   * @param length the number of bytes in the text
+   * @param nCurrIndex The current index in the text
+   * @return whether the pattern matches the text
+   */
+  private boolean findMatch(final int nCurrPart,
+                            final ByteBuffer text,
+                            final int offset,
+                            final int length,
+                            final int nCurrIndex)
+  {
+    // Check if we're looking past the end of the list
+    if (nCurrPart >= fieldBytes.length)
+    {
+      return true;
+    }
+    
+    final byte[] part = fieldBytes[nCurrPart];
+    if (nCurrIndex >= length)
+    {
+      // If 'part' is * (null), return true; else, no match.
+      return (part == null);
+    }
+    else if (part == null)
+    {
+      // A * at the start means look for the next part anywhere,
+      // and a * at the end matches the rest of the text
+      return ((nCurrPart == 0) ? findMatch(1, text, offset, length, 0) : true);
+    }
+    else if (nCurrPart == (fieldBytes.length - 1))
+    {
+      // The last part has to be at the end of the text
+      return ((length >= part.length) &&
+              SliceMatcher.regionMatches(text, offset + length - part.length,
+                                         part, ignoreCase, true));
+    }
+    
+    // Try each occurrence of the part until the rest matches
+    int foundIndex = SliceMatcher.indexOf(text, offset, length, part,
+                                          nCurrIndex, ignoreCase, true);
+    while (foundIndex >= 0)
+    {
+      // Without a * before the first part, it must be at the start
+      if ((foundIndex > nCurrIndex) && (nCurrPart == 0))
+      {
+        return false;
+      }
+      
+      if (findMatch(nCurrPart + 1, text, offset, length,
+                    foundIndex + part.length))
+      {
+        return true;
+      }
+      
+      foundIndex = SliceMatcher.indexOf(text, offset, length, part,
+                                        foundIndex + 1, ignoreCase, true);
+    }
+    
+    return false;
+  }
+  
+  
   /**
    * Returns whether target fits the pattern in pat.
    *
@@ -441,13 +796,17 @@ public final class WildcardFilter implements TermFilter
    * the last element of the list will be null.
    *
    * @param pat the string to parse into a list
+   * @param bIgnoreCase whether to convert the substrings to uppercase
+   * @return the unmodifiable list of substrings
    */
-  protected void parsePattern(final String pat)
+  private static List<String> parsePattern(final String pat,
+                                           final boolean bIgnoreCase)
   {
-    // Check the input.  If no pattern, return null.
+    // Check the input.  If no pattern, return an empty list.
+    List<String> fields = new ArrayList<String>(8);
     if ((pat == null) || (pat.length() == 0))
     {
-      return;
+      return Collections.unmodifiableList(fields);
     }
     
     // If pat begins with *, add null to the list.
@@ -461,7 +820,7 @@ public final class WildcardFilter implements TermFilter
     while (tokenizer.hasMoreTokens())
     {
       // Get the token.  If we're ignoring case, convert to uppercase.
-      if (ignoreCase)
+      if (bIgnoreCase)
       {
         fields.add(tokenizer.nextToken().toUpperCase());
       }
@@ -481,5 +840,7 @@ public final class WildcardFilter implements TermFilter
         fields.add(null);
       }
     }
+    
+    return Collections.unmodifiableList(fields);
   }
 }
@@ -0,0 +1,517 @@
+package io.miti.quotes.app.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A prefix trie for completing terms, such as author names or
+ * topics.  Each node stores the most frequent terms below it, so
+ * completing a prefix costs one step per character plus the size
+ * of the answer, however many terms share the prefix.
+ *
+ * Terms are matched without regard to case, from the start of
+ * the term or from the start of any word in it, so "twa" finds
+ * "Mark Twain".  The trie is immutable once built, and is stored
+ * in flat arrays: the children of a node are contiguous and sorted
+ * by character, and a chain of nodes with one child shares the
+ * completions of the node at its end.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class CompletionTrie
+{
+  /**
+   * The default number of completions stored at each node.
+   */
+  public static final int DEFAULT_TOP_K = 8;
+
+  /**
+   * Keys are cut off after this many characters.
+   */
+  private static final int MAX_KEY_LENGTH = 64;
+
+  /**
+   * The terms.
+   */
+  private final String[] terms;
+
+  /**
+   * The count (such as the number of quotations) of each term.
+   */
+  private final int[] counts;
+
+  /**
+   * The index of each term, by its lowercase form.
+   */
+  private final Map<String, Integer> termIndex;
+
+  /**
+   * The number of completions stored at each node.
+   */
+  private final int topK;
+
+  /**
+   * The character leading to each node.
+   */
+  private char[] nodeChars = new char[1024];
+
+  /**
+   * The first child of each node.
+   */
+  private int[] firstChild = new int[1024];
+
+  /**
+   * The number of children of each node.
+   */
+  private int[] childCount = new int[1024];
+
+  /**
+   * Where each node's completions start in topTerms.
+   */
+  private int[] topStart = new int[1024];
+
+  /**
+   * The number of completions stored for each node.
+   */
+  private int[] topLength = new int[1024];
+
+  /**
+   * The number of nodes.
+   */
+  private int nodeCount = 0;
+
+  /**
+   * The completions of all nodes, as term indexes.
+   */
+  private int[] topTerms = new int[1024];
+
+  /**
+   * The number of entries used in topTerms.
+   */
+  private int topCount = 0;
+
+  /**
+   * The keys being inserted, used while building.
+   */
+  private String[] keys = null;
+
+  /**
+   * The term of each key, used while building.
+   */
+  private int[] keyTerms = null;
+
+
+  /**
+   * Build a trie.
+   *
+   * @param pTerms the distinct terms
+   * @param pCounts the count of each term, for ranking
+   * @param nTopK the number of completions to keep at each node
+   */
+  public CompletionTrie(final String[] pTerms, final int[] pCounts,
+                        final int nTopK)
+  {
+    super();
+    terms = pTerms.clone();
+    counts = pCounts.clone();
+    topK = Math.max(1, nTopK);
+    termIndex = new HashMap<String, Integer>(terms.length * 2);
+
+    // Make a key for the start of each word in each term
+    List<String> keyList = new ArrayList<String>(terms.length * 2);
+    List<Integer> keyTermList = new ArrayList<Integer>(terms.length * 2);
+    for (int t = 0; t < terms.length; ++t)
+    {
+      final String folded = terms[t].toLowerCase();
+      if (!termIndex.containsKey(folded))
+      {
+        termIndex.put(folded, Integer.valueOf(t));
+      }
+
+      final int len = folded.length();
+      for (int i = 0; i < len; ++i)
+      {
+        if (!Character.isWhitespace(folded.charAt(i)) &&
+            ((i == 0) || Character.isWhitespace(folded.charAt(i - 1))))
+        {
+          keyList.add(folded.substring(i, Math.min(len, i + MAX_KEY_LENGTH)));
+          keyTermList.add(Integer.valueOf(t));
+        }
+      }
+    }
+
+    // Sort the keys, so each node covers a range of them
+    final int numKeys = keyList.size();
+    Integer[] order = new Integer[numKeys];
+    for (int i = 0; i < numKeys; ++i)
+    {
+      order[i] = Integer.valueOf(i);
+    }
+
+    final String[] unsorted = keyList.toArray(new String[numKeys]);
+    Arrays.sort(order, new Comparator<Integer>()
+    {
+      public int compare(final Integer i1, final Integer i2)
+      {
+        return unsorted[i1.intValue()].compareTo(unsorted[i2.intValue()]);
+      }
+    });
+
+    keys = new String[numKeys];
+    keyTerms = new int[numKeys];
+    for (int i = 0; i < numKeys; ++i)
+    {
+      final int k = order[i].intValue();
+      keys[i] = unsorted[k];
+      keyTerms[i] = keyTermList.get(k).intValue();
+    }
+
+    // Build the nodes, starting with the root
+    final int root = allocateNodes(1);
+    build(root, 0, numKeys, 0);
+    keys = null;
+    keyTerms = null;
+  }
+
+
+  /**
+   * Get the number of terms.
+   *
+   * @return the number of terms
+   */
+  public int size()
+  {
+    return terms.length;
+  }
+
+
+  /**
+   * Get the number of nodes in the trie.
+   *
+   * @return the number of nodes
+   */
+  public int getNodeCount()
+  {
+    return nodeCount;
+  }
+
+
+  /**
+   * Get a term.
+   *
+   * @param nTerm the index of the term
+   * @return the term
+   */
+  public String getTerm(final int nTerm)
+  {
+    return terms[nTerm];
+  }
+
+
+  /**
+   * Get the count of a term.
+   *
+   * @param nTerm the index of the term
+   * @return the count
+   */
+  public int getCount(final int nTerm)
+  {
+    return counts[nTerm];
+  }
+
+
+  /**
+   * Find a term, ignoring case.
+   *
+   * @param term the term
+   * @return the index of the term, or -1 if it's not in the trie
+   */
+  public int find(final String term)
+  {
+    if (term == null)
+    {
+      return -1;
+    }
+
+    final Integer index = termIndex.get(term.trim().toLowerCase());
+    return ((index == null) ? -1 : index.intValue());
+  }
+
+
+  /**
+   * Get the most frequent terms with a word starting with a
+   * prefix, most frequent first.
+   *
+   * @param prefix the prefix
+   * @param max the maximum number of terms (at most the
+   *            number kept at each node)
+   * @return the indexes of the terms
+   */
+  public int[] completeIds(final String prefix, final int max)
+  {
+    // Walk down the trie
+    final String key = prefix.toLowerCase();
+    final int len = Math.min(key.length(), MAX_KEY_LENGTH);
+    int node = 0;
+    for (int i = 0; (i < len) && (node >= 0); ++i)
+    {
+      node = findChild(node, key.charAt(i));
+    }
+
+    if (node < 0)
+    {
+      return new int[0];
+    }
+
+    final int num = Math.min(Math.max(0, max), topLength[node]);
+    int[] result = new int[num];
+    System.arraycopy(topTerms, topStart[node], result, 0, num);
+    return result;
+  }
+
+
+  /**
+   * Get the most frequent terms with a word starting with a
+   * prefix, most frequent first.
+   *
+   * @param prefix the prefix (surrounding whitespace is ignored)
+   * @param max the maximum number of terms
+   * @return the terms
+   */
+  public List<String> complete(final String prefix, final int max)
+  {
+    final int[] ids = completeIds(prefix.trim(), max);
+    List<String> list = new ArrayList<String>(ids.length);
+    for (int id : ids)
+    {
+      list.add(terms[id]);
+    }
+
+    return list;
+  }
+
+
+  /**
+   * Find the child of a node for a character.
+   *
+   * @param node the node
+   * @param ch the character
+   * @return the child, or -1 if there isn't one
+   */
+  private int findChild(final int node, final char ch)
+  {
+    // Binary search the children, which are sorted
+    int low = firstChild[node];
+    int high = low + childCount[node] - 1;
+    while (low <= high)
+    {
+      final int mid = (low + high) >>> 1;
+      final char c = nodeChars[mid];
+      if (c < ch)
+      {
+        low = mid + 1;
+      }
+      else if (c > ch)
+      {
+        high = mid - 1;
+      }
+      else
+      {
+        return mid;
+      }
+    }
+
+    return -1;
+  }
+
+
+  /**
+   * Build a node from a range of sorted keys that share a prefix.
+   *
+   * @param node the node
+   * @param lo the first key
+   * @param hi one past the last key
+   * @param depth the length of the shared prefix
+   */
+  private void build(final int node, final int lo, final int hi,
+                     final int depth)
+  {
+    // Keys ending here sort before the longer ones
+    int start = lo;
+    while ((start < hi) && (keys[start].length() == depth))
+    {
+      ++start;
+    }
+
+    // Count the children
+    int numChildren = 0;
+    for (int i = start; i < hi; )
+    {
+      final char c = keys[i].charAt(depth);
+      while ((i < hi) && (keys[i].charAt(depth) == c))
+      {
+        ++i;
+      }
+
+      ++numChildren;
+    }
+
+    // The children are allocated together, then built
+    final int first = allocateNodes(numChildren);
+    firstChild[node] = first;
+    childCount[node] = numChildren;
+    int child = first;
+    for (int i = start; i < hi; ++child)
+    {
+      final char c = keys[i].charAt(depth);
+      final int groupStart = i;
+      while ((i < hi) && (keys[i].charAt(depth) == c))
+      {
+        ++i;
+      }
+
+      nodeChars[child] = c;
+      build(child, groupStart, i, depth + 1);
+    }
+
+    // A node with one child and no terms of its own has the
+    // same completions as its child
+    if ((numChildren == 1) && (start == lo))
+    {
+      topStart[node] = topStart[first];
+      topLength[node] = topLength[first];
+      return;
+    }
+
+    // Gather the candidates: the terms ending here and the
+    // completions of the children
+    int numCandidates = (start - lo);
+    for (int c = first; c < first + numChildren; ++c)
+    {
+      numCandidates += topLength[c];
+    }
+
+    int[] candidates = new int[numCandidates];
+    int n = 0;
+    for (int i = lo; i < start; ++i)
+    {
+      candidates[n++] = keyTerms[i];
+    }
+
+    for (int c = first; c < first + numChildren; ++c)
+    {
+      System.arraycopy(topTerms, topStart[c], candidates, n, topLength[c]);
+      n += topLength[c];
+    }
+
+    saveTop(node, candidates);
+  }
+
+
+  /**
+   * Save the most frequent of a set of terms as the completions
+   * of a node.
+   *
+   * @param node the node
+   * @param candidates the term indexes, which may repeat
+   */
+  private void saveTop(final int node, final int[] candidates)
+  {
+    // Sort by count, then by term, so the order is stable
+    Integer[] sorted = new Integer[candidates.length];
+    for (int i = 0; i < candidates.length; ++i)
+    {
+      sorted[i] = Integer.valueOf(candidates[i]);
+    }
+
+    Arrays.sort(sorted, new Comparator<Integer>()
+    {
+      public int compare(final Integer t1, final Integer t2)
+      {
+        final int c1 = counts[t1.intValue()];
+        final int c2 = counts[t2.intValue()];
+        if (c1 != c2)
+        {
+          return ((c1 > c2) ? -1 : 1);
+        }
+
+        return t1.compareTo(t2);
+      }
+    });
+
+    // Keep the first topK distinct terms
+    ensureTopCapacity(topK);
+    topStart[node] = topCount;
+    int num = 0;
+    for (int i = 0; (i < sorted.length) && (num < topK); ++i)
+    {
+      if ((i == 0) || !sorted[i].equals(sorted[i - 1]))
+      {
+        topTerms[topCount++] = sorted[i].intValue();
+        ++num;
+      }
+    }
+
+    topLength[node] = num;
+  }
+
+
+  /**
+   * Allocate a run of nodes.
+   *
+   * @param num the number of nodes
+   * @return the first of the new nodes
+   */
+  private int allocateNodes(final int num)
+  {
+    if (nodeCount + num > nodeChars.length)
+    {
+      final int size = Math.max(nodeChars.length * 2, nodeCount + num);
+      char[] newChars = new char[size];
+      System.arraycopy(nodeChars, 0, newChars, 0, nodeCount);
+      nodeChars = newChars;
+      firstChild = grow(firstChild, size);
+      childCount = grow(childCount, size);
+      topStart = grow(topStart, size);
+      topLength = grow(topLength, size);
+    }
+
+    final int first = nodeCount;
+    nodeCount += num;
+    return first;
+  }
+
+
+  /**
+   * Make room for more completions.
+   *
+   * @param num the number of completions to add
+   */
+  private void ensureTopCapacity(final int num)
+  {
+    if (topCount + num > topTerms.length)
+    {
+      topTerms = grow(topTerms, Math.max(topTerms.length * 2, topCount + num));
+    }
+  }
+
+
+  /**
+   * Copy an array into a larger one.
+   *
+   * @param array the array
+   * @param size the new size
+   * @return the new array
+   */
+  private static int[] grow(final int[] array, final int size)
+  {
+    int[] newArray = new int[size];
+    System.arraycopy(array, 0, newArray, 0, array.length);
+    return newArray;
+  }
+}
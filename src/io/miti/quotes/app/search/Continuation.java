@@ -0,0 +1,222 @@
+package io.miti.quotes.app.search;
+
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+
+/**
+ * Where a search stopped, so it can carry on from there instead
+ * of starting again: the version of the corpus it searched, the
+ * corpus position it scanned up to, the IDs of the live quotations
+ * on either side of that position, and a fingerprint of the query.
+ * In the same version the position is used as it is.  Compaction
+ * and loading change the version and can move positions, but not
+ * IDs, so in a later version the search carries on from between
+ * the same two quotations.  Only once neither is in the corpus,
+ * as after a reload, is the continuation out of date.
+ *
+ * It's written as a short token of letters, digits, dots and
+ * minus signs, safe to put in a URL, such as "b.2n9c.1ht.1hu.1x4f7k".
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class Continuation
+{
+  /**
+   * The radix of the numbers in a token.
+   */
+  private static final int RADIX = 36;
+
+  /**
+   * The version of the corpus.
+   */
+  private final long version;
+
+  /**
+   * The corpus position to carry on from.
+   */
+  private final int position;
+
+  /**
+   * The ID of the last live quotation before the position, or -1.
+   */
+  private final int beforeId;
+
+  /**
+   * The ID of the first live quotation from the position, or -1.
+   */
+  private final int afterId;
+
+  /**
+   * The fingerprint of the query.
+   */
+  private final int fingerprint;
+
+
+  /**
+   * Create a continuation.
+   *
+   * @param query the query
+   * @param snapshot the snapshot that was searched
+   * @param nPosition the corpus position to carry on from
+   */
+  public Continuation(final QueryKey query,
+                      final CorpusSnapshot snapshot,
+                      final int nPosition)
+  {
+    this(snapshot.getVersion(), nPosition, snapshot.getIdBefore(nPosition),
+         snapshot.getIdFrom(nPosition), fingerprint(query));
+  }
+
+
+  /**
+   * Create a continuation.
+   *
+   * @param nVersion the version of the corpus
+   * @param nPosition the corpus position to carry on from
+   * @param nBeforeId the ID of the live quotation before it, or -1
+   * @param nAfterId the ID of the live quotation from it, or -1
+   * @param nFingerprint the fingerprint of the query
+   */
+  private Continuation(final long nVersion,
+                       final int nPosition,
+                       final int nBeforeId,
+                       final int nAfterId,
+                       final int nFingerprint)
+  {
+    super();
+    version = nVersion;
+    position = nPosition;
+    beforeId = nBeforeId;
+    afterId = nAfterId;
+    fingerprint = nFingerprint;
+  }
+
+
+  /**
+   * Read a token.
+   *
+   * @param token the token
+   * @return the continuation
+   * @throws IllegalArgumentException if the token isn't valid
+   */
+  public static Continuation parse(final String token)
+  {
+    final String[] parts = token.trim().split("\\.", -1);
+    if (parts.length != 5)
+    {
+      throw new IllegalArgumentException("Invalid continuation: " + token);
+    }
+
+    try
+    {
+      final long nVersion = Long.parseLong(parts[0], RADIX);
+      final int nPosition = Integer.parseInt(parts[1], RADIX);
+      final int nBeforeId = Integer.parseInt(parts[2], RADIX);
+      final int nAfterId = Integer.parseInt(parts[3], RADIX);
+      final int nFingerprint = (int) Long.parseLong(parts[4], RADIX);
+      if ((nVersion < 0L) || (nPosition < 0) || (nBeforeId < -1) ||
+          (nAfterId < -1))
+      {
+        throw new IllegalArgumentException("Invalid continuation: " + token);
+      }
+
+      return new Continuation(nVersion, nPosition, nBeforeId, nAfterId,
+                              nFingerprint);
+    }
+    catch (NumberFormatException nfe)
+    {
+      throw new IllegalArgumentException("Invalid continuation: " + token);
+    }
+  }
+
+
+  /**
+   * Get the version of the corpus.
+   *
+   * @return the version
+   */
+  public long getVersion()
+  {
+    return version;
+  }
+
+
+  /**
+   * Get the corpus position to carry on from.
+   *
+   * @return the position
+   */
+  public int getPosition()
+  {
+    return position;
+  }
+
+
+  /**
+   * Get the position to carry on from in a snapshot.
+   *
+   * @param snapshot the snapshot that will be searched
+   * @return the position, or -1 if the quotations where the search
+   *         stopped are no longer in the corpus
+   */
+  public int findPosition(final CorpusSnapshot snapshot)
+  {
+    if (snapshot.getVersion() == version)
+    {
+      return ((position <= snapshot.size()) ? position : -1);
+    }
+
+    return snapshot.findBoundary(beforeId, afterId);
+  }
+
+
+  /**
+   * Returns whether this continues a query.  The limit isn't
+   * part of it, so a search can carry on with a different limit.
+   *
+   * @param query the query
+   * @return whether the continuation was made for the query
+   */
+  public boolean isFor(final QueryKey query)
+  {
+    return (fingerprint == fingerprint(query));
+  }
+
+
+  /**
+   * Make a fingerprint of a query that's the same in every run of
+   * the application, unlike its hash code.
+   *
+   * @param query the query
+   * @return the fingerprint
+   */
+  private static int fingerprint(final QueryKey query)
+  {
+    int h = query.getMode().ordinal();
+    h = (31 * h) + (query.isMatchCase() ? 1 : 0);
+    h = (31 * h) + ((query.getKeyword() == null) ? 0 : query.getKeyword().hashCode());
+    h = (31 * h) + ((query.getAuthor() == null) ? 0 : query.getAuthor().hashCode());
+    if (query.isCollapse())
+    {
+      h = (31 * h) + 1;
+    }
+
+    return h;
+  }
+
+
+  /**
+   * Write the token.
+   *
+   * @return the token
+   */
+  @Override
+  public String toString()
+  {
+    return Long.toString(version, RADIX) + "." +
+           Integer.toString(position, RADIX) + "." +
+           Integer.toString(beforeId, RADIX) + "." +
+           Integer.toString(afterId, RADIX) + "." +
+           Long.toString(fingerprint & 0xFFFFFFFFL, RADIX);
+  }
+}
@@ -0,0 +1,302 @@
+package io.miti.quotes.app.search;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.miti.quotes.app.filter.ContainsAllFilter;
+import io.miti.quotes.app.filter.RegexFilter;
+import io.miti.quotes.app.filter.SoundFilter;
+import io.miti.quotes.app.filter.TermFilter;
+import io.miti.quotes.app.filter.WildcardFilter;
+
+/**
+ * A cache of compiled filters, keyed by the kind of filter, the
+ * search term and whether case is ignored.  Compiling a regular
+ * expression or a wildcard pattern, or folding a term for the
+ * slice matchers, is done once per distinct term instead of once
+ * per search.
+ *
+ * The filters are immutable, so one instance can be shared by
+ * any number of searches on any number of threads.  A term that
+ * fails to compile (such as a bad regular expression) throws as
+ * usual and is not cached.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class FilterCache
+{
+  /**
+   * The maximum number of filters.
+   */
+  private final int maxEntries;
+
+  /**
+   * The filters, in access order.
+   */
+  private final LinkedHashMap<Key, TermFilter> filters;
+
+  /**
+   * The number of lookups that found a filter.
+   */
+  private long hits = 0L;
+
+  /**
+   * The number of lookups that compiled one.
+   */
+  private long misses = 0L;
+
+
+  /**
+   * Create a cache.
+   *
+   * @param nMaxEntries the maximum number of filters
+   */
+  public FilterCache(final int nMaxEntries)
+  {
+    super();
+    maxEntries = Math.max(1, nMaxEntries);
+    filters = new LinkedHashMap<Key, TermFilter>(maxEntries * 2, 0.75f, true)
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Key, TermFilter> e)
+      {
+        return (size() > maxEntries);
+      }
+    };
+  }
+
+
+  /**
+   * Get the filter for a keyword search.
+   *
+   * @param mode the search mode
+   * @param term the search term
+   * @param matchCase whether to match on case
+   * @return the filter, or null if the mode is null
+   */
+  public TermFilter getFilter(final SearchMode mode, final String term,
+                              final boolean matchCase)
+  {
+    if (mode == null)
+    {
+      return null;
+    }
+
+    return lookup(new Key(mode, term, matchCase));
+  }
+
+
+  /**
+   * Get the filter for an author search.  This is always a
+   * Contains All filter.
+   *
+   * @param author the author
+   * @param matchCase whether to match on case
+   * @return the filter
+   */
+  public TermFilter getAuthorFilter(final String author,
+                                    final boolean matchCase)
+  {
+    return lookup(new Key(null, author, matchCase));
+  }
+
+
+  /**
+   * Remove every filter.
+   */
+  public synchronized void clear()
+  {
+    filters.clear();
+  }
+
+
+  /**
+   * Get the number of filters.
+   *
+   * @return the number of filters
+   */
+  public synchronized int size()
+  {
+    return filters.size();
+  }
+
+
+  /**
+   * Get the number of lookups that found a filter.
+   *
+   * @return the number of hits
+   */
+  public synchronized long getHitCount()
+  {
+    return hits;
+  }
+
+
+  /**
+   * Get the number of lookups that had to compile a filter.
+   *
+   * @return the number of misses
+   */
+  public synchronized long getMissCount()
+  {
+    return misses;
+  }
+
+
+  /**
+   * Find a filter, compiling it on a miss.
+   *
+   * @param key the key
+   * @return the filter
+   */
+  private TermFilter lookup(final Key key)
+  {
+    synchronized (this)
+    {
+      final TermFilter tf = filters.get(key);
+      if (tf != null)
+      {
+        ++hits;
+        return tf;
+      }
+
+      ++misses;
+    }
+
+    // Compile outside the lock; if two threads race, both
+    // filters are equivalent and the last one is kept
+    final TermFilter tf = compile(key);
+    synchronized (this)
+    {
+      filters.put(key, tf);
+    }
+
+    return tf;
+  }
+
+
+  /**
+   * Build the filter for a key.
+   *
+   * @param key the key
+   * @return the new filter
+   */
+  private static TermFilter compile(final Key key)
+  {
+    return compile(key.mode, key.term, key.matchCase);
+  }
+
+
+  /**
+   * Build a filter without caching it, for code that keeps many
+   * filters of its own.
+   *
+   * @param mode the search mode, or null for the author filter
+   * @param term the search term
+   * @param matchCase whether to match on case
+   * @return the new filter
+   */
+  public static TermFilter compile(final SearchMode mode, final String term,
+                                   final boolean matchCase)
+  {
+    final boolean ignoreCase = !matchCase;
+    if (mode == null)
+    {
+      return new ContainsAllFilter(term, ignoreCase);
+    }
+
+    switch (mode)
+    {
+      case REGEX:
+        return new RegexFilter(term, ignoreCase);
+
+      case SOUNDEX:
+        return new SoundFilter(term, ignoreCase);
+
+      case WILDCARD:
+        return new WildcardFilter(term, ignoreCase);
+
+      default:
+        return new ContainsAllFilter(term, ignoreCase);
+    }
+  }
+
+
+  /**
+   * Identifies a filter.
+   */
+  private static final class Key
+  {
+    /**
+     * The search mode, or null for the author filter.
+     */
+    private final SearchMode mode;
+
+    /**
+     * The search term.
+     */
+    private final String term;
+
+    /**
+     * Whether to match on case.
+     */
+    private final boolean matchCase;
+
+
+    /**
+     * Create a key.
+     *
+     * @param pMode the search mode, or null for the author filter
+     * @param sTerm the search term
+     * @param bMatchCase whether to match on case
+     */
+    Key(final SearchMode pMode, final String sTerm, final boolean bMatchCase)
+    {
+      super();
+      mode = pMode;
+      term = sTerm;
+      matchCase = bMatchCase;
+    }
+
+
+    /**
+     * Compare this key to another object.
+     *
+     * @param obj the other object
+     * @return whether they're equal
+     */
+    @Override
+    public boolean equals(final Object obj)
+    {
+      if (this == obj)
+      {
+        return true;
+      }
+      else if (!(obj instanceof Key))
+      {
+        return false;
+      }
+
+      final Key other = (Key) obj;
+      return ((mode == other.mode) && (matchCase == other.matchCase) &&
+              ((term == null) ? (other.term == null) : term.equals(other.term)));
+    }
+
+
+    /**
+     * Get the hash code.
+     *
+     * @return the hash code
+     */
+    @Override
+    public int hashCode()
+    {
+      int h = ((mode == null) ? -1 : mode.ordinal());
+      h = (31 * h) + ((term == null) ? 0 : term.hashCode());
+      return (31 * h) + (matchCase ? 1 : 0);
+    }
+  }
+}
@@ -0,0 +1,635 @@
+package io.miti.quotes.app.search;
+
+import java.util.Arrays;
+
+import io.miti.quotes.app.QuotationNode;
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+
+/**
+ * The clusters of near-duplicate quotations in one version of the
+ * corpus, such as copies that differ only in punctuation, case or
+ * attribution.  Two quotations are near-duplicates if the sets of
+ * word pairs (shingles) in their text are at least as similar as
+ * a threshold, by Jaccard similarity; the author, topic and
+ * punctuation are ignored.
+ *
+ * Comparing every pair would take quadratic time, so candidates
+ * are found with MinHash and locality-sensitive hashing: each
+ * quotation gets a signature of the smallest hash of its shingles
+ * under several hash functions, and the signature is cut into
+ * bands.  Quotations with an identical band land in the same
+ * bucket, and only those are compared, so the work grows roughly
+ * linearly with the corpus.  A pair of quotations with similarity
+ * s shares a band with probability 1 - (1 - s^ROWS)^BANDS, which
+ * is over 99% at 0.8 and 84% at 0.65.
+ *
+ * Clusters are keyed by quotation ID, which doesn't change when
+ * the corpus is edited, so an index built from an older snapshot
+ * can still be used; quotations added since then are in no
+ * cluster.  The index is immutable.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class NearDuplicates
+{
+  /**
+   * The default similarity at which quotations are duplicates.
+   */
+  public static final double DEFAULT_THRESHOLD = 0.7;
+
+  /**
+   * The number of bands in a signature.
+   */
+  private static final int BANDS = 10;
+
+  /**
+   * The number of hash values in each band.
+   */
+  private static final int ROWS = 4;
+
+  /**
+   * The number of hash values in a signature.
+   */
+  private static final int SIGNATURE_SIZE = BANDS * ROWS;
+
+  /**
+   * The seed of the hash functions, fixed so the clusters are the
+   * same in every run.
+   */
+  private static final long SEED = 0x5DEECE66DL;
+
+  /**
+   * The version of the corpus the index was built from.
+   */
+  private final long version;
+
+  /**
+   * The similarity at which quotations are duplicates.
+   */
+  private final double threshold;
+
+  /**
+   * The number of live quotations checked.
+   */
+  private final int quoteCount;
+
+  /**
+   * The number of candidate pairs whose similarity was checked.
+   */
+  private final long comparisons;
+
+  /**
+   * How long the index took to build, in milliseconds.
+   */
+  private final long buildMillis;
+
+  /**
+   * The cluster of each quotation ID, or -1 if it has no
+   * duplicates.
+   */
+  private final int[] clusterOfId;
+
+  /**
+   * The index in members of the first quotation of each cluster,
+   * and the end of the last.
+   */
+  private final int[] clusterStarts;
+
+  /**
+   * The IDs of the quotations in each cluster, in corpus order.
+   */
+  private final int[] members;
+
+
+  /**
+   * Find the near-duplicates in a snapshot.
+   *
+   * @param snapshot the snapshot
+   * @param dThreshold the similarity, from 0 to 1, at which two
+   *                   quotations are duplicates
+   */
+  public NearDuplicates(final CorpusSnapshot snapshot, final double dThreshold)
+  {
+    super();
+    final long start = System.currentTimeMillis();
+    version = snapshot.getVersion();
+    threshold = dThreshold;
+
+    // Number the live quotations, and find the largest ID
+    final int size = snapshot.size();
+    int[] positions = new int[snapshot.getLiveCount()];
+    int numQuotes = 0;
+    int maxId = -1;
+    for (int pos = 0; (pos < size) && (numQuotes < positions.length); ++pos)
+    {
+      if (snapshot.isLive(pos))
+      {
+        positions[numQuotes++] = pos;
+        maxId = Math.max(maxId, snapshot.getId(pos));
+      }
+    }
+
+    quoteCount = numQuotes;
+
+    // Make the hash functions
+    long[] multipliers = new long[SIGNATURE_SIZE];
+    long[] addends = new long[SIGNATURE_SIZE];
+    long state = SEED;
+    for (int k = 0; k < SIGNATURE_SIZE; ++k)
+    {
+      state += 0x9E3779B97F4A7C15L;
+      multipliers[k] = mix(state) | 1L;
+      state += 0x9E3779B97F4A7C15L;
+      addends[k] = mix(state);
+    }
+
+    // Hash each band of each quotation's signature.  Quotations
+    // without any words get no signature, and aren't clustered.
+    int[] bandKeys = new int[BANDS * numQuotes];
+    boolean[] hasWords = new boolean[numQuotes];
+    int[] shingles = new int[64];
+    int[] signature = new int[SIGNATURE_SIZE];
+    for (int q = 0; q < numQuotes; ++q)
+    {
+      shingles = getShingles(snapshot.getQuote(positions[q]), shingles);
+      final int numShingles = shingles[0];
+      if (numShingles == 0)
+      {
+        continue;
+      }
+
+      hasWords[q] = true;
+      Arrays.fill(signature, Integer.MAX_VALUE);
+      for (int s = 1; s <= numShingles; ++s)
+      {
+        final long shingle = shingles[s] & 0xFFFFFFFFL;
+        for (int k = 0; k < SIGNATURE_SIZE; ++k)
+        {
+          final int h = (int) (((multipliers[k] * shingle) + addends[k]) >>> 32);
+          if (h < signature[k])
+          {
+            signature[k] = h;
+          }
+        }
+      }
+
+      for (int b = 0; b < BANDS; ++b)
+      {
+        long h = b;
+        for (int r = 0; r < ROWS; ++r)
+        {
+          h = mix(h + signature[(b * ROWS) + r]);
+        }
+
+        bandKeys[(b * numQuotes) + q] = (int) h;
+      }
+    }
+
+    // Compare the quotations in each bucket to the first one in
+    // it, and join the ones that are similar enough
+    int[] parent = new int[numQuotes];
+    for (int q = 0; q < numQuotes; ++q)
+    {
+      parent[q] = q;
+    }
+
+    long[] bucket = new long[numQuotes];
+    int[] leaderShingles = new int[64];
+    int[] otherShingles = new int[64];
+    long numComparisons = 0L;
+    for (int b = 0; b < BANDS; ++b)
+    {
+      // Sort the quotations by band key, keeping corpus order
+      // within each key
+      int numInBands = 0;
+      for (int q = 0; q < numQuotes; ++q)
+      {
+        if (hasWords[q])
+        {
+          bucket[numInBands++] = ((long) bandKeys[(b * numQuotes) + q] << 32) | q;
+        }
+      }
+
+      Arrays.sort(bucket, 0, numInBands);
+      int i = 0;
+      while (i < numInBands)
+      {
+        final int key = (int) (bucket[i] >> 32);
+        final int leader = (int) bucket[i];
+        boolean leaderRead = false;
+        int j = i + 1;
+        while ((j < numInBands) && ((int) (bucket[j] >> 32) == key))
+        {
+          final int other = (int) bucket[j];
+          if (find(parent, leader) != find(parent, other))
+          {
+            // Read the shingles of the leader once per bucket
+            if (!leaderRead)
+            {
+              leaderShingles = getSortedShingles(snapshot.getQuote(positions[leader]),
+                                                 leaderShingles);
+              leaderRead = true;
+            }
+
+            otherShingles = getSortedShingles(snapshot.getQuote(positions[other]),
+                                              otherShingles);
+            ++numComparisons;
+            if (similarity(leaderShingles, otherShingles) >= threshold)
+            {
+              union(parent, leader, other);
+            }
+          }
+
+          ++j;
+        }
+
+        i = j;
+      }
+    }
+
+    comparisons = numComparisons;
+
+    // Number the clusters with more than one quotation, in the
+    // order of their first quotation
+    int[] clusterOfRoot = new int[numQuotes];
+    int[] clusterSize = new int[numQuotes];
+    for (int q = 0; q < numQuotes; ++q)
+    {
+      ++clusterSize[find(parent, q)];
+    }
+
+    int numClusters = 0;
+    for (int q = 0; q < numQuotes; ++q)
+    {
+      clusterOfRoot[q] = (((parent[q] == q) && (clusterSize[q] > 1)) ? numClusters++ : -1);
+    }
+
+    // List the members of each cluster
+    clusterStarts = new int[numClusters + 1];
+    for (int q = 0; q < numQuotes; ++q)
+    {
+      final int c = clusterOfRoot[find(parent, q)];
+      if (c >= 0)
+      {
+        ++clusterStarts[c + 1];
+      }
+    }
+
+    for (int c = 0; c < numClusters; ++c)
+    {
+      clusterStarts[c + 1] += clusterStarts[c];
+    }
+
+    members = new int[clusterStarts[numClusters]];
+    clusterOfId = new int[maxId + 1];
+    Arrays.fill(clusterOfId, -1);
+    int[] fill = new int[numClusters];
+    System.arraycopy(clusterStarts, 0, fill, 0, numClusters);
+    for (int q = 0; q < numQuotes; ++q)
+    {
+      final int c = clusterOfRoot[find(parent, q)];
+      if (c >= 0)
+      {
+        final int id = snapshot.getId(positions[q]);
+        members[fill[c]++] = id;
+        clusterOfId[id] = c;
+      }
+    }
+
+    buildMillis = System.currentTimeMillis() - start;
+  }
+
+
+  /**
+   * Get the version of the corpus the index was built from.
+   *
+   * @return the version
+   */
+  public long getVersion()
+  {
+    return version;
+  }
+
+
+  /**
+   * Get the similarity at which quotations are duplicates.
+   *
+   * @return the threshold
+   */
+  public double getThreshold()
+  {
+    return threshold;
+  }
+
+
+  /**
+   * Get the cluster of a quotation.
+   *
+   * @param nId the ID of the quotation
+   * @return the number of its cluster, or -1 if it has no
+   *         near-duplicates
+   */
+  public int getCluster(final int nId)
+  {
+    return (((nId >= 0) && (nId < clusterOfId.length)) ? clusterOfId[nId] : -1);
+  }
+
+
+  /**
+   * Returns whether a quotation is a near-duplicate of one that
+   * comes before it in the corpus.  Dropping these keeps one
+   * quotation of each cluster.
+   *
+   * @param nId the ID of the quotation
+   * @return whether it's a duplicate
+   */
+  public boolean isDuplicate(final int nId)
+  {
+    final int c = getCluster(nId);
+    return ((c >= 0) && (members[clusterStarts[c]] != nId));
+  }
+
+
+  /**
+   * Get the number of clusters of more than one quotation.
+   *
+   * @return the number of clusters
+   */
+  public int getClusterCount()
+  {
+    return (clusterStarts.length - 1);
+  }
+
+
+  /**
+   * Get the number of quotations in a cluster.
+   *
+   * @param nCluster the number of the cluster
+   * @return its size
+   */
+  public int getClusterSize(final int nCluster)
+  {
+    return (clusterStarts[nCluster + 1] - clusterStarts[nCluster]);
+  }
+
+
+  /**
+   * Get the IDs of the quotations in a cluster.
+   *
+   * @param nCluster the number of the cluster
+   * @return the IDs, in corpus order
+   */
+  public int[] getMembers(final int nCluster)
+  {
+    final int start = clusterStarts[nCluster];
+    int[] ids = new int[clusterStarts[nCluster + 1] - start];
+    System.arraycopy(members, start, ids, 0, ids.length);
+    return ids;
+  }
+
+
+  /**
+   * Get the number of live quotations that were checked.
+   *
+   * @return the number of quotations
+   */
+  public int getQuoteCount()
+  {
+    return quoteCount;
+  }
+
+
+  /**
+   * Get the number of quotations that are duplicates of an
+   * earlier one.
+   *
+   * @return the number of duplicates
+   */
+  public int getDuplicateCount()
+  {
+    return (members.length - getClusterCount());
+  }
+
+
+  /**
+   * Get the number of candidate pairs whose similarity was
+   * checked.
+   *
+   * @return the number of comparisons
+   */
+  public long getComparisonCount()
+  {
+    return comparisons;
+  }
+
+
+  /**
+   * Get how long the index took to build.
+   *
+   * @return the time, in milliseconds
+   */
+  public long getBuildMillis()
+  {
+    return buildMillis;
+  }
+
+
+  /**
+   * Find the root of a quotation's set, halving the path.
+   *
+   * @param parent the parent of each quotation
+   * @param nQuote the quotation
+   * @return the root
+   */
+  private static int find(final int[] parent, final int nQuote)
+  {
+    int q = nQuote;
+    while (parent[q] != q)
+    {
+      parent[q] = parent[parent[q]];
+      q = parent[q];
+    }
+
+    return q;
+  }
+
+
+  /**
+   * Join the sets of two quotations.  The root is the one that
+   * comes first in the corpus.
+   *
+   * @param parent the parent of each quotation
+   * @param q1 one quotation
+   * @param q2 the other quotation
+   */
+  private static void union(final int[] parent, final int q1, final int q2)
+  {
+    final int r1 = find(parent, q1);
+    final int r2 = find(parent, q2);
+    if (r1 < r2)
+    {
+      parent[r2] = r1;
+    }
+    else if (r2 < r1)
+    {
+      parent[r1] = r2;
+    }
+  }
+
+
+  /**
+   * Get the hashes of the shingles of a quotation: each pair of
+   * adjacent words, or the only word if there's one.  A word is a
+   * run of letters and digits, ignoring case and apostrophes.
+   *
+   * @param quote the quotation
+   * @param buffer the array to fill, if it's big enough
+   * @return the array, with the number of shingles at index 0
+   *         and the hashes after it
+   */
+  private static int[] getShingles(final QuotationNode quote, final int[] buffer)
+  {
+    int[] result = buffer;
+    int count = 0;
+    final String text = quote.getQuotation();
+    final int len = ((text == null) ? 0 : text.length());
+    int prevWord = 0;
+    int numWords = 0;
+    int i = 0;
+    while (i < len)
+    {
+      // Hash the next word
+      int word = 0;
+      boolean inWord = false;
+      while (i < len)
+      {
+        final char ch = text.charAt(i);
+        if (Character.isLetterOrDigit(ch))
+        {
+          word = (31 * word) + Character.toLowerCase(Character.toUpperCase(ch));
+          inWord = true;
+        }
+        else if ((ch != '\'') && (ch != '\u2019'))
+        {
+          if (inWord)
+          {
+            break;
+          }
+        }
+
+        ++i;
+      }
+
+      if (!inWord)
+      {
+        break;
+      }
+
+      // Add the pair it ends
+      word = (int) mix(word);
+      if (numWords > 0)
+      {
+        if (count + 1 == result.length)
+        {
+          int[] bigger = new int[result.length * 2];
+          System.arraycopy(result, 0, bigger, 0, result.length);
+          result = bigger;
+        }
+
+        result[++count] = (int) mix(((long) prevWord << 32) ^ (word & 0xFFFFFFFFL));
+      }
+
+      prevWord = word;
+      ++numWords;
+    }
+
+    if (numWords == 1)
+    {
+      result[++count] = prevWord;
+    }
+
+    result[0] = count;
+    return result;
+  }
+
+
+  /**
+   * Get the distinct shingles of a quotation, sorted.
+   *
+   * @param quote the quotation
+   * @param buffer the array to fill, if it's big enough
+   * @return the array, with the number of shingles at index 0
+   *         and the sorted hashes after it
+   */
+  private static int[] getSortedShingles(final QuotationNode quote,
+                                         final int[] buffer)
+  {
+    int[] result = getShingles(quote, buffer);
+    final int count = result[0];
+    Arrays.sort(result, 1, count + 1);
+    int n = 0;
+    for (int s = 1; s <= count; ++s)
+    {
+      if ((n == 0) || (result[s] != result[n]))
+      {
+        result[++n] = result[s];
+      }
+    }
+
+    result[0] = n;
+    return result;
+  }
+
+
+  /**
+   * Get the Jaccard similarity of two sets of shingles: the size
+   * of their intersection over the size of their union.
+   *
+   * @param s1 the first set, with its size at index 0, sorted
+   * @param s2 the second set, with its size at index 0, sorted
+   * @return the similarity
+   */
+  private static double similarity(final int[] s1, final int[] s2)
+  {
+    final int n1 = s1[0];
+    final int n2 = s2[0];
+    int i = 1;
+    int j = 1;
+    int common = 0;
+    while ((i <= n1) && (j <= n2))
+    {
+      if (s1[i] < s2[j])
+      {
+        ++i;
+      }
+      else if (s1[i] > s2[j])
+      {
+        ++j;
+      }
+      else
+      {
+        ++common;
+        ++i;
+        ++j;
+      }
+    }
+
+    return ((double) common / ((n1 + n2) - common));
+  }
+
+
+  /**
+   * Scramble the bits of a number (the finalizer of SplitMix64).
+   *
+   * @param nValue the number
+   * @return the scrambled bits
+   */
+  private static long mix(final long nValue)
+  {
+    long z = nValue;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
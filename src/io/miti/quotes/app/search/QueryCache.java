@@ -0,0 +1,289 @@
+package io.miti.quotes.app.search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of search results, keyed by the normalized query.  Each
+ * entry holds the IDs of the matching quotations and the version
+ * of the corpus they were found in; an entry for an older version
+ * is treated as a miss, so any edit or reload invalidates it.
+ *
+ * The cache is bounded by both the number of entries and the
+ * total number of IDs held, evicting the least recently used
+ * entries first.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class QueryCache
+{
+  /**
+   * The maximum number of entries.
+   */
+  private final int maxEntries;
+
+  /**
+   * The maximum number of IDs held across all entries.
+   */
+  private final int maxTotalIds;
+
+  /**
+   * The entries, in access order.
+   */
+  private final LinkedHashMap<QueryKey, Entry> entries;
+
+  /**
+   * The number of IDs held across all entries.
+   */
+  private int totalIds = 0;
+
+  /**
+   * The number of lookups that found a current entry.
+   */
+  private long hits = 0L;
+
+  /**
+   * The number of lookups that didn't.
+   */
+  private long misses = 0L;
+
+
+  /**
+   * Create a cache.
+   *
+   * @param nMaxEntries the maximum number of entries
+   * @param nMaxTotalIds the maximum number of IDs across all entries
+   */
+  public QueryCache(final int nMaxEntries, final int nMaxTotalIds)
+  {
+    super();
+    maxEntries = Math.max(1, nMaxEntries);
+    maxTotalIds = Math.max(0, nMaxTotalIds);
+    entries = new LinkedHashMap<QueryKey, Entry>(maxEntries * 2, 0.75f, true);
+  }
+
+
+  /**
+   * Get the results of a query, if they're cached for the
+   * current version of the corpus.
+   *
+   * @param key the query
+   * @param version the current corpus version
+   * @return the entry, or null on a miss
+   */
+  public synchronized Entry get(final QueryKey key, final long version)
+  {
+    final Entry entry = entries.get(key);
+    if ((entry != null) && (entry.version == version))
+    {
+      ++hits;
+      return entry;
+    }
+
+    // Drop a stale entry
+    if (entry != null)
+    {
+      remove(key);
+    }
+
+    ++misses;
+    return null;
+  }
+
+
+  /**
+   * Save the results of a query.  Results too large for the
+   * cache aren't saved.
+   *
+   * @param key the query
+   * @param version the corpus version the results were found in
+   * @param ids the IDs of the matches, in order (not copied)
+   * @param full whether the search stopped at its limit
+   * @param scannedUpTo the corpus position the search stopped at
+   */
+  public synchronized void put(final QueryKey key, final long version,
+                               final int[] ids, final boolean full,
+                               final int scannedUpTo)
+  {
+    remove(key);
+    if (ids.length > maxTotalIds)
+    {
+      return;
+    }
+
+    entries.put(key, new Entry(version, ids, full, scannedUpTo));
+    totalIds += ids.length;
+
+    // Evict the least recently used entries
+    Iterator<Map.Entry<QueryKey, Entry>> iter = entries.entrySet().iterator();
+    while (((entries.size() > maxEntries) || (totalIds > maxTotalIds)) &&
+           iter.hasNext())
+    {
+      totalIds -= iter.next().getValue().ids.length;
+      iter.remove();
+    }
+  }
+
+
+  /**
+   * Remove every entry, as when the corpus is reloaded.
+   */
+  public synchronized void clear()
+  {
+    entries.clear();
+    totalIds = 0;
+  }
+
+
+  /**
+   * Get the number of entries.
+   *
+   * @return the number of entries
+   */
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+
+
+  /**
+   * Get the number of lookups that found a current entry.
+   *
+   * @return the number of hits
+   */
+  public synchronized long getHitCount()
+  {
+    return hits;
+  }
+
+
+  /**
+   * Get the number of lookups that didn't find a current entry.
+   *
+   * @return the number of misses
+   */
+  public synchronized long getMissCount()
+  {
+    return misses;
+  }
+
+
+  /**
+   * Remove an entry.
+   *
+   * @param key the query
+   */
+  private void remove(final QueryKey key)
+  {
+    final Entry old = entries.remove(key);
+    if (old != null)
+    {
+      totalIds -= old.ids.length;
+    }
+  }
+
+
+  /**
+   * The cached results of one query.
+   */
+  public static final class Entry
+  {
+    /**
+     * The corpus version the results were found in.
+     */
+    private final long version;
+
+    /**
+     * The IDs of the matches, in order.
+     */
+    private final int[] ids;
+
+    /**
+     * Whether the search stopped at its limit.
+     */
+    private final boolean full;
+
+    /**
+     * The corpus position the search stopped at.
+     */
+    private final int scannedUpTo;
+
+
+    /**
+     * Create an entry.
+     *
+     * @param nVersion the corpus version
+     * @param pIds the IDs of the matches
+     * @param bFull whether the search stopped at its limit
+     * @param nScannedUpTo the corpus position the search stopped at
+     */
+    Entry(final long nVersion, final int[] pIds, final boolean bFull,
+          final int nScannedUpTo)
+    {
+      super();
+      version = nVersion;
+      ids = pIds;
+      full = bFull;
+      scannedUpTo = nScannedUpTo;
+    }
+
+
+    /**
+     * Get the corpus version the results were found in.
+     *
+     * @return the version
+     */
+    public long getVersion()
+    {
+      return version;
+    }
+
+
+    /**
+     * Get the number of matches.
+     *
+     * @return the number of matches
+     */
+    public int size()
+    {
+      return ids.length;
+    }
+
+
+    /**
+     * Get the ID of a match.
+     *
+     * @param nIndex the index of the match
+     * @return the quotation ID
+     */
+    public int getId(final int nIndex)
+    {
+      return ids[nIndex];
+    }
+
+
+    /**
+     * Get whether the search stopped at its limit.
+     *
+     * @return whether the results are limited
+     */
+    public boolean isFull()
+    {
+      return full;
+    }
+
+
+    /**
+     * Get the corpus position the search stopped at, so the next
+     * page of matches can start there.
+     *
+     * @return the position
+     */
+    public int getScannedUpTo()
+    {
+      return scannedUpTo;
+    }
+  }
+}
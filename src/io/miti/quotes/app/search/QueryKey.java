@@ -0,0 +1,385 @@
+package io.miti.quotes.app.search;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Identifies a search, for caching its results.  The keyword and
+ * author are normalized so searches that must give the same
+ * results get equal keys, and the search should be run with the
+ * normalized text.  Surrounding whitespace is dropped; for
+ * word-based matching (Contains, Soundex and the author), runs of
+ * whitespace become one space; and unless matching case, the text
+ * is lowercased.  Regular expressions are only trimmed.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class QueryKey
+{
+  /**
+   * The search mode.
+   */
+  private final SearchMode mode;
+
+  /**
+   * The normalized keyword, or null.
+   */
+  private final String keyword;
+
+  /**
+   * The normalized author, or null.
+   */
+  private final String author;
+
+  /**
+   * Whether the search matches case.
+   */
+  private final boolean matchCase;
+
+  /**
+   * The maximum number of results, or -1 for no limit.
+   */
+  private final int limit;
+
+  /**
+   * Whether near-duplicates of a match are left out.
+   */
+  private final boolean collapse;
+
+  /**
+   * The hash code.
+   */
+  private final int hash;
+
+
+  /**
+   * Create a key.
+   *
+   * @param pMode the search mode
+   * @param sKeyword the keyword, or null
+   * @param sAuthor the author, or null
+   * @param bMatchCase whether the search matches case
+   * @param nLimit the maximum number of results, or -1 for no limit
+   */
+  public QueryKey(final SearchMode pMode,
+                  final String sKeyword,
+                  final String sAuthor,
+                  final boolean bMatchCase,
+                  final int nLimit)
+  {
+    this(pMode, sKeyword, sAuthor, bMatchCase, nLimit, false);
+  }
+
+
+  /**
+   * Create a key.
+   *
+   * @param pMode the search mode
+   * @param sKeyword the keyword, or null
+   * @param sAuthor the author, or null
+   * @param bMatchCase whether the search matches case
+   * @param nLimit the maximum number of results, or -1 for no limit
+   * @param bCollapse whether to leave out near-duplicates of an
+   *                  earlier match
+   */
+  public QueryKey(final SearchMode pMode,
+                  final String sKeyword,
+                  final String sAuthor,
+                  final boolean bMatchCase,
+                  final int nLimit,
+                  final boolean bCollapse)
+  {
+    super();
+    mode = pMode;
+    matchCase = bMatchCase;
+    final boolean regex = (pMode == SearchMode.REGEX);
+    final boolean words = ((pMode == SearchMode.CONTAINS) ||
+                           (pMode == SearchMode.SOUNDEX));
+    keyword = normalize(sKeyword, words, !bMatchCase && !regex);
+    author = normalize(sAuthor, true, !bMatchCase);
+    limit = ((nLimit < 0) ? -1 : nLimit);
+    collapse = bCollapse;
+
+    int h = ((mode == null) ? 0 : mode.hashCode());
+    h = (31 * h) + ((keyword == null) ? 0 : keyword.hashCode());
+    h = (31 * h) + ((author == null) ? 0 : author.hashCode());
+    h = (31 * h) + (matchCase ? 1 : 0);
+    h = (31 * h) + (collapse ? 1 : 0);
+    hash = (31 * h) + limit;
+  }
+
+
+  /**
+   * Get the search mode.
+   *
+   * @return the search mode
+   */
+  public SearchMode getMode()
+  {
+    return mode;
+  }
+
+
+  /**
+   * Get the normalized keyword.
+   *
+   * @return the keyword, or null
+   */
+  public String getKeyword()
+  {
+    return keyword;
+  }
+
+
+  /**
+   * Get the normalized author.
+   *
+   * @return the author, or null
+   */
+  public String getAuthor()
+  {
+    return author;
+  }
+
+
+  /**
+   * Get whether the search matches case.
+   *
+   * @return whether the search matches case
+   */
+  public boolean isMatchCase()
+  {
+    return matchCase;
+  }
+
+
+  /**
+   * Get the maximum number of results.
+   *
+   * @return the limit, or -1 for no limit
+   */
+  public int getLimit()
+  {
+    return limit;
+  }
+
+
+  /**
+   * Get whether near-duplicates of an earlier match are left out.
+   *
+   * @return whether near-duplicates are collapsed
+   */
+  public boolean isCollapse()
+  {
+    return collapse;
+  }
+
+
+  /**
+   * Check whether every quotation matching this query must also
+   * match a previous one, so this query can be run on just the
+   * previous matches.  That's true when each part of the previous
+   * query is unchanged, or was empty, or is a Contains search that
+   * this query only adds characters to (such as when typing).
+   * The limits aren't compared.  A query that collapses
+   * near-duplicates never narrows, or is narrowed by, another,
+   * since which copy is kept depends on what else matches.
+   *
+   * @param previous the previous query
+   * @return whether this query narrows the previous one
+   */
+  public boolean isNarrowingOf(final QueryKey previous)
+  {
+    if ((previous == null) || (matchCase != previous.matchCase) ||
+        collapse || previous.collapse)
+    {
+      return false;
+    }
+
+    // Check the keyword
+    if (previous.keyword != null)
+    {
+      if (keyword == null)
+      {
+        return false;
+      }
+
+      final boolean same = ((mode == previous.mode) &&
+                            keyword.equals(previous.keyword));
+      final boolean extended = ((mode == SearchMode.CONTAINS) &&
+                                (previous.mode == SearchMode.CONTAINS) &&
+                                extendsWords(keyword, previous.keyword));
+      if (!same && !extended)
+      {
+        return false;
+      }
+    }
+
+    // Check the author, which is always matched on words
+    if ((previous.author != null) &&
+        ((author == null) || !extendsWords(author, previous.author)))
+    {
+      return false;
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Return the hash code.
+   *
+   * @return the hash code
+   */
+  @Override
+  public int hashCode()
+  {
+    return hash;
+  }
+
+
+  /**
+   * Check whether another object is an equal key.
+   *
+   * @param obj the other object
+   * @return whether the keys are equal
+   */
+  @Override
+  public boolean equals(final Object obj)
+  {
+    if (this == obj)
+    {
+      return true;
+    }
+    else if (!(obj instanceof QueryKey))
+    {
+      return false;
+    }
+
+    final QueryKey other = (QueryKey) obj;
+    return ((hash == other.hash) && (mode == other.mode) &&
+            (matchCase == other.matchCase) && (limit == other.limit) &&
+            (collapse == other.collapse) &&
+            equal(keyword, other.keyword) && equal(author, other.author));
+  }
+
+
+  /**
+   * Return this key as a string.
+   *
+   * @return this key as a string
+   */
+  @Override
+  public String toString()
+  {
+    return (mode + ":" + keyword + ":" + author + ":" + matchCase + ":" + limit +
+            (collapse ? ":collapse" : ""));
+  }
+
+
+  /**
+   * Normalize a search string.
+   *
+   * @param str the string
+   * @param collapse whether to collapse runs of whitespace
+   * @param toLower whether to lowercase it
+   * @return the normalized string, or null if it's null or blank
+   */
+  private static String normalize(final String str, final boolean collapse,
+                                  final boolean toLower)
+  {
+    if (str == null)
+    {
+      return null;
+    }
+    else if (!collapse)
+    {
+      final String result = str.trim();
+      if (result.length() == 0)
+      {
+        return null;
+      }
+
+      return (toLower ? result.toLowerCase() : result);
+    }
+
+    // Collapse the whitespace
+    StringBuilder sb = new StringBuilder(str.length());
+    boolean space = false;
+    final int len = str.length();
+    for (int i = 0; i < len; ++i)
+    {
+      final char c = str.charAt(i);
+      if (Character.isWhitespace(c))
+      {
+        space = (sb.length() > 0);
+      }
+      else
+      {
+        if (space)
+        {
+          sb.append(' ');
+          space = false;
+        }
+
+        sb.append(c);
+      }
+    }
+
+    if (sb.length() == 0)
+    {
+      return null;
+    }
+
+    final String result = sb.toString();
+    return (toLower ? result.toLowerCase() : result);
+  }
+
+
+  /**
+   * Check whether a Contains All search string only adds to a
+   * previous one, so anything matching it matches the previous
+   * one too.  Quoted phrases and repeated words don't qualify,
+   * since typing more can change how the string is split into
+   * phrases, or how many times a phrase must occur.
+   *
+   * @param text the search string
+   * @param previous the previous search string
+   * @return whether the search string extends the previous one
+   */
+  private static boolean extendsWords(final String text,
+                                      final String previous)
+  {
+    if (!text.startsWith(previous) || (text.indexOf('"') >= 0))
+    {
+      return false;
+    }
+
+    // Each word in the previous string must be needed only once
+    final String[] words = previous.split(" ");
+    Set<String> seen = new HashSet<String>(words.length * 2);
+    for (String word : words)
+    {
+      if (!seen.add(word))
+      {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+
+  /**
+   * Compare two strings that may be null.
+   *
+   * @param s1 the first string
+   * @param s2 the second string
+   * @return whether they're equal
+   */
+  private static boolean equal(final String s1, final String s2)
+  {
+    return ((s1 == null) ? (s2 == null) : s1.equals(s2));
+  }
+}
@@ -0,0 +1,666 @@
+package io.miti.quotes.app.search;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import io.miti.quotes.app.QuotationNode;
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+
+/**
+ * Picks quotations at random from one version of the corpus: from
+ * all of it, from one topic or from one author, and a quotation of
+ * the day that's the same all day.  The positions of the live
+ * quotations are grouped by topic and by author when the sampler
+ * is built, so a pick is a hash lookup and an array index, and
+ * allocates nothing.
+ *
+ * Picks are uniform, or weighted by a popularity score if the
+ * sampler was built with one.  Weighted picks use an alias table
+ * (Vose's method) for each group, which is one more array read
+ * and comparison per pick.
+ *
+ * Topics and authors are matched ignoring case.  The sampler is
+ * immutable, so it can be shared between threads, and only
+ * describes the snapshot it was built from.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class QuoteSampler
+{
+  /**
+   * The popularity of each quotation, for weighted picks.
+   */
+  public interface Popularity
+  {
+    /**
+     * Get the popularity score of a quotation.  Scores that are
+     * negative or not a number count as 0; a quotation with 0 is
+     * never picked by a weighted pick, unless all of its group
+     * score 0.
+     *
+     * @param nId the ID of the quotation
+     * @param quote the quotation
+     * @return the score
+     */
+    double getScore(int nId, QuotationNode quote);
+  }
+
+  /**
+   * The snapshot the sampler was built from.
+   */
+  private final CorpusSnapshot snapshot;
+
+  /**
+   * Every live quotation, as a single group.
+   */
+  private final Groups all;
+
+  /**
+   * The live quotations of each topic.
+   */
+  private final Groups topics;
+
+  /**
+   * The live quotations of each author.
+   */
+  private final Groups authors;
+
+
+  /**
+   * Build a sampler of a snapshot.
+   *
+   * @param pSnapshot the snapshot
+   * @param popularity the popularity of each quotation, or null
+   *                   if picks are only uniform
+   */
+  public QuoteSampler(final CorpusSnapshot pSnapshot,
+                      final Popularity popularity)
+  {
+    super();
+    snapshot = pSnapshot;
+
+    // Number each distinct topic and author, and note the ones
+    // of each position
+    final int size = snapshot.size();
+    int[] allGroup = new int[size];
+    int[] topicGroup = new int[size];
+    int[] authorGroup = new int[size];
+    double[] weights = ((popularity == null) ? null : new double[size]);
+    Map<String, Integer> topicMap = new HashMap<String, Integer>(1024);
+    Map<String, Integer> authorMap = new HashMap<String, Integer>(1024);
+    for (int pos = 0; pos < size; ++pos)
+    {
+      if (!snapshot.isLive(pos))
+      {
+        allGroup[pos] = -1;
+        topicGroup[pos] = -1;
+        authorGroup[pos] = -1;
+        continue;
+      }
+
+      final QuotationNode quote = snapshot.getQuote(pos);
+      allGroup[pos] = 0;
+      topicGroup[pos] = getGroup(quote.getTopic(), topicMap);
+      authorGroup[pos] = getGroup(quote.getName(), authorMap);
+      if (weights != null)
+      {
+        final double score = popularity.getScore(snapshot.getId(pos), quote);
+        weights[pos] = (((score > 0.0) && !Double.isInfinite(score)) ? score : 0.0);
+      }
+    }
+
+    all = new Groups(allGroup, 1, null, weights);
+    topics = new Groups(topicGroup, topicMap.size(), topicMap, weights);
+    authors = new Groups(authorGroup, authorMap.size(), authorMap, weights);
+  }
+
+
+  /**
+   * Get the number of the group of a topic or author, adding it
+   * if it's new.
+   *
+   * @param name the topic or author (may be null)
+   * @param groupMap the number of each group, by folded name
+   * @return the number of the group, or -1 if the name is empty
+   */
+  private static int getGroup(final String name,
+                              final Map<String, Integer> groupMap)
+  {
+    if (name == null)
+    {
+      return -1;
+    }
+
+    final String key = fold(name.trim());
+    if (key.length() == 0)
+    {
+      return -1;
+    }
+
+    Integer group = groupMap.get(key);
+    if (group == null)
+    {
+      group = Integer.valueOf(groupMap.size());
+      groupMap.put(key, group);
+    }
+
+    return group.intValue();
+  }
+
+
+  /**
+   * Get the version of the corpus the sampler was built from.
+   *
+   * @return the version
+   */
+  public long getVersion()
+  {
+    return snapshot.getVersion();
+  }
+
+
+  /**
+   * Get the snapshot the sampler was built from, which the
+   * positions it picks refer to.
+   *
+   * @return the snapshot
+   */
+  public CorpusSnapshot getSnapshot()
+  {
+    return snapshot;
+  }
+
+
+  /**
+   * Returns whether weighted picks use popularity scores.
+   *
+   * @return whether the sampler was built with scores
+   */
+  public boolean isWeighted()
+  {
+    return (all.prob != null);
+  }
+
+
+  /**
+   * Pick a quotation from the whole corpus.
+   *
+   * @param rnd the source of random numbers
+   * @param bWeighted whether to weight the pick by popularity;
+   *                  ignored if the sampler has no scores
+   * @return the position of the quotation, or -1 if the corpus
+   *         is empty
+   */
+  public int pick(final Random rnd, final boolean bWeighted)
+  {
+    return all.pick(0, rnd.nextLong(), bWeighted);
+  }
+
+
+  /**
+   * Pick a quotation on a topic.
+   *
+   * @param topic the topic, in any case
+   * @param rnd the source of random numbers
+   * @param bWeighted whether to weight the pick by popularity;
+   *                  ignored if the sampler has no scores
+   * @return the position of the quotation, or -1 if there's no
+   *         such topic
+   */
+  public int pickByTopic(final String topic,
+                         final Random rnd,
+                         final boolean bWeighted)
+  {
+    return topics.pick(topics.find(topic), rnd.nextLong(), bWeighted);
+  }
+
+
+  /**
+   * Pick a quotation by an author.
+   *
+   * @param author the full name of the author, in any case
+   * @param rnd the source of random numbers
+   * @param bWeighted whether to weight the pick by popularity;
+   *                  ignored if the sampler has no scores
+   * @return the position of the quotation, or -1 if there's no
+   *         such author
+   */
+  public int pickByAuthor(final String author,
+                          final Random rnd,
+                          final boolean bWeighted)
+  {
+    return authors.pick(authors.find(author), rnd.nextLong(), bWeighted);
+  }
+
+
+  /**
+   * Pick the quotation of the day.  The same date always gives
+   * the same quotation, as long as the corpus doesn't change.
+   *
+   * @param nDate the date, as a number of the form yyyymmdd
+   * @param bWeighted whether to weight the pick by popularity;
+   *                  ignored if the sampler has no scores
+   * @return the position of the quotation, or -1 if the corpus
+   *         is empty
+   */
+  public int pickForDay(final int nDate, final boolean bWeighted)
+  {
+    return all.pick(0, mix(nDate), bWeighted);
+  }
+
+
+  /**
+   * Scramble the bits of a number (the finalizer of SplitMix64),
+   * so nearby dates give unrelated picks.
+   *
+   * @param nValue the number
+   * @return the scrambled bits
+   */
+  private static long mix(final long nValue)
+  {
+    long z = nValue + 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+
+  /**
+   * Fold the case of a character the way String.equalsIgnoreCase
+   * compares them.
+   *
+   * @param ch the character
+   * @return the folded character
+   */
+  private static char fold(final char ch)
+  {
+    return Character.toLowerCase(Character.toUpperCase(ch));
+  }
+
+
+  /**
+   * Fold the case of a string.
+   *
+   * @param str the string
+   * @return the folded string
+   */
+  private static String fold(final String str)
+  {
+    final int len = str.length();
+    char[] chars = new char[len];
+    for (int i = 0; i < len; ++i)
+    {
+      chars[i] = fold(str.charAt(i));
+    }
+
+    return new String(chars);
+  }
+
+
+  /**
+   * Get the hash of a string as if it were folded, without
+   * folding it.
+   *
+   * @param str the string
+   * @param start the index of the first character to hash
+   * @param end the index after the last character to hash
+   * @return the hash
+   */
+  private static int foldedHash(final String str, final int start, final int end)
+  {
+    int h = 0;
+    for (int i = start; i < end; ++i)
+    {
+      h = (31 * h) + fold(str.charAt(i));
+    }
+
+    // Spread the bits, since the table uses the low ones
+    h ^= (h >>> 16);
+    h *= 0x85EBCA6B;
+    return h ^ (h >>> 13);
+  }
+
+
+  /**
+   * The quotations of a set of groups, such as of each topic.
+   * The positions of every group are in one array, each group's
+   * together and in corpus order, with an alias table alongside
+   * them if there are scores.
+   */
+  private static final class Groups
+  {
+    /**
+     * The index in members of the first quotation of each group,
+     * and the end of the last.
+     */
+    private final int[] starts;
+
+    /**
+     * The positions of the quotations of each group.
+     */
+    private final int[] members;
+
+    /**
+     * The chance of keeping each member when it's picked from
+     * its group, or null if there are no scores.
+     */
+    private final float[] prob;
+
+    /**
+     * The member to use instead of each member when it isn't
+     * kept, or null if there are no scores.
+     */
+    private final int[] alias;
+
+    /**
+     * The folded name in each slot of the hash table, or null
+     * if the slot is empty.
+     */
+    private final String[] slotNames;
+
+    /**
+     * The number of the group in each slot of the hash table.
+     */
+    private final int[] slotGroups;
+
+
+    /**
+     * Build the groups.
+     *
+     * @param group the number of the group of each position, or
+     *              -1 if it isn't in one
+     * @param numGroups the number of groups
+     * @param groupMap the number of each group by folded name, or
+     *                 null if the groups aren't looked up by name
+     * @param weights the score of each position, or null if there
+     *                are no scores
+     */
+    Groups(final int[] group,
+           final int numGroups,
+           final Map<String, Integer> groupMap,
+           final double[] weights)
+    {
+      super();
+
+      // Count the members of each group, and find where each
+      // group starts
+      starts = new int[numGroups + 1];
+      for (int pos = 0; pos < group.length; ++pos)
+      {
+        if (group[pos] >= 0)
+        {
+          ++starts[group[pos] + 1];
+        }
+      }
+
+      for (int g = 0; g < numGroups; ++g)
+      {
+        starts[g + 1] += starts[g];
+      }
+
+      // Fill in the members, in corpus order
+      members = new int[starts[numGroups]];
+      int[] fill = new int[numGroups];
+      System.arraycopy(starts, 0, fill, 0, numGroups);
+      for (int pos = 0; pos < group.length; ++pos)
+      {
+        if (group[pos] >= 0)
+        {
+          members[fill[group[pos]]++] = pos;
+        }
+      }
+
+      // Build the alias table of each group
+      if (weights == null)
+      {
+        prob = null;
+        alias = null;
+      }
+      else
+      {
+        prob = new float[members.length];
+        alias = new int[members.length];
+        int[] small = new int[members.length];
+        int[] large = new int[members.length];
+        double[] scaled = new double[members.length];
+        for (int g = 0; g < numGroups; ++g)
+        {
+          buildAlias(starts[g], starts[g + 1], weights, small, large, scaled);
+        }
+      }
+
+      // Build the hash table of the names
+      if (groupMap == null)
+      {
+        slotNames = null;
+        slotGroups = null;
+      }
+      else
+      {
+        int capacity = 2;
+        while (capacity < (numGroups * 2))
+        {
+          capacity <<= 1;
+        }
+
+        slotNames = new String[capacity];
+        slotGroups = new int[capacity];
+        final int mask = capacity - 1;
+        for (Map.Entry<String, Integer> entry : groupMap.entrySet())
+        {
+          final String name = entry.getKey();
+          int slot = foldedHash(name, 0, name.length()) & mask;
+          while (slotNames[slot] != null)
+          {
+            slot = (slot + 1) & mask;
+          }
+
+          slotNames[slot] = name;
+          slotGroups[slot] = entry.getValue().intValue();
+        }
+      }
+    }
+
+
+    /**
+     * Build the alias table of one group (Vose's method).  Each
+     * member gets a share of its score, scaled so the average is
+     * 1; members below 1 are topped up from members above it,
+     * which become their alias.
+     *
+     * @param start the index of the group's first member
+     * @param end the index after the group's last member
+     * @param weights the score of each position
+     * @param small room for the members below 1
+     * @param large room for the members above 1
+     * @param scaled room for the scaled scores
+     */
+    private void buildAlias(final int start,
+                            final int end,
+                            final double[] weights,
+                            final int[] small,
+                            final int[] large,
+                            final double[] scaled)
+    {
+      double total = 0.0;
+      for (int i = start; i < end; ++i)
+      {
+        total += weights[members[i]];
+      }
+
+      // Pick uniformly if nothing in the group has a score
+      final int n = end - start;
+      if (!(total > 0.0) || Double.isInfinite(total))
+      {
+        for (int i = start; i < end; ++i)
+        {
+          prob[i] = 1.0f;
+          alias[i] = i;
+        }
+
+        return;
+      }
+
+      int numSmall = 0;
+      int numLarge = 0;
+      for (int i = start; i < end; ++i)
+      {
+        scaled[i] = (weights[members[i]] * n) / total;
+        if (scaled[i] < 1.0)
+        {
+          small[numSmall++] = i;
+        }
+        else
+        {
+          large[numLarge++] = i;
+        }
+      }
+
+      while ((numSmall > 0) && (numLarge > 0))
+      {
+        final int s = small[--numSmall];
+        final int l = large[--numLarge];
+        prob[s] = (float) scaled[s];
+        alias[s] = l;
+        scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+        if (scaled[l] < 1.0)
+        {
+          small[numSmall++] = l;
+        }
+        else
+        {
+          large[numLarge++] = l;
+        }
+      }
+
+      // What's left is 1, give or take rounding
+      while (numLarge > 0)
+      {
+        final int l = large[--numLarge];
+        prob[l] = 1.0f;
+        alias[l] = l;
+      }
+
+      while (numSmall > 0)
+      {
+        final int s = small[--numSmall];
+        prob[s] = 1.0f;
+        alias[s] = s;
+      }
+    }
+
+
+    /**
+     * Find the group with a name, ignoring case and the spaces
+     * at either end.
+     *
+     * @param name the name (may be null)
+     * @return the number of the group, or -1 if there's none
+     */
+    int find(final String name)
+    {
+      if ((name == null) || (slotNames == null))
+      {
+        return -1;
+      }
+
+      // Skip the spaces at either end without trimming, which
+      // could allocate
+      int start = 0;
+      int end = name.length();
+      while ((start < end) && (name.charAt(start) <= ' '))
+      {
+        ++start;
+      }
+
+      while ((end > start) && (name.charAt(end - 1) <= ' '))
+      {
+        --end;
+      }
+
+      final int mask = slotNames.length - 1;
+      int slot = foldedHash(name, start, end) & mask;
+      while (slotNames[slot] != null)
+      {
+        if (matches(slotNames[slot], name, start, end))
+        {
+          return slotGroups[slot];
+        }
+
+        slot = (slot + 1) & mask;
+      }
+
+      return -1;
+    }
+
+
+    /**
+     * Returns whether a folded name matches part of a string,
+     * ignoring case.
+     *
+     * @param folded the folded name
+     * @param str the string
+     * @param start the start of the part
+     * @param end the end of the part
+     * @return whether they match
+     */
+    private static boolean matches(final String folded,
+                                   final String str,
+                                   final int start,
+                                   final int end)
+    {
+      if (folded.length() != (end - start))
+      {
+        return false;
+      }
+
+      for (int i = start; i < end; ++i)
+      {
+        if (folded.charAt(i - start) != fold(str.charAt(i)))
+        {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+
+    /**
+     * Pick a member of a group.  The high 32 bits choose the
+     * member, and the low 24 whether to keep it or use its alias.
+     *
+     * @param nGroup the number of the group, or -1
+     * @param nBits the random bits
+     * @param bWeighted whether to use the alias table
+     * @return the position of the member, or -1 if there's no
+     *         such group or it's empty
+     */
+    int pick(final int nGroup, final long nBits, final boolean bWeighted)
+    {
+      if (nGroup < 0)
+      {
+        return -1;
+      }
+
+      final int start = starts[nGroup];
+      final int n = starts[nGroup + 1] - start;
+      if (n == 0)
+      {
+        return -1;
+      }
+
+      // Scale the bits to the size of the group, without division
+      int i = start + (int) (((nBits >>> 32) * n) >>> 32);
+      if (bWeighted && (prob != null) &&
+          (((nBits & 0xFFFFFFL) * (1.0f / 0x1000000)) >= prob[i]))
+      {
+        i = alias[i];
+      }
+
+      return members[i];
+    }
+  }
+}
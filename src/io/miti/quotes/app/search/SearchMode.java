@@ -0,0 +1,30 @@
+package io.miti.quotes.app.search;
+
+/**
+ * The ways of matching the keyword in a search.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public enum SearchMode
+{
+  /**
+   * The keyword is a regular expression.
+   */
+  REGEX,
+
+  /**
+   * Match words that sound like the keyword.
+   */
+  SOUNDEX,
+
+  /**
+   * The keyword may have '*' and '?' wildcards.
+   */
+  WILDCARD,
+
+  /**
+   * Match text containing every word or quoted phrase in the keyword.
+   */
+  CONTAINS;
+}
@@ -0,0 +1,564 @@
+package io.miti.quotes.app.search;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.miti.quotes.app.QuotationNode;
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+
+/**
+ * An inverted index of the words in one version of the corpus,
+ * for finding the quotations most like a given one ("more like
+ * this").  Each quotation is a sparse TF-IDF vector of the words
+ * in its text and topic, and quotations are ranked by the cosine
+ * of their vector with the given quotation's.
+ *
+ * The index lists, for each word, the quotations it's in and how
+ * often, in corpus order, plus the length of each quotation's
+ * vector.  A query adds up the scores one word at a time, rarest
+ * word first, into an array with a slot per quotation.  Common
+ * words cost the most and say the least, so words in more than
+ * half of the quotations are skipped, and once enough postings
+ * have been read, the remaining, more common, words are too.
+ *
+ * The index is immutable, and only describes the snapshot it was
+ * built from; the positions it returns are for that snapshot.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class SimilarityIndex
+{
+  /**
+   * The default number of similar quotations to find.
+   */
+  public static final int DEFAULT_COUNT = 20;
+
+  /**
+   * The largest share of the quotations a word may be in and
+   * still be scored.
+   */
+  private static final double MAX_WORD_SHARE = 0.5;
+
+  /**
+   * The number of postings a query reads before it skips the
+   * rest of the words.  The rarest word is always read.
+   */
+  private static final int POSTINGS_BUDGET = 500000;
+
+  /**
+   * The weight of each term frequency, 1 + ln(tf).  Frequencies
+   * are capped at 255.
+   */
+  private static final float[] TF_WEIGHTS = new float[256];
+
+  static
+  {
+    for (int tf = 1; tf < TF_WEIGHTS.length; ++tf)
+    {
+      TF_WEIGHTS[tf] = (float) (1.0 + Math.log(tf));
+    }
+  }
+
+  /**
+   * The snapshot the index was built from.
+   */
+  private final CorpusSnapshot snapshot;
+
+  /**
+   * The number of each word.
+   */
+  private final Map<String, Integer> words;
+
+  /**
+   * The inverse document frequency of each word, ln(N / df).
+   */
+  private final float[] idf;
+
+  /**
+   * The index in postings of the first posting of each word, and
+   * the end of the last.
+   */
+  private final int[] wordStarts;
+
+  /**
+   * The position of the quotation of each posting.
+   */
+  private final int[] postings;
+
+  /**
+   * The number of times the word of each posting is in its
+   * quotation, capped at 255.
+   */
+  private final byte[] frequencies;
+
+  /**
+   * The length of each position's vector, or 0 if it's deleted
+   * or has no words.
+   */
+  private final float[] norms;
+
+
+  /**
+   * Build an index of a snapshot.
+   *
+   * @param pSnapshot the snapshot
+   */
+  public SimilarityIndex(final CorpusSnapshot pSnapshot)
+  {
+    super();
+    snapshot = pSnapshot;
+
+    // Number the words, and list the words of each quotation,
+    // with each word once and its frequency
+    final int size = snapshot.size();
+    words = new HashMap<String, Integer>(4096);
+    int[] docStarts = new int[size + 1];
+    int[] docWords = new int[Math.max(16, size * 8)];
+    byte[] docFreqs = new byte[docWords.length];
+    int[] buffer = new int[64];
+    int numEntries = 0;
+    int numDocs = 0;
+    for (int pos = 0; pos < size; ++pos)
+    {
+      docStarts[pos] = numEntries;
+      if (!snapshot.isLive(pos))
+      {
+        continue;
+      }
+
+      ++numDocs;
+      buffer = getWords(snapshot.getQuote(pos), words, true, buffer);
+      final int count = buffer[0];
+      if (numEntries + count > docWords.length)
+      {
+        final int newLength = Math.max(numEntries + count, docWords.length * 2);
+        docWords = Arrays.copyOf(docWords, newLength);
+        docFreqs = Arrays.copyOf(docFreqs, newLength);
+      }
+
+      numEntries = addCounts(buffer, docWords, docFreqs, numEntries);
+    }
+
+    docStarts[size] = numEntries;
+
+    // Count the quotations each word is in
+    final int numWords = words.size();
+    wordStarts = new int[numWords + 1];
+    for (int e = 0; e < numEntries; ++e)
+    {
+      ++wordStarts[docWords[e] + 1];
+    }
+
+    idf = new float[numWords];
+    for (int w = 0; w < numWords; ++w)
+    {
+      idf[w] = (float) Math.log((double) numDocs / wordStarts[w + 1]);
+      wordStarts[w + 1] += wordStarts[w];
+    }
+
+    // Fill in the postings of each word in corpus order, and find
+    // the length of each vector
+    postings = new int[numEntries];
+    frequencies = new byte[numEntries];
+    norms = new float[size];
+    int[] fill = new int[numWords];
+    System.arraycopy(wordStarts, 0, fill, 0, numWords);
+    for (int pos = 0; pos < size; ++pos)
+    {
+      double sumSquares = 0.0;
+      for (int e = docStarts[pos]; e < docStarts[pos + 1]; ++e)
+      {
+        final int w = docWords[e];
+        final int p = fill[w]++;
+        postings[p] = pos;
+        frequencies[p] = docFreqs[e];
+        final double weight = TF_WEIGHTS[docFreqs[e] & 0xFF] * idf[w];
+        sumSquares += weight * weight;
+      }
+
+      norms[pos] = (float) Math.sqrt(sumSquares);
+    }
+  }
+
+
+  /**
+   * Get the version of the corpus the index was built from.
+   *
+   * @return the version
+   */
+  public long getVersion()
+  {
+    return snapshot.getVersion();
+  }
+
+
+  /**
+   * Get the snapshot the index was built from, which the
+   * positions it returns refer to.
+   *
+   * @return the snapshot
+   */
+  public CorpusSnapshot getSnapshot()
+  {
+    return snapshot;
+  }
+
+
+  /**
+   * Find the quotations most like a quotation.  The quotation
+   * doesn't have to be in the index; words that aren't in the
+   * index are ignored.
+   *
+   * @param quote the quotation
+   * @param nExcludeId the ID of a quotation to leave out, such as
+   *                   the quotation itself, or -1
+   * @param duplicates the clusters of near-duplicates, whose members
+   *                   in the same cluster as the excluded quotation
+   *                   are left out too, or null
+   * @param nCount the most quotations to return
+   * @param scores receives the cosine similarity of each quotation
+   *               returned, if not null; it must have room for
+   *               nCount
+   * @return the positions of the quotations, most similar first
+   */
+  public int[] findSimilar(final QuotationNode quote,
+                           final int nExcludeId,
+                           final NearDuplicates duplicates,
+                           final int nCount,
+                           final float[] scores)
+  {
+    // Weight the words of the quotation, skipping the common ones
+    int[] buffer = getWords(quote, words, false, new int[64]);
+    int[] queryWords = new int[buffer[0]];
+    byte[] queryFreqs = new byte[buffer[0]];
+    int numQuery = addCounts(buffer, queryWords, queryFreqs, 0);
+    final int size = snapshot.size();
+    final int maxPostings = (int) (snapshot.getLiveCount() * MAX_WORD_SHARE);
+    long[] order = new long[numQuery];
+    int numOrdered = 0;
+    for (int q = 0; q < numQuery; ++q)
+    {
+      final int w = queryWords[q];
+      final int df = wordStarts[w + 1] - wordStarts[w];
+      if ((df <= maxPostings) && (df > 0))
+      {
+        order[numOrdered++] = ((long) df << 32) | q;
+      }
+    }
+
+    // Add up the scores, rarest word first, until the budget of
+    // postings is spent
+    Arrays.sort(order, 0, numOrdered);
+    float[] acc = new float[size];
+    int[] touched = new int[64];
+    int numTouched = 0;
+    int postingsRead = 0;
+    for (int o = 0; o < numOrdered; ++o)
+    {
+      final int q = (int) order[o];
+      final int w = queryWords[q];
+      final int start = wordStarts[w];
+      final int end = wordStarts[w + 1];
+      if ((o > 0) && (postingsRead + (end - start) > POSTINGS_BUDGET))
+      {
+        break;
+      }
+
+      postingsRead += end - start;
+      final float idfW = idf[w];
+      final float queryWeight = TF_WEIGHTS[queryFreqs[q] & 0xFF] * idfW;
+      final float factor = queryWeight * idfW;
+      for (int p = start; p < end; ++p)
+      {
+        final int pos = postings[p];
+        if (acc[pos] == 0.0f)
+        {
+          if (numTouched == touched.length)
+          {
+            touched = Arrays.copyOf(touched, numTouched * 2);
+          }
+
+          touched[numTouched++] = pos;
+        }
+
+        acc[pos] += factor * TF_WEIGHTS[frequencies[p] & 0xFF];
+      }
+    }
+
+    // Find the length of the query vector, for the cosine
+    double sumSquares = 0.0;
+    for (int q = 0; q < numQuery; ++q)
+    {
+      final double weight = TF_WEIGHTS[queryFreqs[q] & 0xFF] * idf[queryWords[q]];
+      sumSquares += weight * weight;
+    }
+
+    final float queryNorm = (float) Math.sqrt(sumSquares);
+
+    // Keep the best in a min-heap
+    final int nExcludeCluster = (((duplicates == null) || (nExcludeId < 0)) ? -1
+                                 : duplicates.getCluster(nExcludeId));
+    int[] heap = new int[Math.max(0, nCount)];
+    float[] heapScores = new float[heap.length];
+    int heapSize = 0;
+    for (int t = 0; (t < numTouched) && (heap.length > 0); ++t)
+    {
+      final int pos = touched[t];
+      final float score = acc[pos] / norms[pos];
+      if ((heapSize == heap.length) && (score <= heapScores[0]))
+      {
+        continue;
+      }
+
+      final int id = snapshot.getId(pos);
+      if ((id == nExcludeId) ||
+          ((nExcludeCluster >= 0) && (duplicates.getCluster(id) == nExcludeCluster)))
+      {
+        continue;
+      }
+
+      if (heapSize < heap.length)
+      {
+        heap[heapSize] = pos;
+        heapScores[heapSize] = score;
+        siftUp(heap, heapScores, heapSize++);
+      }
+      else
+      {
+        heap[0] = pos;
+        heapScores[0] = score;
+        siftDown(heap, heapScores, heapSize);
+      }
+    }
+
+    // Take them out of the heap, best last
+    int[] result = new int[heapSize];
+    for (int i = heapSize - 1; i >= 0; --i)
+    {
+      result[i] = heap[0];
+      if (scores != null)
+      {
+        scores[i] = ((queryNorm > 0.0f) ? Math.min(1.0f, heapScores[0] / queryNorm)
+                                         : 0.0f);
+      }
+
+      heap[0] = heap[i];
+      heapScores[0] = heapScores[i];
+      siftDown(heap, heapScores, i);
+    }
+
+    return result;
+  }
+
+
+  /**
+   * Move the last entry of a min-heap up to its place.
+   *
+   * @param heap the positions
+   * @param heapScores the scores
+   * @param nIndex the index of the entry
+   */
+  private static void siftUp(final int[] heap, final float[] heapScores,
+                             final int nIndex)
+  {
+    int i = nIndex;
+    while (i > 0)
+    {
+      final int parent = (i - 1) >> 1;
+      if (heapScores[parent] <= heapScores[i])
+      {
+        break;
+      }
+
+      swap(heap, heapScores, i, parent);
+      i = parent;
+    }
+  }
+
+
+  /**
+   * Move the first entry of a min-heap down to its place.
+   *
+   * @param heap the positions
+   * @param heapScores the scores
+   * @param nSize the number of entries in the heap
+   */
+  private static void siftDown(final int[] heap, final float[] heapScores,
+                               final int nSize)
+  {
+    int i = 0;
+    while (true)
+    {
+      final int left = (2 * i) + 1;
+      if (left >= nSize)
+      {
+        break;
+      }
+
+      final int right = left + 1;
+      final int child = (((right < nSize) && (heapScores[right] < heapScores[left]))
+                         ? right : left);
+      if (heapScores[i] <= heapScores[child])
+      {
+        break;
+      }
+
+      swap(heap, heapScores, i, child);
+      i = child;
+    }
+  }
+
+
+  /**
+   * Swap two entries of a heap.
+   *
+   * @param heap the positions
+   * @param heapScores the scores
+   * @param i the index of one entry
+   * @param j the index of the other
+   */
+  private static void swap(final int[] heap, final float[] heapScores,
+                           final int i, final int j)
+  {
+    final int pos = heap[i];
+    heap[i] = heap[j];
+    heap[j] = pos;
+    final float score = heapScores[i];
+    heapScores[i] = heapScores[j];
+    heapScores[j] = score;
+  }
+
+
+  /**
+   * Add the distinct words in a list to arrays of words and
+   * frequencies.
+   *
+   * @param buffer the numbers of the words, with the count at
+   *               index 0; it's sorted
+   * @param outWords the array of words to add to
+   * @param outFreqs the array of frequencies to add to
+   * @param nStart the index to add them at
+   * @return the index after the last one added
+   */
+  private static int addCounts(final int[] buffer,
+                               final int[] outWords,
+                               final byte[] outFreqs,
+                               final int nStart)
+  {
+    final int count = buffer[0];
+    Arrays.sort(buffer, 1, count + 1);
+    int n = nStart;
+    int i = 1;
+    while (i <= count)
+    {
+      int j = i + 1;
+      while ((j <= count) && (buffer[j] == buffer[i]))
+      {
+        ++j;
+      }
+
+      outWords[n] = buffer[i];
+      outFreqs[n] = (byte) Math.min(255, j - i);
+      ++n;
+      i = j;
+    }
+
+    return n;
+  }
+
+
+  /**
+   * Get the numbers of the words in the text and topic of a
+   * quotation.  A word is a run of letters, digits and
+   * apostrophes, lowercase, without any apostrophes at either end,
+   * as in the spelling dictionary.
+   *
+   * @param quote the quotation
+   * @param wordMap the number of each word
+   * @param bAdd whether to number new words; if not, they're skipped
+   * @param buffer the array to fill, if it's big enough
+   * @return the array, with the number of words at index 0 and
+   *         their numbers after it
+   */
+  private static int[] getWords(final QuotationNode quote,
+                                final Map<String, Integer> wordMap,
+                                final boolean bAdd,
+                                final int[] buffer)
+  {
+    int[] result = addWords(quote.getQuotation(), wordMap, bAdd, buffer, 0);
+    return addWords(quote.getTopic(), wordMap, bAdd, result, result[0]);
+  }
+
+
+  /**
+   * Add the numbers of the words in some text to an array.
+   *
+   * @param text the text (may be null)
+   * @param wordMap the number of each word
+   * @param bAdd whether to number new words
+   * @param buffer the array to fill, if it's big enough
+   * @param nCount the number of words already in the array
+   * @return the array, with the number of words at index 0
+   */
+  private static int[] addWords(final String text,
+                                final Map<String, Integer> wordMap,
+                                final boolean bAdd,
+                                final int[] buffer,
+                                final int nCount)
+  {
+    int[] result = buffer;
+    int count = nCount;
+    final String lower = ((text == null) ? "" : text.toLowerCase());
+    final int len = lower.length();
+    int i = 0;
+    while (i < len)
+    {
+      // Find the next word
+      while ((i < len) && !Character.isLetterOrDigit(lower.charAt(i)))
+      {
+        ++i;
+      }
+
+      int end = i;
+      while ((end < len) && (Character.isLetterOrDigit(lower.charAt(end)) ||
+                             (lower.charAt(end) == '\'')))
+      {
+        ++end;
+      }
+
+      int wordEnd = end;
+      while ((wordEnd > i) && (lower.charAt(wordEnd - 1) == '\''))
+      {
+        --wordEnd;
+      }
+
+      if (wordEnd > i)
+      {
+        final String word = lower.substring(i, wordEnd);
+        Integer number = wordMap.get(word);
+        if ((number == null) && bAdd)
+        {
+          number = Integer.valueOf(wordMap.size());
+          wordMap.put(word, number);
+        }
+
+        if (number != null)
+        {
+          if (count + 1 == result.length)
+          {
+            result = Arrays.copyOf(result, result.length * 2);
+          }
+
+          result[++count] = number.intValue();
+        }
+      }
+
+      i = end;
+    }
+
+    result[0] = count;
+    return result;
+  }
+}
@@ -0,0 +1,412 @@
+package io.miti.quotes.app.search;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Suggests corrections for misspelled words, using the words of
+ * the corpus as the dictionary.  It uses symmetric deletion
+ * (SymSpell): each dictionary word is stored under every string
+ * made by deleting up to the maximum edit distance of characters
+ * from its prefix, and a misspelled word is looked up under its
+ * own deletions.  Any word within the edit distance shares at
+ * least one deletion with it, so only a handful of words need
+ * their distance checked, instead of the whole dictionary.
+ *
+ * The deletions are stored only as hashes, in one sorted array;
+ * a hash collision just adds a word to check.  The index is
+ * immutable once built.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class SpellingIndex
+{
+  /**
+   * The default maximum edit distance.
+   */
+  public static final int DEFAULT_MAX_DISTANCE = 2;
+
+  /**
+   * The default number of leading characters that deletions are
+   * made from.  Longer words are matched on their prefix, which
+   * keeps the index small.
+   */
+  public static final int DEFAULT_PREFIX_LENGTH = 7;
+
+  /**
+   * The words.
+   */
+  private final String[] words;
+
+  /**
+   * The number of times each word occurs.
+   */
+  private final int[] counts;
+
+  /**
+   * The index of each word.
+   */
+  private final Map<String, Integer> wordIndex;
+
+  /**
+   * The maximum edit distance.
+   */
+  private final int maxDistance;
+
+  /**
+   * The length of the prefix that deletions are made from.
+   */
+  private final int prefixLength;
+
+  /**
+   * The length of the longest word.
+   */
+  private final int maxWordLength;
+
+  /**
+   * Each deletion, as its hash in the high 32 bits and the index
+   * of the word in the low 32 bits, sorted.
+   */
+  private final long[] deletions;
+
+
+  /**
+   * Build an index.
+   *
+   * @param wordCounts the words, lowercase, and how often each occurs
+   * @param nMaxDistance the maximum edit distance
+   * @param nPrefixLength the length of the prefix to make deletions from
+   */
+  public SpellingIndex(final Map<String, Integer> wordCounts,
+                       final int nMaxDistance,
+                       final int nPrefixLength)
+  {
+    super();
+    maxDistance = Math.max(1, nMaxDistance);
+    prefixLength = Math.max(maxDistance + 1, nPrefixLength);
+
+    // Save the words
+    final int numWords = wordCounts.size();
+    words = new String[numWords];
+    counts = new int[numWords];
+    wordIndex = new HashMap<String, Integer>(numWords * 2);
+    int maxLen = 0;
+    int w = 0;
+    for (Map.Entry<String, Integer> entry : wordCounts.entrySet())
+    {
+      words[w] = entry.getKey();
+      counts[w] = entry.getValue().intValue();
+      wordIndex.put(words[w], Integer.valueOf(w));
+      maxLen = Math.max(maxLen, words[w].length());
+      ++w;
+    }
+
+    maxWordLength = maxLen;
+
+    // Store the deletions of each word's prefix
+    long[] entries = new long[Math.max(16, numWords * 8)];
+    int numEntries = 0;
+    Set<String> variants = new HashSet<String>(64);
+    for (w = 0; w < numWords; ++w)
+    {
+      variants.clear();
+      addDeletions(prefix(words[w]), maxDistance, variants);
+      for (String variant : variants)
+      {
+        if (numEntries == entries.length)
+        {
+          long[] newEntries = new long[numEntries * 2];
+          System.arraycopy(entries, 0, newEntries, 0, numEntries);
+          entries = newEntries;
+        }
+
+        entries[numEntries++] = (((long) variant.hashCode()) << 32) | w;
+      }
+    }
+
+    deletions = new long[numEntries];
+    System.arraycopy(entries, 0, deletions, 0, numEntries);
+    Arrays.sort(deletions);
+  }
+
+
+  /**
+   * Get the number of words.
+   *
+   * @return the number of words
+   */
+  public int size()
+  {
+    return words.length;
+  }
+
+
+  /**
+   * Returns whether a word is in the dictionary.
+   *
+   * @param word the word, lowercase
+   * @return whether it's known
+   */
+  public boolean contains(final String word)
+  {
+    return wordIndex.containsKey(word);
+  }
+
+
+  /**
+   * Find the best correction of a word: the known word with the
+   * smallest edit distance, and of those the most frequent.
+   *
+   * @param word the word, lowercase
+   * @return the word itself if it's known, the correction, or null
+   *         if there's none within the maximum distance
+   */
+  public String suggest(final String word)
+  {
+    if (wordIndex.containsKey(word))
+    {
+      return word;
+    }
+
+    final int len = word.length();
+    if ((len == 0) || (len - maxDistance > maxWordLength))
+    {
+      return null;
+    }
+
+    // Look up each deletion of the word's prefix
+    final String prefix = prefix(word);
+    Set<String> variants = new HashSet<String>(64);
+    addDeletions(prefix, maxDistance, variants);
+
+    Set<Integer> checked = new HashSet<Integer>(64);
+    int best = -1;
+    int bestDistance = maxDistance;
+    for (String variant : variants)
+    {
+      final long hash = variant.hashCode();
+      int i = findFirst(hash);
+      for ( ; (i < deletions.length) && ((deletions[i] >> 32) == hash); ++i)
+      {
+        final int w = (int) deletions[i];
+        if (!checked.add(Integer.valueOf(w)) ||
+            (Math.abs(words[w].length() - len) > maxDistance))
+        {
+          continue;
+        }
+
+        // Anything further than the best so far is capped
+        final int distance = distance(word, words[w], bestDistance + 1);
+        if (distance > bestDistance)
+        {
+          continue;
+        }
+
+        if ((best < 0) || (distance < bestDistance) ||
+            (counts[w] > counts[best]))
+        {
+          best = w;
+          bestDistance = distance;
+        }
+      }
+    }
+
+    return ((best < 0) ? null : words[best]);
+  }
+
+
+  /**
+   * Correct each unknown word in a search string.  Quoted text
+   * and words too short to correct are left as they are.
+   *
+   * @param text the search string, lowercase, with single spaces
+   * @return the corrected string, or null if nothing was corrected
+   */
+  public String correct(final String text)
+  {
+    if ((text == null) || (text.indexOf('"') >= 0))
+    {
+      return null;
+    }
+
+    final String[] parts = text.split(" ");
+    StringBuilder sb = new StringBuilder(text.length() + 8);
+    boolean changed = false;
+    for (int i = 0; i < parts.length; ++i)
+    {
+      String part = parts[i];
+      if ((part.length() > maxDistance) && isWord(part) &&
+          !wordIndex.containsKey(part))
+      {
+        final String suggestion = suggest(part);
+        if (suggestion != null)
+        {
+          part = suggestion;
+          changed = true;
+        }
+      }
+
+      if (i > 0)
+      {
+        sb.append(' ');
+      }
+
+      sb.append(part);
+    }
+
+    return (changed ? sb.toString() : null);
+  }
+
+
+  /**
+   * Returns whether a string is a word: letters, digits and
+   * apostrophes.
+   *
+   * @param str the string
+   * @return whether it's a word
+   */
+  public static boolean isWord(final String str)
+  {
+    final int len = str.length();
+    for (int i = 0; i < len; ++i)
+    {
+      final char c = str.charAt(i);
+      if (!Character.isLetterOrDigit(c) && (c != '\''))
+      {
+        return false;
+      }
+    }
+
+    return (len > 0);
+  }
+
+
+  /**
+   * Get the part of a word that deletions are made from.
+   *
+   * @param word the word
+   * @return the prefix
+   */
+  private String prefix(final String word)
+  {
+    return ((word.length() <= prefixLength) ? word :
+            word.substring(0, prefixLength));
+  }
+
+
+  /**
+   * Add a string and every string made by deleting up to a
+   * number of its characters.
+   *
+   * @param str the string
+   * @param depth the number of characters that may be deleted
+   * @param variants the set to add to
+   */
+  private static void addDeletions(final String str, final int depth,
+                                   final Set<String> variants)
+  {
+    variants.add(str);
+    if (depth == 0)
+    {
+      return;
+    }
+
+    final int len = str.length();
+    for (int i = 0; i < len; ++i)
+    {
+      final String deleted = str.substring(0, i) + str.substring(i + 1);
+      addDeletions(deleted, depth - 1, variants);
+    }
+  }
+
+
+  /**
+   * Find the first deletion with a hash.
+   *
+   * @param hash the hash
+   * @return the index of the first entry with the hash, or where
+   *         it would be
+   */
+  private int findFirst(final long hash)
+  {
+    int low = 0;
+    int high = deletions.length;
+    while (low < high)
+    {
+      final int mid = (low + high) >>> 1;
+      if ((deletions[mid] >> 32) < hash)
+      {
+        low = mid + 1;
+      }
+      else
+      {
+        high = mid;
+      }
+    }
+
+    return low;
+  }
+
+
+  /**
+   * Get the edit distance between two strings, counting an
+   * insertion, deletion, substitution or swap of two adjacent
+   * characters as one edit.
+   *
+   * @param s1 the first string
+   * @param s2 the second string
+   * @param limit stop once the distance is known to be at least this
+   * @return the distance, or the limit if it's at least that
+   */
+  static int distance(final String s1, final String s2, final int limit)
+  {
+    final int n = s1.length();
+    final int m = s2.length();
+    int[] prev2 = new int[m + 1];
+    int[] prev = new int[m + 1];
+    int[] curr = new int[m + 1];
+    for (int j = 0; j <= m; ++j)
+    {
+      prev[j] = j;
+    }
+
+    for (int i = 1; i <= n; ++i)
+    {
+      curr[0] = i;
+      int rowMin = curr[0];
+      final char c1 = s1.charAt(i - 1);
+      for (int j = 1; j <= m; ++j)
+      {
+        final char c2 = s2.charAt(j - 1);
+        final int cost = ((c1 == c2) ? 0 : 1);
+        int d = Math.min(Math.min(prev[j] + 1, curr[j - 1] + 1),
+                         prev[j - 1] + cost);
+        if ((i > 1) && (j > 1) && (c1 == s2.charAt(j - 2)) &&
+            (s1.charAt(i - 2) == c2))
+        {
+          d = Math.min(d, prev2[j - 2] + 1);
+        }
+
+        curr[j] = d;
+        rowMin = Math.min(rowMin, d);
+      }
+
+      // Stop early if every path is already too long
+      if (rowMin >= limit)
+      {
+        return limit;
+      }
+
+      int[] tmp = prev2;
+      prev2 = prev;
+      prev = curr;
+      curr = tmp;
+    }
+
+    return Math.min(prev[m], limit);
+  }
+}
@@ -0,0 +1,374 @@
+package io.miti.quotes.app.search;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.miti.quotes.app.QuotationNode;
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.filter.TermFilter;
+
+/**
+ * An index of the distinct authors, topics and words in one
+ * version of the corpus.  It completes author names and topics as
+ * they're typed, suggests corrections for misspelled search
+ * terms, and lists the positions of each author's quotations, so
+ * an author search can check the distinct names instead of every
+ * quotation.
+ *
+ * The index is immutable, and only describes the snapshot it was
+ * built from; callers should compare versions before using the
+ * positions.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class SuggestionIndex
+{
+  /**
+   * The version of the corpus the index was built from.
+   */
+  private final long version;
+
+  /**
+   * The size of the snapshot the index was built from.
+   */
+  private final int corpusSize;
+
+  /**
+   * The trie of author names.
+   */
+  private final CompletionTrie authors;
+
+  /**
+   * The trie of topics.
+   */
+  private final CompletionTrie topics;
+
+  /**
+   * The positions of the quotations of each author, in the same
+   * order as the author trie, sorted.
+   */
+  private final int[][] authorPositions;
+
+  /**
+   * The dictionary of words in the quotations and topics.
+   */
+  private final SpellingIndex spelling;
+
+
+  /**
+   * Build an index of a snapshot.
+   *
+   * @param snapshot the snapshot
+   */
+  public SuggestionIndex(final CorpusSnapshot snapshot)
+  {
+    super();
+    version = snapshot.getVersion();
+    corpusSize = snapshot.size();
+
+    // Gather the positions of each author, and count the topics
+    Map<String, PositionList> authorMap = new HashMap<String, PositionList>(1024);
+    Map<String, int[]> topicMap = new HashMap<String, int[]>(1024);
+    Map<String, int[]> wordMap = new HashMap<String, int[]>(4096);
+    for (int pos = 0; pos < corpusSize; ++pos)
+    {
+      if (!snapshot.isLive(pos))
+      {
+        continue;
+      }
+
+      final QuotationNode quote = snapshot.getQuote(pos);
+      final String name = quote.getName();
+      PositionList list = authorMap.get(name);
+      if (list == null)
+      {
+        list = new PositionList();
+        authorMap.put(name, list);
+      }
+
+      list.add(pos);
+
+      // Count the words that keyword searches look at
+      addWords(quote.getQuotation(), wordMap);
+      addWords(quote.getTopic(), wordMap);
+
+      final String topic = quote.getTopic();
+      if ((topic != null) && (topic.trim().length() > 0))
+      {
+        int[] count = topicMap.get(topic);
+        if (count == null)
+        {
+          count = new int[1];
+          topicMap.put(topic, count);
+        }
+
+        ++count[0];
+      }
+    }
+
+    // Build the author trie and position lists
+    final int numAuthors = authorMap.size();
+    String[] names = new String[numAuthors];
+    int[] nameCounts = new int[numAuthors];
+    authorPositions = new int[numAuthors][];
+    int i = 0;
+    for (Map.Entry<String, PositionList> entry : authorMap.entrySet())
+    {
+      names[i] = entry.getKey();
+      authorPositions[i] = entry.getValue().toArray();
+      nameCounts[i] = authorPositions[i].length;
+      ++i;
+    }
+
+    authors = new CompletionTrie(names, nameCounts,
+                                 CompletionTrie.DEFAULT_TOP_K);
+
+    // Build the topic trie
+    String[] topicNames = new String[topicMap.size()];
+    int[] topicCounts = new int[topicNames.length];
+    i = 0;
+    for (Map.Entry<String, int[]> entry : topicMap.entrySet())
+    {
+      topicNames[i] = entry.getKey();
+      topicCounts[i] = entry.getValue()[0];
+      ++i;
+    }
+
+    topics = new CompletionTrie(topicNames, topicCounts,
+                                CompletionTrie.DEFAULT_TOP_K);
+
+    // Build the dictionary
+    Map<String, Integer> wordCounts = new HashMap<String, Integer>(wordMap.size() * 2);
+    for (Map.Entry<String, int[]> entry : wordMap.entrySet())
+    {
+      wordCounts.put(entry.getKey(), Integer.valueOf(entry.getValue()[0]));
+    }
+
+    spelling = new SpellingIndex(wordCounts, SpellingIndex.DEFAULT_MAX_DISTANCE,
+                                 SpellingIndex.DEFAULT_PREFIX_LENGTH);
+  }
+
+
+  /**
+   * Get the version of the corpus the index was built from.
+   *
+   * @return the version
+   */
+  public long getVersion()
+  {
+    return version;
+  }
+
+
+  /**
+   * Get the trie of author names.
+   *
+   * @return the authors
+   */
+  public CompletionTrie getAuthors()
+  {
+    return authors;
+  }
+
+
+  /**
+   * Get the trie of topics.
+   *
+   * @return the topics
+   */
+  public CompletionTrie getTopics()
+  {
+    return topics;
+  }
+
+
+  /**
+   * Get the dictionary of words in the quotations and topics.
+   *
+   * @return the dictionary
+   */
+  public SpellingIndex getSpelling()
+  {
+    return spelling;
+  }
+
+
+  /**
+   * Get the positions of an author's quotations.
+   *
+   * @param nAuthor the index of the author in the author trie
+   * @return the positions, sorted (not a copy)
+   */
+  public int[] getAuthorPositions(final int nAuthor)
+  {
+    return authorPositions[nAuthor];
+  }
+
+
+  /**
+   * Get the positions of the quotations whose author matches a
+   * filter, by checking each distinct author once.  If the
+   * matching authors have more than a given share of the corpus,
+   * scanning would be as fast, so null is returned instead.
+   *
+   * @param filter the author filter
+   * @param maxShare the largest share of the corpus worth
+   *                 returning, from 0 to 1
+   * @return the sorted positions, or null if there are too many
+   */
+  public int[] findAuthorPositions(final TermFilter filter,
+                                   final double maxShare)
+  {
+    final int maxCount = (int) (corpusSize * maxShare);
+    final int numAuthors = authors.size();
+    int[] matches = new int[numAuthors];
+    int numMatches = 0;
+    int total = 0;
+    for (int a = 0; a < numAuthors; ++a)
+    {
+      if (filter.accept(authors.getTerm(a)))
+      {
+        matches[numMatches++] = a;
+        total += authorPositions[a].length;
+        if (total > maxCount)
+        {
+          return null;
+        }
+      }
+    }
+
+    // Merge the position lists
+    int[] positions = new int[total];
+    int n = 0;
+    for (int m = 0; m < numMatches; ++m)
+    {
+      final int[] list = authorPositions[matches[m]];
+      System.arraycopy(list, 0, positions, n, list.length);
+      n += list.length;
+    }
+
+    if (numMatches > 1)
+    {
+      Arrays.sort(positions);
+    }
+
+    return positions;
+  }
+
+
+  /**
+   * Count the words in some text, lowercase.  A word is a run of
+   * letters, digits and apostrophes, without any apostrophes at
+   * either end.
+   *
+   * @param text the text (may be null)
+   * @param wordMap the count of each word
+   */
+  private static void addWords(final String text,
+                               final Map<String, int[]> wordMap)
+  {
+    if (text == null)
+    {
+      return;
+    }
+
+    final String lower = text.toLowerCase();
+    final int len = lower.length();
+    int i = 0;
+    while (i < len)
+    {
+      // Find the next word
+      while ((i < len) && !Character.isLetterOrDigit(lower.charAt(i)))
+      {
+        ++i;
+      }
+
+      int end = i;
+      while ((end < len) && (Character.isLetterOrDigit(lower.charAt(end)) ||
+                             (lower.charAt(end) == '\'')))
+      {
+        ++end;
+      }
+
+      int wordEnd = end;
+      while ((wordEnd > i) && (lower.charAt(wordEnd - 1) == '\''))
+      {
+        --wordEnd;
+      }
+
+      if (wordEnd > i)
+      {
+        final String word = lower.substring(i, wordEnd);
+        int[] count = wordMap.get(word);
+        if (count == null)
+        {
+          count = new int[1];
+          wordMap.put(word, count);
+        }
+
+        ++count[0];
+      }
+
+      i = end;
+    }
+  }
+
+
+  /**
+   * A growable list of positions.
+   */
+  private static final class PositionList
+  {
+    /**
+     * The positions.
+     */
+    private int[] positions = new int[4];
+
+    /**
+     * The number of positions.
+     */
+    private int size = 0;
+
+
+    /**
+     * Create an empty list.
+     */
+    PositionList()
+    {
+      super();
+    }
+
+
+    /**
+     * Add a position.
+     *
+     * @param nPos the position
+     */
+    void add(final int nPos)
+    {
+      if (size == positions.length)
+      {
+        int[] newPositions = new int[size * 2];
+        System.arraycopy(positions, 0, newPositions, 0, size);
+        positions = newPositions;
+      }
+
+      positions[size++] = nPos;
+    }
+
+
+    /**
+     * Get the positions as an array.
+     *
+     * @return a new array of the positions
+     */
+    int[] toArray()
+    {
+      int[] result = new int[size];
+      System.arraycopy(positions, 0, result, 0, size);
+      return result;
+    }
+  }
+}
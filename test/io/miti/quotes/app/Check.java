@@ -0,0 +1,138 @@
+package io.miti.quotes.app;
+
+import java.io.File;
+
+/**
+ * The checks used by the tests.  Each test class is a program
+ * that runs its checks, then calls done(), which prints a summary
+ * and exits with a non-zero status if any check failed, so the
+ * Ant test target stops.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class Check
+{
+  /**
+   * The number of checks run.
+   */
+  private static int checks = 0;
+
+  /**
+   * The number of checks that failed.
+   */
+  private static int failures = 0;
+
+
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private Check()
+  {
+    super();
+  }
+
+
+  /**
+   * Check that a condition holds.
+   *
+   * @param what what's being checked
+   * @param condition the condition
+   */
+  public static void isTrue(final String what, final boolean condition)
+  {
+    ++checks;
+    if (!condition)
+    {
+      ++failures;
+      System.err.println("FAILED: " + what);
+    }
+  }
+
+
+  /**
+   * Check that a value is what's expected.
+   *
+   * @param what what's being checked
+   * @param expected the expected value (may be null)
+   * @param actual the actual value (may be null)
+   */
+  public static void equal(final String what,
+                           final Object expected,
+                           final Object actual)
+  {
+    ++checks;
+    final boolean same = ((expected == null) ? (actual == null)
+                          : expected.equals(actual));
+    if (!same)
+    {
+      ++failures;
+      System.err.println("FAILED: " + what + ": expected <" + expected +
+                         "> but was <" + actual + ">");
+    }
+  }
+
+
+  /**
+   * Create an empty directory for a test's files.
+   *
+   * @param name the name of the test
+   * @return the directory
+   */
+  public static File createTempDir(final String name)
+  {
+    File dir = new File(System.getProperty("java.io.tmpdir"),
+                        name + "-" + System.nanoTime());
+    if (!dir.mkdirs())
+    {
+      throw new IllegalStateException("Unable to create " + dir);
+    }
+
+    return dir;
+  }
+
+
+  /**
+   * Delete a directory and everything in it.
+   *
+   * @param dir the directory
+   */
+  public static void deleteDir(final File dir)
+  {
+    final File[] files = dir.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        if (file.isDirectory())
+        {
+          deleteDir(file);
+        }
+        else
+        {
+          file.delete();
+        }
+      }
+    }
+
+    dir.delete();
+  }
+
+
+  /**
+   * Print how many checks failed, and exit with a non-zero
+   * status if any did.
+   *
+   * @param name the name of the test
+   */
+  public static void done(final String name)
+  {
+    System.out.println(name + ": " + checks + " checks, " +
+                       failures + " failed");
+    if (failures > 0)
+    {
+      System.exit(1);
+    }
+  }
+}
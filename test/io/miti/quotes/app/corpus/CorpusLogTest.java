@@ -0,0 +1,222 @@
+package io.miti.quotes.app.corpus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import io.miti.quotes.app.Check;
+import io.miti.quotes.app.QuotationNode;
+
+/**
+ * Tests that a CorpusLog replays its edits in order, and that a
+ * record cut short or corrupted by a crash is dropped, along with
+ * everything after it, and cut off the end of the file.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class CorpusLogTest
+{
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private CorpusLogTest()
+  {
+    super();
+  }
+
+
+  /**
+   * Run the tests.
+   *
+   * @param args the arguments (unused)
+   * @throws IOException if a log can't be written
+   */
+  public static void main(final String[] args) throws IOException
+  {
+    final File dir = Check.createTempDir("corpus-log-test");
+    try
+    {
+      testReplay(dir);
+      testTornRecord(dir);
+      testCorruptRecord(dir);
+    }
+    finally
+    {
+      Check.deleteDir(dir);
+    }
+
+    Check.done("CorpusLogTest");
+  }
+
+
+  /**
+   * Check that adds, updates and deletes are replayed in order.
+   *
+   * @param dir the directory for the log
+   * @throws IOException if the log can't be written
+   */
+  private static void testReplay(final File dir) throws IOException
+  {
+    final File file = new File(dir, "replay.log");
+    writeLog(file, new byte[][] {
+      CorpusLog.encode(CorpusLog.OP_ADD, 0, makeQuote("first")),
+      CorpusLog.encode(CorpusLog.OP_ADD, 1, makeQuote("second")),
+      CorpusLog.encode(CorpusLog.OP_UPDATE, 0, makeQuote("first, edited")),
+      CorpusLog.encode(CorpusLog.OP_DELETE, 1, null)});
+
+    SegmentedCorpus corpus = new SegmentedCorpus(null);
+    Check.equal("records replayed", Integer.valueOf(4),
+                Integer.valueOf(CorpusLog.replay(file, corpus)));
+
+    final CorpusSnapshot snap = corpus.getSnapshot();
+    Check.equal("live quotations", Integer.valueOf(1),
+                Integer.valueOf(snap.getLiveCount()));
+    Check.equal("updated quotation", "first, edited",
+                snap.findById(0).getQuotation());
+    Check.isTrue("deleted quotation is gone", snap.findById(1) == null);
+    Check.equal("next ID", Integer.valueOf(2),
+                Integer.valueOf(corpus.getNextId()));
+    corpus.shutdown();
+  }
+
+
+  /**
+   * Check that a record cut short at the end of the log is
+   * dropped and cut off, and that the log can be added to again.
+   *
+   * @param dir the directory for the log
+   * @throws IOException if the log can't be written
+   */
+  private static void testTornRecord(final File dir) throws IOException
+  {
+    final File file = new File(dir, "torn.log");
+    writeLog(file, new byte[][] {
+      CorpusLog.encode(CorpusLog.OP_ADD, 0, makeQuote("zero")),
+      CorpusLog.encode(CorpusLog.OP_ADD, 1, makeQuote("one"))});
+    final long goodLength = file.length();
+
+    // Write the start of a third record, as a crash would
+    final byte[] third = CorpusLog.encode(CorpusLog.OP_ADD, 2, makeQuote("two"));
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try
+    {
+      raf.seek(goodLength);
+      raf.write(third, 0, third.length / 2);
+    }
+    finally
+    {
+      raf.close();
+    }
+
+    SegmentedCorpus corpus = new SegmentedCorpus(null);
+    Check.equal("complete records replayed", Integer.valueOf(2),
+                Integer.valueOf(CorpusLog.replay(file, corpus)));
+    Check.equal("partial record cut off", Long.valueOf(goodLength),
+                Long.valueOf(file.length()));
+    Check.isTrue("partial record not applied",
+                 corpus.getSnapshot().findById(2) == null);
+    corpus.shutdown();
+
+    // New records go after the good ones
+    writeLog(file, new byte[][] {
+      CorpusLog.encode(CorpusLog.OP_ADD, 2, makeQuote("two"))});
+    corpus = new SegmentedCorpus(null);
+    Check.equal("records replayed after appending", Integer.valueOf(3),
+                Integer.valueOf(CorpusLog.replay(file, corpus)));
+    Check.equal("appended record", "two",
+                corpus.getSnapshot().findById(2).getQuotation());
+    corpus.shutdown();
+  }
+
+
+  /**
+   * Check that replay stops at a record whose checksum is wrong,
+   * and drops it and everything after it.
+   *
+   * @param dir the directory for the log
+   * @throws IOException if the log can't be written
+   */
+  private static void testCorruptRecord(final File dir) throws IOException
+  {
+    final File file = new File(dir, "corrupt.log");
+    final byte[] first = CorpusLog.encode(CorpusLog.OP_ADD, 0, makeQuote("a"));
+    writeLog(file, new byte[][] {first,
+      CorpusLog.encode(CorpusLog.OP_ADD, 1, makeQuote("b")),
+      CorpusLog.encode(CorpusLog.OP_ADD, 2, makeQuote("c"))});
+
+    // Flip a byte in the payload of the second record, past its
+    // length
+    final long firstLength = first.length;
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try
+    {
+      final long pos = firstLength + 4 + 6;
+      raf.seek(pos);
+      final int b = raf.read();
+      raf.seek(pos);
+      raf.write(b ^ 0x01);
+    }
+    finally
+    {
+      raf.close();
+    }
+
+    SegmentedCorpus corpus = new SegmentedCorpus(null);
+    Check.equal("records before the corrupt one", Integer.valueOf(1),
+                Integer.valueOf(CorpusLog.replay(file, corpus)));
+    Check.equal("corrupt record and the rest cut off",
+                Long.valueOf(firstLength), Long.valueOf(file.length()));
+    Check.isTrue("record after the corrupt one not applied",
+                 corpus.getSnapshot().findById(2) == null);
+    corpus.shutdown();
+  }
+
+
+  /**
+   * Append records to a log file and wait until they're written.
+   *
+   * @param file the log file
+   * @param records the encoded records
+   * @throws IOException if the log can't be written
+   */
+  private static void writeLog(final File file, final byte[][] records)
+    throws IOException
+  {
+    CorpusLog log = new CorpusLog(file);
+    try
+    {
+      long seq = 0L;
+      for (int i = 0; i < records.length; ++i)
+      {
+        seq = log.append(records[i]);
+      }
+
+      log.awaitDurable(seq);
+    }
+    finally
+    {
+      log.close();
+    }
+  }
+
+
+  /**
+   * Make a quotation.
+   *
+   * @param text the text of the quotation
+   * @return the quotation
+   */
+  private static QuotationNode makeQuote(final String text)
+  {
+    QuotationNode quote = new QuotationNode();
+    quote.setFirstName("Mark");
+    quote.setLastName("Twain");
+    quote.setBio("Writer");
+    quote.setSource("Notebook");
+    quote.setTopic("life");
+    quote.setQuotation(text);
+    return quote;
+  }
+}
@@ -0,0 +1,259 @@
+package io.miti.quotes.app.corpus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.miti.quotes.app.Check;
+import io.miti.quotes.app.QuotationNode;
+
+/**
+ * Tests that a CorpusStore gets back every edit after it's
+ * reopened: those in its snapshot, and those only in its logs,
+ * even if the end of the last log was cut short.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class CorpusStoreTest
+{
+  /**
+   * The identity of the data file.
+   */
+  private static final String SOURCE_ID = CorpusStore.getSourceId(100L, 1L);
+
+
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private CorpusStoreTest()
+  {
+    super();
+  }
+
+
+  /**
+   * Run the tests.
+   *
+   * @param args the arguments (unused)
+   * @throws IOException if the store can't be written
+   */
+  public static void main(final String[] args) throws IOException
+  {
+    final File dir = Check.createTempDir("corpus-store-test");
+    try
+    {
+      testCheckpointAndReplay(dir);
+      testTornLog(dir);
+      testNewDataFile(dir);
+    }
+    finally
+    {
+      Check.deleteDir(dir);
+    }
+
+    Check.done("CorpusStoreTest");
+  }
+
+
+  /**
+   * Check that edits before a checkpoint come back from the
+   * snapshot, and those after it from the log.
+   *
+   * @param dir the store directory
+   * @throws IOException if the store can't be written
+   */
+  private static void testCheckpointAndReplay(final File dir)
+    throws IOException
+  {
+    CorpusStore store = CorpusStore.open(dir, SOURCE_ID, makeQuotes(3));
+    Check.equal("first ID added", Integer.valueOf(3),
+                Integer.valueOf(store.add(makeQuote("added before"))));
+    store.checkpoint();
+
+    // Edit after the checkpoint, so these are only in the log
+    Check.isTrue("update", store.update(1, makeQuote("edited after")));
+    Check.isTrue("delete", store.delete(2));
+    Check.equal("second ID added", Integer.valueOf(4),
+                Integer.valueOf(store.add(makeQuote("added after"))));
+    store.close();
+
+    Check.isTrue("snapshot is up to date",
+                 CorpusStore.hasSnapshot(dir, SOURCE_ID));
+    store = CorpusStore.open(dir, SOURCE_ID, (List<QuotationNode>) null);
+    final CorpusSnapshot snap = store.getCorpus().getSnapshot();
+    Check.equal("live quotations", Integer.valueOf(4),
+                Integer.valueOf(snap.getLiveCount()));
+    Check.equal("unchanged quotation", "quote 0",
+                snap.findById(0).getQuotation());
+    Check.equal("bio from the snapshot", "bio 0", snap.findById(0).getBio());
+    Check.equal("source from the snapshot", "source 0",
+                snap.findById(0).getSource());
+    Check.equal("add in the snapshot", "added before",
+                snap.findById(3).getQuotation());
+    Check.equal("update in the log", "edited after",
+                snap.findById(1).getQuotation());
+    Check.isTrue("delete in the log", snap.findById(2) == null);
+    Check.equal("add in the log", "added after",
+                snap.findById(4).getQuotation());
+    Check.equal("IDs carry on", Integer.valueOf(5),
+                Integer.valueOf(store.add(makeQuote("added later"))));
+
+    // A checkpoint leaves only the new log
+    store.checkpoint();
+    Check.equal("logs after a checkpoint", Integer.valueOf(1),
+                Integer.valueOf(countFiles(dir, ".log")));
+    store.close();
+  }
+
+
+  /**
+   * Check that a record cut short at the end of the last log is
+   * dropped, and the edits before it are kept.
+   *
+   * @param dir the store directory
+   * @throws IOException if the store can't be written
+   */
+  private static void testTornLog(final File dir) throws IOException
+  {
+    CorpusStore store = CorpusStore.open(dir, SOURCE_ID,
+                                         (List<QuotationNode>) null);
+    final int nId = store.add(makeQuote("before the crash"));
+    store.close();
+
+    // Add half a record to the end of the log
+    final File log = findFile(dir, ".log");
+    RandomAccessFile raf = new RandomAccessFile(log, "rw");
+    try
+    {
+      raf.seek(raf.length());
+      raf.writeInt(100);
+      raf.write(new byte[20]);
+    }
+    finally
+    {
+      raf.close();
+    }
+
+    store = CorpusStore.open(dir, SOURCE_ID, (List<QuotationNode>) null);
+    Check.equal("edit before the torn record", "before the crash",
+                store.getCorpus().getSnapshot().findById(nId).getQuotation());
+    Check.equal("next ID after the torn record", Integer.valueOf(nId + 1),
+                Integer.valueOf(store.add(makeQuote("after the crash"))));
+    store.close();
+
+    store = CorpusStore.open(dir, SOURCE_ID, (List<QuotationNode>) null);
+    Check.equal("edit after the torn record", "after the crash",
+                store.getCorpus().getSnapshot().findById(nId + 1).getQuotation());
+    store.close();
+  }
+
+
+  /**
+   * Check that a new data file replaces the saved corpus, and the
+   * old snapshot and logs are moved aside rather than replayed.
+   *
+   * @param dir the store directory
+   * @throws IOException if the store can't be written
+   */
+  private static void testNewDataFile(final File dir) throws IOException
+  {
+    final String newSourceId = CorpusStore.getSourceId(200L, 2L);
+    Check.isTrue("old snapshot is out of date",
+                 !CorpusStore.hasSnapshot(dir, newSourceId));
+
+    CorpusStore store = CorpusStore.open(dir, newSourceId, makeQuotes(2));
+    final CorpusSnapshot snap = store.getCorpus().getSnapshot();
+    Check.equal("quotations from the new file", Integer.valueOf(2),
+                Integer.valueOf(snap.getLiveCount()));
+    Check.equal("new quotation", "quote 1", snap.findById(1).getQuotation());
+    Check.isTrue("old edits set aside", store.getSetAsideDirectory() != null);
+    Check.isTrue("old snapshot moved",
+                 new File(store.getSetAsideDirectory(), "quotes.ser").isFile());
+    store.close();
+  }
+
+
+  /**
+   * Count the files in a directory with a suffix.
+   *
+   * @param dir the directory
+   * @param suffix the suffix
+   * @return the number of files
+   */
+  private static int countFiles(final File dir, final String suffix)
+  {
+    int count = 0;
+    for (String name : dir.list())
+    {
+      if (name.endsWith(suffix))
+      {
+        ++count;
+      }
+    }
+
+    return count;
+  }
+
+
+  /**
+   * Find the file in a directory with a suffix.
+   *
+   * @param dir the directory
+   * @param suffix the suffix
+   * @return the file, or null if there isn't one
+   */
+  private static File findFile(final File dir, final String suffix)
+  {
+    for (String name : dir.list())
+    {
+      if (name.endsWith(suffix))
+      {
+        return new File(dir, name);
+      }
+    }
+
+    return null;
+  }
+
+
+  /**
+   * Make a list of quotations.
+   *
+   * @param count the number of quotations
+   * @return the quotations
+   */
+  private static List<QuotationNode> makeQuotes(final int count)
+  {
+    List<QuotationNode> list = new ArrayList<QuotationNode>(count);
+    for (int i = 0; i < count; ++i)
+    {
+      QuotationNode quote = makeQuote("quote " + i);
+      quote.setBio("bio " + i);
+      quote.setSource("source " + i);
+      list.add(quote);
+    }
+
+    return list;
+  }
+
+
+  /**
+   * Make a quotation.
+   *
+   * @param text the text of the quotation
+   * @return the quotation
+   */
+  private static QuotationNode makeQuote(final String text)
+  {
+    QuotationNode quote = new QuotationNode();
+    quote.setFirstName("Emily");
+    quote.setLastName("Dickinson");
+    quote.setTopic("hope");
+    quote.setQuotation(text);
+    return quote;
+  }
+}
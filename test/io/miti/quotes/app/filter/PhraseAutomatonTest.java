@@ -0,0 +1,249 @@
+package io.miti.quotes.app.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import io.miti.quotes.app.Check;
+
+/**
+ * Tests that a PhraseAutomaton counts every occurrence of every
+ * phrase, including overlapping ones and phrases inside other
+ * phrases, and that it accepts exactly the texts a
+ * ContainsAllFilter does.  The texts and queries are random, over
+ * a small alphabet so the phrases overlap often.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class PhraseAutomatonTest
+{
+  /**
+   * The number of random queries.
+   */
+  private static final int NUM_QUERIES = 500;
+
+  /**
+   * The number of random texts for each query.
+   */
+  private static final int NUM_TEXTS = 40;
+
+
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private PhraseAutomatonTest()
+  {
+    super();
+  }
+
+
+  /**
+   * Run the tests.
+   *
+   * @param args the arguments (unused)
+   */
+  public static void main(final String[] args)
+  {
+    testKnownCounts();
+    testAgainstFilter(new Random(42L));
+    Check.done("PhraseAutomatonTest");
+  }
+
+
+  /**
+   * Check the counts for phrases that overlap and nest.
+   */
+  private static void testKnownCounts()
+  {
+    List<byte[]> phrases = new ArrayList<byte[]>(4);
+    phrases.add(CaseFold.toLatin1("he", true));
+    phrases.add(CaseFold.toLatin1("she", true));
+    phrases.add(CaseFold.toLatin1("his", true));
+    phrases.add(CaseFold.toLatin1("hers", true));
+    final PhraseAutomaton automaton = new PhraseAutomaton(phrases);
+    Check.equal("phrase count", Integer.valueOf(4),
+                Integer.valueOf(automaton.getPhraseCount()));
+
+    final byte[] text = CaseFold.toLatin1("ushers said his hehe", true);
+    int[] counts = new int[4];
+    int[] touched = new int[4];
+    final int numTouched = automaton.count(text, 0, text.length,
+                                           counts, touched, 0);
+    Check.equal("phrases found", Integer.valueOf(4),
+                Integer.valueOf(numTouched));
+    Check.equal("count of he", Integer.valueOf(3), Integer.valueOf(counts[0]));
+    Check.equal("count of she", Integer.valueOf(1), Integer.valueOf(counts[1]));
+    Check.equal("count of his", Integer.valueOf(1), Integer.valueOf(counts[2]));
+    Check.equal("count of hers", Integer.valueOf(1), Integer.valueOf(counts[3]));
+
+    // Only the slice is read
+    counts = new int[4];
+    automaton.count(text, 1, 4, counts, touched, 0);
+    Check.equal("count of he in a slice", Integer.valueOf(1),
+                Integer.valueOf(counts[0]));
+    Check.equal("count of hers in a slice", Integer.valueOf(0),
+                Integer.valueOf(counts[3]));
+  }
+
+
+  /**
+   * Check that the automaton's counts match a simple search for
+   * each phrase, and that it accepts the same texts as the filter.
+   *
+   * @param rand the source of random queries and texts
+   */
+  private static void testAgainstFilter(final Random rand)
+  {
+    int numMismatched = 0;
+    int numAccepted = 0;
+    for (int q = 0; q < NUM_QUERIES; ++q)
+    {
+      final String query = randomQuery(rand);
+      final ContainsAllFilter filter = new ContainsAllFilter(query, true);
+      final int numPhrases = filter.getPhraseCount();
+      List<byte[]> phrases = new ArrayList<byte[]>(numPhrases);
+      for (int p = 0; p < numPhrases; ++p)
+      {
+        phrases.add(filter.getPhraseBytes(p));
+      }
+
+      final PhraseAutomaton automaton = new PhraseAutomaton(phrases);
+      int[] counts = new int[numPhrases];
+      int[] touched = new int[numPhrases];
+      for (int t = 0; t < NUM_TEXTS; ++t)
+      {
+        final String text = randomText(rand, "aAbB ", 30);
+        final byte[] folded = CaseFold.toLatin1(text, true);
+
+        // Put the text in the middle of an array
+        byte[] data = new byte[folded.length + 6];
+        Arrays.fill(data, (byte) 'a');
+        System.arraycopy(folded, 0, data, 3, folded.length);
+
+        final int numTouched = automaton.count(data, 3, folded.length,
+                                               counts, touched, 0);
+        boolean bAll = true;
+        for (int p = 0; p < numPhrases; ++p)
+        {
+          if (counts[p] != countOccurrences(folded, phrases.get(p)))
+          {
+            ++numMismatched;
+          }
+
+          bAll = (bAll && (counts[p] >= filter.getPhraseOccurrences(p)));
+        }
+
+        if ((bAll != filter.accept(text)) ||
+            (bAll != filter.acceptFolded(data, 3, folded.length)))
+        {
+          ++numMismatched;
+          System.err.println("Query <" + query + "> text <" + text + ">");
+        }
+
+        if (bAll)
+        {
+          ++numAccepted;
+        }
+
+        // Clear the counts for the next text
+        for (int i = 0; i < numTouched; ++i)
+        {
+          counts[touched[i]] = 0;
+        }
+      }
+    }
+
+    Check.equal("mismatches with the filter", Integer.valueOf(0),
+                Integer.valueOf(numMismatched));
+    Check.isTrue("some texts accepted", numAccepted > 0);
+  }
+
+
+  /**
+   * Count the occurrences of a phrase in some text, including
+   * overlapping ones.
+   *
+   * @param text the text
+   * @param phrase the phrase
+   * @return the number of occurrences
+   */
+  private static int countOccurrences(final byte[] text, final byte[] phrase)
+  {
+    int count = 0;
+    for (int i = 0; i + phrase.length <= text.length; ++i)
+    {
+      int j = 0;
+      while ((j < phrase.length) && (text[i + j] == phrase[j]))
+      {
+        ++j;
+      }
+
+      if (j == phrase.length)
+      {
+        ++count;
+      }
+    }
+
+    return count;
+  }
+
+
+  /**
+   * Make a query of one to four words, some of which may repeat
+   * or be quoted phrases.  It's in lower case, as QueryKey passes
+   * the term when ignoring case.
+   *
+   * @param rand the source of random values
+   * @return the query
+   */
+  private static String randomQuery(final Random rand)
+  {
+    StringBuilder sb = new StringBuilder(40);
+    final int numWords = 1 + rand.nextInt(4);
+    for (int i = 0; i < numWords; ++i)
+    {
+      if (i > 0)
+      {
+        sb.append(' ');
+      }
+
+      if (rand.nextInt(4) == 0)
+      {
+        sb.append('"').append(randomText(rand, "ab", 2)).append(' ')
+          .append(randomText(rand, "ab", 2)).append('"');
+      }
+      else
+      {
+        sb.append(randomText(rand, "ab", 3));
+      }
+    }
+
+    return sb.toString();
+  }
+
+
+  /**
+   * Make a random string of one or more characters.
+   *
+   * @param rand the source of random values
+   * @param alphabet the characters to use
+   * @param maxLength the maximum length
+   * @return the string
+   */
+  private static String randomText(final Random rand,
+                                   final String alphabet,
+                                   final int maxLength)
+  {
+    final int len = 1 + rand.nextInt(maxLength);
+    StringBuilder sb = new StringBuilder(len);
+    for (int i = 0; i < len; ++i)
+    {
+      sb.append(alphabet.charAt(rand.nextInt(alphabet.length())));
+    }
+
+    return sb.toString();
+  }
+}
@@ -0,0 +1,372 @@
+package io.miti.quotes.app.search;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import io.miti.quotes.app.Check;
+import io.miti.quotes.app.QuotationNode;
+import io.miti.quotes.app.QuoteSearchEngine;
+import io.miti.quotes.app.SearchResult;
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.corpus.SegmentedCorpus;
+
+/**
+ * Tests that a search carries on from a continuation without
+ * skipping or repeating a quotation, after the corpus has been
+ * added to, deleted from, edited and compacted since the
+ * continuation was made.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class ContinuationTest
+{
+  /**
+   * The query the continuations are made for.
+   */
+  private static final QueryKey QUERY =
+    new QueryKey(SearchMode.CONTAINS, "hope", null, false, 7);
+
+  /**
+   * The number of random corpora the boundary is checked in.
+   */
+  private static final int NUM_TRIALS = 300;
+
+
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private ContinuationTest()
+  {
+    super();
+  }
+
+
+  /**
+   * Run the tests.
+   *
+   * @param args the arguments (unused)
+   */
+  public static void main(final String[] args)
+  {
+    testToken();
+    testEditedNeighbours();
+    testAfterCompaction(new Random(3L));
+    testPaging(new Random(4L));
+    Check.done("ContinuationTest");
+  }
+
+
+  /**
+   * Check that a token reads back as the same continuation, and
+   * that bad tokens are refused.
+   */
+  private static void testToken()
+  {
+    SegmentedCorpus corpus = new SegmentedCorpus(makeQuotes(0, 20), 8, 100);
+    corpus.delete(9);
+    final CorpusSnapshot snap = corpus.getSnapshot();
+    final Continuation cont = new Continuation(QUERY, snap, 10);
+    final Continuation read = Continuation.parse(cont.toString());
+    Check.equal("token", cont.toString(), read.toString());
+    Check.equal("version", Long.valueOf(snap.getVersion()),
+                Long.valueOf(read.getVersion()));
+    Check.equal("position", Integer.valueOf(10),
+                Integer.valueOf(read.getPosition()));
+    Check.equal("position in the same version", Integer.valueOf(10),
+                Integer.valueOf(read.findPosition(snap)));
+    Check.isTrue("same query", read.isFor(
+                 new QueryKey(SearchMode.CONTAINS, "hope", null, false, 50)));
+    Check.isTrue("other query", !read.isFor(
+                 new QueryKey(SearchMode.CONTAINS, "fear", null, false, 7)));
+
+    final String[] bad = {"", "1.2.3.4", "1.2.3.4.5.6", "1.-2.3.4.5",
+                          "1.2.3.4.!"};
+    for (String token : bad)
+    {
+      boolean bRefused = false;
+      try
+      {
+        Continuation.parse(token);
+      }
+      catch (IllegalArgumentException iae)
+      {
+        bRefused = true;
+      }
+
+      Check.isTrue("bad token <" + token + ">", bRefused);
+    }
+
+    corpus.shutdown();
+  }
+
+
+  /**
+   * Check that when one of the quotations on either side of the
+   * boundary is edited, and so moves to the end, the other one
+   * marks the boundary.
+   */
+  private static void testEditedNeighbours()
+  {
+    for (int edited = 4; edited <= 5; ++edited)
+    {
+      SegmentedCorpus corpus = new SegmentedCorpus(makeQuotes(0, 10), 8, 100);
+      final Continuation cont = new Continuation(QUERY, corpus.getSnapshot(), 5);
+      corpus.update(edited, makeQuote(edited, "edited"));
+      final CorpusSnapshot snap = corpus.getSnapshot();
+      final int expected = ((edited == 4) ? snap.getPosition(5)
+                                          : (snap.getPosition(4) + 1));
+      Check.equal("boundary after editing " + edited, Integer.valueOf(expected),
+                  Integer.valueOf(cont.findPosition(snap)));
+      corpus.shutdown();
+    }
+  }
+
+
+  /**
+   * Check that the boundary found after deletes, adds and a
+   * compaction divides the surviving quotations the same way it
+   * did when the continuation was made, and that it's only out of
+   * date once the quotations on both sides of it are gone.
+   *
+   * @param rand the source of random corpora and edits
+   */
+  private static void testAfterCompaction(final Random rand)
+  {
+    int numMismatched = 0;
+    int numMoved = 0;
+    for (int t = 0; t < NUM_TRIALS; ++t)
+    {
+      // Start with a dense segment, two sealed ones and a memtable
+      SegmentedCorpus corpus = new SegmentedCorpus(makeQuotes(0, 40), 8, 100);
+      for (int id = 40; id < 60; ++id)
+      {
+        corpus.add(makeQuote(id, "added"));
+      }
+
+      final CorpusSnapshot before = corpus.getSnapshot();
+      final int nPos = rand.nextInt(before.size() + 1);
+      final Continuation cont = Continuation.parse(
+        new Continuation(QUERY, before, nPos).toString());
+      Set<Integer> scanned = new HashSet<Integer>(64);
+      for (int pos = 0; pos < nPos; ++pos)
+      {
+        if (before.isLive(pos))
+        {
+          scanned.add(Integer.valueOf(before.getId(pos)));
+        }
+      }
+
+      for (int id = 0; id < 60; ++id)
+      {
+        if (rand.nextInt(100) < 35)
+        {
+          corpus.delete(id);
+        }
+      }
+
+      for (int id = 60; id < 65; ++id)
+      {
+        corpus.add(makeQuote(id, "added later"));
+      }
+
+      corpus.compact();
+      final CorpusSnapshot after = corpus.getSnapshot();
+      final int nFound = cont.findPosition(after);
+      corpus.shutdown();
+
+      // It's only out of date if both neighbours were deleted
+      final int nBeforeId = before.getIdBefore(nPos);
+      final int nAfterId = before.getIdFrom(nPos);
+      final boolean bGone = ((nBeforeId >= 0) &&
+                             (after.findById(nBeforeId) == null) &&
+                             ((nAfterId < 0) ||
+                              (after.findById(nAfterId) == null)));
+      if (bGone != (nFound < 0))
+      {
+        ++numMismatched;
+        continue;
+      }
+
+      if (nFound < 0)
+      {
+        continue;
+      }
+
+      // Everything before the boundary was scanned, and nothing after
+      for (int pos = 0; pos < after.size(); ++pos)
+      {
+        if (after.isLive(pos) &&
+            ((pos < nFound) != scanned.contains(Integer.valueOf(after.getId(pos)))))
+        {
+          ++numMismatched;
+          break;
+        }
+      }
+
+      if (nFound != nPos)
+      {
+        ++numMoved;
+      }
+    }
+
+    Check.equal("boundaries that moved wrongly", Integer.valueOf(0),
+                Integer.valueOf(numMismatched));
+    Check.isTrue("compaction moved boundaries", numMoved > NUM_TRIALS / 2);
+  }
+
+
+  /**
+   * Page through every match of a query, a few at a time, editing
+   * and compacting the corpus between pages, and check that each
+   * match is returned once, and none that was live throughout is
+   * missed.
+   *
+   * @param rand the source of random edits
+   */
+  private static void testPaging(final Random rand)
+  {
+    SegmentedCorpus corpus = new SegmentedCorpus(makeQuotes(0, 200), 16, 100);
+    final QuoteSearchEngine engine = new QuoteSearchEngine(corpus);
+    Set<Integer> returned = new HashSet<Integer>(128);
+    Set<Integer> deleted = new HashSet<Integer>(64);
+    SearchResult result = engine.search(QUERY, null, 0L);
+    int numRepeated = addIds(result, returned);
+    int numPages = 1;
+    int nextId = 200;
+    String cont = null;
+    while ((cont = result.getContinuation()) != null)
+    {
+      // Delete some quotations, add some, and merge the segments
+      for (int i = 0; i < 6; ++i)
+      {
+        final int id = rand.nextInt(nextId);
+        if (corpus.delete(id))
+        {
+          deleted.add(Integer.valueOf(id));
+        }
+      }
+
+      for (int i = 0; i < 3; ++i)
+      {
+        corpus.add(makeQuote(nextId++, "added"));
+      }
+
+      corpus.compact();
+
+      // Get the next page
+      result = engine.search(QUERY, cont, 0L);
+      numRepeated += addIds(result, returned);
+      ++numPages;
+    }
+
+    int numMissed = 0;
+    for (int id = 0; id < nextId; ++id)
+    {
+      final Integer key = Integer.valueOf(id);
+      if (isMatch(id) && !deleted.contains(key) && !returned.contains(key))
+      {
+        ++numMissed;
+      }
+    }
+
+    Check.isTrue("several pages", numPages > 5);
+    Check.equal("matches repeated", Integer.valueOf(0),
+                Integer.valueOf(numRepeated));
+    Check.equal("matches missed", Integer.valueOf(0),
+                Integer.valueOf(numMissed));
+
+    boolean bRefused = false;
+    try
+    {
+      engine.search(new QueryKey(SearchMode.CONTAINS, "fear", null, false, 7),
+                    engine.search(QUERY, null, 0L).getContinuation(), 0L);
+    }
+    catch (IllegalArgumentException iae)
+    {
+      bRefused = true;
+    }
+
+    Check.isTrue("continuation of another query refused", bRefused);
+    engine.shutdown();
+    corpus.shutdown();
+  }
+
+
+  /**
+   * Add the IDs of a page of matches to those already returned.
+   *
+   * @param result the page
+   * @param returned the IDs returned so far
+   * @return the number of IDs that were already returned
+   */
+  private static int addIds(final SearchResult result,
+                            final Set<Integer> returned)
+  {
+    int numRepeated = 0;
+    for (int i = 0; i < result.size(); ++i)
+    {
+      if (!returned.add(Integer.valueOf(result.getId(i))))
+      {
+        ++numRepeated;
+      }
+    }
+
+    return numRepeated;
+  }
+
+
+  /**
+   * Returns whether a quotation matches the query.
+   *
+   * @param nId the ID of the quotation
+   * @return whether it has the word "hope"
+   */
+  private static boolean isMatch(final int nId)
+  {
+    return ((nId % 3) == 0);
+  }
+
+
+  /**
+   * Make quotations with consecutive IDs.
+   *
+   * @param nFirst the ID of the first quotation
+   * @param count the number of quotations
+   * @return the quotations
+   */
+  private static List<QuotationNode> makeQuotes(final int nFirst,
+                                                final int count)
+  {
+    List<QuotationNode> list = new ArrayList<QuotationNode>(count);
+    for (int i = 0; i < count; ++i)
+    {
+      list.add(makeQuote(nFirst + i, "original"));
+    }
+
+    return list;
+  }
+
+
+  /**
+   * Make a quotation, which matches the query if isMatch() says so.
+   *
+   * @param nId the ID it will have
+   * @param what a word to tell versions of it apart
+   * @return the quotation
+   */
+  private static QuotationNode makeQuote(final int nId, final String what)
+  {
+    QuotationNode quote = new QuotationNode();
+    quote.setFirstName("Author");
+    quote.setLastName(Integer.toString(nId % 7));
+    quote.setTopic("life");
+    quote.setQuotation("Quotation " + nId + ", " + what +
+                       (isMatch(nId) ? ", of hope" : ", of fear"));
+    return quote;
+  }
+}
@@ -0,0 +1,324 @@
+package io.miti.quotes.app.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import io.miti.quotes.app.Check;
+import io.miti.quotes.app.QuotationNode;
+import io.miti.quotes.app.corpus.CorpusSnapshot;
+import io.miti.quotes.app.corpus.SegmentedCorpus;
+
+/**
+ * Tests that a QuoteSampler's weighted picks follow the
+ * popularity scores, its uniform picks are uniform, and that it
+ * never picks a deleted quotation or one outside the topic or
+ * author asked for.  The frequencies are checked with a
+ * chi-squared test on many picks from a seeded generator.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class QuoteSamplerTest
+{
+  /**
+   * The number of quotations.
+   */
+  private static final int NUM_QUOTES = 30;
+
+  /**
+   * The ID of the first quotation by the author whose quotations
+   * all score 0.
+   */
+  private static final int FIRST_UNSCORED = 26;
+
+  /**
+   * The number of picks for each frequency check.
+   */
+  private static final int NUM_PICKS = 300000;
+
+
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private QuoteSamplerTest()
+  {
+    super();
+  }
+
+
+  /**
+   * Run the tests.
+   *
+   * @param args the arguments (unused)
+   */
+  public static void main(final String[] args)
+  {
+    SegmentedCorpus corpus = new SegmentedCorpus(makeQuotes());
+    corpus.delete(5);
+    corpus.delete(6);
+    final CorpusSnapshot snap = corpus.getSnapshot();
+    final QuoteSampler sampler = new QuoteSampler(snap,
+      new QuoteSampler.Popularity()
+      {
+        public double getScore(final int nId, final QuotationNode quote)
+        {
+          return getTestScore(nId);
+        }
+      });
+
+    Check.isTrue("weighted", sampler.isWeighted());
+    Check.isTrue("unweighted", !new QuoteSampler(snap, null).isWeighted());
+    testWeighted(sampler, new Random(11L));
+    testUniform(sampler, new Random(12L));
+    testGroups(sampler, new Random(13L));
+
+    Check.equal("quotation of the day", Integer.valueOf(
+                sampler.pickForDay(20261019, true)), Integer.valueOf(
+                sampler.pickForDay(20261019, true)));
+    Check.equal("empty corpus", Integer.valueOf(-1), Integer.valueOf(
+                new QuoteSampler(new SegmentedCorpus(null).getSnapshot(),
+                                 null).pick(new Random(), false)));
+    corpus.shutdown();
+
+    Check.done("QuoteSamplerTest");
+  }
+
+
+  /**
+   * Check that weighted picks from the whole corpus follow the
+   * scores, and never pick a quotation that scores 0.
+   *
+   * @param sampler the sampler
+   * @param rand the source of random numbers
+   */
+  private static void testWeighted(final QuoteSampler sampler,
+                                   final Random rand)
+  {
+    final CorpusSnapshot snap = sampler.getSnapshot();
+    int[] picks = new int[NUM_QUOTES];
+    for (int i = 0; i < NUM_PICKS; ++i)
+    {
+      ++picks[snap.getId(sampler.pick(rand, true))];
+    }
+
+    double[] expected = new double[NUM_QUOTES];
+    for (int id = 0; id < NUM_QUOTES; ++id)
+    {
+      expected[id] = (isLive(id) ? getTestScore(id) : 0.0);
+    }
+
+    checkFrequencies("weighted picks", picks, expected);
+  }
+
+
+  /**
+   * Check that uniform picks from the whole corpus are uniform
+   * over the live quotations.
+   *
+   * @param sampler the sampler
+   * @param rand the source of random numbers
+   */
+  private static void testUniform(final QuoteSampler sampler,
+                                  final Random rand)
+  {
+    final CorpusSnapshot snap = sampler.getSnapshot();
+    int[] picks = new int[NUM_QUOTES];
+    for (int i = 0; i < NUM_PICKS; ++i)
+    {
+      ++picks[snap.getId(sampler.pick(rand, false))];
+    }
+
+    double[] expected = new double[NUM_QUOTES];
+    for (int id = 0; id < NUM_QUOTES; ++id)
+    {
+      expected[id] = (isLive(id) ? 1.0 : 0.0);
+    }
+
+    checkFrequencies("uniform picks", picks, expected);
+  }
+
+
+  /**
+   * Check picks by topic, in any case, and by author, including an
+   * author whose quotations all score 0, whose weighted picks are
+   * uniform.
+   *
+   * @param sampler the sampler
+   * @param rand the source of random numbers
+   */
+  private static void testGroups(final QuoteSampler sampler,
+                                 final Random rand)
+  {
+    final CorpusSnapshot snap = sampler.getSnapshot();
+    int[] picks = new int[NUM_QUOTES];
+    for (int i = 0; i < NUM_PICKS; ++i)
+    {
+      ++picks[snap.getId(sampler.pickByTopic("HOPE", rand, true))];
+    }
+
+    double[] expected = new double[NUM_QUOTES];
+    for (int id = 0; id < NUM_QUOTES; ++id)
+    {
+      expected[id] = ((isLive(id) && getTopic(id).equals("hope"))
+                      ? getTestScore(id) : 0.0);
+    }
+
+    checkFrequencies("weighted picks by topic", picks, expected);
+
+    picks = new int[NUM_QUOTES];
+    for (int i = 0; i < NUM_PICKS; ++i)
+    {
+      ++picks[snap.getId(sampler.pickByAuthor("nobody special", rand, true))];
+    }
+
+    expected = new double[NUM_QUOTES];
+    for (int id = FIRST_UNSCORED; id < NUM_QUOTES; ++id)
+    {
+      expected[id] = 1.0;
+    }
+
+    checkFrequencies("weighted picks by an unscored author", picks, expected);
+
+    Check.equal("unknown topic", Integer.valueOf(-1),
+                Integer.valueOf(sampler.pickByTopic("despair", rand, true)));
+    Check.equal("unknown author", Integer.valueOf(-1),
+                Integer.valueOf(sampler.pickByAuthor("Nobody", rand, false)));
+  }
+
+
+  /**
+   * Check that the quotations were picked in proportion to their
+   * weights: none with a weight of 0, and the rest passing a
+   * chi-squared test at the 0.1% level.
+   *
+   * @param what what's being checked
+   * @param picks the number of times each ID was picked
+   * @param weights the weight of each ID
+   */
+  private static void checkFrequencies(final String what,
+                                       final int[] picks,
+                                       final double[] weights)
+  {
+    double total = 0.0;
+    int numPicks = 0;
+    for (int id = 0; id < picks.length; ++id)
+    {
+      total += weights[id];
+      numPicks += picks[id];
+    }
+
+    double chiSquared = 0.0;
+    int df = -1;
+    boolean bZeroPicked = false;
+    for (int id = 0; id < picks.length; ++id)
+    {
+      if (weights[id] == 0.0)
+      {
+        bZeroPicked = (bZeroPicked || (picks[id] > 0));
+        continue;
+      }
+
+      final double expected = numPicks * weights[id] / total;
+      final double diff = picks[id] - expected;
+      chiSquared += diff * diff / expected;
+      ++df;
+    }
+
+    Check.isTrue(what + ": nothing with no weight picked", !bZeroPicked);
+    Check.isTrue(what + ": chi-squared " + chiSquared + " with " + df +
+                 " degrees of freedom", chiSquared < criticalValue(df));
+  }
+
+
+  /**
+   * Get the value that a chi-squared statistic exceeds only 0.1%
+   * of the time, using the Wilson-Hilferty approximation.
+   *
+   * @param df the degrees of freedom
+   * @return the critical value
+   */
+  private static double criticalValue(final int df)
+  {
+    final double z = 3.09;
+    final double v = 2.0 / (9.0 * df);
+    final double root = 1.0 - v + (z * Math.sqrt(v));
+    return df * root * root * root;
+  }
+
+
+  /**
+   * Get the popularity score of a quotation.  Every fourth one
+   * scores 0, as does every quotation by the last author.
+   *
+   * @param nId the ID of the quotation
+   * @return the score
+   */
+  private static double getTestScore(final int nId)
+  {
+    if ((nId >= FIRST_UNSCORED) || ((nId % 4) == 0))
+    {
+      return 0.0;
+    }
+
+    return (1 + (nId % 7));
+  }
+
+
+  /**
+   * Returns whether a quotation wasn't deleted.
+   *
+   * @param nId the ID of the quotation
+   * @return whether it's live
+   */
+  private static boolean isLive(final int nId)
+  {
+    return ((nId != 5) && (nId != 6));
+  }
+
+
+  /**
+   * Get the topic of a quotation, in lower case.
+   *
+   * @param nId the ID of the quotation
+   * @return the topic
+   */
+  private static String getTopic(final int nId)
+  {
+    return (((nId % 3) == 0) ? "fear" : "hope");
+  }
+
+
+  /**
+   * Make the quotations.  Their topics differ in case, and the
+   * last few are by an author whose quotations all score 0.
+   *
+   * @return the quotations
+   */
+  private static List<QuotationNode> makeQuotes()
+  {
+    List<QuotationNode> list = new ArrayList<QuotationNode>(NUM_QUOTES);
+    for (int id = 0; id < NUM_QUOTES; ++id)
+    {
+      QuotationNode quote = new QuotationNode();
+      if (id >= FIRST_UNSCORED)
+      {
+        quote.setFirstName("Nobody");
+        quote.setLastName("Special");
+      }
+      else
+      {
+        quote.setFirstName("Author");
+        quote.setLastName(Integer.toString(id % 5));
+      }
+
+      final String topic = getTopic(id);
+      quote.setTopic(((id % 2) == 0) ? topic.toUpperCase() : topic);
+      quote.setQuotation("Quotation " + id);
+      list.add(quote);
+    }
+
+    return list;
+  }
+}
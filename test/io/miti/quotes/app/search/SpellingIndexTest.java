@@ -0,0 +1,273 @@
+package io.miti.quotes.app.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import io.miti.quotes.app.Check;
+
+/**
+ * Tests that a SpellingIndex suggests the same correction as
+ * checking every word in the dictionary: the nearest word within
+ * the maximum edit distance, and of those the most frequent.  The
+ * dictionary is random, over a small alphabet so many words are
+ * near each other, with words longer than the indexed prefix.
+ *
+ * @author mwallace
+ * @version 1.0
+ */
+public final class SpellingIndexTest
+{
+  /**
+   * The number of words in the random dictionary.
+   */
+  private static final int NUM_WORDS = 400;
+
+  /**
+   * The number of misspellings checked.
+   */
+  private static final int NUM_QUERIES = 20000;
+
+
+  /**
+   * Default constructor.  Make it private so the class cannot
+   * be instantiated.
+   */
+  private SpellingIndexTest()
+  {
+    super();
+  }
+
+
+  /**
+   * Run the tests.
+   *
+   * @param args the arguments (unused)
+   */
+  public static void main(final String[] args)
+  {
+    testKnownWords();
+    testAgainstEveryWord(new Random(7L));
+    Check.done("SpellingIndexTest");
+  }
+
+
+  /**
+   * Check suggestions and corrections on a few English words.
+   */
+  private static void testKnownWords()
+  {
+    Map<String, Integer> counts = new HashMap<String, Integer>(8);
+    counts.put("love", Integer.valueOf(50));
+    counts.put("live", Integer.valueOf(20));
+    counts.put("life", Integer.valueOf(40));
+    counts.put("imagination", Integer.valueOf(5));
+    counts.put("knowledge", Integer.valueOf(8));
+    final SpellingIndex index = new SpellingIndex(counts,
+        SpellingIndex.DEFAULT_MAX_DISTANCE, SpellingIndex.DEFAULT_PREFIX_LENGTH);
+
+    Check.equal("known word", "life", index.suggest("life"));
+    Check.equal("nearest word", "imagination", index.suggest("imaginaton"));
+    Check.equal("swapped letters", "knowledge", index.suggest("knowlegde"));
+    Check.equal("error past the prefix", "imagination",
+                index.suggest("imaginatoin"));
+    Check.equal("most frequent of the nearest", "love", index.suggest("lave"));
+    Check.isTrue("nothing near", index.suggest("zzzzzz") == null);
+
+    Check.equal("correct a search", "love and knowledge",
+                index.correct("lovv and knowlege"));
+    Check.isTrue("nothing to correct", index.correct("life") == null);
+    Check.isTrue("quoted search left alone",
+                 index.correct("\"lovv\" knowlege") == null);
+  }
+
+
+  /**
+   * Check suggestions for random misspellings of random words
+   * against a search of the whole dictionary.
+   *
+   * @param rand the source of random words and edits
+   */
+  private static void testAgainstEveryWord(final Random rand)
+  {
+    // Give each word a different count, so there's one best match
+    Map<String, Integer> counts = new HashMap<String, Integer>(NUM_WORDS * 2);
+    while (counts.size() < NUM_WORDS)
+    {
+      final String word = randomWord(rand, 3 + rand.nextInt(10));
+      if (!counts.containsKey(word))
+      {
+        counts.put(word, Integer.valueOf(counts.size() + 1));
+      }
+    }
+
+    final List<String> words = new ArrayList<String>(counts.keySet());
+    final SpellingIndex index = new SpellingIndex(counts,
+        SpellingIndex.DEFAULT_MAX_DISTANCE, SpellingIndex.DEFAULT_PREFIX_LENGTH);
+    Check.equal("dictionary size", Integer.valueOf(NUM_WORDS),
+                Integer.valueOf(index.size()));
+
+    int numMismatched = 0;
+    int numFound = 0;
+    for (int q = 0; q < NUM_QUERIES; ++q)
+    {
+      String query = words.get(rand.nextInt(words.size()));
+      final int numEdits = 1 + rand.nextInt(3);
+      for (int e = 0; e < numEdits; ++e)
+      {
+        query = randomEdit(rand, query);
+      }
+
+      if (query.length() == 0)
+      {
+        continue;
+      }
+
+      final String expected = bestMatch(words, counts, query);
+      final String actual = index.suggest(query);
+      if ((expected == null) ? (actual != null) : !expected.equals(actual))
+      {
+        ++numMismatched;
+        System.err.println("Query <" + query + "> expected <" + expected +
+                           "> but was <" + actual + ">");
+      }
+
+      if (expected != null)
+      {
+        ++numFound;
+      }
+    }
+
+    Check.equal("mismatches with a full search", Integer.valueOf(0),
+                Integer.valueOf(numMismatched));
+    Check.isTrue("most misspellings corrected", numFound > NUM_QUERIES / 2);
+  }
+
+
+  /**
+   * Find the best correction by checking every word.
+   *
+   * @param words the words
+   * @param counts the count of each word
+   * @param query the misspelled word
+   * @return the best word, or null if none is near enough
+   */
+  private static String bestMatch(final List<String> words,
+                                  final Map<String, Integer> counts,
+                                  final String query)
+  {
+    String best = null;
+    int bestDistance = SpellingIndex.DEFAULT_MAX_DISTANCE + 1;
+    for (String word : words)
+    {
+      final int distance = editDistance(query, word);
+      if ((distance < bestDistance) ||
+          ((distance == bestDistance) && (best != null) &&
+           (counts.get(word).intValue() > counts.get(best).intValue())))
+      {
+        best = word;
+        bestDistance = distance;
+      }
+    }
+
+    return best;
+  }
+
+
+  /**
+   * Get the edit distance between two strings, counting an
+   * insertion, deletion, substitution or swap of two adjacent
+   * characters as one edit.
+   *
+   * @param s1 the first string
+   * @param s2 the second string
+   * @return the distance
+   */
+  private static int editDistance(final String s1, final String s2)
+  {
+    final int n = s1.length();
+    final int m = s2.length();
+    int[][] d = new int[n + 1][m + 1];
+    for (int i = 0; i <= n; ++i)
+    {
+      d[i][0] = i;
+    }
+
+    for (int j = 0; j <= m; ++j)
+    {
+      d[0][j] = j;
+    }
+
+    for (int i = 1; i <= n; ++i)
+    {
+      for (int j = 1; j <= m; ++j)
+      {
+        final int cost = ((s1.charAt(i - 1) == s2.charAt(j - 1)) ? 0 : 1);
+        d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1),
+                           d[i - 1][j - 1] + cost);
+        if ((i > 1) && (j > 1) && (s1.charAt(i - 1) == s2.charAt(j - 2)) &&
+            (s1.charAt(i - 2) == s2.charAt(j - 1)))
+        {
+          d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+        }
+      }
+    }
+
+    return d[n][m];
+  }
+
+
+  /**
+   * Make one random edit to a word: insert, delete or change a
+   * letter, or swap two adjacent letters.
+   *
+   * @param rand the source of random values
+   * @param word the word
+   * @return the edited word
+   */
+  private static String randomEdit(final Random rand, final String word)
+  {
+    final int len = word.length();
+    final int pos = rand.nextInt(len + 1);
+    final String letter = randomWord(rand, 1);
+    switch (rand.nextInt(4))
+    {
+      case 0:
+        return word.substring(0, pos) + letter + word.substring(pos);
+
+      case 1:
+        return ((pos == len) ? word
+                : word.substring(0, pos) + word.substring(pos + 1));
+
+      case 2:
+        return ((pos == len) ? word
+                : word.substring(0, pos) + letter + word.substring(pos + 1));
+
+      default:
+        return ((pos + 1 >= len) ? word
+                : word.substring(0, pos) + word.charAt(pos + 1) +
+                  word.charAt(pos) + word.substring(pos + 2));
+    }
+  }
+
+
+  /**
+   * Make a random word from the first few letters of the alphabet.
+   *
+   * @param rand the source of random values
+   * @param len the length of the word
+   * @return the word
+   */
+  private static String randomWord(final Random rand, final int len)
+  {
+    StringBuilder sb = new StringBuilder(len);
+    for (int i = 0; i < len; ++i)
+    {
+      sb.append((char) ('a' + rand.nextInt(5)));
+    }
+
+    return sb.toString();
+  }
+}